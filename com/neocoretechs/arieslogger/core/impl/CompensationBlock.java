@@ -8,6 +8,7 @@ import com.neocoretechs.arieslogger.logrecords.Compensation;
 import com.neocoretechs.arieslogger.logrecords.Loggable;
 import com.neocoretechs.arieslogger.logrecords.Undoable;
 import com.neocoretechs.bigsack.io.UndoableBlock;
+import com.neocoretechs.bigsack.io.UndoableBlockDelta;
 import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
 import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
 /**
@@ -38,10 +39,15 @@ public class CompensationBlock implements Compensation, Serializable {
 	/**
 	 * 	When writing out a compensation log record to the log stream, logger calls
 		applyChange method to undo the change of a previous log operation.
-		We are going to get the V1 datablock from op and replace it
+		We are going to get the V1 datablock from op and replace it, or for a delta
+		put back the ranges it changed
 	 */
 	@Override
 	public void applyChange(ObjectDBIO xact, LogInstance instance, Object in) throws IOException {
+		if( op instanceof UndoableBlockDelta ) {
+			((UndoableBlockDelta)op).undo(xact);
+			return;
+		}
 		BlockAccessIndex blk = ((UndoableBlock)op).getBlkV1();
 		xact.FseekAndWrite(blk.getBlockNum(), blk.getBlk());
 		// unlatch
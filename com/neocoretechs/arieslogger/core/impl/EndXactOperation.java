@@ -0,0 +1,68 @@
+package com.neocoretechs.arieslogger.core.impl;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+import com.neocoretechs.arieslogger.core.LogInstance;
+import com.neocoretechs.arieslogger.logrecords.Loggable;
+import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
+
+/**
+ * A Log Operation that ends a transaction, written once its blocks are in the tablespaces, or once they
+ * have been rolled back. It changes nothing and has nothing to redo. Its place in the log is the truncation point:
+ * recovery rolls back only the records after the last one, and the log before it is not needed again,
+ * so the log files can be reclaimed whenever convenient rather than at every commit.
+ * @see Loggable
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public final class EndXactOperation implements Loggable, Externalizable {
+	private static final long serialVersionUID = 6358027316400927735L;
+	private int outcome; // COMMIT or ABORT
+
+	/**
+	 * @param outcome Loggable.COMMIT or Loggable.ABORT
+	 */
+	public EndXactOperation(int outcome) {
+		this.outcome = outcome;
+	}
+
+	// no-arg constructor
+	public EndXactOperation() { super(); }
+
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeInt(outcome);
+	}
+
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		outcome = in.readInt();
+	}
+
+	/**
+	 * Nothing to apply, the record is the change.
+	 */
+	public void applyChange(ObjectDBIO xact, LogInstance instance, Object in) throws IOException {}
+
+	public byte[] getPreparedLog() {
+		return null;
+	}
+
+	public boolean needsRedo(ObjectDBIO xact) {
+		return false;
+	}
+
+	public void releaseResource(ObjectDBIO xact) {}
+
+	/**
+	 * The last record of the transaction, and its outcome
+	 */
+	public int group() {
+		return Loggable.LAST | outcome;
+	}
+
+	public String toString() {
+		return "End transaction "+(outcome == Loggable.COMMIT ? "commit" : "abort");
+	}
+}
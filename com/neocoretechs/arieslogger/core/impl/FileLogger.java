@@ -28,13 +28,18 @@ import com.neocoretechs.arieslogger.core.StreamLogScan;
 import com.neocoretechs.arieslogger.logrecords.Compensation;
 import com.neocoretechs.arieslogger.logrecords.Loggable;
 import com.neocoretechs.arieslogger.logrecords.Undoable;
+import com.neocoretechs.bigsack.io.UndoableBlock;
+import com.neocoretechs.bigsack.io.UndoableBlockDelta;
 import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
-import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+import com.neocoretechs.bigsack.io.stream.DirectByteArrayOutputStream;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 
@@ -95,6 +100,13 @@ public final class FileLogger implements Logger {
 	private LogToFile logToFile;	// actually writes the log records.
 	
 	private ByteBuffer logOutputBuffer;
+	
+	// Writers of the same block hold its latch from the append through the applyChange,
+	// so the block is written in the order its records are in the log. Blocks hash onto a fixed set of latches,
+	// taking the high bits of a multiplicative hash as block numbers are multiples of the block size.
+	private static final int BLOCKLATCHBITS = 6;
+	private static final int BLOCKLATCHES = 1 << BLOCKLATCHBITS;
+	private final Object[] blockLatches = new Object[BLOCKLATCHES];
 
 	/**
 	* Make a new Logger with its own log record buffers
@@ -104,6 +116,8 @@ public final class FileLogger implements Logger {
 		this.logToFile = logFactory;
 		this.logOutputBuffer = ByteBuffer.allocate(LogToFile.DEFAULT_LOG_BUFFER_SIZE); // init size
 		this.logRecord = new LogRecord();
+		for(int i = 0; i < BLOCKLATCHES; i++)
+			blockLatches[i] = new Object();
 	}
 
 	/**
@@ -126,8 +140,13 @@ public final class FileLogger implements Logger {
 
 		<P>MT - there could be multiple threads running in the same raw
 		transactions and they can be calling the same logger to log different
-		log operations.  This whole method is synchronized to make sure log
-		records are logged one at a time.
+		log operations.  Building and appending the record is synchronized to make sure log
+		records are logged one at a time. Waiting for the record to become durable is not, so
+		concurrent writers queue up behind a single group commit sync in LogToFile.flush(instance)
+		and each one returns as soon as its own record is on disk.
+		The change is applied after that sync, as applyChange writes the block to the tablespace and
+		the record must be on disk first. Writers of the same block hold its latch from the append
+		through the apply, so a later record for the block is never applied ahead of an earlier one.
 
 		@param xact the transaction logging the change
 		@param operation the log operation
@@ -136,13 +155,44 @@ public final class FileLogger implements Logger {
 
 		@exception IOException  Standard error policy
 	*/
-	public synchronized LogInstance logAndDo(ObjectDBIO xact, Loggable operation) throws IOException 
+	public LogInstance logAndDo(ObjectDBIO xact, Loggable operation) throws IOException 
+	{
+		synchronized(blockLatch(operation)) {
+			return logAndApply(xact, operation);
+		}
+	}
+	/**
+	 * @param operation
+	 * @return The latch of the block the operation changes, or the operation itself if it changes no block
+	 */
+	private Object blockLatch(Loggable operation) {
+		long blockNum;
+		if( operation instanceof UndoableBlockDelta )
+			blockNum = ((UndoableBlockDelta)operation).getBlockNum();
+		else if( operation instanceof UndoableBlock )
+			blockNum = ((UndoableBlock)operation).getBlkV2().getBlockNum();
+		else
+			return operation;
+		return blockLatches[(int) ((blockNum * 0x9E3779B97F4A7C15L) >>> (64 - BLOCKLATCHBITS))];
+	}
+	/**
+	 * Append the record and apply the change once it is durable, called with the latch of the block held.
+	 * @param xact
+	 * @param operation
+	 * @return The instance of the record
+	 * @throws IOException
+	 */
+	private LogInstance logAndApply(ObjectDBIO xact, Loggable operation) throws IOException 
 	{
 		LogInstance logInstance = null;
+		long transactionId = xact.getTransId();
+		int completeLength = 0;
+		long endInstance;
+		byte[] buf = null;
+		synchronized(this) {
 		try {		
 
 			logOutputBuffer.clear();
-			long transactionId = xact.getTransId();
 
 			// write out the log header with the operation embedded
 			// this is by definition not a compensation log record,
@@ -151,22 +201,27 @@ public final class FileLogger implements Logger {
 
 			int optionalDataLength = 0;
 			int optionalDataOffset = 0;
-			int completeLength = 0;
 			
-			byte[] buf = GlobalDBIO.getObjectAsBytes(logRecord);
+			// the serialized record runs to the count of the stream, not the length of its buffer
+			DirectByteArrayOutputStream baos = new DirectByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(baos);
+			oos.writeObject(logRecord);
+			oos.flush();
+			buf = baos.getBuf();
+			int recordLength = baos.getCount();
 			if( DEBUG ) {
-				System.out.println("FileLogger.logAndDo: Log record byte array size:"+buf.length);
+				System.out.println("FileLogger.logAndDo: Log record byte array size:"+recordLength);
 			}
 			byte[] preparedLogArray = operation.getPreparedLog();
 			if( preparedLogArray != null ) {
 				optionalDataLength = preparedLogArray.length;
 			}
-			if(logOutputBuffer.remaining() < buf.length+optionalDataLength+4 ) {
+			if(logOutputBuffer.remaining() < recordLength+optionalDataLength+4 ) {
 				if(DEBUG)
-				System.out.println("Not enough space in buffer for record:"+logOutputBuffer.remaining()+" reallocating to "+(buf.length+optionalDataLength+4));
-				logOutputBuffer = ByteBuffer.allocate(buf.length+optionalDataLength+4);
+				System.out.println("Not enough space in buffer for record:"+logOutputBuffer.remaining()+" reallocating to "+(recordLength+optionalDataLength+4));
+				logOutputBuffer = ByteBuffer.allocate(recordLength+optionalDataLength+4);
 			}
-			logOutputBuffer.put(buf);
+			logOutputBuffer.put(buf, 0, recordLength);
 
 			//byte[] preparedLogArray = operation.getPreparedLog();
 			if (preparedLogArray != null) {
@@ -190,20 +245,24 @@ public final class FileLogger implements Logger {
 									completeLength, preparedLogArray,
 									optionalDataOffset,
 									optionalDataLength);
-			flush();
+			// the end of our record, which is what must be on disk before we touch the raw store
+			endInstance = logToFile.currentInstance();
 			logInstance = new LogCounter(instance);
-			
-			operation.applyChange(xact, logInstance, logOutputBuffer);
-		
-			if (DEBUG) {	    
-                System.out.println("FileLogger.logAndDo: Write log record: tranId=" + transactionId +
-                    " instance: " + logInstance.toString() + " length: " +
-                    completeLength + " op:" + operation);    
-			}
 
 		} finally {
 				if( logOutputBuffer != null ) logOutputBuffer.clear();
 		}
+		}
+		// outside the logger monitor, writers of other blocks may append to our group while we wait
+		logToFile.flush(endInstance);
+		// logOutputBuffer may already hold the next writers record, hand the change our own bytes
+		operation.applyChange(xact, logInstance, ByteBuffer.wrap(buf));
+		
+		if (DEBUG) {	    
+            System.out.println("FileLogger.logAndDo: Write log record: tranId=" + transactionId +
+                " instance: " + logInstance.toString() + " length: " +
+                completeLength + " op:" + operation);    
+		}
 		return logInstance;
 
 	}
@@ -398,6 +457,57 @@ public final class FileLogger implements Logger {
         }
 	}
 
+	/**
+		Roll back the transaction whose first log record is at undoStartAt, through to the end of the log.
+		The log is scanned forward from undoStartAt for the records to undo, since the log before it may
+		hold transactions that have committed, then they are undone last first.
+		<P>MT - synchronized method
+		@param t the IO controller
+		@param undoStartAt the first log record of the transaction
+		@exception IOException
+	*/
+	public synchronized void undo(ObjectDBIO t, LogInstance undoStartAt) throws IOException {
+		ArrayList<Long> undoInstances = new ArrayList<Long>();
+		StreamLogScan scanLog = (StreamLogScan)logToFile.openForwardScan(undoStartAt, null);
+		try {
+			HashMap<LogInstance, LogRecord> records;
+			while ((records = scanLog.getNextRecord(0)) != null) {
+				for(Entry<LogInstance, LogRecord> recEntry : records.entrySet()) {
+					if (recEntry.getValue().getUndoable() != null)
+						undoInstances.add(recEntry.getKey().getValueAsLong());
+				}
+			}
+		} catch (ClassNotFoundException cnfe) {
+			throw logToFile.markCorrupt(new IOException(cnfe));
+		} finally {
+			scanLog.close();
+		}
+		undo(t, undoInstances);
+	}
+
+	/**
+		Undo the log records at the given instances, last first. Used by rollback and by recovery, which
+		gathers the records of the transaction left open during its redo scan.
+		<P>MT - synchronized method
+		@param t the IO controller
+		@param undoInstances the instances of the records to undo, in log order
+		@exception IOException
+	*/
+	protected synchronized void undo(ObjectDBIO t, List<Long> undoInstances) throws IOException {
+		if (DEBUG)
+			System.out.println("FileLogger.undo: undoing "+undoInstances.size()+" log records");
+		try {
+			for(int i = undoInstances.size()-1; i >= 0; i--) {
+				LogCounter undoInstance = new LogCounter(undoInstances.get(i));
+				extractUndoable(t, LogToFile.getRecord(logToFile, undoInstance), undoInstance);
+			}
+		} catch (ClassNotFoundException cnfe) {
+			throw logToFile.markCorrupt(new IOException(cnfe));
+		} catch (IOException ioe) {
+			throw logToFile.markCorrupt(ioe);
+		}
+	}
+
 
 	/**
 		Recovery Redo loop.
@@ -415,12 +525,17 @@ public final class FileLogger implements Logger {
             before the applyChange is called).
 		<LI>if it isComplete(), then the transaction object is closed.
 		</OL>
+		<P> The block changes of each transaction ending in a commit are passed to a ParallelRedo,
+		which redoes them when the scan is done, the blocks partitioned by number among its threads.
+		The changes of a transaction ending in an abort were rolled back then, and are not redone.
 
 		<P> MT - caller provides synchronization
 
 		@param redoLWM          - if checkpoint seen, starting from this point
                                   on, apply redo if necessary
 	  	@param ttabInstance 	- checkpoint instance from control file, startng point
+		@param undoInstances    - filled with the instances of the undoable records after the last
+                                  transaction end, the transaction recovery must roll back
 
 		@return the log instance of the next log record (or the instance just
 		after the last log record).  This is used to determine where the log
@@ -434,7 +549,8 @@ public final class FileLogger implements Logger {
 	protected synchronized long redo(ObjectDBIO blockio, 
 			StreamLogScan redoScan, 
 			long redoLWM, 
-			long ttabInstance) throws IOException, ClassNotFoundException {
+			long ttabInstance,
+			List<Long> undoInstances) throws IOException, ClassNotFoundException {
 
 		int scanCount    = 0;
         int redoCount    = 0;
@@ -450,6 +566,9 @@ public final class FileLogger implements Logger {
 		StreamLogScan undoScan  = null;
 		Loggable      op        = null;
 		long          logEnd    = LogCounter.getLogFilePosition(ttabInstance);  // we need to determine the log's true end
+		ParallelRedo  pageRedo  = new ParallelRedo(blockio, logToFile.getRedoThreads(), logToFile.getLogEpoch());
+		long          startTime = System.currentTimeMillis();
+		long          scanTime  = 0;
 
 		try 
         {
@@ -469,6 +588,18 @@ public final class FileLogger implements Logger {
 					scanCount++;
 					// last known good instance
 					instance = recEntry.getKey().getValueAsLong();
+					// a transaction end is the truncation point, nothing before it is rolled back
+					if (record.isComplete()) {
+						undoInstances.clear();
+						if (record.isCommit())
+							pageRedo.commit();
+						else
+							pageRedo.abort();
+					} else if (record.getUndoable() != null) {
+						undoInstances.add(instance);
+						if (record.getUndoable() instanceof UndoableBlockDelta)
+							pageRedo.add(((Scan)redoScan).getChecksumInstance(), (UndoableBlockDelta)record.getUndoable());
+					}
 					// if the redo scan is between the undoLWM and redoLWM, we only
 					// need to redo begin and end tran.  Everything else has
 					// already been flushed by checkpoint.
@@ -558,7 +689,9 @@ public final class FileLogger implements Logger {
             	}
             	// good as it gets
             }
-            
+			scanTime = System.currentTimeMillis() - startTime;
+			// the changes of the transaction left without an end are rolled back by undo, not redone
+			pageRedo.run();
 		} finally {
 			// close all the io streams
 			redoScan.close();
@@ -579,14 +712,28 @@ public final class FileLogger implements Logger {
                     " ( compensation = " + clrCount + " )" +
                     " incomplete/prepared = " + btranCount +
                     " complete = " + etranCount + 
+                    " to undo = " + undoInstances.size() +
                     "\n log ends at " + LogCounter.toDebugString(logEnd) +
                     "\n----------------------------------------------------\n");
+		// report the work of a recovery after a crash, a reopen after a clean close has nothing to redo or undo
+		if( LogToFile.ALERT || pageRedo.getRedone() > 0 || !undoInstances.isEmpty() ) {
+			long redoTime = System.currentTimeMillis() - startTime - scanTime;
+			System.out.println("Recovery of "+blockio.getDBName()+" tablespace "+logToFile.getTablespace()+
+					" scanned "+scanCount+" log records in "+scanTime+" ms ("+perSecond(scanCount, scanTime)+" records/s), redid "+
+					pageRedo.getRedone()+" of "+pageRedo.getChanges()+" committed block changes to "+pageRedo.getBlocks()+" blocks in "+
+					redoTime+" ms ("+perSecond(pageRedo.getRedone(), redoTime)+" changes/s) with "+pageRedo.getThreads()+" threads, "+
+					pageRedo.getSkipped()+" already written, "+undoInstances.size()+" to undo");
+		}
             
         //}
 
         // logEnd is the last good log record position in the log
 		return logEnd;			
 	}
+
+	private static long perSecond(long count, long millis) {
+		return count * 1000L / Math.max(millis, 1);
+	}
 	/**
 	 * Extract the undoable from the log record, generate the compensation record
 	 * via 'generateUndo', and finally call 'logAndUndo' to apply the undo and write the CLR and
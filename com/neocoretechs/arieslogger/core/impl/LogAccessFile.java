@@ -24,7 +24,6 @@ package com.neocoretechs.arieslogger.core.impl;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.io.SyncFailedException;
 import java.nio.ByteBuffer;
 
 
@@ -156,29 +155,31 @@ public class LogAccessFile
         // writes it to internal bytebuffer
         int fileNum = (int) LogCounter.getLogFileNumber(instance);
         assert(fileNum != 0 && log.getFilePointer() != 0) : "LogAccessFile.writeLogRecord checksum instance invalid "+fileNum+" "+log.getFilePointer();
-        logChecksum.setChecksumInstance(LogCounter.makeLogInstanceAsLong(fileNum, log.getFilePointer()));
+        // records accumulate in the buffer until the group is flushed, so the checksum lands
+        // at the file pointer plus whatever is already buffered ahead of it
+        logChecksum.setChecksumInstance(LogCounter.makeLogInstanceAsLong(fileNum, getBufferedFilePointer()));
         // make sure to call updateChecksum last, before processing, as it sets up entire checksum buffer for writing
         int lenCs = logChecksum.updateChecksum();
-        // write checksum, its ready to go
-        writeToLog(logChecksum.checksumBuffer.array(), 0, lenCs);
-        //syncLogAccessFile();
-        // write currentBuffer to log immediately after checksum record
         int totalLogRecordLength = length + LOG_RECORD_FIXED_OVERHEAD_SIZE;
         // add another log overhead for checksum log record
-   
         if( DEBUG ) {
-        	System.out.println("LogAccessFile.writeLogRecord: BIG buffer reclen/bytes free:"+totalLogRecordLength+"/"+currentBuffer.buffer.remaining());
+        	System.out.println("LogAccessFile.writeLogRecord: buffer reclen/bytes free:"+(lenCs+totalLogRecordLength)+"/"+currentBuffer.buffer.remaining());
         } 
-        if( currentBuffer.buffer.capacity() > totalLogRecordLength ) {
-        	currentBuffer.buffer.clear();
-        } else {
-        	currentBuffer.buffer = ByteBuffer.allocate(totalLogRecordLength);
+        if( currentBuffer.buffer.remaining() <= lenCs + totalLogRecordLength ) {
+        	// grow the buffer, keeping the records already queued for the next flush
+        	ByteBuffer nbuf = ByteBuffer.allocate(Math.max(currentBuffer.buffer.capacity() * 2, 
+        			currentBuffer.buffer.position() + lenCs + totalLogRecordLength + 1));
+        	currentBuffer.buffer.flip();
+        	nbuf.put(currentBuffer.buffer);
+        	currentBuffer.buffer = nbuf;
         }
+        // checksum goes immediately ahead of the record it covers
+        currentBuffer.buffer.put(logChecksum.checksumBuffer.array(), 0, lenCs);
         // set the greatest instance to the next record to be written
-        currentBuffer.greatestInstance = LogCounter.makeLogInstanceAsLong(fileNum, log.getFilePointer());
+        currentBuffer.greatestInstance = LogCounter.makeLogInstanceAsLong(fileNum, getBufferedFilePointer());
         // append log record
         appendLogRecordToBuffer(currentBuffer.buffer, 
-       		 						0,
+       		 						-1,
                                    length, 
                                    currentBuffer.greatestInstance, 
                                    data, 
@@ -188,6 +189,16 @@ public class LogAccessFile
                                    optional_data_length);
  
     }
+    
+    /**
+     * The position in the log file that the next buffered byte will occupy once the
+     * buffer is flushed. This is the true end of the log as seen by appenders.
+     * @return file pointer plus bytes waiting in the current buffer
+     * @throws IOException
+     */
+    public long getBufferedFilePointer() throws IOException {
+    	return log.getFilePointer() + currentBuffer.buffer.position();
+    }
 
     /**
      * Append a log record to a byte[]. Typically, the byte[] will be
@@ -272,9 +283,20 @@ public class LogAccessFile
 				} catch (InterruptedException ie) {}
 			}		
 			flushInProgress = true;
+			// follow the records with a zero length to mark the end of the log, the next flush writes over it.
+			// Commits leave their records in the file, so a forward scan must stop here and not read on into
+			// what an earlier use of the file left beyond
+			if( currentBuffer.buffer.remaining() < 4 ) {
+				ByteBuffer nbuf = ByteBuffer.allocate(currentBuffer.buffer.capacity() + 4);
+				currentBuffer.buffer.flip();
+				nbuf.put(currentBuffer.buffer);
+				currentBuffer.buffer = nbuf;
+			}
+			currentBuffer.buffer.putInt(0);
 			byte[] b = currentBuffer.buffer.array();
 			//writeToLog(currentBuffer.buffer.array(), 0, currentBuffer.buffer.limit(), currentBuffer.greatest_instance);
 			writeToLog(b, 0, currentBuffer.buffer.position());
+			log.seek(log.getFilePointer() - 4);
 			// now check to see if we need to switch to next log
 		} finally {
 				flushInProgress = false;
@@ -296,7 +318,10 @@ public class LogAccessFile
      * Note that this routine only "writes" the data to the file, this does not
      * mean that the data has been synced to disk.  The only way to insure that
      * is to first call switchLogBuffer() and then follow by a call of sync().
-     *
+     * <p>
+     * The sync is of the data only. Log files are allocated at their full size and zero filled
+     * before use, so appending to one writes over blocks the file already has and changes nothing
+     * the file system would have to sync along with the data.
      **/
     public synchronized void syncLogAccessFile() throws IOException
     {
@@ -306,11 +331,11 @@ public class LogAccessFile
             // mounted disk.  We re-try to do this 20 times.
             try
             {
-                log.getFD().sync();
+                log.getChannel().force(false);
                 // the sync succeed, so return
                 break;
             }
-            catch( SyncFailedException sfe )
+            catch( IOException sfe )
             {
                 i++;
                 try
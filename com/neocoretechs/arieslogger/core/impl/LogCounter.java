@@ -56,6 +56,13 @@ public class LogCounter implements LogInstance, Externalizable {
 
 	private static final int LOG_COUNTER = 0;
 
+	// A pageLSN is an instance qualified by the epoch of the log, since the instances start over at file 1
+	// each time the log does. The position keeps its 31 bits, the file number gets the 12 above it and the epoch the 20 above that.
+	private static final long PAGELSN_FILE_SHIFT = 31;
+	private static final long PAGELSN_FILE_MASK = (long)0xFFFL;
+	private static final long PAGELSN_EPOCH_SHIFT = 43;
+	private static final long PAGELSN_EPOCH_MASK = (long)0xFFFFFL;
+
 	private long fileNumber;
 	private long filePosition;
 
@@ -119,6 +126,31 @@ public class LogCounter implements LogInstance, Externalizable {
 		return valueAsLong >>> FILE_NUMBER_SHIFT;
 	}
 
+	/**
+	 * The pageLSN of a block written with the change logged at the instance. A file number past the 12 bits
+	 * kept is left out, and the pageLSN then names no change at all.
+	 * @param epoch The epoch of the log the change was logged in
+	 * @param instance The instance of the change
+	 * @return The pageLSN
+	 */
+	static public final long makePageLSN(long epoch, long instance)
+	{
+		long filenum = getLogFileNumber(instance);
+		if( filenum > PAGELSN_FILE_MASK )
+			filenum = 0;
+		return ((epoch & PAGELSN_EPOCH_MASK) << PAGELSN_EPOCH_SHIFT) | (filenum << PAGELSN_FILE_SHIFT) | getLogFilePosition(instance);
+	}
+	/**
+	 * @param pageLSN The pageLSN of a block
+	 * @param epoch The epoch of the log
+	 * @param instance The instance of a change in the log
+	 * @return true if the block was written with the change
+	 */
+	static public final boolean isPageLSNOf(long pageLSN, long epoch, long instance)
+	{
+		return getLogFileNumber(instance) <= PAGELSN_FILE_MASK && pageLSN == makePageLSN(epoch, instance);
+	}
+
 	/** LogScan methods */
 
 	public boolean lessThan(Object other) {
@@ -30,6 +30,7 @@ import com.neocoretechs.arieslogger.logrecords.Loggable;
 import com.neocoretechs.arieslogger.logrecords.ScanHandle;
 import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
 import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+import com.neocoretechs.bigsack.Props;
 
 import java.io.File; // Plain files are used for backups
 import java.io.FileOutputStream;
@@ -202,6 +203,24 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 	private long			lastFlush = 0;	// the position in the current log
 											// file that has been flushed to disk
 
+	// Group commit. Appenders queue records in the LogAccessFile buffer and call flush(instance).
+	// One caller becomes the leader, optionally waits for the group to fill, and issues a
+	// single sync on behalf of everyone whose record was in the buffer when it was written.
+	// LogGroupCommitSize and LogGroupCommitWait (milliseconds) may be set in BigSack.properties
+	private static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+	private static final long DEFAULT_GROUP_COMMIT_WAIT = 0;
+	private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+	private long groupCommitWait = DEFAULT_GROUP_COMMIT_WAIT;
+	private long flushedInstance = LogCounter.INVALID_LOG_INSTANCE; // highest instance known to be on disk
+	private boolean groupFlushInProgress = false; // a leader is writing and syncing
+	private int groupPending = 0; // records appended since the last group was written
+	// Threads redoing the block changes of a log in recovery, RecoveryRedoThreads in BigSack.properties
+	private static final int DEFAULT_REDO_THREADS = 4;
+	private int redoThreads = DEFAULT_REDO_THREADS;
+	private long mon_groupSyncs = 0; // number of syncs issued by group leaders
+	private long mon_groupRecords = 0; // records covered by those syncs
+	private int mon_groupMax = 0; // largest group covered by a single sync
+
     // logFileNumber and bootTimeLogFileNumber:
     // ----------------------------------------
     // There are three usages of the log file number in this class:
@@ -273,6 +292,9 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 
 	long checkpointInstance;	// log instance of the current Checkpoint
 	
+	private volatile long logEpoch = 0L; // times the log has started over at file 1, kept in the control file
+								// and in the pageLSN of each block written, see LogCounter.makePageLSN
+	
 	private long previousLogInstance = LogCounter.makeLogInstanceAsLong(1,LogToFile.LOG_FILE_HEADER_SIZE);
 								// previous instance logged for writing header of new files for backward scan
 								// and verification
@@ -346,6 +368,35 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 		keepAllLogs = false; // indicates whether obsolete logs may be removed, true causes return from truncate immediately
 		if (MEASURE)
 			mon_LogSyncStatistics = true;
+		try {
+			groupCommitSize = Props.toInt("LogGroupCommitSize");
+		} catch(IllegalArgumentException iae) {} // use default
+		try {
+			groupCommitWait = Props.toLong("LogGroupCommitWait");
+		} catch(IllegalArgumentException iae) {} // use default
+		if( groupCommitSize < 1 )
+			groupCommitSize = 1;
+		try {
+			redoThreads = Props.toInt("RecoveryRedoThreads");
+		} catch(IllegalArgumentException iae) {} // use default
+	}
+	/**
+	 * @return The epoch of this log, the number of times it has started over at file 1
+	 */
+	public long getLogEpoch() {
+		return logEpoch;
+	}
+	/**
+	 * @return The number of threads redoing the block changes of this log in recovery
+	 */
+	public int getRedoThreads() {
+		return redoThreads;
+	}
+	/**
+	 * @return The tablespace of this log, 0 for a log shared by all of them
+	 */
+	public int getTablespace() {
+		return tablespace;
 	}
 	
 	public void setRecoveryNeeded() {
@@ -583,7 +634,8 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 				//
 				/////////////////////////////////////////////////////////////
 				inRedo = true;	
-				long logEnd = logger.redo( blockIO, redoScan, redoLWM, checkpointInstance);
+				ArrayList<Long> undoInstances = new ArrayList<Long>();
+				long logEnd = logger.redo( blockIO, redoScan, redoLWM, checkpointInstance, undoInstances);
 				inRedo = false;		
    
 				// if we are only interested in dumping the log, don't alter
@@ -631,9 +683,9 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 					fileLogger.extractUndoable(blockIO, null, lr, undoCounter);
 				}
 				*/
-				// open the backward undo scan from the end to boot time file beginning
-				// no checkpoint
-				logger.undo( blockIO, new LogCounter(logEnd), new LogCounter(bootTimeLogFileNumber, LogToFile.LOG_FILE_HEADER_SIZE));
+				// roll back the records after the last transaction end found by redo, the transactions
+				// ended before it are in the tablespaces or were rolled back already
+				logger.undo( blockIO, undoInstances);
 				/////////////////////////////////////////////////////////////
 				//
 				// End of recovery.
@@ -649,10 +701,9 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 						flush();
 				}
 				*/
-				// Finished recovery, instead of a checkpoint our simplified protocol will get rid of old logs
-				// and start the new sequence for processing
+				// Finished recovery, instead of a checkpoint our simplified protocol will start the new sequence
+				// for processing, reusing the old log files
 				logger.reset();
-				deleteObsoleteLogfilesOnCommit();
 				initializeLogFileSequence();
 				recoveryNeeded = false;
 			}
@@ -1100,15 +1151,8 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 
 		RandomAccessFile newLog = null;	// the new log file
 		try {
-				// if the log file exist and cannot be deleted, cannot
-				// switch log right now
-                if (privExists(newLogFile) && !privDelete(newLogFile))
-				{
-                	if( DEBUG )
-                		System.out.println("LogToFile.switchLogFile returning, Cannot delete "+newLogFile.getPath());
-					return;
-				}
-
+				// if the log file exists it is left from an earlier use of the log, and is reused
+				// as it stands, allocated and zero filled already
 				try {
                     newLog = privRandomAccessFile(newLogFile, "rw");
 				} catch (IOException ioe)
@@ -1150,6 +1194,8 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 				//if (endPosition != LOG_FILE_HEADER_SIZE)
 				//		throw new IOException("New log file has unexpected size:" + endPosition);
 				logFileNumber++;
+				// everything in the old file is on disk
+				flushedInstance = currentInstance();
 
 				//System.out.println("LogToFile.switchLogFile Cannot create new log file "+newLogFile.getPath()+" returning with fail.");
 
@@ -1187,6 +1233,9 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 	}
 	/**
 	 * Parameter theLog is assumed to be open log file which is synched and closed.
+	 * If the file is new it is written out with zeros to its full size, once, so that appends to it
+	 * never grow the file and syncing them needs only the data. A file reused from an earlier use of the log
+	 * is already at full size and is left as it is, the header written below ends the log before its old contents.
 	 * logFile is then created as a randomaccessfile opened in RW
 	 * A forceinitLogFile with fileNumber is performed on the logFile
 	 * re-open RW and seek to class variable 'endPosition'
@@ -1207,8 +1256,11 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 			System.out.println("LogToFile.allocateNewLogFile Setting log "+logFile.getName()+" file#:"+fileNumber+
 					" length to "+logSize+" end "+endPosition+" previous log instance:"+pli);
 		}
-	    theLog.setLength(logSwitchInterval + LOG_FILE_HEADER_SIZE);
-	    syncFile(theLog);
+	    long logFileSize = logSwitchInterval + LOG_FILE_HEADER_SIZE;
+	    if( theLog.length() < logFileSize ) {
+	    	zeroFillLogFile(theLog, logFileSize);
+	    	syncFile(theLog);
+	    }
 	    theLog.close();
 		theLog = privRandomAccessFile(logFile, "rw");
 		if (!forceInitLogFile(theLog, fileNumber, prevLogInst)) // LogCounter.INVALID_LOG_INSTANCE
@@ -1218,10 +1270,40 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 
 		setEndPosition( theLog.getFilePointer() );
 		setLastFlush(theLog.getFilePointer());
-		syncFile(theLog);
 		//theLog.seek(endPosition);
 		return new LogAccessFile(logFile, theLog, logSize);
 	}
+	/**
+	 * Write zeros from the end of the log file out to the given size.
+	 * @param theLog the open log file
+	 * @param size the size the file is to have
+	 * @throws IOException
+	 */
+	private void zeroFillLogFile(RandomAccessFile theLog, long size) throws IOException {
+		byte[] zeros = new byte[65536];
+		long pos = theLog.length();
+		theLog.seek(pos);
+		while( pos < size ) {
+			int len = (int) Math.min(zeros.length, size - pos);
+			theLog.write(zeros, 0, len);
+			pos += len;
+		}
+	}
+	/**
+	 * Keep a log file after the first for reuse. Its header is written with no previous log instance
+	 * and an end of log mark, so a scan of the log stops before it until a log switch takes it up again.
+	 * @param logFile the log file
+	 * @param number the log file number
+	 * @throws IOException
+	 */
+	private void recycleLogFile(File logFile, long number) throws IOException {
+		RandomAccessFile theLog = privRandomAccessFile(logFile, "rw");
+		try {
+			forceInitLogFile(theLog, number, LogCounter.INVALID_LOG_INSTANCE);
+		} finally {
+			theLog.close();
+		}
+	}
 	/**
 	 * Assume we have a randomaccesfile positioned at end for append, header should be in and ready to go
 	 * set up the logAccessFile instance
@@ -1365,12 +1447,11 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 
 		//
 		// write some spare bytes after 2.0 we have 3 + 2(8) spare bytes.
- 		long spare = 0;
-       
+		// the long is the epoch of the log
 		daos.writeByte(0);
 		daos.writeByte(0);
         daos.writeByte(0);
-		daos.writeLong(spare);
+		daos.writeLong(logEpoch);
 		daos.flush();
 		// write the checksum for the control data written
 		checksum.reset();
@@ -1502,6 +1583,11 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 				onDiskMinorVersion = dais.readInt();
 				int dbBuildNumber = dais.readInt();
 				int flags = dais.readByte();
+				// the spare bytes, the last of them the epoch of the log
+				if( dais.available() >= 11 ) {
+					dais.skipBytes(3);
+					logEpoch = dais.readLong();
+				}
 						
 				onDiskBeta = (flags & IS_BETA_FLAG) != 0;
 				if (onDiskBeta)
@@ -1880,16 +1966,12 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 			// if we have a bad file 1 toss exception. verifyLogFormat closes file
 			headerLogInstance = verifyLogFormat(logFile, logFileNumber);
 						
-			// log file exist, need to run recovery if checkpoint is valid
-			if (checkpointInstance != LogCounter.INVALID_LOG_INSTANCE) {
-				if( ALERT )
-					System.out.println("Recovery indicated for "+dbName+" tablespace "+tablespace+" file#:"+logFileNumber+" end position:"+endPosition);
-				recoveryNeeded = true;
-			} else {
-				if( ALERT )
-					System.out.println("Recovery NOT indicated for "+dbName+" tablespace "+tablespace+" file#:"+logFileNumber+" end position:"+endPosition+" Checkpoint instance not valid.");
-				recoveryNeeded = false;
-			}
+			// log file exists, commits leave their records in it, so run recovery to roll back whatever
+			// follows the last transaction end, from the checkpoint if there is one, else from the start of the file
+			if( ALERT )
+				System.out.println("Recovery indicated for "+dbName+" tablespace "+tablespace+" file#:"+logFileNumber+" end position:"+endPosition+
+						(checkpointInstance != LogCounter.INVALID_LOG_INSTANCE ? "" : " Checkpoint instance not valid."));
+			recoveryNeeded = true;
 		}
 
     	bootTimeLogFileNumber = logFileNumber;
@@ -1945,12 +2027,19 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 		
 	}
 	
+	/**
+	 * Start the log over at file 1, with an invalid checkpoint in the control file. Log files after the first
+	 * are not deleted but kept, marked empty, for the log to switch into again.
+	 * @throws IOException
+	 */
 	public synchronized void initializeLogFileSequence() throws IOException {
 		// brand new log.  Start from log file number 1.
 		// create or overwrite the log control file with an invalid
 		// checkpoint instance since there is no checkpoint yet
 		RandomAccessFile firstLog;
 		File logControlFileName = getControlFileName();
+		// the instances of the new log will be those of the old one over again, a new epoch tells their pageLSNs apart
+		++logEpoch;
 		if (writeControlFile(logControlFileName, LogCounter.INVALID_LOG_INSTANCE)) {
 			setFirstLogFileNumber(1);
 			logFileNumber = 1;
@@ -1965,6 +2054,13 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 			}
 			assert(endPosition == LOG_FILE_HEADER_SIZE) : 
 					"LogToFile.initializeLogFileSequence empty log file "+logFile.getName()+" in "+dbName+" has wrong size";
+			// the files after the first are kept for the log switches to reuse, file 1 is emptied first
+			// so that the log they held is gone before any of them is
+			for(long fileNumber = 2; privExists(getLogFileName(fileNumber)); fileNumber++) {
+				recycleLogFile(getLogFileName(fileNumber), fileNumber);
+			}
+			flushedInstance = currentInstance();
+			groupPending = 0;
 		} else {
 			if( logOut != null )
 				logOut.close();
@@ -2001,6 +2097,7 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 						   " Total number of log writes = " +
 						   LogAccessFile.mon_numWritesToLog + 
 						   "\nCorrupt:"+corrupt+". Log Archive:"+logArchived()+". Keep all logs:"+keepAllLogs);
+			System.out.println(getGroupCommitStatistics());
 			System.out.println();
 		}	
 		// delete obsolete log files,left around by earlier crashes
@@ -2201,9 +2298,10 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 	* 
 	* It takes into account the addition of checksum records and log switches
 	* when log size exceeds limit.
-	* The endPosition is set to the file end on completion.
+	* The endPosition is set to the buffered end of log on completion.
 	* The instance returned is the file position before the current record was written, i.e.
-	* The beginning of the record that was written.
+	* The beginning of the checksum record that precedes the record that was written.
+	* The record is not durable until flush or flush(instance) covers endPosition.
 	* 
 	*	Method will append 'length' bytes of 'data' to the log prepended by 4 bytes of length information.
 	*	and a long log instance that should represent the position of the record.
@@ -2239,13 +2337,16 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
         }
 		
 		// set up to call the write of log record and checksum
-		previousLogInstance = LogCounter.makeLogInstanceAsLong(logFileNumber, endPosition);
+		previousLogInstance = LogCounter.makeLogInstanceAsLong(logFileNumber, logOut.getBufferedFilePointer());
 		assert( previousLogInstance != LogInstance.INVALID_LOG_INSTANCE);
 		
         logOut.writeLogRecord(length, previousLogInstance,
         				data, offset, optionalData, optionalDataOffset, optionalDataLength);
         
-        endPosition = logOut.getFilePointer();
+        endPosition = logOut.getBufferedFilePointer();
+        // wake a leader waiting for its group to fill
+        if( ++groupPending >= groupCommitSize && groupFlushInProgress )
+        	notifyAll();
 		if (optionalDataLength != 0) {
 				if (DEBUG) {
 						if (optionalData == null)
@@ -2302,61 +2403,142 @@ public final class LogToFile implements LogFactory, java.security.PrivilegedExce
 	}
 
 	/**
-		Flush the log such that the log record written with the instance 
-        wherePosition is guaranteed to be on disk.
-        Calls logOut.flushLogAccessFile
-		<P>MT - only one flush is allowed to be taking place at any given time 
-		(RESOLVE: right now it is single thread thru the log factory while the log is frozen) 
+		Flush the log such that every log record appended so far is guaranteed to be on disk.
+        Calls flush(instance) with the current buffered end of the log.
+		<P>MT - only one flush is allowed to be taking place at any given time, 
+		concurrent callers join the group of the flush in progress
 		@exception cannot sync log file
 
 	*/
-	public synchronized void flush() throws IOException
+	public void flush() throws IOException
+	{
+		long instance;
+		synchronized(this) {
+			instance = currentInstance();
+		}
+		flush(instance);
+	}
+	
+	/**
+		Flush the log such that the log record ending at the given instance 
+        is guaranteed to be on disk. This is the group commit entry point.<p>
+        If another thread is already flushing, we wait for it, and if its sync covered our
+        instance we are done. Otherwise we become the leader, optionally wait up to
+        LogGroupCommitWait milliseconds for LogGroupCommitSize records to accumulate, write
+        the buffered records and issue a single sync outside the monitor so appenders
+        can keep filling the buffer for the next group.
+		@param instance The log end position (file number, position) the caller needs durable
+		@exception IOException cannot sync log file, corrupt, logOut null
+	*/
+	public void flush(long instance) throws IOException
 	{
 		if( DEBUG ) {
-			System.out.println("LogToFile.flush for file handle:"+logOut);
+			System.out.println("LogToFile.flush for instance "+LogCounter.toDebugString(instance)+" file handle:"+logOut);
 		}
-
-		if (MEASURE)
-					mon_flushCalls++;
-		// THIS CORRUPT CHECK MUST BE FIRST, before any check that
-		// sees if the log has already been flushed to this
-		// point. This is based upon the assumption that every
-		// dirty page in the cache must call flush() before it is
-		// written out.  has someone else found a problem in the
-		// raw store?
-		if (corrupt != null) {
+		int groupSize;
+		long groupEnd;
+		synchronized(this) {
+			if (MEASURE)
+				mon_flushCalls++;
+			// THIS CORRUPT CHECK MUST BE FIRST, before any check that
+			// sees if the log has already been flushed to this
+			// point. This is based upon the assumption that every
+			// dirty page in the cache must call flush() before it is
+			// written out.  has someone else found a problem in the
+			// raw store?
+			if (corrupt != null) {
+				throw new IOException(corrupt);
+			}
+			// In non-replicated databases, if we are not
+			// corrupt and we are in the middle of redo, we
+			// know the log record has already been flushed
+			// since we haven't written any log yet. 
+			if (recoveryNeeded && inRedo ) {
+				if( DEBUG ) {
+					System.out.println("LogToFile.flush: recovery needed:"+recoveryNeeded+" redo:"+inRedo+" returning from flush");
+				}
+				return;
+			}
+			// follow the leader in progress, its sync may well cover us
+			while( groupFlushInProgress ) {
+				if (MEASURE)
+					mon_numLogFlushWaits++;
+				try {
+					wait();
+				} catch (InterruptedException ie) {}
+				if (corrupt != null) {
 					throw new IOException(corrupt);
-		}
-	
-		// In non-replicated databases, if we are not
-		// corrupt and we are in the middle of redo, we
-		// know the log record has already been flushed
-		// since we haven't written any log yet. 
-		if (recoveryNeeded && inRedo ) {
-					if( DEBUG ) {
-							System.out.println("LogToFile.flush: recovery needed:"+recoveryNeeded+" redo:"+inRedo+" returning from flush");
+				}
+			}
+			if( instance <= flushedInstance ) {
+				return;
+			}
+			if (logOut == null) {
+				throw new IOException("Log null");
+			}
+			// we lead this group
+			groupFlushInProgress = true;
+			try {
+				if( groupCommitWait > 0 ) {
+					long deadline = System.currentTimeMillis() + groupCommitWait;
+					long remaining;
+					while( groupPending < groupCommitSize && (remaining = deadline - System.currentTimeMillis()) > 0 ) {
+						try {
+							wait(remaining);
+						} catch (InterruptedException ie) {}
 					}
-					return;
+				}
+				groupSize = groupPending;
+				groupPending = 0;
+				if( DEBUG )System.out.println("LogToFile.flush calling flushBuffers on logOut for group of "+groupSize); 
+				logOut.flushBuffers();
+				groupEnd = LogCounter.makeLogInstanceAsLong(logFileNumber, logOut.getFilePointer());
+			} catch (IOException ioe) {
+				groupFlushInProgress = false;
+				notifyAll();
+				throw ioe;
+			}
 		}
-
-		try
-		{
+		IOException syncFail = null;
+		try {
 			if (MEASURE)
 				mon_syncCalls++;
-			if( DEBUG )System.out.println("LogToFile.flush calling flushLogAccessfile on logOut and checking log switch"); 
-			logOut.flushBuffers();
 			logOut.syncLogAccessFile();
-			checkLogSwitch();
-		}
-		catch (SyncFailedException sfe) 
-		{
-			System.out.println("Log file synch failed "+sfe.getMessage()+" "+logOut.toString());
-			throw markCorrupt(sfe);         
+		} catch (IOException ioe) {
+			syncFail = ioe;
 		}
-		finally
-		{
+		synchronized(this) {
+			try {
+				if( syncFail != null ) {
+					System.out.println("Log file synch failed "+syncFail.getMessage()+" "+logOut.toString());
+					throw markCorrupt(syncFail);
+				}
+				if( groupEnd > flushedInstance )
+					flushedInstance = groupEnd;
+				setLastFlush(LogCounter.getLogFilePosition(groupEnd));
+				++mon_groupSyncs;
+				mon_groupRecords += groupSize;
+				if( groupSize > mon_groupMax )
+					mon_groupMax = groupSize;
+				if( DEBUG ) {
+					System.out.println("LogToFile.flush tablespace "+tablespace+" sync covered "+groupSize+" records to "+LogCounter.toDebugString(groupEnd));
+				}
+				checkLogSwitch();
+			} finally {
+				groupFlushInProgress = false;
 				notifyAll();
-		}	
+			}
+		}
+	}
+	
+	/**
+	 * Report the group commit activity for this log.
+	 * @return The number of syncs, records covered, average and largest group per sync
+	 */
+	public synchronized String getGroupCommitStatistics() {
+		return "Group commit tablespace "+tablespace+" syncs:"+mon_groupSyncs+" records:"+mon_groupRecords+
+				" avg records/sync:"+(mon_groupSyncs == 0 ? 0 : (float)mon_groupRecords/(float)mon_groupSyncs)+
+				" max records/sync:"+mon_groupMax+" size:"+groupCommitSize+" wait:"+groupCommitWait+"ms";
 	}
 
     /**
@@ -0,0 +1,229 @@
+package com.neocoretechs.arieslogger.core.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.neocoretechs.bigsack.io.ThreadPoolManager;
+import com.neocoretechs.bigsack.io.UndoableBlockDelta;
+import com.neocoretechs.bigsack.io.pooled.Datablock;
+import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
+
+/**
+ * The redo pass of recovery, for the block changes of committed transactions.<p>
+ * The redo scan hands each block change to add, and commit or abort at the end of its transaction.
+ * The changes of a committed transaction go to one of a number of partitions by the hash of the block number,
+ * those of an aborted one were rolled back when it ended and are dropped. When the scan is done, run redoes
+ * the partitions concurrently, one thread to each, so the changes to a block are applied by one thread in log order
+ * while different blocks are redone at once.<p>
+ * Each block is read once. If its pageLSN names one of the changes it has in the log, the block was written
+ * with that change and those before it, which are skipped. The changes of the transaction the log ends in
+ * are not redone, undo rolls them back, but their instances are looked for too, as a block written with one of them
+ * has all the committed changes before it. A pageLSN naming none of them is from before the log
+ * started over, and all of the changes are applied. The changes left are written over the image in turn,
+ * which comes to the same block from any state it was left in, and the block is written once.<p>
+ * The log starts over at file 1 when a transaction ends past it, so the same instances come round again, and
+ * a block last written before that could carry the instance of a change it does not have. The pageLSN is therefore
+ * the instance qualified by the epoch of the log, which is raised each time it starts over, and a pageLSN only names
+ * a change if it is of the epoch being recovered. That holds as long as no block goes unwritten for the 2^20 epochs
+ * the pageLSN keeps. Anything a pageLSN cannot tell, a file number past the 12 bits it keeps, names no change,
+ * and costs only a redo of changes the block already has.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public final class ParallelRedo {
+	private static boolean DEBUG = false;
+	private static final String RECOVERY = "RECOVERY";
+	private ObjectDBIO blockio;
+	private long epoch;
+	private ArrayList<HashMap<Long, ArrayList<Change>>> partitions = new ArrayList<HashMap<Long, ArrayList<Change>>>();
+	private ArrayList<Change> pending = new ArrayList<Change>(); // changes of the transaction being scanned
+	private int changes = 0;
+	private int redone = 0;
+	private int skipped = 0;
+	private int blocks = 0;
+
+	static {
+		ThreadPoolManager.init(new String[]{RECOVERY}, false);
+	}
+
+	private static final class Change {
+		long instance;
+		UndoableBlockDelta delta;
+		boolean committed = false;
+		Change(long instance, UndoableBlockDelta delta) {
+			this.instance = instance;
+			this.delta = delta;
+		}
+	}
+
+	/**
+	 * @param blockio The block IO the tablespaces are read and written through
+	 * @param threads The number of partitions and the threads redoing them
+	 * @param epoch The epoch of the log being recovered
+	 */
+	public ParallelRedo(ObjectDBIO blockio, int threads, long epoch) {
+		this.blockio = blockio;
+		this.epoch = epoch;
+		for(int i = 0; i < Math.max(threads, 1); i++)
+			partitions.add(new HashMap<Long, ArrayList<Change>>());
+	}
+	/**
+	 * Add a block change of the transaction being scanned.
+	 * @param instance The log instance logAndDo returned for the change, which the pageLSN of the block is set to
+	 * @param delta The change
+	 */
+	public void add(long instance, UndoableBlockDelta delta) {
+		pending.add(new Change(instance, delta));
+	}
+	/**
+	 * The transaction being scanned committed, queue its changes to the partitions of their blocks.
+	 */
+	public void commit() {
+		for(Change change : pending) {
+			long blockNum = change.delta.getBlockNum();
+			HashMap<Long, ArrayList<Change>> partition = partitions.get((Long.hashCode(blockNum) & 0x7fffffff) % partitions.size());
+			ArrayList<Change> blockChanges = partition.get(blockNum);
+			if( blockChanges == null ) {
+				blockChanges = new ArrayList<Change>();
+				partition.put(blockNum, blockChanges);
+			}
+			change.committed = true;
+			blockChanges.add(change);
+			++changes;
+		}
+		pending.clear();
+	}
+	/**
+	 * The transaction being scanned was rolled back, its changes are not redone.
+	 */
+	public void abort() {
+		pending.clear();
+	}
+	/**
+	 * Redo the partitions, each in a thread of its own, and wait for them all. The changes added since the last
+	 * transaction end are those of the transaction the log ends in, left for undo.
+	 * @throws IOException If a block cannot be read or written
+	 */
+	public void run() throws IOException {
+		for(Change change : pending) {
+			long blockNum = change.delta.getBlockNum();
+			ArrayList<Change> blockChanges = partitions.get((Long.hashCode(blockNum) & 0x7fffffff) % partitions.size()).get(blockNum);
+			if( blockChanges != null )
+				blockChanges.add(change);
+		}
+		pending.clear();
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+		for(final HashMap<Long, ArrayList<Change>> partition : partitions) {
+			if( partition.isEmpty() )
+				continue;
+			futures.add(ThreadPoolManager.submit(RECOVERY, new Runnable() {
+				public void run() {
+					try {
+						redo(partition);
+					} catch (IOException ioe) {
+						throw new RuntimeException(ioe.toString());
+					}
+				}
+			}));
+		}
+		IOException failed = null;
+		for(Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException ee) {
+				if( failed == null )
+					failed = new IOException(ee.getCause());
+			} catch (InterruptedException ie) {
+				if( failed == null )
+					failed = new IOException(ie);
+			}
+		}
+		if( failed != null )
+			throw failed;
+	}
+
+	private void redo(HashMap<Long, ArrayList<Change>> partition) throws IOException {
+		int partRedone = 0, partSkipped = 0, partBlocks = 0;
+		for(Entry<Long, ArrayList<Change>> entry : partition.entrySet()) {
+			ArrayList<Change> blockChanges = entry.getValue();
+			int tblsp = GlobalDBIO.getTablespace(entry.getKey());
+			long blkn = GlobalDBIO.getBlock(entry.getKey());
+			Datablock d = new Datablock();
+			blockio.getIOManager().readDirect(tblsp, blkn, d);
+			int from = 0;
+			for(int i = blockChanges.size() - 1; i >= 0; i--) {
+				if( LogCounter.isPageLSNOf(d.getPageLSN(), epoch, blockChanges.get(i).instance) ) {
+					from = i + 1;
+					break;
+				}
+			}
+			byte[] image = null;
+			long pageLSN = d.getPageLSN();
+			int blockRedone = 0;
+			for(int i = 0; i < blockChanges.size(); i++) {
+				Change change = blockChanges.get(i);
+				if( !change.committed )
+					continue;
+				if( i < from ) {
+					++partSkipped;
+					continue;
+				}
+				if( image == null )
+					image = d.toBytes();
+				change.delta.redo(image);
+				pageLSN = LogCounter.makePageLSN(epoch, change.instance);
+				++blockRedone;
+			}
+			if( image == null )
+				continue;
+			d.read(ByteBuffer.wrap(image));
+			d.setPageLSN(pageLSN);
+			blockio.getIOManager().writeDirect(tblsp, blkn, d);
+			partRedone += blockRedone;
+			++partBlocks;
+			if( DEBUG )
+				System.out.println("ParallelRedo redid "+blockRedone+" of "+blockChanges.size()+" changes to "+GlobalDBIO.valueOf(entry.getKey()));
+		}
+		synchronized(this) {
+			redone += partRedone;
+			skipped += partSkipped;
+			blocks += partBlocks;
+		}
+	}
+	/**
+	 * @return The number of block changes of committed transactions found by the scan
+	 */
+	public int getChanges() {
+		return changes;
+	}
+	/**
+	 * @return The number of block changes applied
+	 */
+	public synchronized int getRedone() {
+		return redone;
+	}
+	/**
+	 * @return The number of block changes the pageLSN of their block showed to be written already
+	 */
+	public synchronized int getSkipped() {
+		return skipped;
+	}
+	/**
+	 * @return The number of blocks written
+	 */
+	public synchronized int getBlocks() {
+		return blocks;
+	}
+	/**
+	 * @return The number of threads the partitions are redone with
+	 */
+	public int getThreads() {
+		return partitions.size();
+	}
+}
@@ -87,6 +87,7 @@ public class Scan implements StreamLogScan {
 	                                      //partial writes at the end of the log before crash;
 	                                      //during forward scan for recovery.
 	private long scannedEndInstance;	// end found with forward scan
+	private long checksumInstance = LogCounter.INVALID_LOG_INSTANCE; // checksum record before the last record of a forward scan
 
 	boolean firstRecord = true; // used to prevent check for zero length end marker
 	/**
@@ -405,6 +406,13 @@ public class Scan implements StreamLogScan {
     	}
 		// should have the correct header instance for previous record
 		long checkInstance = logFactory.getHeaderLogInstance();
+		// a file kept for reuse has no previous instance, nor has a scan read anything yet
+		// if the log is empty, either way the log ends here and the file holds nothing of it
+		if( checkInstance == LogCounter.INVALID_LOG_INSTANCE || previousInstance == LogCounter.INVALID_LOG_INSTANCE ) {
+			if( DEBUG )
+				System.out.println("Scan.moveForwardToHeader "+li+" is not linked to the log, returning null");
+			return false;
+		}
 		if( previousInstance != checkInstance ) {
 			throw new IOException("Scan.moveForwardToHeader instance mismatch in previous log file linkage "+
 					LogCounter.toDebugString(previousInstance)+" "+
@@ -640,6 +648,7 @@ public class Scan implements StreamLogScan {
 			{
 				// checksum log record should not be returned to the logger recovery redo
 				// routines, it is just used to identify the incomplete log writes.
+				checksumInstance = currentInstance;
 				Loggable op = lr.getLoggable(); 
 				ChecksumOperation clop = (ChecksumOperation) op;
 				int ckDataLength =  clop.getDataLength(); 
@@ -870,6 +879,12 @@ public class Scan implements StreamLogScan {
 	}
 
 	public long getScannedEndInstance() { return scannedEndInstance; }
+	/**
+	 * The instance of the checksum record read before the last record returned by a forward scan.
+	 * It is the instance logAndDo returned for the record, and the pageLSN of a block it changed.
+	 * @return the checksum record instance
+	 */
+	public long getChecksumInstance() { return checksumInstance; }
 			
 	@Override
 	public long getLogRecordEnd() {
@@ -0,0 +1,243 @@
+package com.neocoretechs.bigsack.btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.neocoretechs.bigsack.Props;
+import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
+/**
+ * Builds a BTreeMain from the bottom up out of entries arriving in ascending key order, instead of adding them
+ * one at a time. Each entry is appended to the open leaf, and once the leaf holds its share of keys the next entry
+ * goes up to the open page of the level above as the separator between that leaf and a new one, and so on up,
+ * so each page is filled once, written once, and no descent from the root or split is ever done.<p>
+ * Pages are filled to BulkLoadFill percent of MAXKEYS, and never below the T-1 keys every page but the root
+ * must hold. Only the last page of each level can end up with fewer, so once the input is exhausted the open pages
+ * are closed, the top one is moved to the root, and the pages down the right edge of the tree are made up to
+ * T-1 keys from their left siblings, or merged with them, as a delete would.<p>
+ * Where two entries have equal keys the last one wins. A key below the one before it is an error.
+ * The tree is expected to be empty, the caller holds the BTreeMain and commits when we are done.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+final class BTreeBulkLoader {
+	private static boolean DEBUG = false;
+	private BTreeMain bTree;
+	private ObjectDBIO sdbio;
+	private int fill; // keys per page
+	// the open page of each level, leaves at 0, the top level last
+	private ArrayList<BTreeKeyPage> levels = new ArrayList<BTreeKeyPage>();
+	private long count = 0L;
+
+	BTreeBulkLoader(BTreeMain bTree, ObjectDBIO sdbio) {
+		this.bTree = bTree;
+		this.sdbio = sdbio;
+		int percent = 90;
+		try {
+			percent = Props.toInt("BulkLoadFill");
+		} catch(IllegalArgumentException iae) {}
+		fill = Math.min(BTreeKeyPage.MAXKEYS, Math.max(BTreeMain.T - 1, (BTreeKeyPage.MAXKEYS * percent + 99) / 100));
+	}
+	/**
+	 * Build the tree from the entries.
+	 * @param entries The Map.Entry key/value pairs in ascending key order, a null value for a set
+	 * @return The number of keys in the tree
+	 * @throws IOException If the entries are out of order or the pages cannot be written
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	long load(Iterator<? extends Map.Entry> entries) throws IOException {
+		long stime = System.currentTimeMillis();
+		Comparable key = null;
+		Object value = null;
+		while( entries.hasNext() ) {
+			Map.Entry e = entries.next();
+			Comparable next = (Comparable) e.getKey();
+			if( next == null )
+				throw new IOException("BTreeBulkLoader null key after "+count+" keys");
+			if( key != null ) {
+				int cmp = next.compareTo(key);
+				if( cmp < 0 )
+					throw new IOException("BTreeBulkLoader key "+next+" out of order after "+key);
+				if( cmp == 0 ) {
+					value = e.getValue();
+					continue;
+				}
+				append(key, value);
+			}
+			key = next;
+			value = e.getValue();
+		}
+		if( key != null )
+			append(key, value);
+		finish();
+		if( DEBUG )
+			System.out.println("BTreeBulkLoader loaded "+count+" keys in "+levels.size()+" levels at "+fill+" keys per page in "+(System.currentTimeMillis()-stime)+" ms.");
+		return count;
+	}
+	/**
+	 * Add the entry to the open leaf, or if it is full close it and send the entry up as the separator
+	 * between it and a new leaf.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void append(Comparable key, Object value) throws IOException {
+		BTreeKeyPage leaf = open(0);
+		++count;
+		int n = leaf.getNumKeys();
+		if( n == fill ) {
+			leaf.putPage();
+			levels.set(0, newPage(true));
+			promote(1, key, value, leaf);
+			return;
+		}
+		leaf.setKey(n, key);
+		leaf.putDataToArray(value, n);
+		leaf.setNumKeys(n + 1);
+	}
+	/**
+	 * Add a separator to the open page of the level, its left child the page just closed on the level below.
+	 * If the page is full the child becomes its last, it is closed, and the separator goes on up.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void promote(int level, Comparable key, Object value, BTreeKeyPage left) throws IOException {
+		BTreeKeyPage page = open(level);
+		int n = page.getNumKeys();
+		setChild(page, n, left);
+		if( n == fill ) {
+			page.putPage();
+			levels.set(level, newPage(false));
+			promote(level + 1, key, value, page);
+			return;
+		}
+		page.setKey(n, key);
+		page.putDataToArray(value, n);
+		page.setNumKeys(n + 1);
+	}
+	/**
+	 * Close the open pages, each the last child of the one above, move the top one to the root,
+	 * then make up the pages down the right edge until none is short.
+	 */
+	private void finish() throws IOException {
+		if( levels.isEmpty() )
+			return;
+		for(int i = 1; i < levels.size(); i++)
+			setChild(levels.get(i), levels.get(i).getNumKeys(), levels.get(i - 1));
+		for(BTreeKeyPage page : levels)
+			page.putPage();
+		BTreeKeyPage root = bTree.getRoot();
+		root.replacePage(levels.get(levels.size() - 1));
+		root.setKeyCount(count);
+		levels.clear();
+		while( fixRightEdge(root) );
+		root.putPage();
+	}
+	/**
+	 * Walk down the right edge from the root, bringing each last child with fewer than T-1 keys up to T-1 from
+	 * its left sibling, or merging the two if together they fit in one page. A merge takes a key from the parent,
+	 * which may leave the parent short in turn, so we are called again until a walk merges nothing.
+	 * @param root
+	 * @return true if a merge was done
+	 */
+	private boolean fixRightEdge(BTreeKeyPage root) throws IOException {
+		boolean merged = false;
+		BTreeKeyPage parent = root;
+		while( !parent.getmIsLeafNode() ) {
+			int n = parent.getNumKeys();
+			if( n == 0 ) {
+				// only the root can get here, by a merge of its last two children, its one child replaces it
+				root.replacePage(root.getPage(0));
+				continue;
+			}
+			BTreeKeyPage child = parent.getPage(n);
+			if( child.getNumKeys() < BTreeMain.T - 1 ) {
+				BTreeKeyPage sibling = parent.getPage(n - 1);
+				if( sibling.getNumKeys() + 1 + child.getNumKeys() <= BTreeKeyPage.MAXKEYS ) {
+					merge(parent, sibling, child);
+					merged = true;
+					if( parent.getNumKeys() == 0 )
+						continue;
+					child = sibling;
+				} else
+					shift(parent, sibling, child);
+			}
+			parent = child;
+		}
+		return merged;
+	}
+	/**
+	 * Move keys from the left sibling through the parent to the last child, so each ends up with half
+	 * of the keys between them. Both end up with T-1 or more since together they have more than a page.
+	 */
+	private void shift(BTreeKeyPage parent, BTreeKeyPage sibling, BTreeKeyPage child) throws IOException {
+		int n = parent.getNumKeys();
+		int sn = sibling.getNumKeys();
+		int cn = child.getNumKeys();
+		int keep = (sn + cn) / 2;
+		int moved = sn - keep;
+		if( DEBUG )
+			System.out.println("BTreeBulkLoader.shift "+moved+" keys from page of "+sn+" to page of "+cn);
+		boolean leaf = child.getmIsLeafNode();
+		for(int j = cn - 1; j >= 0; j--)
+			BTreeMain.moveKeyData(child, j, child, j + moved, false);
+		if( !leaf )
+			for(int j = cn; j >= 0; j--)
+				BTreeMain.moveChildData(child, j, child, j + moved, false);
+		// the separator comes down to the child after the keys from the sibling
+		BTreeMain.moveKeyData(parent, n - 1, child, moved - 1, false);
+		for(int j = keep + 1; j < sn; j++)
+			BTreeMain.moveKeyData(sibling, j, child, j - keep - 1, true);
+		if( !leaf )
+			for(int j = keep + 1; j <= sn; j++)
+				BTreeMain.moveChildData(sibling, j, child, j - keep - 1, true);
+		// and the last key the sibling keeps goes up in its place
+		BTreeMain.moveKeyData(sibling, keep, parent, n - 1, true);
+		child.setNumKeys(cn + moved);
+		sibling.setNumKeys(keep);
+		sibling.putPage();
+		child.putPage();
+		parent.putPage();
+	}
+	/**
+	 * Merge the separator and the last child into the left sibling and free the child.
+	 */
+	private void merge(BTreeKeyPage parent, BTreeKeyPage sibling, BTreeKeyPage child) throws IOException {
+		int n = parent.getNumKeys();
+		int sn = sibling.getNumKeys();
+		int cn = child.getNumKeys();
+		if( DEBUG )
+			System.out.println("BTreeBulkLoader.merge page of "+cn+" into page of "+sn);
+		BTreeMain.moveKeyData(parent, n - 1, sibling, sn, true);
+		for(int j = 0; j < cn; j++)
+			BTreeMain.moveKeyData(child, j, sibling, sn + 1 + j, false);
+		if( !child.getmIsLeafNode() )
+			for(int j = 0; j <= cn; j++)
+				BTreeMain.moveChildData(child, j, sibling, sn + 1 + j, false);
+		sibling.setNumKeys(sn + 1 + cn);
+		parent.nullPageArray(n);
+		parent.setNumKeys(n - 1);
+		child.freePage();
+		sibling.putPage();
+		parent.putPage();
+	}
+	/**
+	 * @return The open page of the level, a new one if the level is new
+	 */
+	private BTreeKeyPage open(int level) throws IOException {
+		if( level == levels.size() )
+			levels.add(newPage(level == 0));
+		return levels.get(level);
+	}
+
+	private BTreeKeyPage newPage(boolean leaf) throws IOException {
+		BTreeKeyPage page = BTreeKeyPage.getPageFromPool(sdbio);
+		page.setmIsLeafNode(leaf);
+		return page;
+	}
+	/**
+	 * Point the page at a child by id only, so the pages of the levels below, once written, are not held.
+	 */
+	private void setChild(BTreeKeyPage page, int index, BTreeKeyPage child) {
+		page.pageArray[index] = null;
+		page.setPageIdArray(index, child.pageId);
+	}
+}
@@ -0,0 +1,300 @@
+package com.neocoretechs.bigsack.btree;
+import java.io.IOException;
+import java.util.Stack;
+/*
+* Copyright (c) 2003, NeoCoreTechs
+* All rights reserved.
+* Redistribution and use in source and binary forms, with or without modification,
+* are permitted provided that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of
+* conditions and the following disclaimer.
+* Redistributions in binary form must reproduce the above copyright notice,
+* this list of conditions and the following disclaimer in the documentation and/or
+* other materials provided with the distribution.
+* Neither the name of NeoCoreTechs nor the names of its contributors may be
+* used to endorse or promote products derived from this software without specific prior written permission.
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+* TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+* HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+* OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+/**
+* An in-order cursor over the keys of a BTreeMain that carries its own traversal stack.
+* Once positioned by first, last or seek, the cursor moves to the next or previous key by working
+* from the pages it already holds on its stack rather than descending from the root again,
+* so a range scan touches each key page once instead of once per element.<p>
+* The key pages on the stack are held by reference for the life of the position, so their
+* decoded key arrays are reused from element to element. If the tree structure changes underneath us
+* (an insert or delete bumps the structure version in BTreeMain) the held pages may no longer describe the tree,
+* in which case the cursor re-seeks from the root to the key it was positioned on and carries on from there.<p>
+* Callers are expected to synchronize on the BTreeMain as the iterators do.
+* @author Groff Copyright (C) NeoCoreTechs 2021
+*/
+public final class BTreeCursor {
+	private static boolean DEBUG = false;
+	private BTreeMain bTree;
+	private BTreeKeyPage currentPage = null;
+	private int currentIndex = 0;
+	@SuppressWarnings("rawtypes")
+	private Comparable currentKey = null;
+	private Stack<TraversalStackElement> stack = new Stack<TraversalStackElement>();
+	private long structureVersion = -1L;
+
+	public BTreeCursor(BTreeMain bTree) {
+		this.bTree = bTree;
+	}
+	/**
+	 * Position to the lowest key in the tree.
+	 * @return true if the tree has a key and we are positioned at it
+	 * @throws IOException
+	 */
+	public synchronized boolean first() throws IOException {
+		clear();
+		BTreeKeyPage root = bTree.getRoot();
+		if( root == null || root.getNumKeys() == 0 )
+			return false;
+		structureVersion = bTree.getStructureVersion();
+		descendLeft(root);
+		return setCurrent();
+	}
+	/**
+	 * Position to the highest key in the tree.
+	 * @return true if the tree has a key and we are positioned at it
+	 * @throws IOException
+	 */
+	public synchronized boolean last() throws IOException {
+		clear();
+		BTreeKeyPage root = bTree.getRoot();
+		if( root == null || root.getNumKeys() == 0 )
+			return false;
+		structureVersion = bTree.getStructureVersion();
+		descendRight(root);
+		return setCurrent();
+	}
+	/**
+	 * Position to the given key, or if it is absent, to the lowest key greater than it.
+	 * @param targetKey The key to seek
+	 * @return The result with atKey true if the key was found, page null if there is no key greater or equal
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	public synchronized TreeSearchResult seek(Comparable targetKey) throws IOException {
+		clear();
+		BTreeKeyPage page = bTree.getRoot();
+		if( page == null || page.getNumKeys() == 0 )
+			return new TreeSearchResult(0, false);
+		structureVersion = bTree.getStructureVersion();
+		while( true ) {
+			// lowest index whose key is >= target
+			TreeSearchResult tsr = page.search(targetKey);
+			int left = tsr.insertPoint;
+			if( tsr.atKey ) {
+				currentPage = page;
+				currentIndex = left;
+				setCurrent();
+				return new TreeSearchResult(page, left, true);
+			}
+			BTreeKeyPage child = page.getmIsLeafNode() ? null : page.getPage(left);
+			if( child == null ) {
+				if( left < page.getNumKeys() ) {
+					currentPage = page;
+					currentIndex = left;
+				} else {
+					// ran off the end of the subtree, the successor is in an ancestor
+					if( !popToNext() ) {
+						clear();
+						return new TreeSearchResult(0, false);
+					}
+				}
+				setCurrent();
+				return new TreeSearchResult(currentPage, currentIndex, false);
+			}
+			stack.push(new TraversalStackElement(page, left, left));
+			page = child;
+		}
+	}
+	/**
+	 * Move to the next key in order.
+	 * @return true if positioned at a next key, false at end, at which point the cursor is cleared
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized boolean next() throws IOException {
+		if( currentPage == null )
+			return false;
+		if( structureVersion != bTree.getStructureVersion() ) {
+			if( DEBUG )
+				System.out.println("BTreeCursor.next structure changed, re-seeking "+currentKey);
+			@SuppressWarnings("rawtypes")
+			Comparable key = currentKey;
+			TreeSearchResult tsr = seek(key);
+			// if our key was deleted we are now at its successor
+			if( !tsr.atKey )
+				return (tsr.page != null);
+		}
+		BTreeKeyPage child = currentPage.getmIsLeafNode() ? null : currentPage.getPage(currentIndex+1);
+		if( child != null ) {
+			stack.push(new TraversalStackElement(currentPage, currentIndex, currentIndex+1));
+			descendLeft(child);
+			return setCurrent();
+		}
+		if( currentIndex+1 < currentPage.getNumKeys() ) {
+			++currentIndex;
+			return setCurrent();
+		}
+		if( popToNext() )
+			return setCurrent();
+		clear();
+		return false;
+	}
+	/**
+	 * Move to the previous key in order.
+	 * @return true if positioned at a previous key, false at beginning, at which point the cursor is cleared
+	 * @throws IOException
+	 */
+	public synchronized boolean previous() throws IOException {
+		if( currentPage == null )
+			return false;
+		if( structureVersion != bTree.getStructureVersion() ) {
+			if( DEBUG )
+				System.out.println("BTreeCursor.previous structure changed, re-seeking "+currentKey);
+			@SuppressWarnings("rawtypes")
+			Comparable key = currentKey;
+			TreeSearchResult tsr = seek(key);
+			// nothing greater or equal remains, the previous key is the last one
+			if( tsr.page == null )
+				return last();
+			// if our key was deleted we sit on its successor and step back from there as usual
+		}
+		BTreeKeyPage child = currentPage.getmIsLeafNode() ? null : currentPage.getPage(currentIndex);
+		if( child != null ) {
+			stack.push(new TraversalStackElement(currentPage, currentIndex, currentIndex));
+			descendRight(child);
+			return setCurrent();
+		}
+		if( currentIndex > 0 ) {
+			--currentIndex;
+			return setCurrent();
+		}
+		while( !stack.isEmpty() ) {
+			TraversalStackElement tse = stack.pop();
+			if( tse.child > 0 ) {
+				currentPage = tse.keyPage;
+				currentIndex = tse.child - 1;
+				return setCurrent();
+			}
+		}
+		clear();
+		return false;
+	}
+	/**
+	 * @return The key at the current position, null if not positioned
+	 */
+	@SuppressWarnings("rawtypes")
+	public synchronized Comparable getKey() {
+		return currentKey;
+	}
+	/**
+	 * The value is deserialized on demand so key only scans never touch the data blocks.
+	 * @return The value at the current position, null if not positioned
+	 * @throws IOException
+	 */
+	public synchronized Object getObject() throws IOException {
+		if( currentPage == null )
+			return null;
+		return currentPage.getData(currentIndex);
+	}
+	/**
+	 * Move the key and value at the current position out of any block the allocator is evacuating,
+	 * and put the page if anything moved. The position is unchanged, as is the structure of the tree.
+	 * @return true if anything was moved
+	 * @throws IOException
+	 */
+	public synchronized boolean relocate() throws IOException {
+		if( currentPage == null )
+			return false;
+		// the value pointer changes under lookups reading it
+		currentPage.latchExclusive();
+		try {
+			if( !currentPage.relocate(currentIndex) )
+				return false;
+			currentPage.putPage();
+			return true;
+		} finally {
+			currentPage.unlatchExclusive();
+		}
+	}
+	/**
+	 * @return true if the cursor is positioned at a key
+	 */
+	public synchronized boolean isPositioned() {
+		return currentPage != null;
+	}
+	/**
+	 * Release the pages held by the cursor.
+	 */
+	public synchronized void clear() {
+		stack.clear();
+		currentPage = null;
+		currentIndex = 0;
+		currentKey = null;
+	}
+	/**
+	 * Pop the stack until we reach a parent key we have not yet visited going right.
+	 * @return true if such a key exists, false if we popped to the top
+	 */
+	private boolean popToNext() {
+		while( !stack.isEmpty() ) {
+			TraversalStackElement tse = stack.pop();
+			if( tse.child < tse.keyPage.getNumKeys() ) {
+				currentPage = tse.keyPage;
+				currentIndex = tse.child;
+				return true;
+			}
+		}
+		return false;
+	}
+	/**
+	 * Descend to the leftmost key of the subtree rooted at page, pushing each page we pass through.
+	 */
+	private void descendLeft(BTreeKeyPage page) throws IOException {
+		BTreeKeyPage child = page.getmIsLeafNode() ? null : page.getPage(0);
+		while( child != null ) {
+			stack.push(new TraversalStackElement(page, 0, 0));
+			page = child;
+			child = page.getmIsLeafNode() ? null : page.getPage(0);
+		}
+		currentPage = page;
+		currentIndex = 0;
+	}
+	/**
+	 * Descend to the rightmost key of the subtree rooted at page, pushing each page we pass through.
+	 */
+	private void descendRight(BTreeKeyPage page) throws IOException {
+		BTreeKeyPage child = page.getmIsLeafNode() ? null : page.getPage(page.getNumKeys());
+		while( child != null ) {
+			stack.push(new TraversalStackElement(page, page.getNumKeys(), page.getNumKeys()));
+			page = child;
+			child = page.getmIsLeafNode() ? null : page.getPage(page.getNumKeys());
+		}
+		currentPage = page;
+		currentIndex = page.getNumKeys() - 1;
+	}
+
+	private boolean setCurrent() throws IOException {
+		if( currentIndex < 0 || currentIndex >= currentPage.getNumKeys() ) {
+			clear();
+			return false;
+		}
+		currentKey = currentPage.getKey(currentIndex);
+		if( DEBUG )
+			System.out.println("BTreeCursor.setCurrent ["+currentIndex+"] "+currentKey+" depth:"+stack.size());
+		return true;
+	}
+}
@@ -2,8 +2,11 @@ package com.neocoretechs.bigsack.btree;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.io.FreeBlockAllocator;
 import com.neocoretechs.bigsack.io.Optr;
 import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
 import com.neocoretechs.bigsack.io.pooled.BlockStream;
@@ -73,12 +76,33 @@ public final class BTreeKeyPage {
 	// number of keys per page; number of instances of the non transient fields of 'this' per DB block.
 	// The number of maximum children is MAXKEYS+1 per node.
 	// Calculate the maximum number of odd keys that can fit per block.
+	// The fixed part of the page is the format version, the leaf flag, numKeys, keyCount and the rightmost page id, 18 bytes.
+	// Each slot is the key field, which holds either a small key inline or the Optr to a serialized key,
+	// the data Optr and the child page id, 17+6+4 bytes. Blocks in the data Optr and page id are written as block references.
+	private static final int SLOTSIZE = InlineKey.KEYFIELDSIZE + 10;
 	public static int MAXKEYS = (
+			(((DBPhysicalConstants.DATASIZE-18)/SLOTSIZE) % 2) == 0 ? 
+			((DBPhysicalConstants.DATASIZE-18)/SLOTSIZE)-1 : // even, subtract 1 from total
+			((DBPhysicalConstants.DATASIZE-18)/SLOTSIZE) );//5; 
+	// Version of the page layout, and of the stored keys and values it points to, the first byte of the page,
+	// raised whenever either changes.
+	// Pages written before the layout was versioned begin with the leaf flag, 0 or 1, so versions start above that.
+	static final byte FORMATVERSION = 6;
+	// A block reference is the int written in place of a virtual block, the tablespace in the top 3 bits and the
+	// index of the block in its tablespace below, -1 for no block. That bounds a tablespace at 2^29-1 blocks.
+	private static final int BLOCKREFBITS = 29;
+	private static final int NOBLOCKREF = -1;
+	// Pages written before the layout was versioned had a leaf flag and numKeys, 5 bytes, then slots of the key Optr
+	// and data Optr, 10+10 bytes, and the page ids, 8 bytes each, so this many keys.
+	private static final int UNVERSIONEDMAXKEYS = (
 			(((DBPhysicalConstants.DATASIZE-13)/28) % 2) == 0 ? 
-			((DBPhysicalConstants.DATASIZE-13)/28)-1 : // even, subtract 1 from total
-			((DBPhysicalConstants.DATASIZE-13)/28) );//5; 
+			((DBPhysicalConstants.DATASIZE-13)/28)-1 :
+			((DBPhysicalConstants.DATASIZE-13)/28) );
 	// Non transient number of keys on this page. Adjusted as necessary when inserting/deleting.
 	private int numKeys = 0;
+	// Non transient number of keys in the whole tree. Only maintained on the root page, where it
+	// is written and logged along with the rest of the page as keys are added and deleted.
+	private long keyCount = 0L;
 	// Transient. The 'id' is really the location this page was retrieved from deep store.
 	transient long pageId = -1L;
 	@SuppressWarnings("rawtypes")
@@ -107,8 +131,13 @@ public final class BTreeKeyPage {
 	private boolean mIsLeafNode = true; // We treat as leaf since the logic is geared to proving it not
 	// Global page updated flag.
 	private transient boolean updated = false; // has the node been updated for purposes of write
+	// Page was read in the layout from before versioning, so every field is written the next time it is put.
+	private transient boolean unversioned = false;
 	private transient ObjectDBIO sdbio;
 	private transient BlockAccessIndex lbai = null; // The page is tied to a block
+	// Latch for lookups that run outside the tree monitor. They hold it shared, coupling from parent to child,
+	// and the single writer holds it exclusive while it changes the page, taking a parent before a child.
+	private final transient ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 	
 	/**
 	 * Initialize the transient arrays, the ones that hold the deserialized instances of those objects
@@ -210,22 +239,42 @@ public final class BTreeKeyPage {
 		}
 	}
 	/**
-	 * Read the keypage using the given DataInputStream
-	 * @throws IOException
+	 * Read the keypage using the given DataInputStream.
+	 * A page written before the layout was versioned is read in that layout, see readUnversioned.
+	 * @throws IOException If the page is in a versioned format other than the one we write
 	 */
 	public synchronized void readFromDBStream(DataInputStream dis) throws IOException {
+		byte version = dis.readByte();
+		if( version == 0 || version == 1 ) {
+			readUnversioned(dis, version);
+			return;
+		}
+		if( version != FORMATVERSION )
+			throw new IOException("BTreeKeyPage.readFromDBStream page "+GlobalDBIO.valueOf(pageId)+" is not in page format "+FORMATVERSION+
+					" but format "+version+", the database was written by another release");
 		setmIsLeafNode(dis.readByte() == 0 ? false : true);
 		setNumKeys(dis.readInt());
+		keyCount = dis.readLong();
+		byte[] payload = new byte[InlineKey.PAYLOADSIZE];
 		for(int i = 0; i < MAXKEYS; i++) {
-			long sblk = dis.readLong();
-			short shblk = dis.readShort();
-			//if( DEBUG ) { 
-			//	System.out.println("block of key "+i+":"+GlobalDBIO.valueOf(sblk)+" offset of key "+i+":"+shblk);
-			//}
-			keyIdArray[i] = new Optr(sblk, shblk);
+			// key field, either the key itself or the Optr to it
+			byte tag = dis.readByte();
+			dis.readFully(payload);
+			if( i >= numKeys ) {
+				// unused slot, its bytes may never have been written
+				keyIdArray[i] = Optr.emptyPointer;
+			} else if( InlineKey.isInline(tag) ) {
+				keyArray[i] = InlineKey.read(tag, payload);
+				keyIdArray[i] = Optr.emptyPointer;
+			} else {
+				//if( DEBUG ) { 
+				//	System.out.println("block of key "+i+":"+GlobalDBIO.valueOf(InlineKey.readOptrBlock(payload))+" offset of key "+i+":"+InlineKey.readOptrOffset(payload));
+				//}
+				keyIdArray[i] = new Optr(InlineKey.readOptrBlock(payload), InlineKey.readOptrOffset(payload));
+			}
 			// data array
-			sblk = dis.readLong();
-			shblk = dis.readShort();
+			long sblk = fromBlockRef(dis.readInt());
+			short shblk = dis.readShort();
 			//if( DEBUG ) { 
 			//	System.out.println("block of data "+i+":"+GlobalDBIO.valueOf(sblk)+" offset of data "+i+":"+shblk);
 			//}
@@ -233,11 +282,68 @@ public final class BTreeKeyPage {
 		}
 		// pageId
 		for(int i = 0; i <= MAXKEYS; i++) {	
-			pageIdArray[i] = dis.readLong();
+			pageIdArray[i] = fromBlockRef(dis.readInt());
 		}
 	}
 	/**
-	 * Move the sourcepage to this as target page. Zero source and set it to write.
+	 * Read a page written before the layout was versioned, whose first byte is the leaf flag.
+	 * Its keys are all out of line, Java serialized as were its values, which the serializer still reads.
+	 * It carries no key count, so the count is set to -1 and the tree counts its keys when this is its root.
+	 * The page is written whole in the current layout the next time it is put, as the update flags
+	 * only cover the fields that changed and the rest would be left in the old layout.
+	 * @param dis The stream positioned after the leaf flag
+	 * @param leaf The leaf flag
+	 * @throws IOException
+	 */
+	private void readUnversioned(DataInputStream dis, byte leaf) throws IOException {
+		setmIsLeafNode(leaf == 0 ? false : true);
+		setNumKeys(dis.readInt());
+		if( numKeys > MAXKEYS )
+			throw new IOException("BTreeKeyPage.readFromDBStream page "+GlobalDBIO.valueOf(pageId)+" from before versioning has "+numKeys+
+					" keys, more than the "+MAXKEYS+" a page now holds");
+		keyCount = -1L;
+		for(int i = 0; i < UNVERSIONEDMAXKEYS; i++) {
+			long sblk = dis.readLong();
+			short shblk = dis.readShort();
+			if( i < MAXKEYS )
+				keyIdArray[i] = (i < numKeys ? new Optr(sblk, shblk) : Optr.emptyPointer);
+			sblk = dis.readLong();
+			shblk = dis.readShort();
+			if( i < MAXKEYS )
+				dataIdArray[i] = (i < numKeys ? new Optr(sblk, shblk) : Optr.emptyPointer);
+		}
+		for(int i = 0; i <= UNVERSIONEDMAXKEYS; i++) {
+			long pid = dis.readLong();
+			if( i <= MAXKEYS )
+				pageIdArray[i] = pid;
+		}
+		unversioned = true;
+	}
+	/**
+	 * @param vblock A virtual block, or -1 for none
+	 * @return The block reference written for it in the page
+	 * @throws IOException If the block lies beyond what a block reference can address
+	 */
+	private static int toBlockRef(long vblock) throws IOException {
+		if( vblock == -1L )
+			return NOBLOCKREF;
+		long blk = GlobalDBIO.getBlock(vblock);
+		long index = blk / DBPhysicalConstants.DBLOCKSIZ;
+		if( blk % DBPhysicalConstants.DBLOCKSIZ != 0 || index >= (1L << BLOCKREFBITS) - 1 )
+			throw new IOException("BTreeKeyPage block "+GlobalDBIO.valueOf(vblock)+" cannot be referenced from a key page");
+		return (GlobalDBIO.getTablespace(vblock) << BLOCKREFBITS) | (int) index;
+	}
+	/**
+	 * @param ref A block reference read from the page
+	 * @return The virtual block, or -1 for none
+	 */
+	private static long fromBlockRef(int ref) {
+		if( ref == NOBLOCKREF )
+			return -1L;
+		return GlobalDBIO.makeVblock(ref >>> BLOCKREFBITS, (long) (ref & ((1 << BLOCKREFBITS) - 1)) * DBPhysicalConstants.DBLOCKSIZ);
+	}
+	/**
+	 * Move the sourcepage to this as target page. Zero source and set it to write, and free its block.
 	 * The block numbers are preserved.
 	 * This is used primarily to replace the root or any internal node if all keys are deleted from it.
 	 * @param sourcePage
@@ -253,16 +359,50 @@ public final class BTreeKeyPage {
 			BTreeMain.moveKeyData(sourcePage, i, this, i, false);
 			BTreeMain.moveChildData(sourcePage, i, this, i, false);
 		}
-		//
-		BlockAccessIndex tbai = sourcePage.getBlockAccessIndex(); ///source page block
-		tbai.resetBlock(false); // set up headers without revoking access, does NOT reset block number
-		tbai.getBlk().setKeypage((byte) 0); // mark it as no longer a keypage, its a free block
-		tbai.getBlk().setIncore(true);
-		tbai.decrementAccesses(); // unlatch it, we are done
+		// and the child to the right of the last key
+		BTreeMain.moveChildData(sourcePage, sourcePage.getNumKeys(), this, sourcePage.getNumKeys(), false);
+		sourcePage.freePage();
 		if(DEBUG || DEBUGREMOVE) {
 			System.out.println("BTreeKeyPage.replacePage replaced new root, now "+this);
 		}
 	}
+	/**
+	 * Free the block of a page whose contents have all been moved to another page. The block is reset,
+	 * marked as no longer a key page, and reclaimed once the transaction commits.
+	 * @throws IOException
+	 */
+	synchronized void freePage() throws IOException {
+		synchronized(sdbio) {
+			// the pool may have handed our BlockAccessIndex to another block since we were written
+			lbai = sdbio.getIOManager().findOrAddBlockAccess(pageId);
+			lbai.resetBlock(false); // set up headers without revoking access, does NOT reset block number
+			lbai.getBlk().setKeypage((byte) 0); // mark it as no longer a keypage, its a free block
+			lbai.getBlk().setIncore(true);
+			// reclaim the block once the transaction commits
+			sdbio.getIOManager().getFreeBlockAllocator().freeOnCommit(lbai.getBlockNum());
+			lbai.decrementAccesses(); // unlatch it, we are done
+		}
+	}
+	/**
+	 * Latch the page for reading, blocking while the writer has it. Not called under the page monitor.
+	 */
+	void latchShared() {
+		latch.readLock().lock();
+	}
+
+	void unlatchShared() {
+		latch.readLock().unlock();
+	}
+	/**
+	 * Latch the page for change, blocking while lookups are reading it. Not called under the page monitor.
+	 */
+	void latchExclusive() {
+		latch.writeLock().lock();
+	}
+
+	void unlatchExclusive() {
+		latch.writeLock().unlock();
+	}
 	/**
 	 * Set the key Id array, and set the keyUpdatedArray for the key and the general updated flag
 	 * @param index
@@ -311,7 +451,9 @@ public final class BTreeKeyPage {
 	* If atKey was false then the key
 	* was not found on this page and index-1 is index of where the
 	* key *should* be. The result is always to the right of the target key, therefore
-	* to nav left one accesses index-1 key.
+	* to nav left one accesses index-1 key. The index is also the child page to descend to.
+	* This is a binary search, and since keys are deserialized lazily by getKey only the
+	* log2(numKeys) keys actually probed are ever materialized.
 	* @param targetKey The target key to retrieve
 	* @return TreeSearchResult the insertion point from 0 to MAXKEYS and flag of whether key was found
 	 * @throws IOException 
@@ -339,7 +481,8 @@ public final class BTreeKeyPage {
         }
         if( DEBUG )
         	System.out.println("BtreeKeyPage.search falling thru "+middleIndex+" "+leftIndex+" "+rightIndex+" "+this+" target:"+targetKey);
-        return new TreeSearchResult(middleIndex, false);
+        // leftIndex has passed every key less than the target, making it the insertion point
+        return new TreeSearchResult(leftIndex, false);
 	}
 	/**
 	 * Remove the key k from this node or the sub-tree rooted with this node preserving BTree properties. 
@@ -389,10 +532,11 @@ public final class BTreeKeyPage {
 	        // child and so we recurse on the (idx-1)th child. Else, we recurse on the
 	        // (idx)th child which now has at least t keys
 	        if (flag && idx > getNumKeys())
-	            getPage(idx-1).remove(targetKey);
-	        else
-	            getPage(idx).remove(targetKey);
+	        	--idx;
+	        getPage(idx).remove(targetKey);
+	        collapse(idx);
 	    }
+	    putPage();
 	    return;
 	}
 	// A function to remove the idx-th key from this node - which is a non-leaf node
@@ -407,23 +551,34 @@ public final class BTreeKeyPage {
 	    // find the predecessor 'pred' of k in the subtree rooted at
 	    // C[idx]. Replace k by pred. Recursively delete pred
 	    // in C[idx]
-	    if (getPage(idx).getNumKeys() >= BTreeMain.T) {
+	    // Sequential inserts leave leaves and non leaf pages side by side, they cannot be merged,
+	    // so take the key from whichever side can spare one without emptying a leaf
+	    boolean predecessor = (getPage(idx).getNumKeys() >= BTreeMain.T);
+	    if( !predecessor && !sameKind(getPage(idx), getPage(idx+1)) )
+	    	predecessor = (!getPage(idx).getmIsLeafNode() || getPage(idx).getNumKeys() > 1);
+	    if (predecessor) {
 	        TreeSearchResult pred = getPred(idx);
 	        //keys[idx] = pred;
+	        deleteKeyAndData(idx);
 	        copyKeyAndDataToArray(pred.page, pred.insertPoint, idx);
+	        pred.page.disownKeyAndData(pred.insertPoint);
 	        getPage(idx).remove(pred.page.getKey(pred.insertPoint));
+	        collapse(idx);
 	    } else
 	    // If the child C[idx] has less that t keys, examine C[idx+1].
 	    // If C[idx+1] has atleast t keys, find the successor 'succ' of k in
 	    // the subtree rooted at C[idx+1]
 	    // Replace k by succ
 	    // Recursively delete succ in C[idx+1]
-	    	if(getPage(idx+1).getNumKeys() >= BTreeMain.T) {
+	    	if(getPage(idx+1).getNumKeys() >= BTreeMain.T || !sameKind(getPage(idx), getPage(idx+1))) {
 	    		TreeSearchResult succ = getSucc(idx);
 	    		//keys[idx] = succ;
 	    		//C[idx+1]->remove(succ);
+	    		deleteKeyAndData(idx);
 	            copyKeyAndDataToArray(succ.page, succ.insertPoint, idx);
+	            succ.page.disownKeyAndData(succ.insertPoint);
 		        getPage(idx+1).remove(succ.page.getKey(succ.insertPoint));
+		        collapse(idx+1);
 	    	} else {
 	    		// If both C[idx] and C[idx+1] has less that t keys,merge k and all of C[idx+1]
 	    		// into C[idx]
@@ -432,6 +587,7 @@ public final class BTreeKeyPage {
 	    		merge(idx);
 	    		//C[idx]->remove(k);
 	    		getPage(idx).remove(targetKey);
+	    		collapse(idx);
 	    	}
 	    return;
 	}
@@ -457,33 +613,104 @@ public final class BTreeKeyPage {
 	    return new TreeSearchResult(cur, 0, false);
 	}
 	/**
-	 * Fill child C[idx] which has less than t-1 keys
+	 * Fill child C[idx] which has less than t-1 keys.
+	 * Sequential inserts build a tree whose leaves are not all at the same depth, so the sibling of a leaf
+	 * may be a non leaf page. Keys are only borrowed or merged between pages of the same kind. A leaf next to a
+	 * non leaf page takes the separating key and the separator is replaced from the sibling sub-tree, a non leaf page 
+	 * next to a leaf is left as is and collapsed by its parent if it runs out of keys.
 	 * @param idx
 	 * @throws IOException 
 	 */
 	synchronized void fill(int idx) throws IOException {
+		BTreeKeyPage child = getPage(idx);
+		boolean prev = (idx != 0 && sameKind(child, getPage(idx-1)));
+		boolean next = (idx != getNumKeys() && sameKind(child, getPage(idx+1)));
 	    // If the previous child(C[idx-1]) has more than t-1 keys, borrow a key
 	    // from that child
 	    //if (idx!=0 && C[idx-1]->n>=t)
-		if( idx != 0 && getPage(idx-1).getNumKeys() >= BTreeMain.T)
+		if( prev && getPage(idx-1).getNumKeys() >= BTreeMain.T)
 	        borrowFromPrev(idx);
 	    // If the next child(C[idx+1]) has more than t-1 keys, borrow a key
 	    // from that child
 	    else 
 	    	//if (idx!=n && C[idx+1]->n>=t)
-	    	if(idx != getNumKeys() && getPage(idx+1).getNumKeys() >= BTreeMain.T)
+	    	if(next && getPage(idx+1).getNumKeys() >= BTreeMain.T)
 	    		borrowFromNext(idx); 
 	    	// Merge C[idx] with its sibling
 	    	// If C[idx] is the last child, merge it with with its previous sibling
 	    	// Otherwise merge it with its next sibling
 	    	else {
-	    		if (idx != getNumKeys())
+	    		if (next)
 	    			merge(idx);
-	    		else
+	    		else if (prev)
 	    			merge(idx-1);
+	    		else if (child.getmIsLeafNode()) {
+	    			if (idx != getNumKeys())
+	    				rotateFromNext(idx);
+	    			else
+	    				rotateFromPrev(idx);
+	    		}
 	    	}
 	    return;
 	}
+	/**
+	 * @return true if both pages are leaves or both are non leaf pages
+	 */
+	private static boolean sameKind(BTreeKeyPage page1, BTreeKeyPage page2) {
+		return page1.getmIsLeafNode() == page2.getmIsLeafNode();
+	}
+	/**
+	 * The leaf C[idx] takes key[idx] as its last key, and key[idx] is replaced by its successor, which
+	 * is removed from the non leaf page C[idx+1].
+	 * @param idx
+	 * @throws IOException
+	 */
+	private synchronized void rotateFromNext(int idx) throws IOException {
+		BTreeKeyPage child = getPage(idx);
+		child.copyKeyAndDataToArray(this, idx, child.getNumKeys());
+		child.setNumKeys(child.getNumKeys()+1);
+		TreeSearchResult succ = getSucc(idx);
+		copyKeyAndDataToArray(succ.page, succ.insertPoint, idx);
+		succ.page.disownKeyAndData(succ.insertPoint);
+		getPage(idx+1).remove(getKey(idx));
+		collapse(idx+1);
+		child.putPage();
+		putPage();
+	}
+	/**
+	 * The leaf C[idx] takes key[idx-1] as its first key, and key[idx-1] is replaced by its predecessor, which
+	 * is removed from the non leaf page C[idx-1].
+	 * @param idx
+	 * @throws IOException
+	 */
+	private synchronized void rotateFromPrev(int idx) throws IOException {
+		BTreeKeyPage child = getPage(idx);
+		for(int i = child.getNumKeys()-1; i >= 0; --i)
+			child.copyKeyAndDataToArray(child, i, i+1);
+		child.copyKeyAndDataToArray(this, idx-1, 0);
+		child.setNumKeys(child.getNumKeys()+1);
+		TreeSearchResult pred = getPred(idx-1);
+		copyKeyAndDataToArray(pred.page, pred.insertPoint, idx-1);
+		pred.page.disownKeyAndData(pred.insertPoint);
+		getPage(idx-1).remove(getKey(idx-1));
+		collapse(idx-1);
+		child.putPage();
+		putPage();
+	}
+	/**
+	 * A non leaf child left with no keys by a merge below it is replaced by its only child.
+	 * @param idx
+	 * @throws IOException
+	 */
+	private synchronized void collapse(int idx) throws IOException {
+		BTreeKeyPage child = getPage(idx);
+		if( child.getNumKeys() != 0 || child.getmIsLeafNode() )
+			return;
+		if( DEBUG || DEBUGREMOVE ) System.out.println("BTreeKeyPage.collapse "+child+" at "+idx+" of "+this);
+		putPageToArray(child.getPage(0), idx);
+		child.freePage();
+		putPage();
+	}
 	// Borrow a key from C[idx-1] and insert it
 	// into C[idx]
 	synchronized void borrowFromPrev(int idx) throws IOException { 
@@ -510,20 +737,24 @@ public final class BTreeKeyPage {
 	    //child->keys[0] = keys[idx-1];
 	    child.copyKeyAndDataToArray(this, idx-1, 0);
 	    // Moving sibling's last child as C[idx]'s first child
-	    if (!getmIsLeafNode()) {
+	    if (!child.getmIsLeafNode()) {
 	        //child->C[0] = sibling->C[sibling->n];
 	    	child.putPageToArray(sibling.getPage(sibling.getNumKeys()), 0);
-	    	child.setPageIdArray(0, sibling.getPageId(sibling.getNumKeys()));
+	    	sibling.nullPageArray(sibling.getNumKeys());
 	    }
 	    // Moving the key from the sibling to the parent
 	    // This reduces the number of keys in the sibling
 	    //keys[idx-1] = sibling->keys[sibling->n-1];
 	    copyKeyAndDataToArray(sibling, sibling.getNumKeys()-1, idx-1);
+	    sibling.nullKeyAndData(sibling.getNumKeys()-1);
 	    // increase/reduce key count
 	    //child->n += 1;
 	    child.setNumKeys(child.getNumKeys()+1);
 	    //sibling->n -= 1;
 	    sibling.setNumKeys(sibling.getNumKeys()-1);
+	    child.putPage();
+	    sibling.putPage();
+	    putPage();
 	    return;
 	}
 	// A function to borrow a key from the C[idx+1] and place
@@ -555,15 +786,19 @@ public final class BTreeKeyPage {
 	        for(int i=1; i<=sibling.getNumKeys(); ++i) {
 	            //sibling->C[i-1] = sibling->C[i];
 	          	sibling.putPageToArray(sibling.getPage(i), i-1);
-		    	sibling.setPageIdArray(i-1, sibling.getPageId(i));
 	        }
+	        sibling.nullPageArray(sibling.getNumKeys());
 	    }
+	    sibling.nullKeyAndData(sibling.getNumKeys()-1);
 	    // Increasing and decreasing the key count of C[idx] and C[idx+1]
 	    // respectively
 	    //child->n += 1;
 	    child.setNumKeys(child.getNumKeys()+1);
 	    //sibling->n -= 1;
 	    sibling.setNumKeys(sibling.getNumKeys()-1);
+	    child.putPage();
+	    sibling.putPage();
+	    putPage();
 	    return;
 	}
 	/**
@@ -574,21 +809,21 @@ public final class BTreeKeyPage {
 	synchronized void merge(int idx) throws IOException {
 	    BTreeKeyPage child = getPage(idx);//C[idx];
 	    BTreeKeyPage sibling = getPage(idx+1);// C[idx+1]; 
-	    // Pulling a key from the current node and inserting it into (t-1)th
-	    // position of C[idx]
+	    int childKeys = child.getNumKeys();
+	    // Pulling a key from the current node and inserting it after the keys of C[idx],
+	    // the (t-1)th position when C[idx] has the minimum
 	    //child->keys[t-1] = keys[idx];
-	    child.copyKeyAndDataToArray(this, idx, BTreeMain.T-1);
+	    child.copyKeyAndDataToArray(this, idx, childKeys);
 	    // Copying the keys from C[idx+1] to C[idx] at the end
 	    for (int i=0; i < sibling.getNumKeys(); ++i) {
 	        //child->keys[i+t] = sibling->keys[i];
-	    	child.copyKeyAndDataToArray(sibling, i, i+BTreeMain.T);
+	    	child.copyKeyAndDataToArray(sibling, i, i+childKeys+1);
 	    }
 	    // Copying the child pointers from C[idx+1] to C[idx]
 	    if (!child.getmIsLeafNode()) {
 	        for(int i=0; i <= sibling.getNumKeys(); ++i) {
 	            //child->C[i+t] = sibling->C[i];
-	          	child.putPageToArray(sibling.getPage(i), i+BTreeMain.T);
-			    child.setPageIdArray(i+BTreeMain.T, sibling.getPageId(i));
+	          	child.putPageToArray(sibling.getPage(i), i+childKeys+1);
 	        }
 	    }
 	    // Moving all keys after idx in the current node one step before -
@@ -600,18 +835,44 @@ public final class BTreeKeyPage {
 	    // step before
 	    for (int i = idx+2; i <= getNumKeys(); ++i) {
 	       // C[i-1] = C[i];
-          	child.putPageToArray(getPage(i), i-1);
-			child.setPageIdArray(i-1, getPageId(i));
+          	putPageToArray(getPage(i), i-1);
 	    }
+	    nullKeyAndData(getNumKeys()-1);
+	    nullPageArray(getNumKeys());
 	    // Updating the key count of child and the current node
 	    //child->n += sibling->n+1;
-	    child.setNumKeys(sibling.getNumKeys()+1);
+	    child.setNumKeys(childKeys+sibling.getNumKeys()+1);
 	    //n--;
 	    setNumKeys(getNumKeys()-1);
 	    // Freeing the memory occupied by sibling
-	    sibling.getBlockAccessIndex().decrementAccesses();
+	    sibling.freePage();
+	    child.putPage();
+	    putPage();
 	    return;
 	}
+	/**
+	 * Delete the key and value objects stored for the index, if they are not inline.
+	 * @param index
+	 * @throws IOException
+	 */
+	private synchronized void deleteKeyAndData(int index) throws IOException {
+		if( !keyIdArray[index].equals(Optr.emptyPointer))
+			sdbio.delete_object(keyIdArray[index]);
+		if( !dataIdArray[index].equals(Optr.emptyPointer))
+			sdbio.delete_object(dataIdArray[index]);
+	}
+	/**
+	 * The key and value at the index were copied to another page along with the location of their objects,
+	 * so drop the locations here, leaving the objects to the copy when the index is removed.
+	 * @param index
+	 * @throws IOException
+	 */
+	synchronized void disownKeyAndData(int index) throws IOException {
+		getKey(index);
+		getData(index);
+		keyIdArray[index] = Optr.emptyPointer;
+		dataIdArray[index] = Optr.emptyPointer;
+	}
 	 
 	/**
 	* Delete the key/data item on this page.
@@ -623,10 +884,7 @@ public final class BTreeKeyPage {
 	*/
 	synchronized void delete(int index) throws IOException {
 		//System.out.println("BTreeKeyPage.delete "+this+" index:"+index);
-		if( !keyIdArray[index].equals(Optr.emptyPointer))
-			sdbio.delete_object(keyIdArray[index], GlobalDBIO.getObjectAsBytes(getKey(index)).length);
-		if( !dataIdArray[index].equals(Optr.emptyPointer))
-			sdbio.delete_object(dataIdArray[index], GlobalDBIO.getObjectAsBytes(getData(index)).length);
+		deleteKeyAndData(index);
 		// If its the rightmost key ignore move
 		if (index < getNumKeys() - 1)
 			// Move all up
@@ -637,20 +895,21 @@ public final class BTreeKeyPage {
 				pageIdArray[i + 1] = pageIdArray[i + 2];
 				dataArray[i] = dataArray[i + 1];
 				dataIdArray[i] = dataIdArray[i + 1];
-				dataUpdatedArray[i] = dataUpdatedArray[i + 1];
-				keyUpdatedArray[i] = keyUpdatedArray[i + 1];
+				// the slot now holds the next entry, it has to be written whether or not that entry was
+				dataUpdatedArray[i] = true;
+				keyUpdatedArray[i] = true;
 			}
 
 		// Decrement key count and nullify rightmost item on the node
 		setNumKeys(getNumKeys() - 1);
 		keyArray[getNumKeys()] = null;
 		keyIdArray[getNumKeys()] = Optr.emptyPointer;
-		keyUpdatedArray[getNumKeys()] = false;
+		keyUpdatedArray[getNumKeys()] = true;
 		pageArray[getNumKeys() + 1] = null;
 		pageIdArray[getNumKeys() + 1] = -1L;
 		dataArray[getNumKeys()] = null;
 		dataIdArray[getNumKeys()] = Optr.emptyPointer;
-		dataUpdatedArray[getNumKeys()] = false; // we took care of it
+		dataUpdatedArray[getNumKeys()] = true; // write the emptied slot
 		setUpdated(true);
 	}
 	/**
@@ -664,12 +923,44 @@ public final class BTreeKeyPage {
 				System.out.println("Deleting :"+dataArray[index]+" "+dataIdArray[index]);
 			}
 			//if( Props.DEBUG ) System.out.println(" size "+ilen);
-			sdbio.delete_object(dataIdArray[index],  GlobalDBIO.getObjectAsBytes(dataArray[index]).length );
+			sdbio.delete_object(dataIdArray[index]);
 			dataIdArray[index] = Optr.emptyPointer;
 			dataUpdatedArray[index] = true;
 			setUpdated(true);
 		}
 	}
+	/**
+	 * Move the serialized key and value at the index out of any block the allocator is evacuating.
+	 * Each one found there is read, deleted from its block and left updated with no position, so the next putPage
+	 * writes it at a new insert position, which is never in a block being evacuated.
+	 * @param index The key position whose key and value are checked
+	 * @return true if anything was moved, in which case the page has to be put
+	 * @throws IOException
+	 */
+	synchronized boolean relocate(int index) throws IOException {
+		FreeBlockAllocator alloc = sdbio.getIOManager().getFreeBlockAllocator();
+		boolean moved = false;
+		if( !keyIdArray[index].isEmptyPointer() && alloc.isEvacuating(keyIdArray[index].getBlock()) ) {
+			getKey(index);
+			sdbio.delete_object(keyIdArray[index]);
+			keyIdArray[index] = Optr.emptyPointer;
+			keyUpdatedArray[index] = true;
+			moved = true;
+		}
+		if( !dataIdArray[index].isEmptyPointer() && alloc.isEvacuating(dataIdArray[index].getBlock()) ) {
+			getData(index);
+			sdbio.delete_object(dataIdArray[index]);
+			dataIdArray[index] = Optr.emptyPointer;
+			dataUpdatedArray[index] = true;
+			moved = true;
+		}
+		if( moved ) {
+			if( DEBUG )
+				System.out.println("BTreeKeyPage.relocate index "+index+" of "+this);
+			setUpdated(true);
+		}
+		return moved;
+	}
 	/**
 	* Retrieve a page based on an index to this page containing a page.
 	* If the pageArray at index is NOT null we dont fetch anything.
@@ -788,10 +1079,14 @@ public final class BTreeKeyPage {
 	*/
 	static BTreeKeyPage getPageFromPool(ObjectDBIO sdbio, long pos) throws IOException {
 		assert(pos != -1L) : "Page index invalid in getPage "+sdbio.getDBName();
-		BlockAccessIndex bai = sdbio.findOrAddBlock(pos);
-		BTreeKeyPage btk = new BTreeKeyPage(sdbio, bai, true);
+		BTreeKeyPage btk;
+		// the block stream of the tablespace is shared, hold it from positioning to reading
+		synchronized(sdbio) {
+			BlockAccessIndex bai = sdbio.findOrAddBlock(pos);
+			btk = new BTreeKeyPage(sdbio, bai, true);
+		}
 		if( DEBUG ) 
-			System.out.println("BTreeKeyPage.getPageFromPool "+btk+" from block "+bai);
+			System.out.println("BTreeKeyPage.getPageFromPool "+btk+" from block "+GlobalDBIO.valueOf(pos));
 		//for(int i = 0; i <= MAXKEYS; i++) {
 		//	btk.pageArray[i] = btk.getPage(sdbio,i);
 		//}
@@ -845,42 +1140,53 @@ public final class BTreeKeyPage {
 		}
 		//
 		assert (pageId != -1L) : " BTreeKeyPage unlinked from page pool:"+this;
-		// write the page to the current block
-		lbai.getBlk().setIncore(true);
-		lbai.setByteindex((short) 0);
-		// Write to the block output stream
-		BlockStream bks = sdbio.getIOManager().getBlockStream(GlobalDBIO.getTablespace(pageId));
-		bks.setBlockAccessIndex(lbai);
-		if( DEBUG )
-			System.out.println("BTreeKeyPage.putPage BlockStream:"+bks);
-		DataOutputStream bs = bks.getDBOutput();
-		bs.writeByte(getmIsLeafNode() ? 1 : 0);
-		bs.writeInt(getNumKeys());
-		for(int i = 0; i < MAXKEYS; i++) {
-			if( keyUpdatedArray[i] ) {
-				// put the key to a block via serialization and assign KeyIdArray the position of stored key
-				//putKey(i);
-				bs.writeLong(keyIdArray[i].getBlock());
-				bs.writeShort(keyIdArray[i].getOffset());
-				keyUpdatedArray[i] = false; // now reset the update flag, this field is done, it has a key and a location
-			} else {
-				bks.getBlockAccessIndex().setByteindex((short) (bks.getBlockAccessIndex().getByteindex()+10));
-			}
-			// data array
-			if( dataUpdatedArray[i] ) {
-				bs.writeLong(dataIdArray[i].getBlock());
-				bs.writeShort(dataIdArray[i].getOffset());
-				dataUpdatedArray[i] = false;
-			} else {
-				// skip the data Id for this index as it was not updated, so no need to write anything
-				bks.getBlockAccessIndex().setByteindex((short) (bks.getBlockAccessIndex().getByteindex()+10));
-			}
+		// the block stream of the tablespace is shared with lookups reading pages, hold it from positioning to flush
+		synchronized(sdbio) {
+			// The pool may have replaced our block since we were read, by the clock sweep or by a commit emptying it,
+			// and handed our BlockAccessIndex to another block, so find our block again before writing it.
+			lbai = sdbio.getIOManager().findOrAddBlockAccess(pageId);
+			// write the page to the current block
+			lbai.getBlk().setIncore(true);
+			lbai.setByteindex((short) 0);
+			// Write to the block output stream
+			BlockStream bks = sdbio.getIOManager().getBlockStream(GlobalDBIO.getTablespace(pageId));
+			bks.setBlockAccessIndex(lbai);
+			if( DEBUG )
+				System.out.println("BTreeKeyPage.putPage BlockStream:"+bks);
+			DataOutputStream bs = bks.getDBOutput();
+			bs.writeByte(FORMATVERSION);
+			bs.writeByte(getmIsLeafNode() ? 1 : 0);
+			bs.writeInt(getNumKeys());
+			bs.writeLong(getKeyCount());
+			for(int i = 0; i < MAXKEYS; i++) {
+				if( keyUpdatedArray[i] || unversioned ) {
+					// put the key to a block via serialization and assign KeyIdArray the position of stored key
+					//putKey(i);
+					if( keyIdArray[i].isEmptyPointer() && InlineKey.fits(keyArray[i]) )
+						InlineKey.write(bs, keyArray[i]);
+					else
+						InlineKey.writeOptr(bs, keyIdArray[i].getBlock(), keyIdArray[i].getOffset());
+					keyUpdatedArray[i] = false; // now reset the update flag, this field is done, it has a key and a location
+				} else {
+					bks.getBlockAccessIndex().setByteindex((short) (bks.getBlockAccessIndex().getByteindex()+InlineKey.KEYFIELDSIZE));
+				}
+				// data array
+				if( dataUpdatedArray[i] || unversioned ) {
+					bs.writeInt(toBlockRef(dataIdArray[i].getBlock()));
+					bs.writeShort(dataIdArray[i].getOffset());
+					dataUpdatedArray[i] = false;
+				} else {
+					// skip the data Id for this index as it was not updated, so no need to write anything
+					bks.getBlockAccessIndex().setByteindex((short) (bks.getBlockAccessIndex().getByteindex()+6));
+				}
 		}
 		// persist btree key page indexes
 		for(int i = 0; i <= MAXKEYS; i++) {
-			bs.writeLong(pageIdArray[i]);
+			bs.writeInt(toBlockRef(pageIdArray[i]));
 		}
 		bs.flush();
+		unversioned = false;
+		}
 		//sdbio.getIOManager().FseekAndWrite(lbai.getBlockNum(), getDatablock());
 		//sdbio.getIOManager().deallocOutstandingCommit();
 		if( DEBUG ) {
@@ -896,12 +1202,16 @@ public final class BTreeKeyPage {
 	 * @throws IOException
 	 */
 	private synchronized void putData(int index, boolean resetUpdate) throws IOException {
-		// if it gets nulled or overwritten, delete old data
-		if( dataArray[index] != null) {
-				byte[] pb = GlobalDBIO.getObjectAsBytes(dataArray[index]);
+		// A value copied here from another page keeps its position, it is already stored there.
+		// A new or replaced value has had its position emptied.
+		if( !dataIdArray[index].isEmptyPointer() ) {
+			if( DEBUG )
+				System.out.println("BTreeKeyPage.putData keeping value for key index "+index+" at "+dataIdArray[index]);
+		} else if( dataArray[index] != null) {
+				byte[] pb = sdbio.serializeObject(dataArray[index]);
 				// pack the page into this tablespace and within blocks the same tablespace as key
 				// the new insert position will attempt to find a block with space relative to established positions
-				dataIdArray[index] = sdbio.getIOManager().getNewInsertPosition(dataIdArray, index, getNumKeys());		
+				dataIdArray[index] = sdbio.getIOManager().getNewInsertPosition(dataIdArray, index, getNumKeys(), pb.length);		
 				if( DEBUG )
 					System.out.println("BTreeKeyPage.putPage ADDING NON NULL value "+dataArray[index]+" for key index "+index+" at "+
 										GlobalDBIO.valueOf(dataIdArray[index].getBlock())+","+dataIdArray[index].getOffset());
@@ -966,12 +1276,18 @@ public final class BTreeKeyPage {
 				System.out.println("BTreeKeyPage.putKeys **IGNORE OVERWRITE** at index "+index+" id:"+keyArray[index]);
 			return;
 		}
-		keyIdArray[index] = MappedBlockBuffer.getNewInsertPosition(sdbio, keyIdArray, index, getNumKeys());
+		// Small keys are written into the key field of the page itself by putPage
+		if(InlineKey.fits(keyArray[index])) {
+			if(DEBUG || DEBUGPUTKEY) 
+				System.out.println("BTreeKeyPage.putKeys inline key at index "+index+" key:"+keyArray[index]);
+			return;
+		}
+		byte[] pb = sdbio.serializeObject(keyArray[index]);
+		keyIdArray[index] = MappedBlockBuffer.getNewInsertPosition(sdbio, keyIdArray, index, getNumKeys(), pb.length);
 		// get first block to write contiguous records for keys
 		if(DEBUG || DEBUGPUTKEY)
 				System.out.println("BTreeKeyPage.putKeys found insert block "+keyIdArray[index]);
 		// We either have a block with some space or one we took from freechain list
-		byte[] pb = GlobalDBIO.getObjectAsBytes(keyArray[index]);
 		sdbio.add_object(keyIdArray[index], pb, pb.length);
 		if(DEBUG || DEBUGPUTKEY) 
 				System.out.println("BTreeKeyPage.putKeys Added object @"+keyIdArray[index]+" bytes:"+pb.length+" page:"+this);
@@ -1203,6 +1519,23 @@ public final class BTreeKeyPage {
 		return numKeys;
 	}
 
+	/**
+	 * The total number of keys in the tree, meaningful on the root page only.
+	 * @return The key count
+	 */
+	public synchronized long getKeyCount() {
+		return keyCount;
+	}
+	/**
+	 * Set the total number of keys in the tree, and set the general updated flag so the
+	 * new count goes out with the page.
+	 * @param keyCount
+	 */
+	public synchronized void setKeyCount(long keyCount) {
+		this.keyCount = keyCount;
+		updated = true;
+	}
+
 	/**
 	 * @param numKeys the numKeys to set
 	 */
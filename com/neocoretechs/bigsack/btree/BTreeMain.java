@@ -1,9 +1,12 @@
 package com.neocoretechs.bigsack.btree;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Stack;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.neocoretechs.bigsack.io.Optr;
 import com.neocoretechs.bigsack.io.ThreadPoolManager;
@@ -32,8 +35,9 @@ import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
 *
 */
 /**
-* Main bTree class.  Manipulates retrieval stack of bTreeKeyPages and provides access
-* to seek/add/delete functions.
+* Main bTree class.  Provides access to seek/add/delete functions over the bTreeKeyPages.
+* Positions in the tree are held by a BTreeCursor belonging to each caller that walks the keys in order,
+* so any number of scans may be open on one tree at once.
 * Important to note that the data is stored as arrays serialized out in key pages. Related to that
 * is the concept of element 0 of those arrays being 'this', hence the special treatment in CRUD.
 * Unlike a binary search tree, each node of a B-tree may have a variable number of keys and children.
@@ -73,17 +77,13 @@ public final class BTreeMain {
 	static int ALREADYEXISTS = 4;
 	static int TREEERROR = 6;
 
-	private BTreeKeyPage root;
-	
-	// the 'current' items reflect the current status of the tree
-	BTreeKeyPage currentPage;
-	int currentIndex;
-	int currentChild;
-	@SuppressWarnings("rawtypes")
-	private Comparable currentKey;
-	private Object currentObject;
-	
-	private Stack<TraversalStackElement> stack = new Stack<TraversalStackElement>();
+	private volatile BTreeKeyPage root;
+	// Lookups hold it shared. Deletes and bulk loads, which move keys among pages on the way down and back up,
+	// hold it exclusive. Inserts and updates latch the pages they change instead.
+	private final ReentrantReadWriteLock structureLock = new ReentrantReadWriteLock();
+
+	// bumped on every insert or delete so that cursors holding pages can detect a structural change
+	private long structureVersion = 0L;
 	
 	private CyclicBarrier nodeSplitSynch = new CyclicBarrier(3);
 	private NodeSplitThread leftNodeSplitThread, rightNodeSplitThread;
@@ -92,10 +92,8 @@ public final class BTreeMain {
 
 	public BTreeMain(ObjectDBIO sdbio) throws IOException {
 		this.sdbio = sdbio;
-		currentPage = setRoot(BTreeKeyPage.getPageFromPool(sdbio, 0L));
-		if( DEBUG ) System.out.println("Root BTreeKeyPage: "+currentPage);
-		currentIndex = 0;
-		currentChild = 0;
+		setRoot(BTreeKeyPage.getPageFromPool(sdbio, 0L));
+		if( DEBUG ) System.out.println("Root BTreeKeyPage: "+root);
 		// Append the worker name to thread pool identifiers, if there, dont overwrite existing thread group
 		ThreadPoolManager.init(new String[]{"NODESPLITWORKER"}, false);
 		leftNodeSplitThread = new NodeSplitThread(nodeSplitSynch);
@@ -109,29 +107,50 @@ public final class BTreeMain {
 			// Attempt to retrieve last good key count
 			long numKeys = 0;
 			long tim = System.currentTimeMillis();
-			numKeys = count();
+			numKeys = verifyCount();
 			System.out.println("Consistency check for "+sdbio.getDBName()+" returned "+numKeys+" keys in "+(System.currentTimeMillis()-tim)+" ms.");
 		}
+		countUnversionedRoot();
 		if( ALERT )
 			System.out.println("Database "+sdbio.getDBName()+" ready with "+BTreeKeyPage.MAXKEYS+" keys per page.");
 
 	}
 	/**
-	 * Returns number of table scanned keys, sets numKeys field
-	 * TODO: Alternate more efficient implementation that counts keys on pages
-	 * This method scans all keys, thus verifying the structure.
+	 * Returns the number of keys in the tree from the count kept on the root page.
+	 * The count is maintained by add and delete and goes to deep store with the root, so no scan is needed.
+	 * @return The number of keys
+	 */
+	public synchronized long count() {
+		return getRoot().getKeyCount();
+	}
+	/**
+	 * A root page written before the layout was versioned carries no count of the keys, it reads as -1,
+	 * so count them with a scan, which puts the count on the root and the root in the current layout.
+	 * @throws IOException
+	 */
+	private void countUnversionedRoot() throws IOException {
+		if( getRoot().getKeyCount() < 0 ) {
+			long numKeys = verifyCount();
+			if( ALERT )
+				System.out.println("Database "+sdbio.getDBName()+" root page from before versioning, counted "+numKeys+" keys.");
+		}
+	}
+	/**
+	 * Returns number of table scanned keys.
+	 * This method scans all keys, thus verifying the structure. If the scanned number differs from
+	 * the count kept on the root page, the root page count is reset to the scanned number.
+	 * @return The number of keys found by the scan
 	 * @throws IOException
 	 */
-	public synchronized long count() throws IOException {
-		boolean found = rewind();
-		//System.out.println(found);
+	public synchronized long verifyCount() throws IOException {
+		BTreeCursor cursor = new BTreeCursor(this);
 		long numKeys = 0;
 		long tim = System.currentTimeMillis();
-		if( found && currentPage != null ) {
+		if( cursor.first() ) {
 			++numKeys;
-			while (gotoNextKey() == 0) {
+			while (cursor.next()) {
 				if( DEBUG || DEBUGCOUNT)
-					System.out.println("gotoNextKey returned: "+currentPage.getKey(currentIndex));
+					System.out.println("BTreeCursor.next returned: "+cursor.getKey());
 				++numKeys;
 			}
 		}
@@ -139,7 +158,12 @@ public final class BTreeMain {
 			System.out.println("Count for "+sdbio.getDBName()+" returned "+numKeys+" keys in "+(System.currentTimeMillis()-tim)+" ms.");
 		// deallocate outstanding blocks in all tablespaces
 		sdbio.deallocOutstanding();
-		clearStack();
+		if( numKeys != getRoot().getKeyCount() ) {
+			if( DEBUG || DEBUGCOUNT || ALERT )
+				System.out.println("Count for "+sdbio.getDBName()+" of "+getRoot().getKeyCount()+" on root differs from scan, reset to "+numKeys);
+			getRoot().setKeyCount(numKeys);
+			getRoot().putPage();
+		}
 		return numKeys;
 	}
 	/**
@@ -150,52 +174,133 @@ public final class BTreeMain {
 		return (getRoot().getNumKeys() == 0);
 	}
 	/**
-	* currentPage and currentIndex set by this seeker of a target object value.
+	* Seek a target object value.
 	* The only physically possible way is an iteration through the entire collection until found or end.
 	* @param targetObject The Object value to seek.
 	* @return data Object if found. null otherwise.
 	* @exception IOException if read failure
 	*/
-	@SuppressWarnings("rawtypes")
 	public synchronized Object seekObject(Object targetObject) throws IOException {	
-		//TreeSearchResult tsr = search(targetKey);
-		//if (tsr.atKey) {
-		//	setCurrent(tsr);
-		//	return getCurrentObject();
-		//} else {
-		//	return null;
-		//}
-		rewind();
-		if( currentPage != null ) {
-			setCurrent();
-			// are we looking for first element?
-			if(currentObject.equals(targetObject))
-				return currentObject;
-			while (gotoNextKey() == 0) {
-				//System.out.println(currentObject);
-				if(currentObject.equals(targetObject))
-					return currentObject;
+		BTreeCursor cursor = new BTreeCursor(this);
+		try {
+			if( cursor.first() ) {
+				do {
+					Object currentObject = cursor.getObject();
+					if(currentObject != null && currentObject.equals(targetObject))
+						return currentObject;
+				} while (cursor.next());
 			}
+			return null;
+		} finally {
+			// deallocate outstanding blocks in all tablespaces
+			sdbio.deallocOutstanding();
 		}
-		// deallocate outstanding blocks in all tablespaces
-		sdbio.deallocOutstanding();
-		clearStack();
-		return null;
 	}
 	/**
-	* Seek the key, if we dont find it, leave the tree at it position closest greater than element.
-	* If we do find it return true in atKey of result and leave at found key.
-	* Calls search, which calls clearStack, repositionStack and setCurrent.
-	* @param targetKey The Comparable key to seek
-	* @return search result with key data
-	* @exception IOException if read failure
-	*/
+	 * Look up a key without taking the tree monitor, so lookups run alongside each other and alongside the writer.
+	 * Pages are latched shared from the root down, the latch of a parent released only once its child is latched.
+	 * The writer latches the pages it changes exclusively, a parent before a child, so a lookup never finds a page
+	 * half way through a split or an insert.
+	 * @param key The key to look up
+	 * @param found Receives the key and its value if the key is present, a null value for a set
+	 * @return true if the key is present
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	public boolean lookup(Comparable key, Map<Comparable, Object> found) throws IOException {
+		structureLock.readLock().lock();
+		try {
+			BTreeKeyPage page = root;
+			page.latchShared();
+			try {
+				while( true ) {
+					TreeSearchResult tsr = page.search(key);
+					if( tsr.atKey ) {
+						found.put(key, page.getData(tsr.insertPoint));
+						return true;
+					}
+					if( page.getmIsLeafNode() )
+						return false;
+					BTreeKeyPage child = page.getPage(tsr.insertPoint);
+					if( child == null )
+						return false;
+					child.latchShared();
+					BTreeKeyPage parent = page;
+					page = child;
+					parent.unlatchShared();
+					sdbio.deallocOutstanding(parent.pageId);
+				}
+			} finally {
+				page.unlatchShared();
+				sdbio.deallocOutstanding(page.pageId);
+			}
+		} finally {
+			structureLock.readLock().unlock();
+		}
+	}
+	/**
+	 * Look up a batch of keys in one walk of the tree. The keys are taken in ascending order, and each one is sought from
+	 * the deepest page on the current path whose range, bounded above by the separating key that led to it, holds the key.
+	 * Neighbouring keys reuse the upper pages and the leaf, and a key that falls in the range of a leaf but is not on it is
+	 * a miss without reading anything more. Values are read only for the keys found.<p>
+	 * Like lookup, this runs without the tree monitor. The pages of the current path stay latched shared until the
+	 * keys move past them, so the writer waits for the walk only where their paths cross.
+	 * @param keys The keys in ascending order
+	 * @param found Receives the key and value of each key found, a null value for a set
+	 * @return The number of keys found
+	 * @throws IOException
+	 */
 	@SuppressWarnings("rawtypes")
-	public synchronized TreeSearchResult seekKey(Comparable targetKey) throws IOException {
-		TreeSearchResult tsr = search(targetKey);
-		if( DEBUG || DEBUGSEARCH)
-			System.out.println("SeekKey  state is currentIndex:"+currentIndex+" targKey:"+targetKey+" "+currentPage);
-		return tsr;
+	public int getAll(Comparable[] keys, Map<Comparable, Object> found) throws IOException {
+		Stack<BTreeKeyPage> path = new Stack<BTreeKeyPage>();
+		Stack<Comparable> fences = new Stack<Comparable>(); // upper bound of each page on the path, null for none
+		int hits = 0;
+		structureLock.readLock().lock();
+		try {
+			BTreeKeyPage rootNode = root;
+			rootNode.latchShared();
+			path.push(rootNode);
+			fences.push(null);
+			if( rootNode.getNumKeys() == 0 )
+				return 0;
+			for(Comparable key : keys) {
+				// back up until the key is below the fence of the page
+				while( fences.peek() != null && key.compareTo(fences.peek()) >= 0 ) {
+					fences.pop();
+					BTreeKeyPage page = path.pop();
+					page.unlatchShared();
+					sdbio.deallocOutstanding(page.pageId);
+				}
+				BTreeKeyPage page = path.peek();
+				while( page != null ) {
+					TreeSearchResult tsr = page.search(key);
+					if( tsr.atKey ) {
+						found.put(key, page.getData(tsr.insertPoint));
+						++hits;
+						break;
+					}
+					if( page.getmIsLeafNode() )
+						break;
+					Comparable fence = (tsr.insertPoint < page.getNumKeys() ? page.getKey(tsr.insertPoint) : fences.peek());
+					page = page.getPage(tsr.insertPoint);
+					if( page != null ) {
+						page.latchShared();
+						path.push(page);
+						fences.push(fence);
+					}
+				}
+				if( DEBUG || DEBUGSEARCH )
+					System.out.println("BTreeMain.getAll "+key+" depth "+path.size()+" hits "+hits);
+			}
+			return hits;
+		} finally {
+			while( !path.isEmpty() ) {
+				BTreeKeyPage page = path.pop();
+				page.unlatchShared();
+				sdbio.deallocOutstanding(page.pageId);
+			}
+			structureLock.readLock().unlock();
+		}
 	}
 	/**
 	 * Add to deep store, Set operation.
@@ -229,7 +334,7 @@ public final class BTreeMain {
         if (!usr.atKey) {
         		BTreeKeyPage targetNode = usr.page;
                 if (rootNode.getNumKeys() == (2 * T - 1)) {
-                       splitNodeBalance(rootNode);
+                       splitNodeBalance(rootNode); // latches the root
                        // re position insertion point after split
                        if( DEBUG )
                     	   System.out.println("BTreeMain.add calling reposition after splitRootNode for key:"+key+" node:"+rootNode);
@@ -237,10 +342,60 @@ public final class BTreeMain {
                        targetNode = repos.page;
                 } 
                 insertIntoNode(targetNode, key, object); // Insert the key into the B-Tree with root rootNode.
+                rootNode.latchExclusive();
+                try {
+                	rootNode.setKeyCount(rootNode.getKeyCount()+1);
+                	rootNode.putPage();
+                } finally {
+                	rootNode.unlatchExclusive();
+                }
+                ++structureVersion;
         }
-        // If 'update' method returned an atKey true, it has performed the replacement of data element for key
+        // If 'update' method returned an atKey true, it has performed the replacement of data element for key,
+        // and written its page to deep store like any other change to it. No key moved, and the page was changed in place,
+        // so the structure version stays as it is and cursors holding the page see the new value
         return (usr.atKey ? 1 : 0);
 	}
+	/**
+	 * Load entries in ascending key order. An empty tree is built bottom up by the BTreeBulkLoader, each page
+	 * filled and written once. If the tree already has keys the entries are added one at a time.
+	 * Where keys are equal the last value wins. A key out of order is an error.
+	 * @param entries The Map.Entry key/value pairs in ascending key order, a null value for a set
+	 * @return The number of keys in the tree after the load
+	 * @throws IOException If the entries are out of order or the pages cannot be written
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public synchronized long bulkLoad(Iterator<? extends Map.Entry> entries) throws IOException {
+		structureLock.writeLock().lock();
+		try {
+			return load(entries);
+		} finally {
+			structureLock.writeLock().unlock();
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private long load(Iterator<? extends Map.Entry> entries) throws IOException {
+		if( getRoot().getNumKeys() == 0 ) {
+			long count = new BTreeBulkLoader(this, sdbio).load(entries);
+			++structureVersion;
+			return count;
+		}
+		if( DEBUG )
+			System.out.println("BTreeMain.bulkLoad tree has "+getRoot().getKeyCount()+" keys, adding entries one at a time");
+		Comparable prev = null;
+		while( entries.hasNext() ) {
+			Map.Entry e = entries.next();
+			Comparable key = (Comparable) e.getKey();
+			if( key == null )
+				throw new IOException("BTreeMain.bulkLoad null key");
+			if( prev != null && key.compareTo(prev) < 0 )
+				throw new IOException("BTreeMain.bulkLoad key "+key+" out of order after "+prev);
+			add(key, e.getValue());
+			prev = key;
+		}
+		return getRoot().getKeyCount();
+	}
 
 	/**
 	 * Traverse the tree and insert object for key if we find the key.
@@ -258,39 +413,16 @@ public final class BTreeMain {
     	BTreeKeyPage sourcePage = node;
 
         while (sourcePage != null) {
-                i = 0;
-                while (i < sourcePage.getNumKeys() && key.compareTo(sourcePage.getKey(i)) > 0) {
-                        i++;
-                }
-                if (i < sourcePage.getNumKeys() && key.compareTo(sourcePage.getKey(i)) == 0) {
-                	// If its a set instead of map the the value data comes back null, else we
-                	// deserialize, check to make sure we dont needlessly delete a value to replace it with its equal.
-                	Object keyValue = sourcePage.getData(i);
-                	if( keyValue != null ) {
-                		if(object != null ) {
-                			if( !object.equals(keyValue) ) {	
-                				// dataArray at index not null and dataIdArray Optr at index not empty for delete to fire.
-                				// So if you are using Sets vs Maps it should not happen.
-                				if( OVERWRITE ) {
-                     				if( DEBUG || DEBUGOVERWRITE )
-                     					System.out.println("Preparing to OVERWRITE value "+object+" for key "+key+" index["+i+"]");
-                    				sourcePage.deleteData(i);
-                					sourcePage.putDataToArray(object,i);
-                					if( DEBUG || DEBUGOVERWRITE )
-                     					System.out.println("OVERWRITE value "+object+" for key "+key+" index["+i+"] page:"+sourcePage);
-                				} else {
-                					if(ALERT)
-                						System.out.println("OVERWRITE flag set to false, so attempt to update existing value is ignored for key "+key);
-                				}
-                			}
-                			// wont put the data if here, object = keyValue, both not null
-                		} else {
-                			sourcePage.putDataToArray(object,i);
-                		}
-                		// If we had a value already, and it wasnt null and not equal to previous we put the new data
-                		// If it was null or the value equal to previous we bypassed and are here
-                	} else {
-                		sourcePage.putDataToArray(object,i);
+                // binary search, only the keys probed are deserialized
+                TreeSearchResult tsr = sourcePage.search(key);
+                i = tsr.insertPoint;
+                if (tsr.atKey) {
+                	sourcePage.latchExclusive();
+                	try {
+                		replaceData(sourcePage, i, key, object);
+                		sourcePage.putPage();
+                	} finally {
+                		sourcePage.unlatchExclusive();
                 	}
                 	return new TreeSearchResult(sourcePage, i, true);
                 }
@@ -310,6 +442,45 @@ public final class BTreeMain {
     		System.out.println("BTreeMain.update set to return index :"+i+" on fallthrough for "+sourcePage);
         return new TreeSearchResult(sourcePage, i, false);
     }
+    /**
+     * Replace the value of the key found at the index of the page.
+     * @param sourcePage The page holding the key
+     * @param i The index of the key
+     * @param key The key
+     * @param object The new value
+     * @throws IOException
+     */
+    private void replaceData(BTreeKeyPage sourcePage, int i, Comparable key, Object object) throws IOException {
+        	// If its a set instead of map the the value data comes back null, else we
+        	// deserialize, check to make sure we dont needlessly delete a value to replace it with its equal.
+        	Object keyValue = sourcePage.getData(i);
+        	if( keyValue != null ) {
+        		if(object != null ) {
+        			if( !object.equals(keyValue) ) {	
+        				// dataArray at index not null and dataIdArray Optr at index not empty for delete to fire.
+        				// So if you are using Sets vs Maps it should not happen.
+        				if( OVERWRITE ) {
+             				if( DEBUG || DEBUGOVERWRITE )
+             					System.out.println("Preparing to OVERWRITE value "+object+" for key "+key+" index["+i+"]");
+            				sourcePage.deleteData(i);
+        					sourcePage.putDataToArray(object,i);
+        					if( DEBUG || DEBUGOVERWRITE )
+             					System.out.println("OVERWRITE value "+object+" for key "+key+" index["+i+"] page:"+sourcePage);
+        				} else {
+        					if(ALERT)
+        						System.out.println("OVERWRITE flag set to false, so attempt to update existing value is ignored for key "+key);
+        				}
+        			}
+        			// wont put the data if here, object = keyValue, both not null
+        		} else {
+        			sourcePage.putDataToArray(object,i);
+        		}
+        		// If we had a value already, and it wasnt null and not equal to previous we put the new data
+        		// If it was null or the value equal to previous we bypassed and are here
+        	} else {
+        		sourcePage.putDataToArray(object,i);
+        	}
+    }
     
     /**
      * Sets up the return BTreeKeyPage similar to 'reposition' but this public method initializes root node etc.
@@ -343,11 +514,9 @@ public final class BTreeMain {
     	int i = 0;
     	BTreeKeyPage sourcePage = node;
         while (sourcePage != null) {
-                i = 0;
-                while (i < sourcePage.getNumKeys() && key.compareTo(sourcePage.getKey(i)) > 0) {
-                        i++;
-                }
-                if (i < sourcePage.getNumKeys() && key.compareTo(sourcePage.getKey(i)) == 0) {
+                TreeSearchResult tsr = sourcePage.search(key);
+                i = tsr.insertPoint;
+                if (tsr.atKey) {
                  	if( DEBUG )
                 		System.out.println("BTreeMain.reposition set to return index :"+i+" after locating key for "+sourcePage);
                 	return new TreeSearchResult(sourcePage, i, true);
@@ -384,6 +553,16 @@ public final class BTreeMain {
     synchronized void splitNodeBalance(BTreeKeyPage parentNode) throws IOException { 
         if( DEBUG )
         	System.out.println("BTreeMain.splitNodeBalance :"+parentNode);
+        // the split threads move the keys out of the page, lookups stay off it until it is whole again
+        parentNode.latchExclusive();
+        try {
+        	splitNodeBalanceLatched(parentNode);
+        } finally {
+        	parentNode.unlatchExclusive();
+        }
+    }
+
+    private void splitNodeBalanceLatched(BTreeKeyPage parentNode) throws IOException {
         NodeSplitRequest lnsr = new NodeSplitRequest(sdbio, parentNode, NodeSplitRequest.NODETYPE.NODE_LEFT);
         NodeSplitRequest rnsr = new NodeSplitRequest(sdbio, parentNode, NodeSplitRequest.NODETYPE.NODE_RIGHT);
         try {
@@ -437,7 +616,7 @@ public final class BTreeMain {
 				}
 				parentNode.setNumKeys(goodKeys); // sets parent node updated
 				if( DEBUG ) {
-					System.out.println("BTreeMain.spliNodeBalance moving to putPage:"+currentPage);
+					System.out.println("BTreeMain.spliNodeBalance moving to putPage:"+parentNode);
 				}
 				//
 				// Write the three new pages back to deep store and log them along the way
@@ -479,17 +658,31 @@ public final class BTreeMain {
             		return;
             	}
                 // If node is not a full node insert the new element into its proper place within node.
-                while (i >= 0 && key.compareTo(node.getKey(i)) < 0) {
+                node.latchExclusive();
+                try {
+                	while (i >= 0 && key.compareTo(node.getKey(i)) < 0) {
                     	moveKeyData(node, i, node, i+1, false);
                         i--;
-                }
-                i++;
+                	}
+                	i++;
                 
-                node.setKey(i, key);
-                node.putDataToArray(object, i);
+                	node.setKey(i, key);
+                	node.putDataToArray(object, i);
                 
-                node.setNumKeys(node.getNumKeys() + 1); // sets 'updated' for node
-                node.putPage();
+                	node.setNumKeys(node.getNumKeys() + 1); // sets 'updated' for node
+                	try {
+                		node.putPage();
+                	} catch(IOException | RuntimeException e) {
+                		// the key or its value could not be written, take the key back out so the page holds what it did
+                		for(int j = i; j < node.getNumKeys() - 1; j++)
+                			moveKeyData(node, j+1, node, j, false);
+                		node.nullKeyAndData(node.getNumKeys() - 1);
+                		node.setNumKeys(node.getNumKeys() - 1);
+                		throw e;
+                	}
+                } finally {
+                	node.unlatchExclusive();
+                }
             } else {
             		// x is not a leaf node. We can't just stick k in because it doesn't have any children; 
             		// children are really only created when we split a node, so we don't get an unbalanced tree. 
@@ -555,6 +748,18 @@ public final class BTreeMain {
      * @throws IOException
      */
     synchronized void splitChildNode(BTreeKeyPage parentNode, int keyIndex, int childIndex,  BTreeKeyPage node) throws IOException {
+    	// parent before child, as lookups take them
+    	parentNode.latchExclusive();
+    	node.latchExclusive();
+    	try {
+    		splitChildNodeLatched(parentNode, keyIndex, childIndex, node);
+    	} finally {
+    		node.unlatchExclusive();
+    		parentNode.unlatchExclusive();
+    	}
+    }
+
+    private void splitChildNodeLatched(BTreeKeyPage parentNode, int keyIndex, int childIndex,  BTreeKeyPage node) throws IOException {
     	if( DEBUG )
     		System.out.println("BTreeMain.splitChildNode index:"+keyIndex+" childIndex:"+childIndex+"parent:"+parentNode+" target:"+node);
             BTreeKeyPage newNode =  BTreeKeyPage.getPageFromPool(sdbio); // will set up blank page with updated set
@@ -728,6 +933,17 @@ public final class BTreeMain {
 	*/
 	@SuppressWarnings("rawtypes")
 	public synchronized int delete(Comparable newKey) throws IOException {
+		// keys move among the pages on the path and their siblings on the way down and back up, keep lookups out
+		structureLock.writeLock().lock();
+		try {
+			return remove(newKey);
+		} finally {
+			structureLock.writeLock().unlock();
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private int remove(Comparable newKey) throws IOException {
 		if( DEBUG || DEBUGDELETE ) System.out.println("--ENTERING DELETE FOR "+newKey);
 		// Call the remove function starting at the root node
 		// make sure it has some keys
@@ -736,6 +952,13 @@ public final class BTreeMain {
 			if( DEBUG || DEBUGDELETE ) System.out.println("Root Keypage has no keys when attempting DELETE FOR "+newKey);
 			return NOTFOUND;
 		}
+		// only count keys that are actually there
+		if( !reposition(root, newKey).atKey ) {
+			if( DEBUG || DEBUGDELETE ) System.out.println("Key not found when attempting DELETE FOR "+newKey);
+			return NOTFOUND;
+		}
+	    ++structureVersion;
+	    root.setKeyCount(root.getKeyCount()-1);
 	    root.remove(newKey);
 	    // If the root node now has 0 keys, make its first child as the new root
 	    // if it has a child
@@ -745,6 +968,8 @@ public final class BTreeMain {
 			root.replacePage(newRoot); // read the childs data into old root, replacing it
 	        if( DEBUG || DEBUGDELETE ) System.out.println("Root RESET with first child "+getRoot());
 	    }
+	    // write the root so the new count is logged with it
+	    root.putPage();
 		if( DEBUG || DEBUGDELETE ) System.out.println("BTreeMain.delete Just deleted "+newKey);
 		return 0;
 	}
@@ -797,437 +1022,16 @@ public final class BTreeMain {
 	}
 
 	/**
-	 * Rewind current position to beginning of tree. Sets up stack with pages and indexes
-	 * such that traversal can take place. Remember to clear stack after these operations.
-	 * @exception IOException If read fails
-	 */
-	public synchronized boolean rewind() throws IOException {
-		currentPage = getRoot();
-		currentIndex = 0;
-		currentChild = 0;
-		clearStack();
-		return seekLeftTree();
-		//if( DEBUG )
-		//	System.out.println("BTreeMain.rewind positioned at "+currentPage+" "+currentIndex+" "+currentChild);
-	}
-
-	/**
-	 * Set current position to end of tree.Sets up stack with pages and indexes
-	 * such that traversal can take place. Remember to clear stack after these operations. 
-	 * @exception IOException If read fails
-	 */
-	public synchronized void toEnd() throws IOException {
-		rewind();
-		while (gotoNextKey() == 0);
-	}
-	/**
-	 * Same as reposition but we populate the stack 
-	 * Traverse the tree for the given key.
-	 * At each page descent, check the index and compare, if equal put data to array at the spot
-	 * and return true. If we are a leaf node and find no match return false;
-	 * If we are not leaf node and find no match, get child at key less than this. Find to where the
-	 * KEY is LESS THAN the contents of the key array.
-	 * @param key The key to search for
-	 * @param object the object data to update, if null, ignore data put and return true. If OVERWRITE flag false, also ignore
-	 * @return The index of the insertion point if < 0 else if >= 0 the found index point
-	 * @throws IOException
-	 */
-    private synchronized TreeSearchResult repositionStack(BTreeKeyPage node, Comparable key) throws IOException {
-    	int i = 0;
-    	BTreeKeyPage sourcePage = node;
-    	if( DEBUG || DEBUGSEARCH) {
-    		System.out.println("BTreeMain.repositionStack key:"+key+" node:"+node);
-    	}
-        while (sourcePage != null) {
-                i = 0;
-                //while (i < sourcePage.numKeys && key.compareTo(sourcePage.keyArray[i]) > 0) {
-                while (i < sourcePage.getNumKeys() && sourcePage.getKey(i).compareTo(key) < 0) {
-                        i++;
-                }
-                //if (i < sourcePage.numKeys && key.compareTo(sourcePage.keyArray[i]) == 0) {
-                if (i < sourcePage.getNumKeys() && sourcePage.getKey(i).compareTo(key) == 0) {	
-                 	if( DEBUG || DEBUGSEARCH )
-                		System.out.println("BTreeMain.repositionStack set to return index :"+i+" after locating key for "+sourcePage);
-                	return new TreeSearchResult(sourcePage, i, true);
-                }
-                if (sourcePage.getmIsLeafNode()) {
-                	// we are at leaf, we pop or return having not found
-                	if( DEBUG || DEBUGSEARCH)
-                		System.out.println("BTreeMain.repositionStack set to return index :"+i+" for leaf "+sourcePage);
-                	// If our key has run off the end of page or will do so, pop to subtree right in parent, we are at leaf still
-                	if( i >= sourcePage.getNumKeys() || sourcePage.getKey(i).compareTo(key) < 0 ) {
-                		currentPage = sourcePage;
-                		int v = popUntilValid(true);
-                		//return new TreeSearchResult(currentPage, currentIndex, true);
-                		return new TreeSearchResult(currentPage, currentIndex, (v == 0));
-                	}
-                	// didnt run off end or key on page all > key and we are at leaf, key must not exist
-                	//return new TreeSearchResult(sourcePage, i, true);
-             		return new TreeSearchResult(sourcePage, i, false);
-                } else {
-                	// non leaf
-                	BTreeKeyPage targetPage  = sourcePage.getPage(i);// get the page at the index of the given page
-                	if( DEBUG || DEBUGSEARCH) {
-                		System.out.println("BTreeMain.repositionStack traverse next page for key:"+key+" page:"+targetPage);
-                	}
-                	if( targetPage == null )
-                		break;
-                	TraversalStackElement tse = new TraversalStackElement(sourcePage, i, i);
-                	stack.push(tse);
-                  	sdbio.deallocOutstanding(sourcePage.pageId);
-                	sourcePage = targetPage;
-                }
-        }
-      	if( DEBUG || DEBUGSEARCH)
-    		System.out.println("BTreeMain.repositionStack set to return index :"+i+" for fallthrough "+sourcePage);
-        return new TreeSearchResult(sourcePage, i, false);
-    }
-	/**
-	* Seek to location of next key in tree. Set current key and current object.
-	* Attempt to advance the child index at the current node. If it advances beyond numKeys, a pop
-	* is necessary to get us to the previous level. We repeat the process a that level, advancing index
-	* and checking, and again repeating pop.
-	* If we get to a currentIndex advanced to the proper index, we know we are not at a leaf since we
-	* popped the node as a parent, so we know there is a subtree somewhere, so descend the subtree 
-	* of the first key to the left that has a child until we reach a terminal 'leaf' node.
-	* We are finished when we are at the root and can no longer traverse right. this is because we popped all the way up,
-	* and there are no more subtrees to traverse.
-	* Note that we dont deal with keys at all here, just child pointers.
-	* @return 0 if ok, != 0 if error
-	* @exception IOException If read fails
-	*/
-	public synchronized int gotoNextKey() throws IOException {
-		if( DEBUG || DEBUGSEARCH ) {
-			System.out.println("BTreeMain.gotoNextKey "/*page:"+currentPage+*/+" index "+currentIndex);
-		}
-		// If we are at a key, then advance the index
-		if (currentChild < currentPage.getNumKeys()) {
-				currentChild++;
-				// If its a leaf and we just bumped we can return if its in range
-				if( currentPage.getmIsLeafNode()) {	
-					if(currentChild != currentPage.getNumKeys())  {
-						currentIndex = currentChild;
-						setCurrent();
-						return 0;
-					}
-				}
-				// Otherwise, we have to decide the return value, descend subtree
-				// Not a leaf node with valid index, so we have to either return the index or find a subtree to descend
-				// should be positioned at key to which we descend left subtree
-				// 
-				BTreeKeyPage tPage = currentPage.getPage(currentChild);
-				if (tPage  == null) {
-					// Pointer is null, we can return this index as we cant descend subtree
-					if( DEBUG || DEBUGSEARCH) {
-						System.out.println("BTreeMain.gotoNextKey index "+currentChild+" pointer is null");
-					}
-					//
-					// No child pointer. If the current pointer is at end of key range we have to pop
-					// otherwise we can return this key
-					if(currentChild != currentPage.getNumKeys())  {
-							currentIndex = currentChild;
-							setCurrent();
-							return 0;
-					}	
-				} else {
-					// There is a child pointer
-					// seek to "leftmost" key in currentPage subtree,the one we just tested, using currentChild
-					seekLeftTree();
-					setCurrent();
-					return (0);	
-				}
-		}
-		// If we are here we are at the end of the key range
-		// cant move right, are we at root? If so, we must end
-		// we have reached the end of keys
-		// we must pop
-		// pop to parent and fall through when we hit root or are not out of keys
-		// go up 1 and right to the next key, if no right continue to pop until we have a right key
-		// if we hit the root, protocol right. in any case we have to reassert
-		// if there is a subtree follow it, else return the key
-		return popUntilValid(true);
-	}
-
-	/**
-	* Go to location of previous key in tree
-	* @return 0 if ok, <>0 if error
-	* @exception IOException If read fails
-	*/
-	public synchronized int gotoPrevKey() throws IOException {
-		if( DEBUG || DEBUGSEARCH ) {
-			System.out.println("BTreeMain.gotoNextKey "/*page:"+currentPage+*/+" index "+currentIndex);
-		}
-		// If we are at a key, then reduce the index
-		if (currentChild > 0) {
-				--currentChild;
-				// If its a leaf and we just bumped we can return if its in range
-				if( currentPage.getmIsLeafNode()) {	
-						currentIndex = currentChild;
-						setCurrent();
-						return 0;
-				}
-				// Otherwise, we have to decide the return value, descend subtree
-				// Not a leaf node with valid index, so we have to either return the index or find a subtree to descend
-				// should be positioned at key to which we descend left subtree
-				// 
-				BTreeKeyPage tPage = currentPage.getPage(currentChild);
-				if (tPage  == null) {
-					// Pointer is null, we can return this index as we cant descend subtree
-					if( DEBUG || DEBUGSEARCH) {
-						System.out.println("BTreeMain.gotoPrevKey index "+currentChild+" pointer is null, returning");
-					}
-					//
-					// No child pointer. If the current pointer is at end of key range we have to pop
-					// otherwise we can return this key
-					if(currentChild != 0)  {
-							currentIndex = currentChild;
-							setCurrent();
-							return 0;
-					}	
-				} else {
-					// There is a child pointer
-					// seek to "rightmost" key in currentPage subtree,the one we just tested, using currentChild
-					seekRightTree();
-					setCurrent();
-					return (0);	
-				}
-		}
-		return popUntilValid(false);
-	}
-	/**
-	 * Pop the stack until we reach a valid spot in traversal.
-	 * The currentPage, currentChild are used, setCurrent() is called on exit;
-	 * @param next Pop 'previous', or 'next' key. true for 'next'
-	 * @return EOF If we reach root and cannot traverse right
-	 * @throws IOException
-	 */
-	private synchronized int popUntilValid(boolean next) throws IOException {
-		// If we are here we are at the end of the key range
-		// cant move left, are we at root? If so, we must end
-		if( currentPage.pageId == 0L)
-			return EOF;
-		// we have reached the end of keys
-		// we must pop
-		// pop to parent and fall through when we hit root or are not out of keys
-		// go up 1 and right to the next key, if no right continue to pop until we have a right key
-		// if we hit the root, protocol right. in any case we have to reassert
-		// if there is a subtree follow it, else return the key
-		Comparable key = currentPage.getKey(currentIndex);
-		while( pop() ) {
-			if(DEBUG || DEBUGSEARCH) {
-				System.out.println("BTreeMain.popUntilValid POP index:"+currentIndex+" child:"+currentChild+" page:"+currentPage);
-			}
-			// we know its not a leaf, we popped to it
-			// If we pop, and we are at the end of key range, and our key is not valid, pop
-			if( next ) {
-				if(currentIndex >= currentPage.getNumKeys() || currentPage.getKey(currentIndex).compareTo(key) < 0) {	
-					continue; // on a non-leaf, at an index heading right (ascending)
-				}
-			} else {
-				if(currentIndex <= 0 || currentPage.getKey(currentIndex).compareTo(key) > 0) {
-					continue; // on a non-leaf, at an index heading left (descending)
-				}
-			}
-			// appears that a valid key is encountered
-			setCurrent();
-			return 0;
-		}
-		// should be at position where we return key from which we previously descended
-		// pop sets current indexes
-		//setCurrent();
-		//return 0;
-		//
-		// popped to the top and have to stop
-		return EOF;
-	}
-	/**
-	* Set the current object and key based on value of currentPage.
-	* and currentIndex
-	*/
-	public synchronized void setCurrent() throws IOException {
-		setCurrentKey(currentPage.getKey(currentIndex));
-		setCurrentObject(currentPage.getData(currentIndex));
-		if( DEBUG || DEBUGCURRENT)
-			System.out.println("BTreeMain.setCurrent page:["+ currentIndex +"] "+getCurrentKey()+" "+getCurrentObject());
-	}
-	/**
-	* Set the current object and key based on value of currentPage.
-	* and currentIndex
-	*/
-	public synchronized Comparable setCurrentKey() throws IOException {
-		setCurrentKey(currentPage.getKey(currentIndex));
-		if( DEBUG || DEBUGCURRENT)
-			//System.out.println("BTreeMain.setCurrentKey page:"+currentPage+" index:"+currentIndex);
-			System.out.println("BTreeMain.setCurrentKey page:["+ currentIndex +"] "+getCurrentKey()+" "+getCurrentObject());
-		return getCurrentKey();
-	}
-	/**
-	 * Set the currentPage, currentIndex, currentChild to TreeSearchResult values.
-	 * then calls setCurrent() to populate current key and Object data values.
-	 * @param tsr
-	 * @throws IOException
+	 * The structure version changes whenever a key is inserted or deleted, which may shift keys
+	 * within pages, split or merge pages. Replacing the value of a key leaves it as it is, as the page
+	 * is updated in place and cursors hold the same page, reached from the root through its page array.
+	 * Cursors compare it to decide whether the pages they hold are still valid.
+	 * @return The current structure version
 	 */
-	public synchronized void setCurrent(TreeSearchResult tsr) throws IOException {
-		currentPage = tsr.page;
-		currentIndex = tsr.insertPoint;
-		currentChild = tsr.insertPoint;
-		setCurrent(); // sets up currenKey and currentObject;
+	public synchronized long getStructureVersion() {
+		return structureVersion;
 	}
 	
-	
-	public synchronized Object getCurrentObject() {
-		return currentObject;
-	}
-
-	public synchronized void setCurrentObject(Object currentObject) {
-		this.currentObject = currentObject;
-	}
-
-	@SuppressWarnings("rawtypes")
-	public synchronized Comparable getCurrentKey() {
-		return currentKey;
-	}
-
-	@SuppressWarnings("rawtypes")
-	public synchronized void setCurrentKey(Comparable currentKey) {
-		this.currentKey = currentKey;
-	}
-
-	/**
-	 * Utilize reposition to locate key. Set currentPage, currentIndex, currentKey, and currentChild.
-	 * deallocOutstanding is called before exit.
-	 * @param targetKey The key to position to in BTree
-	 * @return TreeSearchResult containing page, insertion index, atKey = true for key found
-	 * @throws IOException
-	 */
-	public synchronized TreeSearchResult search(Comparable targetKey) throws IOException {
-		currentPage = getRoot();
-		currentIndex = 0;
-		currentChild = 0;
-		TreeSearchResult tsr = null;
-		clearStack();
-        if (currentPage != null) {
-        	tsr = repositionStack(currentPage, targetKey);
-        	setCurrent(tsr);
-        }
-    	if( DEBUG || DEBUGSEARCH) {
-    		System.out.println("BTreeMain.search returning with currentPage:"+currentPage+" index:"+currentIndex+" child:"+currentChild);
-    	}
-        sdbio.deallocOutstanding(currentPage.pageId);
-        return tsr;
-}
-
-	/**
-	* Seeks to leftmost key in current subtree. Takes the currentChild and currentIndex from currentPage and uses the
-	* child at currentChild to descend the subtree and gravitate left.
-	*/
-	private synchronized boolean seekLeftTree() throws IOException {
-		boolean foundPage = false;
-		if( DEBUG || DEBUGSEARCH ) {
-			System.out.println("BTreeMain.seekLeftTree page:"+currentPage+" index:"+currentIndex+" child:"+currentChild);
-		}
-		BTreeKeyPage tPage = currentPage.getPage(currentChild);
-		while (tPage != null) {
-			foundPage = true;
-			// Push the 'old' value of currentPage, currentIndex etc as a TraversalStackElement since we are
-			// intent on descending. After push and verification that tPage is not null, set page to tPage.
-			push();
-			if( DEBUG || DEBUGSEARCH )
-				System.out.println("BTreeMain.seekLeftTree PUSH using "+currentPage+" index:"+currentIndex+" child:"+currentChild+" new entry:"+tPage);
-			currentIndex = 0;
-			currentChild = 0;
-			currentPage = tPage;
-			setCurrent();
-			tPage = currentPage.getPage(currentChild);
-		}
-		return foundPage;
-	}
-
-	/**
-	* Seeks to rightmost key in current subtree
-	*/
-	private synchronized void seekRightTree() throws IOException {
-		BTreeKeyPage tPage = currentPage.getPage(currentChild);
-		while (tPage != null) {
-			push();
-			if( DEBUG || DEBUGSEARCH)
-				System.out.println("BTreeMain.seekRightTree PUSH using "+currentPage+" index:"+currentIndex+" child:"+currentChild+" new entry:"+tPage);
-			currentIndex = currentPage.getNumKeys() - 1;
-			currentChild = currentPage.getNumKeys();
-			currentPage = tPage;
-			setCurrent();
-			tPage = currentPage.getPage(currentChild);
-		}
-	}
-
-	/** 
-	 * Internal routine to push stack. Pushes a TraversalStackElement
-	 * set keyPageStack[stackDepth] to currentPage
-	 * set indexStack[stackDepth] to currentIndex
-	 * Sets stackDepth up by 1
-	 * @param  
-	 * @return true if stackDepth not at MAXSTACK, false otherwise
-	 */
-	private synchronized void push() {
-		//if (stackDepth == MAXSTACK)
-		//	throw new RuntimeException("Maximum retrieval stack depth exceeded at "+stackDepth);
-		if( currentPage == null )
-			throw new RuntimeException("BTreeMain.push cant push a null page to stack");
-		//keyPageStack[stackDepth] = currentPage;
-		//childStack[stackDepth] = currentChild;
-		//indexStack[stackDepth++] = currentIndex;
-		stack.push(new TraversalStackElement(currentPage, currentIndex, currentChild));
-		if( DEBUG ) {
-			System.out.print("BTreeMain.Push:");
-			printStack();
-		}
-	}
-
-	/** 
-	 * Internal routine to pop stack. 
-	 * sets stackDepth - 1, 
-	 * currentPage to keyPageStack[stackDepth] and 
-	 * currentIndex to indexStack[stackDepth]
-	 * @return false if stackDepth reaches 0, true otherwise
-	 * 
-	 */
-	private synchronized boolean pop() {
-		//if (stackDepth == 0)
-		if( stack.isEmpty() )
-			return (false);
-		//stackDepth--;
-		//currentPage = keyPageStack[stackDepth];
-		//currentIndex = indexStack[stackDepth];
-		//currentChild = childStack[stackDepth];
-		TraversalStackElement tse = stack.pop();
-		currentPage = tse.keyPage;
-		currentIndex = tse.index;
-		currentChild = tse.child;
-		if( DEBUG ) {
-			System.out.print("BTreeMain.Pop:");
-			printStack();
-		}
-		return (true);
-	}
-
-	private synchronized void printStack() {
-		System.out.println("Stack Depth:"+stack.size());
-		//for(int i = 0; i < stack.size(); i++) {
-		//	TraversalStackElement tse = stack.get(i);
-		//	System.out.println("index:"+i+" "+GlobalDBIO.valueOf(tse.keyPage.pageId)+" "+tse.index+" "+tse.child);
-		//}
-	}
-	/**
-	* Internal routine to clear references on stack. Just does stack.clear
-	*/
-	public synchronized void clearStack() {
-		//for (int i = 0; i < MAXSTACK; i++)
-		//	keyPageStack[i] = null;
-		//stackDepth = 0;
-		stack.clear();
-	}
-
-	
 	public synchronized ObjectDBIO getIO() {
 		return sdbio;
 	}
@@ -1250,6 +1054,17 @@ public final class BTreeMain {
 		this.root = root;
 		return root;
 	}
+	/**
+	 * Drop the pages held from the root down and read the root again from the pool. A rollback restores the
+	 * blocks the transaction changed, but not the pages already read from them, which still hold its keys,
+	 * values, children and the key count on the root. Cursors read their pages again.
+	 * @throws IOException
+	 */
+	public synchronized void reloadRoot() throws IOException {
+		setRoot(BTreeKeyPage.getPageFromPool(sdbio, 0L));
+		++structureVersion;
+		countUnversionedRoot();
+	}
 	
     // Inorder walk over the tree.
     synchronized void printBTree(BTreeKeyPage node) throws IOException {
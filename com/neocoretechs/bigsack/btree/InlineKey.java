@@ -0,0 +1,168 @@
+package com.neocoretechs.bigsack.btree;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+/**
+ * Encoding of small fixed size keys stored directly in the key field of a BTreeKeyPage slot.
+ * The key field is a byte tag followed by PAYLOADSIZE bytes. For an out of line key the tag is OPTR
+ * and the payload starts with the block and offset of the Optr to the serialized key.
+ * Any other tag gives the type of an inline key and the payload holds the key itself.
+ * Longs, Integers and the other boxed primitives, UUIDs and Strings of up to
+ * PAYLOADSIZE bytes in UTF-8 are stored this way, so reading a page of such keys needs no further block fetches.
+ * The exact class is checked, so subclasses and anything else go out of line as before.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+final class InlineKey {
+	static final int PAYLOADSIZE = 16;
+	// byte tag plus payload
+	static final int KEYFIELDSIZE = PAYLOADSIZE + 1;
+	private static final byte OPTR = 0;
+	private static final byte LONG = 1;
+	private static final byte INTEGER = 2;
+	private static final byte SHORT = 3;
+	private static final byte BYTE = 4;
+	private static final byte CHARACTER = 5;
+	private static final byte BOOLEAN = 6;
+	private static final byte DOUBLE = 7;
+	private static final byte FLOAT = 8;
+	private static final byte UUIDKEY = 9;
+	// STRING plus the length of the UTF-8 bytes, up to STRING+PAYLOADSIZE
+	private static final byte STRING = 32;
+	private static final byte[] zeroPad = new byte[PAYLOADSIZE];
+
+	private InlineKey() {}
+	/**
+	 * @param key
+	 * @return true if the key can be stored in the key field of the page
+	 */
+	static boolean fits(Object key) {
+		if( key == null )
+			return false;
+		Class<?> c = key.getClass();
+		if( c == String.class )
+			return ((String)key).length() <= PAYLOADSIZE && ((String)key).getBytes(StandardCharsets.UTF_8).length <= PAYLOADSIZE;
+		return c == Long.class || c == Integer.class || c == UUID.class || c == Short.class || c == Byte.class ||
+				c == Character.class || c == Boolean.class || c == Double.class || c == Float.class;
+	}
+	/**
+	 * @param tag The byte read at the start of the key field
+	 * @return true if the field holds an inline key rather than an Optr
+	 */
+	static boolean isInline(byte tag) {
+		return tag != OPTR;
+	}
+	/**
+	 * Write the key field for a key that fits, tag then payload padded out to PAYLOADSIZE.
+	 * @param dos
+	 * @param key
+	 * @throws IOException
+	 */
+	static void write(DataOutputStream dos, Object key) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(PAYLOADSIZE);
+		byte tag;
+		Class<?> c = key.getClass();
+		if( c == Long.class ) {
+			tag = LONG;
+			bb.putLong((Long)key);
+		} else if( c == Integer.class ) {
+			tag = INTEGER;
+			bb.putInt((Integer)key);
+		} else if( c == UUID.class ) {
+			tag = UUIDKEY;
+			bb.putLong(((UUID)key).getMostSignificantBits());
+			bb.putLong(((UUID)key).getLeastSignificantBits());
+		} else if( c == String.class ) {
+			byte[] b = ((String)key).getBytes(StandardCharsets.UTF_8);
+			tag = (byte) (STRING + b.length);
+			bb.put(b);
+		} else if( c == Short.class ) {
+			tag = SHORT;
+			bb.putShort((Short)key);
+		} else if( c == Byte.class ) {
+			tag = BYTE;
+			bb.put((Byte)key);
+		} else if( c == Character.class ) {
+			tag = CHARACTER;
+			bb.putChar((Character)key);
+		} else if( c == Boolean.class ) {
+			tag = BOOLEAN;
+			bb.put((byte) (((Boolean)key) ? 1 : 0));
+		} else if( c == Double.class ) {
+			tag = DOUBLE;
+			bb.putDouble((Double)key);
+		} else if( c == Float.class ) {
+			tag = FLOAT;
+			bb.putFloat((Float)key);
+		} else
+			throw new IOException("InlineKey.write key of "+c+" does not fit in key field");
+		dos.writeByte(tag);
+		dos.write(bb.array());
+	}
+	/**
+	 * Write the key field for an out of line key, the OPTR tag then the block and offset, padded out to PAYLOADSIZE.
+	 * @param dos
+	 * @param block
+	 * @param offset
+	 * @throws IOException
+	 */
+	static void writeOptr(DataOutputStream dos, long block, short offset) throws IOException {
+		dos.writeByte(OPTR);
+		dos.writeLong(block);
+		dos.writeShort(offset);
+		dos.write(zeroPad, 0, PAYLOADSIZE - 10);
+	}
+	/**
+	 * @param payload PAYLOADSIZE bytes following the OPTR tag
+	 * @return The block of the Optr to the serialized key
+	 */
+	static long readOptrBlock(byte[] payload) {
+		return ByteBuffer.wrap(payload).getLong();
+	}
+	/**
+	 * @param payload PAYLOADSIZE bytes following the OPTR tag
+	 * @return The offset of the Optr to the serialized key
+	 */
+	static short readOptrOffset(byte[] payload) {
+		return ByteBuffer.wrap(payload).getShort(8);
+	}
+	/**
+	 * Reconstitute the key from the tag and payload of an inline key field.
+	 * @param tag
+	 * @param payload PAYLOADSIZE bytes following the tag
+	 * @return The key
+	 * @throws IOException If the tag is not one we know
+	 */
+	@SuppressWarnings("rawtypes")
+	static Comparable read(byte tag, byte[] payload) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(payload);
+		switch(tag) {
+			case LONG:
+				return bb.getLong();
+			case INTEGER:
+				return bb.getInt();
+			case UUIDKEY:
+				return new UUID(bb.getLong(), bb.getLong());
+			case SHORT:
+				return bb.getShort();
+			case BYTE:
+				return bb.get();
+			case CHARACTER:
+				return bb.getChar();
+			case BOOLEAN:
+				return bb.get() != 0;
+			case DOUBLE:
+				return bb.getDouble();
+			case FLOAT:
+				return bb.getFloat();
+			default:
+				int len = tag - STRING;
+				if( len < 0 || len > PAYLOADSIZE )
+					throw new IOException("InlineKey.read unknown key field tag "+tag);
+				return new String(payload, 0, len, StandardCharsets.UTF_8);
+		}
+	}
+}
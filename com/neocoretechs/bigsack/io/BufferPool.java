@@ -3,8 +3,11 @@ package com.neocoretechs.bigsack.io;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.Props;
 import com.neocoretechs.bigsack.io.cluster.IOWorkerInterface;
 import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
 import com.neocoretechs.bigsack.io.pooled.BlockStream;
@@ -33,23 +36,28 @@ public class BufferPool {
 	protected final CyclicBarrier commitBarrierSynch = new CyclicBarrier(DBPhysicalConstants.DTABLESPACES);
 	protected final CyclicBarrier directWriteBarrierSynch = new CyclicBarrier(DBPhysicalConstants.DTABLESPACES);
 
-	private MappedBlockBuffer[] blockBuffer; // block number to Datablock
-	private RecoveryLogManager[] ulog;
+	private volatile MappedBlockBuffer[] blockBuffer; // block number to Datablock
+	private volatile RecoveryLogManager[] ulog;
 	private BlockStream[] blks = new BlockStream[DBPhysicalConstants.DTABLESPACES];
-	private FreeBlockAllocator alloc;
+	private volatile FreeBlockAllocator alloc;
+	private boolean sharedLog = false; // one recovery log for all the tablespaces
 	
 	public BufferPool() {
 		blockBuffer = new MappedBlockBuffer[DBPhysicalConstants.DTABLESPACES];
 		ulog = new RecoveryLogManager[DBPhysicalConstants.DTABLESPACES];
+		try {
+			sharedLog = Props.toBoolean("SharedLog");
+		} catch(IllegalArgumentException iae) {} // a log per tablespace
 	}
 	
 	public synchronized MappedBlockBuffer[] getBlockBuffer() {
 		return blockBuffer;
 	}
 	/**
-	 * Return the MappedBlockBuffer for the tablespace
+	 * Return the MappedBlockBuffer for the tablespace. Not synchronized, the free space scan looks up
+	 * resident blocks from an IO worker we may be waiting on.
 	 */
-	public synchronized MappedBlockBuffer getBlockBuffer(int tblsp) { return blockBuffer[tblsp]; }
+	public MappedBlockBuffer getBlockBuffer(int tblsp) { return blockBuffer[tblsp]; }
 	/**
 	 * Set the passed MappedBlockBuffer array as the page pool for each tablespace
 	 * @param blockBuffer
@@ -65,11 +73,12 @@ public class BufferPool {
 		return ulog;
 	}
 	/**
-	 * Get the RecoveryLogManager for a particular tablespace
+	 * Get the RecoveryLogManager for a particular tablespace. Not synchronized, the logs are set up before
+	 * the workers start, and a change applied under the commit flush, which holds the pool, looks up its log here.
 	 * @param tablespace
 	 * @return
 	 */
-	public synchronized RecoveryLogManager getUlog(int tablespace) {
+	public RecoveryLogManager getUlog(int tablespace) {
 		return ulog[tablespace];
 	}
 	/**
@@ -88,15 +97,16 @@ public class BufferPool {
 	public synchronized BlockStream getBlockStream(int tblsp) { return blks[tblsp]; }
 	
 	/**
-	 * Get the allocator of free blocks
+	 * Get the allocator of free blocks. Not synchronized, the block buffers consult it while we wait on them to commit.
 	 * @return
 	 */
-	public synchronized FreeBlockAllocator getFreeBlockAllocator() {
+	public FreeBlockAllocator getFreeBlockAllocator() {
 		return alloc;
 	}
 	
 	/**
-	 * Create the MappedBlockBuffer block pools, block pool cursor, and recovery log managers for each tablespace
+	 * Create the MappedBlockBuffer block pools, block pool cursor, and recovery log managers for each tablespace.
+	 * With SharedLog every tablespace gets the log created for tablespace 0, so tablespace 0 is created first.
 	 * @param globalIO the Global IO manager
 	 * @param ioManager The IOManagerInterface for cluster or standalone, etc
 	 * @param i The target tablespace to create the pool elements for
@@ -105,18 +115,61 @@ public class BufferPool {
 	public synchronized void createPool(ObjectDBIO globalIO, IoManagerInterface ioManager, int i) throws IOException {
 		blockBuffer[i] = new MappedBlockBuffer(ioManager, i);
 		blks[i] = new BlockStream(i, blockBuffer[i]);
-		ulog[i] = new RecoveryLogManager(globalIO,i);
-		alloc = new FreeBlockAllocator(ioManager);
+		if( !sharedLog )
+			ulog[i] = new RecoveryLogManager(globalIO,i);
+		else
+			ulog[i] = (i == 0 ? new RecoveryLogManager(globalIO, 0, true) : ulog[0]);
+		if( alloc == null )
+			alloc = new FreeBlockAllocator(ioManager);
 		// Set the BlockStream as an observer of the block change events generated by 'getnextblk' in MappedBlockbuffer
 		blockBuffer[i].addBlockChangeObserver(blks[i]);
 	}
 	/**
-	 * Perform a rollback recovery from the recovery log files
+	 * Perform a rollback recovery from the recovery log files. Synchronized on the log of the tablespace rather
+	 * than the pool, so the tablespaces recover at once while no two recoveries of the same log overlap.
 	 * @param i
 	 * @throws IOException
 	 */
-	public synchronized void recover(int i) throws IOException {
-		ulog[i].getLogToFile().recover();	
+	public void recover(int i) throws IOException {
+		// a shared log is recovered once, its records going to the tablespaces they name
+		if( ulog[i].isShared() && i > 0 )
+			return;
+		synchronized(ulog[i]) {
+			ulog[i].getLogToFile().recover();
+		}
+	}
+	/**
+	 * Perform the rollback recovery of all the tablespaces, each log recovered in a thread of its own.
+	 * @throws IOException If the recovery of any of them fails
+	 */
+	public void recover() throws IOException {
+		Future<?>[] futures = new Future<?>[DBPhysicalConstants.DTABLESPACES];
+		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
+			final int tablespace = i;
+			futures[i] = ThreadPoolManager.submit("RECOVERY", new Runnable() {
+				public void run() {
+					try {
+						recover(tablespace);
+					} catch (IOException ioe) {
+						throw new RuntimeException(ioe.toString());
+					}
+				}
+			});
+		}
+		IOException failed = null;
+		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
+			try {
+				futures[i].get();
+			} catch (ExecutionException ee) {
+				if( failed == null )
+					failed = new IOException("Recovery of tablespace "+i+" failed "+ee.getCause());
+			} catch (InterruptedException ie) {
+				if( failed == null )
+					failed = new IOException(ie);
+			}
+		}
+		if( failed != null )
+			throw failed;
 	}
 	/**
 	 * Find a block in the pool or pull a block from the freechain and bring it in from deep store.
@@ -152,11 +205,13 @@ public class BufferPool {
 	
 	/**
 	 * Roll back the transactions for the given tablespace to the last checkpoint or commit.
+	 * The free space map takes back the blocks the transaction reused and forgets those it freed.
 	 * @param i
 	 * @return
 	 * @throws IOException
 	 */
 	public synchronized boolean rollback(int i) throws IOException {
+		alloc.rollback(i);
 		if( blks[i] != null & blks[i].getBlockAccessIndex() != null ) {
 			blks[i].getBlockAccessIndex().decrementAccesses();
 			forceBufferClear();
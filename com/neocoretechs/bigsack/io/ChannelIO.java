@@ -0,0 +1,255 @@
+package com.neocoretechs.bigsack.io;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.io.*;
+/*
+* Copyright (c) 1997,2003, NeoCoreTechs
+* All rights reserved.
+* Redistribution and use in source and binary forms, with or without modification, 
+* are permitted provided that the following conditions are met:
+*
+* Redistributions of source code must retain the above copyright notice, this list of
+* conditions and the following disclaimer. 
+* Redistributions in binary form must reproduce the above copyright notice, 
+* this list of conditions and the following disclaimer in the documentation and/or
+* other materials provided with the distribution. 
+* Neither the name of NeoCoreTechs nor the names of its contributors may be 
+* used to endorse or promote products derived from this software without specific prior written permission. 
+* THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED 
+* WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A 
+* PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR 
+* ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+* TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+* HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT 
+* (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED 
+* OF THE POSSIBILITY OF SUCH DAMAGE.
+*
+*/
+/**
+* File I/O through a FileChannel. Blocks are read and written whole with the positional calls of
+* PositionalIoInterface, which leave the channel position alone and are not synchronized, so reads of different
+* blocks proceed concurrently rather than queueing behind a seek. The stateful methods of IoInterface work on the
+* channel position as FileIO does on its RandomAccessFile, and are synchronized as there.
+* Selected with L3Cache: Channel in the properties.
+* @see PositionalIoInterface
+* Copyright NeoCoreTechs 2021
+* @author Groff
+*/
+public final class ChannelIO implements PositionalIoInterface {
+	private static boolean DEBUG = false;
+	private boolean fisopen, fisnew;
+	private File WO;
+	private FileOutputStream FO;
+	private RandomAccessFile RA;
+	private FileChannel FC;
+	
+	public ChannelIO(String fname, boolean create) throws IOException {
+		Fopen(fname, create);
+	}
+	public ChannelIO() {}
+	
+	/** 
+	 * create is true for 'create if not existing' 
+	 * Open the file, performing the proper initialization on creation
+	 */
+	public synchronized boolean Fopen(String fname, boolean create) throws IOException {
+		if( DEBUG )
+			System.out.println("ChannelIO.Fopen "+fname+" "+create);
+		WO = new File(fname);
+		if (!WO.exists()) {
+			if (create) {
+				// create if not existing
+				FO = new FileOutputStream(WO);
+				FO.close();
+				RA = new RandomAccessFile(WO, "rw");
+				fisnew = true;
+			} else {
+				fisopen = false;
+				return false;
+			}
+		} else { // exists?
+			//
+			RA = new RandomAccessFile(WO, "rw");
+			fisnew = false;
+		}
+		FC = RA.getChannel();
+		fisopen = true;
+		return true;
+	}
+	/**
+	 * Open the file encapsulated by constructor
+	 * mode is rw
+	 */
+	public synchronized void Fopen() throws IOException {
+		RA = new RandomAccessFile(WO, "rw");
+		FC = RA.getChannel();
+		fisnew = false;
+		fisopen = true;
+	}
+	
+	public synchronized void Fclose() throws IOException {
+		if (fisopen) {
+			fisopen = false;
+			FC.force(true);
+			RA.close();
+		}
+	}
+	
+	public synchronized long Ftell() throws IOException {
+		return FC.position();
+	}
+	
+	public synchronized void Fseek(long offset) throws IOException {
+		FC.position(offset);
+	}
+	
+	public long Fsize() throws IOException {
+		return FC.size();
+	}
+	
+	public synchronized void Fset_length(long newlen) throws IOException {
+		RA.setLength(newlen);
+	}
+	
+	public void Fforce() throws IOException {
+		FC.force(true);
+	}
+	
+	public int Fread(ByteBuffer buf, long offset) throws IOException {
+		int total = 0;
+		while( buf.hasRemaining() ) {
+			int n = FC.read(buf, offset + total);
+			if( n < 0 )
+				break;
+			total += n;
+		}
+		if( DEBUG )
+			System.out.println("ChannelIO.Fread @"+offset+" bytes:"+total);
+		return total;
+	}
+	
+	public void Fwrite(ByteBuffer buf, long offset) throws IOException {
+		if( DEBUG )
+			System.out.println("ChannelIO.Fwrite @"+offset+" bytes:"+buf.remaining());
+		long pos = offset;
+		while( buf.hasRemaining() )
+			pos += FC.write(buf, pos);
+	}
+	// writing..
+	public synchronized void Fwrite(byte[] obuf) throws IOException {
+		write(ByteBuffer.wrap(obuf));
+	}
+	
+	public synchronized void Fwrite(byte[] obuf, int osiz) throws IOException {
+		write(ByteBuffer.wrap(obuf, 0, osiz));
+	}
+	
+	public synchronized void Fwrite_int(int obuf) throws IOException {
+		ByteBuffer tbb = ByteBuffer.allocate(4);
+		tbb.putInt(obuf).flip();
+		write(tbb);
+	}
+	
+	public synchronized void Fwrite_long(long obuf) throws IOException {
+		ByteBuffer tbb = ByteBuffer.allocate(8);
+		tbb.putLong(obuf).flip();
+		write(tbb);
+	}
+	
+	public synchronized void Fwrite_short(short obuf) throws IOException {
+		ByteBuffer tbb = ByteBuffer.allocate(2);
+		tbb.putShort(obuf).flip();
+		write(tbb);
+	}
+	
+	public synchronized void Fwrite_byte(byte obuf) throws IOException {
+		ByteBuffer tbb = ByteBuffer.allocate(1);
+		tbb.put(obuf).flip();
+		write(tbb);
+	}
+	
+	private void write(ByteBuffer buf) throws IOException {
+		while( buf.hasRemaining() )
+			FC.write(buf);
+	}
+	//
+	// reading...
+	//
+	public synchronized int Fread(byte[] b, int osiz) throws IOException {
+		return read(ByteBuffer.wrap(b, 0, osiz));
+	}
+	
+	public synchronized int Fread(byte[] b) throws IOException {
+		return read(ByteBuffer.wrap(b));
+	}
+	
+	public synchronized int Fread_int() throws IOException {
+		return readFully(4).getInt();
+	}
+	
+	public synchronized long Fread_long() throws IOException {
+		return readFully(8).getLong();
+	}
+	
+	public synchronized short Fread_short() throws IOException {
+		return readFully(2).getShort();
+	}
+	
+	public synchronized byte Fread_byte() throws IOException {
+		return readFully(1).get();
+	}
+	/**
+	 * Read at the channel position until the buffer is full or end of file.
+	 * @return The bytes read, or -1 if at end of file to begin with, as RandomAccessFile.read
+	 */
+	private int read(ByteBuffer buf) throws IOException {
+		int total = 0;
+		while( buf.hasRemaining() ) {
+			int n = FC.read(buf);
+			if( n < 0 )
+				return (total == 0 ? -1 : total);
+			total += n;
+		}
+		return total;
+	}
+	
+	private ByteBuffer readFully(int len) throws IOException {
+		ByteBuffer tbb = ByteBuffer.allocate(len);
+		if( read(tbb) != len )
+			throw new EOFException("ChannelIO read past end of file "+WO);
+		tbb.flip();
+		return tbb;
+	}
+	
+	public synchronized String FTread() throws IOException {
+		return RA.readLine();
+	}
+	
+	public synchronized void FTwrite(String ins) throws IOException {
+		RA.writeBytes(ins);
+	}
+	
+	public synchronized void Fdelete() {
+		WO.delete();
+	}
+	
+	public synchronized String Fname() {
+		return WO.getName();
+	}
+	
+	public synchronized boolean isopen() {
+		return fisopen;
+	}
+	
+	public synchronized boolean iswriteable() {
+		return true;
+	}
+	
+	public synchronized boolean isnew() {
+		return fisnew;
+	}
+	
+	public synchronized Channel getChannel() {
+		return FC;
+	}
+}
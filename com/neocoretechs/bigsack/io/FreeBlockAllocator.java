@@ -1,22 +1,67 @@
 package com.neocoretechs.bigsack.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
+import com.neocoretechs.bigsack.io.pooled.Datablock;
 import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
 
 /**
- * Free block allocator for all tablespaces of a particular database.
+ * Free block allocator for all tablespaces of a particular database.<p>
+ * Besides the next free block at the end of each tablespace we keep a free space map of the blocks below it.
+ * One set holds the blocks that were emptied by deletes and can be handed out again before the tablespace
+ * is extended, and each data block carries a room class, the eighths of its data area still free, with a set
+ * per class so a block with room for a new entry is found without reading any blocks.<p>
+ * The map is only a hint. The block headers are what the log protects, a freed block being one with no
+ * links, nothing in use and no key page flag, so whoever takes a block from the map checks that header before using it.
+ * A block freed by a transaction joins the map when that transaction commits, and the blocks taken from the map
+ * by a transaction go back to it if it rolls back, so a rolled back delete never frees a block its before image still uses.
+ * The next free block and the map are kept in a small header file alongside each tablespace. A clean close leaves
+ * both there, so the next open takes them as they are. After any other close the next free block is found by a
+ * reverse scan of the free blocks at the end of the file, and the map is rebuilt by a scan of the block headers in the
+ * background, so opening a tablespace never depends on its size.
  * @author jg
  *
  */
 public class FreeBlockAllocator {
+	private static boolean DEBUG = false;
+	public static final int ROOMCLASSES = 8;
+	private static final int MAPMAGIC = 0x46534D32; // FSM2
 	long[] nextFree = new long[DBPhysicalConstants.DTABLESPACES];
+	private BitSet[] freeBlocks = new BitSet[DBPhysicalConstants.DTABLESPACES];
+	private boolean[] mapComplete = new boolean[DBPhysicalConstants.DTABLESPACES];
+	private byte[][] roomClass = new byte[DBPhysicalConstants.DTABLESPACES][];
+	private BitSet[][] roomBlocks = new BitSet[DBPhysicalConstants.DTABLESPACES][ROOMCLASSES];
+	private BitSet[] evacuating = new BitSet[DBPhysicalConstants.DTABLESPACES];
+	private long[] unloggedFrom = new long[DBPhysicalConstants.DTABLESPACES]; // next free block when a bulk load began, -1 if none
+	@SuppressWarnings("unchecked")
+	private ArrayList<Long>[] pendingFree = (ArrayList<Long>[]) new ArrayList<?>[DBPhysicalConstants.DTABLESPACES];
+	@SuppressWarnings("unchecked")
+	private ArrayList<Long>[] takenFree = (ArrayList<Long>[]) new ArrayList<?>[DBPhysicalConstants.DTABLESPACES];
 	int roundRobinTablespace = -1;
 	IoManagerInterface ioManager;
 	
 	public FreeBlockAllocator(IoManagerInterface ioManager) {
 		this.ioManager = ioManager;
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
+			pendingFree[i] = new ArrayList<Long>();
+			takenFree[i] = new ArrayList<Long>();
+			evacuating[i] = new BitSet();
+			unloggedFrom[i] = -1L;
+			clearMap(i);
+		}
 	}
 	
 	public synchronized int nextTablespace() throws IOException {
@@ -90,4 +135,355 @@ public class FreeBlockAllocator {
 	}
 	
 	
+	/**
+	 * Take a reclaimed block from the free space map of the tablespace. The caller must check the block header
+	 * still shows it free. The block goes back to the map if the transaction rolls back.
+	 * @param tblsp The tablespace
+	 * @return The Vblock, or -1 if the map has none
+	 */
+	public synchronized long takeFree(int tblsp) {
+		int idx = freeBlocks[tblsp].nextSetBit(0);
+		if( idx == -1 )
+			return -1L;
+		freeBlocks[tblsp].clear(idx);
+		long vblock = toVblock(tblsp, idx);
+		takenFree[tblsp].add(vblock);
+		if( DEBUG )
+			System.out.println("FreeBlockAllocator.takeFree "+GlobalDBIO.valueOf(vblock));
+		return vblock;
+	}
+	/**
+	 * A block was emptied by the current transaction. It joins the map when the transaction commits.
+	 * @param vblock
+	 */
+	public synchronized void freeOnCommit(long vblock) {
+		int tblsp = GlobalDBIO.getTablespace(vblock);
+		setRoomClass(tblsp, toIndex(vblock), 0);
+		if( !pendingFree[tblsp].contains(vblock) )
+			pendingFree[tblsp].add(vblock);
+	}
+	/**
+	 * @param tblsp
+	 * @return The blocks freed by the current transaction, which the caller confirms and passes back to commit
+	 */
+	public synchronized Long[] getPendingFree(int tblsp) {
+		return pendingFree[tblsp].toArray(new Long[pendingFree[tblsp].size()]);
+	}
+	/**
+	 * The transaction committed, the blocks it freed and still free are reclaimed.
+	 * @param tblsp
+	 * @param freed The pending blocks the caller found still free
+	 */
+	public synchronized void commit(int tblsp, Long[] freed) {
+		for(Long vblock : freed)
+			freeBlocks[tblsp].set(toIndex(vblock));
+		pendingFree[tblsp].clear();
+		takenFree[tblsp].clear();
+	}
+	/**
+	 * The transaction rolled back, the blocks it freed are in use again and those it took are free again.
+	 * @param tblsp
+	 */
+	public synchronized void rollback(int tblsp) {
+		// the blocks a bulk load added at the end hold nothing anyone refers to once the load is undone
+		if( unloggedFrom[tblsp] != -1L )
+			nextFree[tblsp] = unloggedFrom[tblsp];
+		pendingFree[tblsp].clear();
+		for(Long vblock : takenFree[tblsp])
+			freeBlocks[tblsp].set(toIndex(vblock));
+		takenFree[tblsp].clear();
+	}
+	/**
+	 * Record the space left in a data block.
+	 * @param vblock
+	 * @param freeBytes The bytes free in the data area
+	 */
+	public synchronized void setRoom(long vblock, int freeBytes) {
+		if( freeBytes < 0 )
+			freeBytes = 0;
+		setRoomClass(GlobalDBIO.getTablespace(vblock), toIndex(vblock), freeBytes * ROOMCLASSES / DBPhysicalConstants.DATASIZE);
+	}
+	/**
+	 * @param vblock
+	 * @param size
+	 * @return true if the block was last known to have room for size bytes
+	 */
+	public synchronized boolean hasRoom(long vblock, int size) {
+		int tblsp = GlobalDBIO.getTablespace(vblock);
+		int idx = toIndex(vblock);
+		int need = neededClass(size);
+		return need <= ROOMCLASSES && idx < roomClass[tblsp].length && roomClass[tblsp][idx] >= need;
+	}
+	/**
+	 * Find a data block in the tablespace last known to have room for size bytes, the fullest that qualifies first.
+	 * @param tblsp
+	 * @param size
+	 * @return The Vblock, or -1 if none
+	 */
+	public synchronized long findRoom(int tblsp, int size) {
+		for(int c = neededClass(size); c <= ROOMCLASSES; c++) {
+			int idx = roomBlocks[tblsp][c-1].nextSetBit(0);
+			if( idx != -1 )
+				return toVblock(tblsp, idx);
+		}
+		return -1L;
+	}
+	/**
+	 * @param tblsp
+	 * @return The number of reclaimed blocks waiting to be reused
+	 */
+	public synchronized int getFreeCount(int tblsp) {
+		return freeBlocks[tblsp].cardinality();
+	}
+	/**
+	 * Add a block found by the scan of the tablespace headers. As the scan may run while the tablespace is in use,
+	 * a block taken from the map by the current transaction, or whose copy in the pool is no longer free, is not
+	 * taken as free on the strength of what was read from the file.
+	 * @param tblsp
+	 * @param block The block, relative to the tablespace
+	 * @param d The block header
+	 */
+	public synchronized void scanned(int tblsp, long block, Datablock d) {
+		int idx = (int) (block / DBPhysicalConstants.DBLOCKSIZ);
+		long vblock = toVblock(tblsp, idx);
+		if( isFree(d) ) {
+			BlockAccessIndex bai = ioManager.getBlockBuffer(tblsp).get(vblock);
+			if( (tblsp != 0 || idx != 0) && !takenFree[tblsp].contains(vblock) && (bai == null || isFree(bai.getBlk())) )
+				freeBlocks[tblsp].set(idx);
+		} else if( !d.isKeypage() )
+			setRoomClass(tblsp, idx, (DBPhysicalConstants.DATASIZE - d.getBytesused()) * ROOMCLASSES / DBPhysicalConstants.DATASIZE);
+	}
+	/**
+	 * Mark a sparse data block whose entries the compactor is about to move elsewhere. Until the evacuation ends
+	 * the block shows no room, so no new entry, and none of those moved, is placed in it.
+	 * @param vblock
+	 */
+	public synchronized void evacuate(long vblock) {
+		int tblsp = GlobalDBIO.getTablespace(vblock);
+		int idx = toIndex(vblock);
+		setRoomClass(tblsp, idx, 0);
+		evacuating[tblsp].set(idx);
+	}
+	/**
+	 * @param vblock
+	 * @return true if the entries in the block are being moved out of it
+	 */
+	public synchronized boolean isEvacuating(long vblock) {
+		return evacuating[GlobalDBIO.getTablespace(vblock)].get(toIndex(vblock));
+	}
+	/**
+	 * @return The number of blocks being evacuated in all tablespaces
+	 */
+	public synchronized int getEvacuatingCount() {
+		int count = 0;
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+			count += evacuating[i].cardinality();
+		return count;
+	}
+	/**
+	 * The compactor is done, blocks it could not empty take new entries again as their room is next recorded.
+	 */
+	public synchronized void endEvacuation() {
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+			evacuating[i].clear();
+	}
+	/**
+	 * Start a bulk load. A block handed out from beyond the next free block of its tablespace as it stands now
+	 * is new to the load, nothing refers to what it held before, so it is written without a before image in the log.
+	 * Undoing the load only has to undo the pages that refer to such blocks, which are logged as usual.
+	 */
+	public synchronized void beginUnlogged() {
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+			unloggedFrom[i] = nextFree[i];
+	}
+	/**
+	 * @param vblock
+	 * @return true if a bulk load is under way and the block was handed out to it from the end of the tablespace
+	 */
+	public synchronized boolean isUnlogged(long vblock) {
+		int tblsp = GlobalDBIO.getTablespace(vblock);
+		return unloggedFrom[tblsp] != -1L && GlobalDBIO.getBlock(vblock) > GlobalDBIO.getBlock(unloggedFrom[tblsp]);
+	}
+	/**
+	 * @param tblsp
+	 * @return true if a bulk load is under way, and blocks of the tablespace may have been written around the log
+	 */
+	public synchronized boolean isUnlogged(int tblsp) {
+		return unloggedFrom[tblsp] != -1L;
+	}
+	/**
+	 * The bulk load is committed or rolled back, every block is logged again.
+	 */
+	public synchronized void endUnlogged() {
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+			unloggedFrom[i] = -1L;
+	}
+	/**
+	 * Give back the reclaimed blocks at the end of the tablespace by moving the next free block down over them,
+	 * so the tablespace is extended again from there rather than reusing them out of the map.
+	 * The root at block 0 of tablespace 0, and block 0 of the others, are never trimmed.
+	 * @param tblsp
+	 * @return The number of blocks trimmed
+	 */
+	public synchronized int trimTail(int tblsp) {
+		int trimmed = 0;
+		while( nextFree[tblsp] != -1L ) {
+			int idx = toIndex(nextFree[tblsp]);
+			if( idx == 0 || !freeBlocks[tblsp].get(idx) )
+				break;
+			freeBlocks[tblsp].clear(idx);
+			setRoomClass(tblsp, idx, 0);
+			nextFree[tblsp] = toVblock(tblsp, idx - 1);
+			++trimmed;
+		}
+		if( DEBUG && trimmed > 0 )
+			System.out.println("FreeBlockAllocator.trimTail tablespace "+tblsp+" trimmed "+trimmed+" to "+GlobalDBIO.valueOf(nextFree[tblsp]));
+		return trimmed;
+	}
+	/**
+	 * @param d
+	 * @return true if the header is that of a free block, no links, nothing in use, not a key page
+	 */
+	public static boolean isFree(Datablock d) {
+		return d.getPrevblk() == -1L && d.getNextblk() == -1L && d.getBytesinuse() == 0 && !d.isKeypage();
+	}
+	/**
+	 * Write the header of the tablespace, the next free block and a summary of the free space, the count of
+	 * reclaimed blocks and of data blocks in each room class. A clean header, written when the tablespace is closed,
+	 * is followed by the map itself and its next free block is exact. Any other header only records that the
+	 * tablespace is open, and the next open finds its next free block by a reverse scan. The write is forced,
+	 * so once the tablespace is in use no crash can leave a clean header behind.
+	 * Blocks freed by an uncommitted transaction are not written.
+	 * @param fileName
+	 * @param tblsp
+	 * @param clean true if the tablespace is being closed
+	 * @throws IOException
+	 */
+	public synchronized void save(String fileName, int tblsp, boolean clean) throws IOException {
+		BitSet free = (BitSet) freeBlocks[tblsp].clone();
+		for(Long vblock : takenFree[tblsp])
+			free.set(toIndex(vblock));
+		clean &= mapComplete[tblsp];
+		FileOutputStream fos = new FileOutputStream(fileName);
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+		try {
+			dos.writeInt(MAPMAGIC);
+			dos.writeBoolean(clean);
+			dos.writeLong(nextFree[tblsp]);
+			dos.writeInt(free.cardinality());
+			for(int c = 0; c < ROOMCLASSES; c++)
+				dos.writeInt(roomBlocks[tblsp][c].cardinality());
+			if( clean ) {
+				long[] bits = free.toLongArray();
+				dos.writeInt(bits.length);
+				for(long l : bits)
+					dos.writeLong(l);
+				dos.writeInt(roomClass[tblsp].length);
+				dos.write(roomClass[tblsp]);
+			}
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			dos.close();
+		}
+	}
+	/**
+	 * Read the header of the tablespace written by save. If it is clean the next free block and the map are restored
+	 * from it and the map is complete. Otherwise the map is left empty and incomplete and the caller sets the next free block.
+	 * The caller should write an open header straight after, so a crash from then on does not find this one clean.
+	 * @param fileName
+	 * @param tblsp
+	 * @return true if a clean header was read, false if there was none or it was not clean
+	 * @throws IOException
+	 */
+	public synchronized boolean load(String fileName, int tblsp) throws IOException {
+		clearMap(tblsp);
+		mapComplete[tblsp] = false;
+		File f = new File(fileName);
+		if( !f.exists() )
+			return false;
+		boolean loaded = false;
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if( dis.readInt() == MAPMAGIC && dis.readBoolean() ) {
+				long next = dis.readLong();
+				dis.readInt(); // summary
+				for(int c = 0; c < ROOMCLASSES; c++)
+					dis.readInt();
+				long[] bits = new long[dis.readInt()];
+				for(int i = 0; i < bits.length; i++)
+					bits[i] = dis.readLong();
+				byte[] classes = new byte[dis.readInt()];
+				dis.readFully(classes);
+				nextFree[tblsp] = next;
+				freeBlocks[tblsp] = BitSet.valueOf(bits);
+				for(int i = 0; i < classes.length; i++)
+					setRoomClass(tblsp, i, classes[i]);
+				mapComplete[tblsp] = true;
+				loaded = true;
+			}
+		} catch(EOFException eof) {
+			clearMap(tblsp);
+		} finally {
+			dis.close();
+		}
+		if( DEBUG )
+			System.out.println("FreeBlockAllocator.load tablespace "+tblsp+" from "+fileName+" clean:"+loaded);
+		return loaded;
+	}
+	/**
+	 * @param tblsp
+	 * @param complete true once the map accounts for every block below the next free block
+	 */
+	public synchronized void setMapComplete(int tblsp, boolean complete) {
+		mapComplete[tblsp] = complete;
+	}
+
+	public synchronized boolean isMapComplete(int tblsp) {
+		return mapComplete[tblsp];
+	}
+	/**
+	 * Empty the map of the tablespace, as for a new database.
+	 * @param tblsp
+	 */
+	public synchronized void clearMap(int tblsp) {
+		freeBlocks[tblsp] = new BitSet();
+		roomClass[tblsp] = new byte[0];
+		for(int c = 0; c < ROOMCLASSES; c++)
+			roomBlocks[tblsp][c] = new BitSet();
+	}
+
+	private void setRoomClass(int tblsp, int idx, int c) {
+		if( idx >= roomClass[tblsp].length ) {
+			if( c == 0 )
+				return;
+			roomClass[tblsp] = Arrays.copyOf(roomClass[tblsp], Math.max(idx + 1, roomClass[tblsp].length * 2));
+		}
+		if( evacuating[tblsp].get(idx) )
+			c = 0;
+		int old = roomClass[tblsp][idx];
+		if( old == c )
+			return;
+		if( old > 0 )
+			roomBlocks[tblsp][old-1].clear(idx);
+		if( c > 0 )
+			roomBlocks[tblsp][c-1].set(idx);
+		roomClass[tblsp][idx] = (byte) c;
+	}
+	/**
+	 * @param size
+	 * @return The least room class that guarantees size bytes, at least 1
+	 */
+	private static int neededClass(int size) {
+		int need = (size * ROOMCLASSES + DBPhysicalConstants.DATASIZE - 1) / DBPhysicalConstants.DATASIZE;
+		return need < 1 ? 1 : need;
+	}
+
+	private static int toIndex(long vblock) {
+		return (int) (GlobalDBIO.getBlock(vblock) / DBPhysicalConstants.DBLOCKSIZ);
+	}
+
+	private static long toVblock(int tblsp, int idx) {
+		return GlobalDBIO.makeVblock(tblsp, (long) idx * DBPhysicalConstants.DBLOCKSIZ);
+	}
 }
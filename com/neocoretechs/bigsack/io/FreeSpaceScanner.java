@@ -0,0 +1,80 @@
+package com.neocoretechs.bigsack.io;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+import com.neocoretechs.bigsack.io.request.GetFreeSpaceRequest;
+/**
+ * Rebuilds the free space maps of the tablespaces opened without a clean header, in the background.
+ * Each tablespace is scanned up to the next free block it was opened with by a series of GetFreeSpaceRequests
+ * of SCANBLOCKS blocks, queued one at a time to its IO worker, so other requests are not held up behind the whole scan.
+ * Until a map is complete the tablespace simply extends rather than reusing the blocks not yet found.
+ * Copyright (C) NeoCoreTechs 2021
+ * @author jg
+ *
+ */
+public final class FreeSpaceScanner implements Runnable {
+	private static boolean DEBUG = false;
+	private static final int SCANBLOCKS = 4096; // blocks read by each request
+	private IoManagerInterface ioManager;
+	private FreeBlockAllocator alloc;
+	private boolean[] rebuild;
+	private volatile boolean shouldRun = true;
+
+	/**
+	 * @param ioManager
+	 * @param rebuild true for each tablespace whose map is to be rebuilt
+	 */
+	public FreeSpaceScanner(IoManagerInterface ioManager, boolean[] rebuild) {
+		this.ioManager = ioManager;
+		this.alloc = ioManager.getFreeBlockAllocator();
+		this.rebuild = rebuild;
+	}
+
+	@Override
+	public void run() {
+		long stime = System.currentTimeMillis();
+		try {
+			for(int i = 0; i < DBPhysicalConstants.DTABLESPACES && shouldRun; i++) {
+				if( !rebuild[i] )
+					continue;
+				long next = alloc.getNextFree(i);
+				long end = (next == -1L ? -1L : GlobalDBIO.getBlock(next));
+				for(long blk = 0L; blk <= end; blk += (long)SCANBLOCKS * DBPhysicalConstants.DBLOCKSIZ) {
+					if( !scan(i, blk, Math.min(end, blk + (long)(SCANBLOCKS-1) * DBPhysicalConstants.DBLOCKSIZ)) )
+						return;
+				}
+				alloc.setMapComplete(i, true);
+				if( DEBUG )
+					System.out.println("FreeSpaceScanner tablespace "+i+" free blocks "+alloc.getFreeCount(i)+" in "+(System.currentTimeMillis()-stime)+" ms.");
+			}
+		} catch (IOException e) {
+			System.out.println("FreeSpaceScanner failed, free space map incomplete:"+e);
+		}
+	}
+	/**
+	 * Queue the scan of one range and wait for it.
+	 * @return false if we have been stopped
+	 * @throws IOException
+	 */
+	private synchronized boolean scan(int tblsp, long startBlock, long endBlock) throws IOException {
+		if( !shouldRun )
+			return false;
+		CountDownLatch barrierCount = new CountDownLatch(1);
+		ioManager.getIOWorker(tblsp).queueRequest(new GetFreeSpaceRequest(barrierCount, alloc, startBlock, endBlock));
+		try {
+			barrierCount.await();
+		} catch (InterruptedException e) {
+			return false;
+		}
+		return true;
+	}
+	/**
+	 * Stop scanning, waiting for the range being scanned, so no request of ours is outstanding when we return.
+	 */
+	public synchronized void stop() {
+		shouldRun = false;
+	}
+}
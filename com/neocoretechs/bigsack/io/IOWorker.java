@@ -59,6 +59,9 @@ public class IOWorker implements Runnable, IoInterface, IOWorkerInterface {
 			case 1 :
 				ioUnit = new FileIO();
 				break;
+			case 2 :
+				ioUnit = new ChannelIO();
+				break;
 			default:
 				throw new IOException("Unknown level 3 cache type, repair configuration file");
 		}
@@ -87,6 +90,9 @@ public class IOWorker implements Runnable, IoInterface, IOWorkerInterface {
 			case 1 :
 				ioUnit = new FileIO();
 				break;
+			case 2 :
+				ioUnit = new ChannelIO();
+				break;
 			default:
 				throw new IOException("Unknown level 3 cache type, repair configuration file");
 		}
@@ -123,6 +129,10 @@ public class IOWorker implements Runnable, IoInterface, IOWorkerInterface {
 	}
 	
 	public synchronized int getRequestQueueLength() { return requestQueue.size(); }
+	/**
+	 * @return The raw store, for callers able to use a PositionalIoInterface without the queue or our monitor
+	 */
+	public IoInterface getIoUnit() { return ioUnit; }
 	
 	@Override
 	public void run() {
@@ -148,6 +148,23 @@ public interface IoManagerInterface {
 	public ObjectDBIO getIO();
 
 	public Optr getNewInsertPosition(Optr[] locs, int index, int nkeys) throws IOException;
+	/**
+	 * Get the new position for an entry of the given size, preferring a block the free space map
+	 * shows to have room for it.
+	 * @param locs The positions of the other entries of the page
+	 * @param index The index of the entry being placed
+	 * @param nkeys The number of entries in use
+	 * @param size The serialized size of the entry
+	 * @return The Optr block plus offset in the block pointing to the new node position
+	 * @throws IOException If we cannot get block for new item
+	 */
+	public Optr getNewInsertPosition(Optr[] locs, int index, int nkeys, int size) throws IOException;
+	/**
+	 * Write the clean header of each tablespace, its next free block and free space map, so the next open
+	 * need not scan the tablespaces for them. Called as the tablespaces are closed.
+	 * @throws IOException
+	 */
+	public void saveFreeSpace() throws IOException;
 	
 	public MappedBlockBuffer getBlockBuffer(int tablespace);
 
@@ -2,6 +2,8 @@ package com.neocoretechs.bigsack.io;
 import java.io.*;
 import java.nio.*;
 import java.nio.channels.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 /*
 * Copyright (c) 2003, NeoCoreTechs
 * All rights reserved.
@@ -27,136 +29,160 @@ import java.nio.channels.*;
 */
 /**
 * Memory mapped file I/O.
-* We can only map 2 gig at a time due to mmap, so we keep track of ranges
-* currently mapped and remap when necessary.
+* A single mapping is limited to 2 gig, so the file is mapped as an array of fixed size segments of SEGMENTSIZE
+* bytes, segment n covering the offsets from n*SEGMENTSIZE, and any offset finds its segment with a shift.
+* Segments stay mapped until we are closed, so random access across a large tablespace never remaps.
+* When the file is extended the new segments are added, and the last segment, which is mapped only as far as
+* the file extends, is mapped again at its new length. The mapping it replaces is unmapped explicitly rather than
+* waiting on the collector, as are all segments on close or truncate.
 * For pool, there are one of these per tablespace and pointers. Use the
 * first 3 bits for tablespace so our theoretical max per tablespace is
 * 2,305,843,009,213,693,952 bytes * 8 tablespaces.
-* A MappedByteBuffer is the underlying core object, and thread synchronization is on that.
+* Thread synchronization is on this object.
 * @see IoInterface
 * @author Groff
 */
 final class LinkedMappedByteBuffer {
 	private static boolean DEBUG = false;
+	// 1 gig segments, a multiple of any block size
+	static final int SEGMENTSHIFT = 30;
+	static final long SEGMENTSIZE = 1L << SEGMENTSHIFT;
+	private static Method invokeCleaner = null;
+	private static Object unsafe = null;
+	static {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch(Exception e) {
+			// not available, unmapped segments are left to the collector
+			if( DEBUG )
+				System.out.println("LinkedMappedByteBuffer explicit unmap unavailable "+e);
+		}
+	}
 	private FileChannel FC;
-	private MappedByteBuffer bb;
-	private static int rangeSize = Integer.MAX_VALUE;
-	private long rangeMin = 0L;
-	private long rangeMax = (long) rangeSize;
+	private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	private long mappedSize = 0L; // bytes mapped, the end of the last segment
+	private long position = 0L;
 	/**
 	* @param tFC The FileChannel to map
 	* @param tiSize The initial size to map (can be > than file size to extend)
-	* and must be less than Integer.MAX_SIZE
 	*/
 	LinkedMappedByteBuffer(FileChannel tFC, long tiSize)
 		throws IOException {
-		FC = tFC;
-		setRange(0L, tiSize);
+		this(tFC, tiSize, 0L);
 	}
 	/**
 	* @param tFC The FileChannel to map
 	* @param tiSize The initial size to map (can be > than file size to extend)
-	* and must be less than Integer.MAX_SIZE
 	* @param rPos The position to set to
 	*/
 	LinkedMappedByteBuffer(FileChannel tFC, long tiSize, long rPos) throws IOException {
 		FC = tFC;
-		setRange(rPos, tiSize);
+		mapTo(tiSize);
+		position = rPos;
 	}
 	
-	MappedByteBuffer force() {
-		synchronized(bb) {
-			return bb.force();
-		}
+	synchronized void force() {
+		for(MappedByteBuffer bb : segments)
+			bb.force();
 	}
 	
-	boolean isLoaded() {
-		synchronized(bb) {
-			return bb.isLoaded();
-		}
+	synchronized boolean isLoaded() {
+		for(MappedByteBuffer bb : segments)
+			if( !bb.isLoaded() )
+				return false;
+		return true;
 	}
 	
-	MappedByteBuffer load() {
-		synchronized(bb) {
-			return bb.load();
-		}
+	synchronized void load() {
+		for(MappedByteBuffer bb : segments)
+			bb.load();
 	}
 	
-	long position() throws IOException {
-		synchronized(bb) {
-			return rangeMin + bb.position();
-		}
+	synchronized long position() throws IOException {
+		return position;
 	}
 	
-	void position(long offset) throws IOException {
-		checkRange(offset);
+	synchronized void position(long offset) throws IOException {
+		position = offset;
 	}
 	
-	long capacity() throws IOException {
-		synchronized(bb) {
-			return FC.size();
+	synchronized long capacity() throws IOException {
+		return FC.size();
+	}
+	/**
+	* Make sure the bytes up to end are mapped. If the file has been extended past what we have mapped, through the
+	* FileChannel, we add segments to cover it. Mapping beyond the end of the file extends the file, so when writing
+	* we map to the end of the write, and when reading we only map as far as the file goes.
+	* @param end The offset one past the last byte we are about to touch
+	* @param extend true to extend the file to end if it is shorter
+	* @exception IOException if the mapping fails, or if reading past the end of the file
+	*/
+	private void checkRange(long end, boolean extend) throws IOException {
+		if( end <= mappedSize )
+			return;
+		long fSize = FC.size();
+		if( end > fSize ) {
+			if( !extend )
+				throw new EOFException("LinkedMappedByteBuffer read to "+end+" past end of file "+fSize);
+			fSize = end;
 		}
+		mapTo(fSize);
 	}
 	/**
-	* Compute the range we are determined to map<br>
-	* It will only ever be maxxed at FileChannel size, so
-	* you must extend it via external mechanisim using Filechannel, it
-	* is not automatically extended!<br>
-	* Only chunks up to rangeSize are mapped
-	* @param rangeTarg The target that our range must contain
-	* @exception IOException if filechannel position or size ops fail
+	* Map the file up to newSize, adding segments and mapping the partial last segment again at its new length.
+	* Segments already fully mapped are untouched.
+	* @param newSize The new mapped size
+	* @exception IOException if FileChannel.map fails
 	*/
-	private void checkRange(long rangeTarg) throws IOException {
-		synchronized(bb) {
-			if (rangeTarg >= rangeMin && rangeTarg <= rangeMax) {
-				// within range but exceeding capacity of buffer
-				// we must have extended the file so remap if necessary
-				int rPos = (int) (rangeTarg - rangeMin);
-				if (rPos < bb.capacity()) {
-					if( DEBUG ) {
-						System.out.println("LinkedMappedByteBuffer.checkRange 1 range:"+rangeTarg+" min:"+rangeMin+" max:"+rangeMax+" try pos:"+rPos+" max:"+bb.capacity());
-					}
-					bb.position(rPos);
-					return;
-				}
-			}
-			long r1 = rangeTarg / rangeSize;
-			rangeMin = r1 * rangeSize;
-			rangeMax = (rangeMin + rangeSize) - 1L;
-			// remap new range
-			bb.force();
-			bb = null;
-			System.gc();
-			long iSize = FC.size();
-			if (iSize > rangeSize)
-				iSize = rangeSize;
-			bb = FC.map(FileChannel.MapMode.READ_WRITE, rangeMin, iSize);
-			if( DEBUG ) {
-				System.out.println("LinkedMappedByteBuffer.checkRange 2 range:"+rangeTarg+" min:"+rangeMin+" max:"+rangeMax+" try pos:"+(rangeTarg-rangeMin)+" max:"+bb.capacity());
-			}
-			bb.position((int) (rangeTarg - rangeMin));
+	private void mapTo(long newSize) throws IOException {
+		if( newSize <= mappedSize )
+			return;
+		int numSegs = (int) ((newSize + SEGMENTSIZE - 1) >>> SEGMENTSHIFT);
+		MappedByteBuffer[] newSegs = new MappedByteBuffer[numSegs];
+		System.arraycopy(segments, 0, newSegs, 0, segments.length);
+		// the last old segment may be partial, if so it is replaced
+		int first = segments.length;
+		if( first > 0 && segments[first-1].capacity() < SEGMENTSIZE )
+			--first;
+		for(int i = first; i < numSegs; i++) {
+			long segStart = (long)i << SEGMENTSHIFT;
+			long segLen = Math.min(SEGMENTSIZE, newSize - segStart);
+			newSegs[i] = FC.map(FileChannel.MapMode.READ_WRITE, segStart, segLen);
+			if( DEBUG )
+				System.out.println("LinkedMappedByteBuffer.mapTo segment "+i+" at "+segStart+" length "+segLen);
 		}
+		if( first < segments.length )
+			unmap(segments[first]);
+		segments = newSegs;
+		mappedSize = newSize;
 	}
 	/**
-	* Set the range we are determined to map<br>
-	* This method, called from c'tor can extend the file
-	* Only chunks up to rangesize are mapped and this method is used
-	* to set initial position other than default on startup
-	* @param rangeTarg The target that our range must contain
-	* @param iSize The desired size to map
-	* @exception IOException if FileChannel.map fails, or position fails
+	* Unmap all segments. We are unusable after this, and the caller must hold no other references to the buffers.
 	*/
-	private void setRange(long rangeTarg, long iSize) throws IOException {
-
-		long r1 = rangeTarg / rangeSize;
-		rangeMin = r1 * rangeSize;
-		rangeMax = (rangeMin + rangeSize) - 1L;
-		// map new range
-		if (iSize > rangeSize)
-			iSize = rangeSize;
-		bb = FC.map(FileChannel.MapMode.READ_WRITE, rangeMin, iSize);
-		synchronized(bb) {
-			bb.position((int) (rangeTarg - rangeMin));
+	synchronized void unmap() {
+		force();
+		for(MappedByteBuffer bb : segments)
+			unmap(bb);
+		segments = new MappedByteBuffer[0];
+		mappedSize = 0L;
+	}
+	/**
+	* Release the mapping of the buffer now if the platform lets us, otherwise it goes when collected.
+	* @param bb
+	*/
+	private static void unmap(MappedByteBuffer bb) {
+		if( invokeCleaner == null )
+			return;
+		try {
+			bb.force();
+			invokeCleaner.invoke(unsafe, bb);
+		} catch(Exception e) {
+			if( DEBUG )
+				System.out.println("LinkedMappedByteBuffer.unmap failed "+e);
 		}
 	}
 	
@@ -165,29 +191,21 @@ final class LinkedMappedByteBuffer {
 		put(buf, 0, buf.length);
 	}
 	
-	void put(byte[] buf, int ioffs, int numbyte) throws IOException {
-		synchronized(bb) {
-			int i = ioffs, runcount = numbyte, blkbytes;
-			// assume our position is set and we have space
-			if (bb.position() == (rangeSize - 1))
-				checkRange(bb.position() + 1);
-			//
-			for (;;) {
-				blkbytes = (rangeSize - 1) - bb.position();
-				if (runcount > blkbytes) {
-					runcount -= blkbytes;
-					bb.put(buf, i, blkbytes);
-					i += blkbytes;
-					checkRange(bb.position() + 1);
-				} else {
-					bb.put(buf, i, runcount);
-					return;
-				}
-			}
-			//bb.put(obuf, 0, osiz);
+	synchronized void put(byte[] buf, int ioffs, int numbyte) throws IOException {
+		checkRange(position + numbyte, true);
+		int i = ioffs, runcount = numbyte;
+		// a run may span segments
+		while( runcount > 0 ) {
+			MappedByteBuffer bb = segments[(int) (position >>> SEGMENTSHIFT)];
+			int segPos = (int) (position & (SEGMENTSIZE - 1));
+			int blkbytes = Math.min(runcount, bb.capacity() - segPos);
+			bb.position(segPos);
+			bb.put(buf, i, blkbytes);
+			i += blkbytes;
+			runcount -= blkbytes;
+			position += blkbytes;
 		}
 	}
-	
 	void putInt(int obuf) throws IOException {
 		ByteBuffer tbb = ByteBuffer.allocate(4);
 		tbb.putInt(obuf);
@@ -213,29 +231,20 @@ final class LinkedMappedByteBuffer {
 	}
 	
 	// reading...
-	int get(byte[] buf, int ioffs, int numbyte) throws IOException {
-		synchronized(bb) {
-			int i = ioffs, runcount = numbyte, blkbytes;
-			// assume our position is set and we have space
-			if (bb.position() == (rangeSize - 1L))
-				checkRange(bb.position() + 1);
-			//
-			for (;;) {
-				blkbytes = (rangeSize - 1) - bb.position();
-				if (runcount > blkbytes) {
-					runcount -= blkbytes;
-					bb.get(buf, i, blkbytes);
-					i += blkbytes;
-					checkRange(bb.position() + 1);
-				} else {
-					bb.get(buf, i, runcount);
-					i += runcount;
-					break;
-				}
-			}
-			//bb.get(b, 0, osiz);
-			return i;
+	synchronized int get(byte[] buf, int ioffs, int numbyte) throws IOException {
+		checkRange(position + numbyte, false);
+		int i = ioffs, runcount = numbyte;
+		while( runcount > 0 ) {
+			MappedByteBuffer bb = segments[(int) (position >>> SEGMENTSHIFT)];
+			int segPos = (int) (position & (SEGMENTSIZE - 1));
+			int blkbytes = Math.min(runcount, bb.capacity() - segPos);
+			bb.position(segPos);
+			bb.get(buf, i, blkbytes);
+			i += blkbytes;
+			runcount -= blkbytes;
+			position += blkbytes;
 		}
+		return i;
 	}
 	
 	int get(byte[] b) throws IOException {
@@ -30,6 +30,8 @@ import com.neocoretechs.bigsack.DBPhysicalConstants;
 /**
 * Memory mapped file I/O.  Somewhat bound to our block-oriented tables
 * by the Fextend, which guarantees a block<br>
+* The file is mapped in segments by the LinkedMappedByteBuffer, which maps more as the file is extended
+* and unmaps them on close or truncate.<br>
 * For pool, there are one of these per tablespace and pointers use the
 * first 3 bits for tablespace so our theoretical max per tablespace is
 * 2,305,843,009,213,693,952 bytes * 8 tablespaces
@@ -116,6 +118,7 @@ public final class MmapIO implements IoInterface {
 			System.out.println("MMapIO.Fclose "+WO);
 		if (fisopen) {
 			Fforce();
+			linkedMappedByteBuff.unmap();
 			FC.close();
 			RA.close();
 			fisopen = false;
@@ -131,7 +134,7 @@ public final class MmapIO implements IoInterface {
 	public synchronized void Fseek(long offset) throws IOException {
 		if( DEBUG || DEBUGSEEK)
 			System.out.println("MMapIO.Fseek "+offset+" from pos:"+linkedMappedByteBuff.position());
-		linkedMappedByteBuff.position((int) offset);
+		linkedMappedByteBuff.position(offset);
 	}
 	
 	public synchronized long Fsize() throws IOException {
@@ -144,9 +147,8 @@ public final class MmapIO implements IoInterface {
 		if( DEBUG )
 			System.out.println("MMapIO.Fset_length NEW LENGTH:"+newlen);
 		if (newlen < FC.size()) {
-			linkedMappedByteBuff.force();
-			linkedMappedByteBuff = null;
-			System.gc();
+			// the mapping must be gone before the file can shrink
+			linkedMappedByteBuff.unmap();
 			FC.truncate(newlen);
 			FC.force(true);
 			//linkedMappedByteBuff = FC.map(FileChannel.MapMode.READ_WRITE, 0, newlen);
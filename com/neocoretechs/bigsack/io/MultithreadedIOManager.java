@@ -50,13 +50,15 @@ public class MultithreadedIOManager implements IoManagerInterface {
 	protected IOWorkerInterface ioWorker[];
 	protected BufferPool bufferPool;
 	protected int L3cache = 0;
+	protected String dbName = null; // name the tablespaces were opened with, locates the tablespace headers
+	protected FreeSpaceScanner freeSpaceScanner = null;
 
 	public MultithreadedIOManager(ObjectDBIO globalIO) throws IOException {
 		this.globalIO = globalIO;
 		ioWorker = new IOWorker[DBPhysicalConstants.DTABLESPACES];
 		bufferPool = new BufferPool();
 		// Initialize the thread pool group NAMES to spin new threads in controllable batches
-		ThreadPoolManager.init(new String[]{"BLOCKPOOL","IOWORKER"}, false);
+		ThreadPoolManager.init(new String[]{"BLOCKPOOL","IOWORKER","RECOVERY"}, false);
 	}
 	/**
 	 * Invoke each tablespace open request by creating buffers and spinning workers.
@@ -65,6 +67,7 @@ public class MultithreadedIOManager implements IoManagerInterface {
 	@Override
 	public synchronized boolean Fopen(String fname, int L3cache, boolean create) throws IOException {
 		this.L3cache = L3cache;
+		this.dbName = fname;
 		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
 			ioWorker[i] = new IOWorker(translateDb(fname,i), i, L3cache);
 			bufferPool.createPool(globalIO, this, i);
@@ -75,13 +78,12 @@ public class MultithreadedIOManager implements IoManagerInterface {
 			// init the Datablock arrays, create freepool
 			globalIO.createBuckets();
 			setNextFreeBlocks();
+			openFreeSpace(true);
 		} else {
-			for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
-				// attempt recovery if needed
-				bufferPool.recover(i);
-			}
-			// fill in the next free block indicators and set the smallest tablespace
-			findSmallestTablespace();
+			// attempt recovery if needed, the tablespaces at once
+			bufferPool.recover();
+			// fill in the next free block indicators from the headers and set the smallest tablespace
+			openFreeSpace(false);
 		}
 		return true;
 	}
@@ -102,6 +104,7 @@ public class MultithreadedIOManager implements IoManagerInterface {
 	@Override
 	public synchronized boolean Fopen(String fname, String remote, int L3cache, boolean create) throws IOException {
 		this.L3cache = L3cache;
+		this.dbName = fname;
 		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
 			if( remote == null )
 					ioWorker[i] = new IOWorker(translateDb(fname,i), i, L3cache);
@@ -115,13 +118,12 @@ public class MultithreadedIOManager implements IoManagerInterface {
 			// init the Datablock arrays, create freepool
 			globalIO.createBuckets();
 			setNextFreeBlocks();
+			openFreeSpace(true);
 		} else {
-			for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
-				// attempt recovery if needed
-				bufferPool.recover(i);
-			}
-			// fill in the next free block indicators and set the smallest tablespace
-			findSmallestTablespace();
+			// attempt recovery if needed, the tablespaces at once
+			bufferPool.recover();
+			// fill in the next free block indicators from the headers and set the smallest tablespace
+			openFreeSpace(false);
 		}
 		return true;
 	}
@@ -157,6 +159,13 @@ public class MultithreadedIOManager implements IoManagerInterface {
 		return MappedBlockBuffer.getNewInsertPosition(this.globalIO, locs, index, nkeys);
 	}
 
+	@Override
+	public Optr getNewInsertPosition(Optr[] locs, int index, int nkeys, int size) throws IOException {
+		if( DEBUG2 )
+			System.out.println("MultithreadedIOManager.getNewNodePosition for index "+index+" size "+size);
+		return MappedBlockBuffer.getNewInsertPosition(this.globalIO, locs, index, nkeys, size);
+	}
+
 	/**
 	 * Queues a request to the IOWorker to acquire the next free block from the stated tablespace
 	 * @param tblsp The target tablespace
@@ -354,6 +363,71 @@ public class MultithreadedIOManager implements IoManagerInterface {
 		bufferPool.deallocOutstandingWriteLog(tablespace, lbai);
 	}
 		
+	/**
+	 * Read the header of each tablespace, which after a clean close gives us its next free block and free space map
+	 * as they were. Without a clean header, after a crash or on a database that predates them, the next free block
+	 * comes from the reverse scan of getNextFreeBlocks, which only reads the free blocks at the end of each tablespace,
+	 * the recovery that has just run having put back the before image of any block past the last commit. The scan
+	 * covers every tablespace, so those with a clean header get theirs back after it. The free space map of the others
+	 * is rebuilt by a FreeSpaceScanner in the background, so the cost of the open does not grow with the tablespaces.
+	 * Either way an open header is written at once, so a crash from now on does not find a clean one.
+	 * @param create true for a new database, whose empty maps are complete
+	 * @throws IOException
+	 */
+	protected void openFreeSpace(boolean create) throws IOException {
+		FreeBlockAllocator alloc = bufferPool.getFreeBlockAllocator();
+		boolean[] rebuild = new boolean[DBPhysicalConstants.DTABLESPACES];
+		long[] cleanNext = new long[DBPhysicalConstants.DTABLESPACES];
+		boolean scan = false;
+		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
+			if( create ) {
+				alloc.clearMap(i);
+				alloc.setMapComplete(i, true);
+			} else if( alloc.load(freeSpaceFile(i), i) ) {
+				cleanNext[i] = alloc.getNextFree(i);
+			} else {
+				rebuild[i] = true;
+				scan = true;
+			}
+		}
+		if( scan ) {
+			getNextFreeBlocks();
+			for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+				if( !rebuild[i] )
+					alloc.setNextFree(i, cleanNext[i]);
+		}
+		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+			alloc.save(freeSpaceFile(i), i, false);
+		if( !create )
+			alloc.nextTablespace();
+		if( scan ) {
+			freeSpaceScanner = new FreeSpaceScanner(this, rebuild);
+			ThreadPoolManager.getInstance().spin(freeSpaceScanner);
+		}
+	}
+	/**
+	 * Write the clean header of each tablespace, with its next free block and free space map, for the next open.
+	 * The map of a tablespace still being rebuilt is left out and will be rebuilt again.
+	 */
+	@Override
+	public synchronized void saveFreeSpace() throws IOException {
+		if( dbName == null )
+			return;
+		if( freeSpaceScanner != null ) {
+			freeSpaceScanner.stop();
+			freeSpaceScanner = null;
+		}
+		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+			bufferPool.getFreeBlockAllocator().save(freeSpaceFile(i), i, true);
+	}
+	/**
+	 * @param tablespace
+	 * @return The path of the tablespace header, alongside the tablespace file
+	 */
+	protected String freeSpaceFile(int tablespace) {
+		return translateDb(dbName, tablespace) + ".fsm";
+	}
+
 	private String translateDb(String dbname, int tablespace) {
 		String db;
         // replace any marker of $ with tablespace number
@@ -382,6 +456,7 @@ public class MultithreadedIOManager implements IoManagerInterface {
 	 */
 	@Override
 	public synchronized void Fclose() throws IOException {
+		saveFreeSpace();
 		for (int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
 			if (ioWorker[i] != null && ((IoInterface)ioWorker[i]).isopen()) {
 				if( ioWorker[i].getRequestQueueLength() == 0 )
@@ -525,6 +600,11 @@ public class MultithreadedIOManager implements IoManagerInterface {
 	}
 	
 	public void writeDirect(int tblsp, long blkn, Datablock blkV2) throws IOException {
+		IoInterface ioUnit = ((IOWorker) ioWorker[tblsp]).getIoUnit();
+		if( ioUnit instanceof PositionalIoInterface ) {
+			blkV2.write((PositionalIoInterface)ioUnit, blkn);
+			return;
+		}
 		synchronized(ioWorker[tblsp]) {
 			((IOWorker) ioWorker[tblsp]).Fseek(blkn);
 			blkV2.write((IoInterface) ioWorker[tblsp]);
@@ -532,6 +612,12 @@ public class MultithreadedIOManager implements IoManagerInterface {
 	}
 	
 	public void readDirect(int tblsp, long blkn, Datablock blkV2) throws IOException {
+		// positional reads need no seek so take no lock, and readers of a tablespace run concurrently
+		IoInterface ioUnit = ((IOWorker) ioWorker[tblsp]).getIoUnit();
+		if( ioUnit instanceof PositionalIoInterface ) {
+			blkV2.read((PositionalIoInterface)ioUnit, blkn);
+			return;
+		}
 		synchronized(ioWorker[tblsp]) {
 			((IOWorker) ioWorker[tblsp]).Fseek(blkn);
 			blkV2.read((IoInterface) ioWorker[tblsp]);
@@ -0,0 +1,29 @@
+package com.neocoretechs.bigsack.io;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+/**
+* An IoInterface that can also read and write at an absolute position without moving the file position,
+* in the manner of pread and pwrite. A whole block, header and data, goes in a single call, and since there is no
+* seek to pair with the transfer these calls need no locking, so any number of readers may be in the same tablespace at once.
+* The stateful Fseek/Fread/Fwrite methods of IoInterface remain for everything else.
+* @see IoInterface
+* @see ChannelIO
+* @author Groff
+*/
+public interface PositionalIoInterface extends IoInterface {
+	/**
+	* Read from the absolute position until the buffer is full or the end of file is reached.
+	* @param buf The buffer to fill from its position to its limit
+	* @param offset The position in the file
+	* @return The number of bytes read, less than requested only at end of file
+	* @exception IOException if read fails
+	*/
+	public int Fread(ByteBuffer buf, long offset) throws IOException;
+	/**
+	* Write the remaining bytes of the buffer at the absolute position, extending the file if need be.
+	* @param buf The buffer to write from its position to its limit
+	* @param offset The position in the file
+	* @exception IOException if write fails
+	*/
+	public void Fwrite(ByteBuffer buf, long offset) throws IOException;
+}
@@ -2,8 +2,10 @@ package com.neocoretechs.bigsack.io;
 import java.io.IOException;
 
 import com.neocoretechs.arieslogger.core.LogInstance;
+import com.neocoretechs.arieslogger.core.impl.EndXactOperation;
 import com.neocoretechs.arieslogger.core.impl.FileLogger;
 import com.neocoretechs.arieslogger.core.impl.LogToFile;
+import com.neocoretechs.arieslogger.logrecords.Loggable;
 import com.neocoretechs.bigsack.DBPhysicalConstants;
 import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
 import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
@@ -40,10 +42,17 @@ import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
 * When this module is instantiated the RecoveryLogManager is assigned and a roll forward recovery
 * is started. If there are any records in the log file they will scanned for low water marks and
 * checkpoints etc and the determination is made based on the type of log record encountered.
-* Our log granularity is the page level. We store DB blocks and their original mirrors to use in
-* recovery. At the end of recovery we restore the logs to their initial state, as we do on a commit. 
-* There is a simple paradigm at work here, we carry a single block access index in this class and use it
-* to cursor through the blocks as we access them.
+* Our log granularity is the page level. For each DB block written we store the byte ranges that differ from
+* its original image in the tablespace, before and after, to use in recovery. A commit or rollback ends with a record
+* marking the end of the transaction, and recovery rolls back only what follows the last such record. The log files
+* are kept from one transaction to the next and reset once the log has grown past its first file.
+* At the end of recovery we restore the logs to their initial state. 
+* With SharedLog set in the properties one instance serves all the tablespaces through the log files of tablespace 0.
+* A commit then flushes every tablespace into one log and ends the transaction in it once, so the change to all the tablespaces
+* is kept or undone as a whole, and concurrent flushes of the tablespaces share its syncs.
+* There is a simple paradigm at work here, we carry a block access index per writing thread in this class and use it
+* to cursor through the blocks as we access them. Writers are not serialized here, so concurrent writers
+* to the same tablespace share the group commit of the underlying LogToFile.
 * @author Groff
 */
 public final class RecoveryLogManager  {
@@ -53,8 +62,9 @@ public final class RecoveryLogManager  {
 	private FileLogger fl = null;
 	private LogToFile ltf = null;
 	private LogInstance firstTrans = null;
-	private BlockAccessIndex tblk = null;
+	private final ThreadLocal<BlockAccessIndex> tblk = new ThreadLocal<BlockAccessIndex>();
 	private int tablespace;
+	private boolean shared = false; // one log for all the tablespaces
 	
 	public ObjectDBIO getBlockIO() {
 		return blockIO;
@@ -65,10 +75,21 @@ public final class RecoveryLogManager  {
 	 * @throws IOException
 	 */
 	public RecoveryLogManager(ObjectDBIO tglobalio, int tablespace) throws IOException {
+		this(tglobalio, tablespace, false);
+	}
+	/**
+	 * Call with IO manager, will create the LogToFile. A shared log takes the files of the given tablespace
+	 * and logs the blocks of every tablespace, each record carrying the virtual block number it applies to.
+	 * @param tglobalio
+	 * @param tablespace The tablespace whose log files are used
+	 * @param shared true if this log serves all the tablespaces
+	 * @throws IOException
+	 */
+	public RecoveryLogManager(ObjectDBIO tglobalio, int tablespace, boolean shared) throws IOException {
 		this.blockIO = tglobalio;
 		this.ioManager = blockIO.getIOManager();
 		this.tablespace = tablespace;
-		this.tblk = new BlockAccessIndex(true); // for writeLog reserved
+		this.shared = shared;
 		this.ltf = new LogToFile(blockIO, tablespace);
 		this.fl = (FileLogger) ltf.getLogger();
 		ltf.boot();
@@ -99,30 +120,54 @@ public final class RecoveryLogManager  {
 	public LogToFile getLogToFile() {
 		return ltf;
 	}
+	/**
+	 * @return true if this log serves all the tablespaces, so commits, checkpoints and recovery are done once for all of them
+	 */
+	public boolean isShared() {
+		return shared;
+	}
 	/**
 	* Write log entry - uses current db. Set inlog true
 	* This is initiated before buffer pool block flush (writeblk). Get the original block
-	* from deep store and log it as undoable
+	* from deep store and log it as undoable. Not synchronized, so that concurrent writers
+	* wait together on a single log sync rather than one after another.
 	* @param blk The block instance, payload of block about to be written to log
 	* @exception IOException if cannot open or write
 	*/
-	public synchronized void writeLog(BlockAccessIndex blk) throws IOException {
+	public void writeLog(BlockAccessIndex blk) throws IOException {
 		if( DEBUG ) {
 			System.out.println("RecoveryLogManager.writeLog "+blk.toString());
 		}
+		// reserved block for the original image, one per writing thread
+		BlockAccessIndex tblk = this.tblk.get();
+		if( tblk == null ) {
+			tblk = new BlockAccessIndex(true);
+			this.tblk.set(tblk);
+		}
+		int tblsp = GlobalDBIO.getTablespace(blk.getBlockNum());
+		assert( shared || tablespace == tblsp );
+		// A block a bulk load took from the end of the tablespace held nothing before, there is no image to keep
+		if( ioManager.getFreeBlockAllocator().isUnlogged(blk.getBlockNum()) ) {
+			ioManager.writeDirect(tblsp, GlobalDBIO.getBlock(blk.getBlockNum()), blk.getBlk());
+			blk.decrementAccesses();
+			blk.getBlk().setInlog(true);
+			blk.getBlk().setIncore(false);
+			return;
+		}
 		tblk.setBlockNumber(blk.getBlockNum());
-		assert( tablespace == GlobalDBIO.getTablespace(blk.getBlockNum()));
 		// Write directly to deep store at this point.
 		//synchronized(blockIO.getIOManager().getDirectIO(tablespace)) {
 		//	blockIO.getIOManager().getDirectIO(tablespace).Fseek(GlobalDBIO.getBlock(blk.getBlockNum()));
 		//	tblk.getBlk().read(blockIO.getIOManager().getDirectIO(tablespace));
 		//}
-		ioManager.readDirect(tablespace, GlobalDBIO.getBlock(blk.getBlockNum()), tblk.getBlk());
-		UndoableBlock undoBlk = new UndoableBlock(tblk, blk);
-		if( firstTrans == null )
-			firstTrans = fl.logAndDo(blockIO, undoBlk);
-		else
-			fl.logAndDo(blockIO, undoBlk);
+		ioManager.readDirect(tblsp, GlobalDBIO.getBlock(blk.getBlockNum()), tblk.getBlk());
+		// log only the byte ranges that differ from the original image
+		UndoableBlockDelta undoBlk = new UndoableBlockDelta(tblk, blk);
+		LogInstance instance = fl.logAndDo(blockIO, undoBlk);
+		synchronized(this) {
+			if( firstTrans == null || instance.lessThan(firstTrans) )
+				firstTrans = instance;
+		}
 		blk.getBlk().setInlog(true);
 		blk.getBlk().setIncore(false);
 		tblk.resetBlock(true); // reset and clear access latch
@@ -131,16 +176,15 @@ public final class RecoveryLogManager  {
 		}
 	}
 	/**
-	 * Remove archived files and reset log file 1 to its primordial state
+	 * Write the commit record, which is durable when this returns and is the point recovery rolls back to.
+	 * The log files are left in place and appended to by the next transaction, until the log has run
+	 * past its first file, when they are removed and log file 1 is reset to its primordial state
 	 * 
 	 * @throws IOException
 	 */
 	public synchronized void commit() throws IOException {
 			if(DEBUG) System.out.println("RecoveryLogManager.commit called for db "+ltf.getDBName()+" tablespace "+tablespace+" log seq. int.");
-			firstTrans = null;
-			ltf.stop();
-			ltf.deleteObsoleteLogfilesOnCommit();
-			ltf.initializeLogFileSequence();
+			endTransaction(Loggable.COMMIT);
 	}
 
 	/**
@@ -151,10 +195,25 @@ public final class RecoveryLogManager  {
 		rollBackCache(); // synch main file buffs
 		blockIO.forceBufferClear(); // flush buffer pools
 		if( firstTrans != null) {
-			fl.undo(blockIO, firstTrans, null);
+			fl.undo(blockIO, firstTrans);
 			if(DEBUG) System.out.println("RecoveryLogManager.rollback Undo initial transaction recorded for rollback in tablespace "+tablespace+" in "+ltf.getDBName());
-			firstTrans = null;
-			ltf.deleteObsoleteLogfilesOnCommit();
+			endTransaction(Loggable.ABORT);
+		}
+	}
+	/**
+	 * Log the end of the transaction, then reclaim the log files if the log has switched to a new file since
+	 * it was last reset. Reclaiming them starts the log over at file 1 and keeps the others for the log
+	 * switches to reuse, which once in a log file of commits costs little, where doing it at every commit
+	 * would cost more than the commit itself.
+	 * @param outcome Loggable.COMMIT or Loggable.ABORT
+	 * @throws IOException
+	 */
+	private void endTransaction(int outcome) throws IOException {
+		fl.logAndDo(blockIO, new EndXactOperation(outcome));
+		firstTrans = null;
+		if( ltf.getLogFileNumber() > 1 ) {
+			if(DEBUG) System.out.println("RecoveryLogManager.endTransaction resetting log at "+ltf.getLogFileNumber()+" files for db "+ltf.getDBName()+" tablespace "+tablespace);
+			ltf.stop();
 			ltf.initializeLogFileSequence();
 		}
 	}
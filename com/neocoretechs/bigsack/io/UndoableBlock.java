@@ -14,6 +14,8 @@ import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
 import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
 
 /**
+ * 	A block change logged as the whole original and new images. Blocks are now logged as UndoableBlockDelta,
+ * 	this remains so that logs written with it can still be rolled back.<p>
  * 	Writes out a log record to the log stream, and call its applyChange method to
 		apply the change to the rawStore.
 		<BR>Any optional data the applyChange method needs is first written to the log
@@ -52,7 +54,7 @@ public final class UndoableBlock implements Undoable, Serializable {
 		if( DEBUG  ) {
 			System.out.println("UndoableBlock.applyChange: instance:"+instance+" raw store"+blkV2.getBlockNum()+","+blkV2.getBlk());
 		}
-		blkV2.getBlk().setPageLSN(instance.getValueAsLong());
+		blkV2.getBlk().setPageLSN(UndoableBlockDelta.pageLSN(xact, blkV2.getBlockNum(), instance));
 		//xact.FseekAndWrite(blkV2.getBlockNum(), blkV2.getBlk()); // sets incore false
 		int tblsp = GlobalDBIO.getTablespace(blkV2.getBlockNum());
 		long blkn = GlobalDBIO.getBlock(blkV2.getBlockNum());
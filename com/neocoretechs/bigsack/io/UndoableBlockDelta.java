@@ -0,0 +1,228 @@
+package com.neocoretechs.bigsack.io;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.neocoretechs.arieslogger.core.LogInstance;
+import com.neocoretechs.arieslogger.core.impl.CompensationBlock;
+import com.neocoretechs.arieslogger.core.impl.LogCounter;
+import com.neocoretechs.arieslogger.logrecords.Compensation;
+import com.neocoretechs.arieslogger.logrecords.Loggable;
+import com.neocoretechs.arieslogger.logrecords.Undoable;
+import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
+import com.neocoretechs.bigsack.io.pooled.Datablock;
+import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+import com.neocoretechs.bigsack.io.pooled.ObjectDBIO;
+
+/**
+ * The change to a block as the byte ranges that differ between its original image in the tablespace and
+ * the image about to replace it, each range with its bytes before and after. Where UndoableBlock logs both
+ * whole images, this logs only what a put or remove touched, typically some tens or hundreds of bytes
+ * of a block.<p>
+ * Ranges are compared through the used portion of the longer of the two blocks, past which the bytes are not read.
+ * Changed runs separated by fewer than MERGEGAP equal bytes are logged as one range, as the gap costs less than
+ * the offset and length of another.<p>
+ * When logged, applyChange writes the whole new block still held in the pool. Read back from the log, applyChange
+ * writes the after ranges over the block in the tablespace, as redo does over an image of it, and undo writes the
+ * before ranges, restoring the pageLSN the block had. Either can be repeated without harm.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public final class UndoableBlockDelta implements Undoable, Externalizable {
+	private static final long serialVersionUID = -2297316546385573364L;
+	private static boolean DEBUG = false;
+	private static final int MERGEGAP = 4;
+	private transient BlockAccessIndex blk = null; // the block in the pool as logged, absent when read back
+	private long blockNum;
+	private long beforeLSN;
+	private int[] offsets;
+	private byte[][] before;
+	private byte[][] after;
+
+	public UndoableBlockDelta() {}
+
+	/**
+	 * Compare the original image with the block to be written.
+	 * @param tblk The block as it stands in the tablespace
+	 * @param blk The block from the pool about to replace it
+	 */
+	public UndoableBlockDelta(BlockAccessIndex tblk, BlockAccessIndex blk) {
+		this.blk = blk;
+		blockNum = blk.getBlockNum();
+		beforeLSN = tblk.getBlk().getPageLSN();
+		byte[] v1 = tblk.getBlk().toBytes();
+		byte[] v2 = blk.getBlk().toBytes();
+		int len = Math.max(tblk.getBlk().getUsedLength(), blk.getBlk().getUsedLength());
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		int i = 0;
+		while( i < len ) {
+			if( v1[i] == v2[i] ) {
+				++i;
+				continue;
+			}
+			int start = i;
+			int end = ++i; // exclusive
+			while( i < len && i - end < MERGEGAP ) {
+				if( v1[i] != v2[i] )
+					end = i + 1;
+				++i;
+			}
+			ranges.add(new int[]{start, end});
+			i = end;
+		}
+		offsets = new int[ranges.size()];
+		before = new byte[ranges.size()][];
+		after = new byte[ranges.size()][];
+		for(int j = 0; j < offsets.length; j++) {
+			int[] range = ranges.get(j);
+			offsets[j] = range[0];
+			before[j] = new byte[range[1] - range[0]];
+			after[j] = new byte[range[1] - range[0]];
+			System.arraycopy(v1, range[0], before[j], 0, before[j].length);
+			System.arraycopy(v2, range[0], after[j], 0, after[j].length);
+		}
+		if( DEBUG )
+			System.out.println("UndoableBlockDelta "+this);
+	}
+
+	public long getBlockNum() {
+		return blockNum;
+	}
+	/**
+	 * @return The number of bytes changed, counting the gaps merged into ranges
+	 */
+	public int getChangedBytes() {
+		int n = 0;
+		for(byte[] b : after)
+			n += b.length;
+		return n;
+	}
+
+	/**
+	 * When logged, write the new block from the pool with the pageLSN of the record. Read back from the log,
+	 * as when a compensation record is redone, write the after ranges over the block in the tablespace.
+	 */
+	@Override
+	public void applyChange(ObjectDBIO xact, LogInstance instance, Object in) throws IOException {
+		if( DEBUG ) {
+			System.out.println("UndoableBlockDelta.applyChange: instance:"+instance+" "+this);
+		}
+		if( blk == null ) {
+			patch(xact, after, pageLSN(xact, blockNum, instance));
+			return;
+		}
+		blk.getBlk().setPageLSN(pageLSN(xact, blockNum, instance));
+		xact.getIOManager().writeDirect(GlobalDBIO.getTablespace(blockNum), GlobalDBIO.getBlock(blockNum), blk.getBlk());
+		// deallocate
+		blk.decrementAccesses();
+	}
+	/**
+	 * @param xact
+	 * @param blockNum
+	 * @param instance
+	 * @return The pageLSN of the block written with the change logged at the instance, in the epoch of its log
+	 */
+	static long pageLSN(ObjectDBIO xact, long blockNum, LogInstance instance) {
+		long epoch = xact.getIOManager().getUlog(GlobalDBIO.getTablespace(blockNum)).getLogToFile().getLogEpoch();
+		return LogCounter.makePageLSN(epoch, instance.getValueAsLong());
+	}
+	/**
+	 * Write the before ranges over the block in the tablespace and restore its pageLSN.
+	 * Called by CompensationBlock.
+	 * @param xact
+	 * @throws IOException
+	 */
+	public void undo(ObjectDBIO xact) throws IOException {
+		if( DEBUG ) {
+			System.out.println("UndoableBlockDelta.undo: "+this);
+		}
+		patch(xact, before, beforeLSN);
+	}
+
+	/**
+	 * Write the after ranges over an image of the block, for the redo pass of recovery
+	 * which reads and writes the block itself.
+	 * @param image The bytes of the block
+	 */
+	public void redo(byte[] image) {
+		for(int i = 0; i < offsets.length; i++)
+			System.arraycopy(after[i], 0, image, offsets[i], after[i].length);
+	}
+
+	private void patch(ObjectDBIO xact, byte[][] ranges, long pageLSN) throws IOException {
+		int tblsp = GlobalDBIO.getTablespace(blockNum);
+		long blkn = GlobalDBIO.getBlock(blockNum);
+		Datablock d = new Datablock();
+		xact.getIOManager().readDirect(tblsp, blkn, d);
+		byte[] image = d.toBytes();
+		for(int i = 0; i < offsets.length; i++)
+			System.arraycopy(ranges[i], 0, image, offsets[i], ranges[i].length);
+		d.read(ByteBuffer.wrap(image));
+		d.setPageLSN(pageLSN);
+		xact.getIOManager().writeDirect(tblsp, blkn, d);
+	}
+
+	@Override
+	public byte[] getPreparedLog() throws IOException {
+		return null;
+	}
+
+	@Override
+	public boolean needsRedo(ObjectDBIO xact) throws IOException {
+		return true;
+	}
+
+	@Override
+	public void releaseResource(ObjectDBIO xact) {
+
+	}
+
+	@Override
+	public int group() {
+		return Loggable.BI_LOG;
+	}
+
+	@Override
+	public Compensation generateUndo(ObjectDBIO xact) throws IOException {
+		return new CompensationBlock();
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(blockNum);
+		out.writeLong(beforeLSN);
+		out.writeInt(offsets.length);
+		for(int i = 0; i < offsets.length; i++) {
+			out.writeInt(offsets[i]);
+			out.writeInt(after[i].length);
+			out.write(before[i]);
+			out.write(after[i]);
+		}
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+		blockNum = in.readLong();
+		beforeLSN = in.readLong();
+		int n = in.readInt();
+		offsets = new int[n];
+		before = new byte[n][];
+		after = new byte[n][];
+		for(int i = 0; i < n; i++) {
+			offsets[i] = in.readInt();
+			int len = in.readInt();
+			before[i] = new byte[len];
+			after[i] = new byte[len];
+			in.readFully(before[i]);
+			in.readFully(after[i]);
+		}
+	}
+
+	public String toString() {
+		return "Undoable block delta "+GlobalDBIO.valueOf(blockNum)+" ranges:"+offsets.length+" bytes:"+getChangedBytes()+" before pageLSN:"+beforeLSN;
+	}
+}
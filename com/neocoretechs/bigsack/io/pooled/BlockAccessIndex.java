@@ -41,6 +41,8 @@ public final class BlockAccessIndex implements Comparable, Serializable {
 	private static final long serialVersionUID = -7046561350843262757L;
 	private Datablock blk;
 	private transient int accesses = 0;
+	// clock replacement weight, raised on use and lowered by the sweeping hand of the pool
+	private transient byte usage = 0;
 	private long blockNum = -1L;
 	protected short byteindex = -1;
 	//private transient ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
@@ -83,6 +85,28 @@ public final class BlockAccessIndex implements Comparable, Serializable {
 		blk.resetBlock();
 	}
 	
+	/**
+	 * Raise the clock weight to at least the given value.
+	 * @param weight
+	 */
+	synchronized void touch(byte weight) {
+		if( usage < weight )
+			usage = weight;
+	}
+	/**
+	 * Lower the clock weight as the hand passes.
+	 * @return The weight before it was lowered, zero meaning the block may be replaced
+	 */
+	synchronized byte sweep() {
+		if( usage > 0 )
+			return usage--;
+		return 0;
+	}
+
+	synchronized void clearUsage() {
+		usage = 0;
+	}
+
 	public synchronized int getAccesses() {
 		return accesses;
 	}
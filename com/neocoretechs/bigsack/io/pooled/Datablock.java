@@ -1,11 +1,14 @@
 package com.neocoretechs.bigsack.io.pooled;
+import java.io.EOFException;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
 import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.PositionalIoInterface;
 
 /*
 * Copyright (c) 1997,2003, NeoCoreTechs
@@ -36,6 +39,8 @@ import com.neocoretechs.bigsack.io.IoInterface;
 * The usual pattern is to have these methods call back through an IoInterface to perform
 * specific low level record writes. IoInterface is accessed through a request that has been queued
 * and is being serviced, thus, direct calls back to the file store are appropriate.
+* Where the IoInterface is a PositionalIoInterface the block is instead moved through a ByteBuffer
+* in one positional call, header and data together.
 * Copyright (C) NeoCoreTechs 1997,2014
 * @author Groff
 */
@@ -51,6 +56,8 @@ public final class Datablock implements Externalizable {
 	private boolean incore = false; // is it modified?
 	private boolean inlog = false; // written to log since incore?
 	private static final long serialVersionUID = 1L;
+	// prevblk, nextblk, bytesused, bytesinuse, isKeypage, pageLSN
+	private static final int HEADERSIZE = 29;
 	//
 	private int datasize;
 	//
@@ -98,6 +105,95 @@ public final class Datablock implements Externalizable {
 		//}
 	}
 
+	/**
+	* Write the header and data portion at the offset in one positional call.
+	* @param fobj the PositionalIoInterface
+	* @param offset the block position in the tablespace
+	* @exception IOException error writing
+	*/
+	public void write(PositionalIoInterface fobj, long offset) throws IOException {
+		ByteBuffer bb = toByteBuffer(datasize);
+		fobj.Fwrite(bb, offset);
+	}
+	/**
+	* Write the header and used data portion at the offset in one positional call.
+	* @param fobj the PositionalIoInterface
+	* @param offset the block position in the tablespace
+	* @exception IOException error writing
+	*/
+	public void writeUsed(PositionalIoInterface fobj, long offset) throws IOException {
+		ByteBuffer bb = toByteBuffer(getBytesused());
+		fobj.Fwrite(bb, offset);
+	}
+	/**
+	* @param len The number of data bytes to include
+	* @return The header and data in a buffer ready to write
+	*/
+	private synchronized ByteBuffer toByteBuffer(int len) {
+		ByteBuffer bb = ByteBuffer.allocate(HEADERSIZE + len);
+		write(bb, len);
+		bb.flip();
+		return bb;
+	}
+	/**
+	* @return The header and whole data portion as laid out in the tablespace, a copy
+	*/
+	public synchronized byte[] toBytes() {
+		return toByteBuffer(datasize).array();
+	}
+	/**
+	* @return The length of the header and the used data portion, past which the bytes mean nothing
+	*/
+	public synchronized int getUsedLength() {
+		return HEADERSIZE + bytesused;
+	}
+	/**
+	* Put the header and len bytes of data into the buffer.
+	* @param bb
+	* @param len
+	*/
+	public synchronized void write(ByteBuffer bb, int len) {
+		bb.putLong(prevblk);
+		bb.putLong(nextblk);
+		bb.putShort(bytesused);
+		bb.putShort(bytesinuse);
+		bb.put(isKeypage);
+		bb.putLong(pageLSN);
+		bb.put(data, 0, len);
+	}
+	/**
+	* Read the whole block, header and data, from the offset in one positional call.
+	* This serves for both read and readUsed, the data past bytesused coming along in the same transfer.
+	* @param fobj the PositionalIoInterface
+	* @param offset the block position in the tablespace
+	* @exception IOException error reading, or the block is not all there
+	*/
+	public void read(PositionalIoInterface fobj, long offset) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(HEADERSIZE + datasize);
+		int n = fobj.Fread(bb, offset);
+		if( n < HEADERSIZE )
+			throw new EOFException("Datablock read of header past end of file at "+offset);
+		bb.flip();
+		read(bb);
+	}
+	/**
+	* Get the header and as much data as the buffer holds, up to the data size.
+	* @param bb
+	* @exception IOException if the header is inconsistent
+	*/
+	public synchronized void read(ByteBuffer bb) throws IOException {
+		setPrevblk(bb.getLong());
+		setNextblk(bb.getLong());
+		setBytesused(bb.getShort());
+		setBytesinuse(bb.getShort());
+		setKeypage(bb.get());
+		setPageLSN(bb.getLong());
+		if (getBytesused() > datasize || bb.remaining() < getBytesused()) {
+			throw new IOException("block inconsistency " + this.toString());
+		}
+		bb.get(data, 0, Math.min(bb.remaining(), datasize));
+	}
+
 	/**
 	 * Sets up default header
 	 */
@@ -104,7 +104,7 @@ public class GlobalDBIO {
 	/**
 	* Constructor will utilize values from props file to initialize 
 	* global IO.  The level 3 cache type (L3Cache) can currently be MMap
-	* or File or Cluster.  The number of buffer pool entries is controlled by the PoolBlocks
+	* or File or Channel or Cluster.  The number of buffer pool entries is controlled by the PoolBlocks
 	* property. 
 	* @param dbname Fully qualified path of DB
 	* @param remoteDBName the path to remote tablespace if it differs from log dir
@@ -123,7 +123,11 @@ public class GlobalDBIO {
 			if (Props.toString("L3Cache").equals("File")) {
 				L3cache = 1;
 			} else {
+				if (Props.toString("L3Cache").equals("Channel")) {
+					L3cache = 2;
+				} else {
 					throw new IOException("Unsupported L3 cache type");
+				}
 			}
 		}
 		
@@ -2,6 +2,7 @@ package com.neocoretechs.bigsack.io.pooled;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Random;
@@ -11,10 +12,12 @@ import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.io.FreeBlockAllocator;
 import com.neocoretechs.bigsack.io.IoManagerInterface;
 import com.neocoretechs.bigsack.io.Optr;
 import com.neocoretechs.bigsack.io.RecoveryLogManager;
 import com.neocoretechs.bigsack.io.request.cluster.CompletionLatchInterface;
+import com.neocoretechs.bigsack.io.request.iomanager.WriteBackRequest;
 
 /**
  * The MappedBlockBuffer is the buffer pool for each tablespace of each db. It functions
@@ -46,7 +49,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 	private ObjectDBIO globalIO;
 	private IoManagerInterface ioManager;
 	private int tablespace;
-	private int minBufferSize = 10; // minimum number of buffers to reclaim on flush attempt
+	private int minBufferSize = 10; // number of blocks ahead of the clock hand a write back looks at
 	private ArrayBlockingQueue<CompletionLatchInterface> requestQueue; // Request processing queue
 	private final Set<BlockChangeEvent> mObservers = Collections.newSetFromMap(new ConcurrentHashMap<BlockChangeEvent, Boolean>(0));
   
@@ -54,6 +57,16 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 	private static int QUEUEMAX = 256; // max requests before blocking
 	private static int cacheHit = 0; // cache hit rate
 	private static int cacheMiss = 0;
+	// clock replacement, the ring holds every BlockAccessIndex this pool owns in a fixed order for the hand
+	private BlockAccessIndex[] clockRing;
+	private int clockHand = 0;
+	private static final byte DATAWEIGHT = 1; // weight of a data block on use
+	private static final byte KEYPAGEWEIGHT = 3; // key pages survive this many more passes of the hand
+	private boolean writeBackPending = false;
+	private long syncWriteBacks = 0L; // dirty victims the sweep had to write itself
+	// dirty victims the sweep passed over, for the write back to clean, at most minBufferSize
+	private ArrayList<BlockAccessIndex> deferredVictims = new ArrayList<BlockAccessIndex>();
+	private Datablock headerBlock = new Datablock(DBPhysicalConstants.DATASIZE); // reads the header of a block not in the pool
 	/**
 	 * Construct the buffer for this tablespace and link the global IO manager
 	 * @param ioManager Manager such as MultiThreadedIOManager or ClusterIOManager
@@ -67,11 +80,13 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		this.ioManager = ioManager;
 		this.tablespace = tablespace;
 		this.freeBL = new ArrayBlockingQueue<BlockAccessIndex>(POOLBLOCKS, true); // free blocks
+		this.clockRing = new BlockAccessIndex[POOLBLOCKS];
 		// populate with blocks, they're all free for now
 		for (int i = 0; i < POOLBLOCKS; i++) {
 			// new Long(i*DBPhysicalConstants.DBLOCKSIZ)
+			clockRing[i] = new BlockAccessIndex(true);
 			try {
-				freeBL.put(new BlockAccessIndex(true));
+				freeBL.put(clockRing[i]);
 			} catch (InterruptedException e) {}
 		}
 		minBufferSize = POOLBLOCKS/10; // we need at least one
@@ -115,7 +130,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		//int tbsp = getTablespace(lastGoodBlk.getBlockNum());
 		//int tbsp = new Random().nextInt(DBPhysicalConstants.DTABLESPACES);
 		// this uses a round robin approach
-		newblock = ioManager.getNextFreeBlock(tablespace);
+		newblock = nextFreeBlock();
 		newVblock = GlobalDBIO.makeVblock(tablespace, newblock);
 		// update old block, set it to relative, NOT Vblock
 		ablk.getBlk().setNextblk(newblock);
@@ -147,7 +162,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		long newblock;
 		if (currentBlk != null)
 			currentBlk.decrementAccesses();
-		newblock = GlobalDBIO.makeVblock(tablespace, ioManager.getNextFreeBlock(tablespace));
+		newblock = GlobalDBIO.makeVblock(tablespace, nextFreeBlock());
 		// new block number for BlockAccessIndex set in addBlockAccessNoRead
 		// calls setBlockNumber, which should up the access
 		BlockAccessIndex dblk = addBlockAccessNoRead(new Long(newblock));
@@ -158,6 +173,59 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		return dblk;
 	}
 
+	/**
+	 * Get the block to allocate next, one reclaimed from the free space map if the map has one whose header
+	 * still shows it free, otherwise the next free block at the end of the tablespace.
+	 * @return The Vblock
+	 * @throws IOException If a header read or the extension of the tablespace fails
+	 */
+	private long nextFreeBlock() throws IOException {
+		FreeBlockAllocator alloc = ioManager.getFreeBlockAllocator();
+		long vblock;
+		while( (vblock = alloc.takeFree(tablespace)) != -1L ) {
+			if( isFreeBlock(vblock) ) {
+				if( DEBUG )
+					System.out.println("MappedBlockBuffer.nextFreeBlock reclaimed "+GlobalDBIO.valueOf(vblock));
+				return vblock;
+			}
+		}
+		return ioManager.getNextFreeBlock(tablespace);
+	}
+	/**
+	 * @param vblock
+	 * @return true if the header of the block, in the pool or failing that on disk, is that of a free block no one has latched
+	 * @throws IOException If the header read fails
+	 */
+	private boolean isFreeBlock(long vblock) throws IOException {
+		BlockAccessIndex bai = get(vblock);
+		if( bai != null )
+			return bai.getAccesses() <= 1 && FreeBlockAllocator.isFree(bai.getBlk());
+		// we run on the worker of this tablespace during commit, so read around its queue
+		ioManager.readDirect(GlobalDBIO.getTablespace(vblock), GlobalDBIO.getBlock(vblock), headerBlock);
+		return FreeBlockAllocator.isFree(headerBlock);
+	}
+	/**
+	 * A data block left with nothing in use and no links is free. Its header is reset so the block reads as
+	 * free once written, and the allocator reclaims it if the transaction commits. Any other data block
+	 * has its room recorded in the free space map.
+	 * @param lbai The block just deleted from
+	 */
+	private void reclaim(BlockAccessIndex lbai) {
+		Datablock d = lbai.getBlk();
+		if( d.isKeypage() )
+			return;
+		if( d.getBytesinuse() == 0 && d.getPrevblk() == -1L && d.getNextblk() == -1L && lbai.getBlockNum() != 0L ) {
+			d.setBytesused((short)0);
+			lbai.setByteindex((short)0);
+			d.setIncore(true);
+			d.setInlog(false);
+			ioManager.getFreeBlockAllocator().freeOnCommit(lbai.getBlockNum());
+			if( DEBUG )
+				System.out.println("MappedBlockBuffer.reclaim freeing "+lbai);
+		} else
+			ioManager.getFreeBlockAllocator().setRoom(lbai.getBlockNum(), DBPhysicalConstants.DATASIZE - d.getBytesused());
+	}
+
 	/**
 	 * Put the block onto the free block list
 	 * @param bai
@@ -211,24 +279,51 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 	* @exception IOException If we cannot get block for new node
 	*/
 	public static Optr getNewInsertPosition(ObjectDBIO sdbio, Optr[] locs, int index, int nkeys) throws IOException {
+		return getNewInsertPosition(sdbio, locs, index, nkeys, 0);
+	}
+	/**
+	* Determine location of a new entry of the given size.
+	* Choose a random tablespace, and if the free space map shows the block of another entry of the page there
+	* has room, cluster there. Failing that take the fullest block in that tablespace the map shows to have room,
+	* and failing that a new block. Only the block chosen is read, and if the map was out of date for it the map
+	* is corrected and we look again.
+	* @param locs The array of previous entries to check for block space
+	* @param index The index of the target in array, such that we dont check that
+	* @param nkeys The total keys in use to check in array
+	* @param size The size of the entry
+	* @return The Optr pointing to the new node position
+	* @exception IOException If we cannot get block for new node
+	*/
+	public static Optr getNewInsertPosition(ObjectDBIO sdbio, Optr[] locs, int index, int nkeys, int size) throws IOException {
+		FreeBlockAllocator alloc = sdbio.getIOManager().getFreeBlockAllocator();
 		long blockNum = -1L;
 		BlockAccessIndex ablk = null;
-		short bytesUsed = DBPhysicalConstants.DATASIZE;
-		int tbsp = new Random().nextInt(DBPhysicalConstants.DTABLESPACES);  
+		short bytesUsed = 0;
+		int tbsp = new Random().nextInt(DBPhysicalConstants.DTABLESPACES);
+		long candidate = -1L;
 		for(int i = 0; i < nkeys; i++) {
 			if(i == index) continue;
-			if( !locs[i].equals(Optr.emptyPointer) && GlobalDBIO.getTablespace(locs[i].getBlock()) == tbsp ) {
-				ablk = sdbio.findOrAddBlock(locs[i].getBlock());
-				assert(!ablk.getBlk().isKeypage()) : "Attempt to insert to keyPage "+ablk;
-				short xbytesUsed = ablk.getBlk().getBytesused();
-				if( xbytesUsed < bytesUsed ) {
-					// eligible
-					blockNum = ablk.getBlockNum();
-					bytesUsed = xbytesUsed;
-					break;
-				}
-				ablk.decrementAccesses();
+			if( !locs[i].equals(Optr.emptyPointer) && GlobalDBIO.getTablespace(locs[i].getBlock()) == tbsp && 
+					alloc.hasRoom(locs[i].getBlock(), size) ) {
+				candidate = locs[i].getBlock();
+				break;
+			}
+		}
+		if( candidate == -1L )
+			candidate = alloc.findRoom(tbsp, size);
+		while( candidate != -1L ) {
+			ablk = sdbio.findOrAddBlock(candidate);
+			Datablock d = ablk.getBlk();
+			if( !d.isKeypage() && !FreeBlockAllocator.isFree(d) && d.getNextblk() == -1L && 
+					DBPhysicalConstants.DATASIZE - d.getBytesused() >= size ) {
+				// eligible
+				blockNum = candidate;
+				bytesUsed = d.getBytesused();
+				break;
 			}
+			alloc.setRoom(candidate, d.isKeypage() || FreeBlockAllocator.isFree(d) || d.getNextblk() != -1L ? 0 : DBPhysicalConstants.DATASIZE - d.getBytesused());
+			ablk.decrementAccesses();
+			candidate = alloc.findRoom(tbsp, size);
 		}
 		// come up empty?
 		if (blockNum == -1L) {
@@ -237,113 +332,176 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 			bytesUsed = ablk.getBlk().getBytesused();
 		}
 		assert( !ablk.getBlk().isKeypage() ) : "Attempt to obtain new insert position on key page:"+ablk+" "+ablk.getBlk();
+		alloc.setRoom(blockNum, DBPhysicalConstants.DATASIZE - bytesUsed - size);
 		if( NEWNODEPOSITIONDEBUG )
-			System.out.println("MappedBlockBuffer.getNewNodePosition "+blockNum+" "+bytesUsed);
+			System.out.println("MappedBlockBuffer.getNewNodePosition "+blockNum+" "+bytesUsed+" size "+size);
 		return new Optr(blockNum, bytesUsed);
 	}
 	/**
-	* Attempt to free pool blocks by the following:
-	* we will try to allocate at least 1 free block if size is 0, if we cant, throw exception
-	* If we must sweep buffer, try to fee up to minBufferSize
-	* We collect the elements and then transfer them from used to free block list
-	* 1) Try and roll through the buffer finding 0 access blocks
-	* 2) if 0 access block found, check if its in core, written and then deallocated but not written
-	* 3) If its in core and not in log, write the log then the block
-	* 4) If BOTH in core and in log, throw an exception, should NEVER be in core and under write.
-	* 5) If it is not the 0 index block per tablespace then add it to list of blocks to remove
-	* 6) check whether minimum blocks to recover reached, if so continue to removal
-	* 7) If no blocks reached at end, an error must be thrown
-	* 
+	* Make room in the pool for one more block when it is full, using CLOCK replacement.
+	* Every BlockAccessIndex the pool owns sits in a fixed ring, and each carries a weight that is raised when
+	* the block is loaded or found in the pool, key pages to KEYPAGEWEIGHT and data blocks to DATAWEIGHT.
+	* The hand sweeps the ring lowering the weights of the blocks it passes, and the first resident block it finds
+	* with no weight left that is not pinned becomes the victim. Key pages are thereby kept longer, but are not
+	* exempt. A block latched more than once is pinned and passed over, as is the root at block 0.
+	* Each block is passed at most KEYPAGEWEIGHT+1 times before it is chosen, so the cost is O(1) amortized.<p>
+	* A dirty victim, in core and not in the log, is not written here. It is handed to a write back on our
+	* worker thread, which cleans it along with the blocks just ahead of the hand, and the sweep goes on to the
+	* next clean frame. Once minBufferSize victims are waiting on the write back, or the sweep finds nothing
+	* clean, the first dirty victim is written to the log here and freed, so inserts stall on the log only
+	* when the write back cannot keep up.
+	* @param Lbn The block about to be added, never chosen
+	* @exception IOException If every block in the pool is pinned, or the log write fails
 	*/
 	public synchronized void checkBufferFlush(long Lbn) throws IOException {
-			int latched = 0;
-			int bufSize = this.size();
-			if( bufSize < POOLBLOCKS )
+			if( this.size() < POOLBLOCKS )
 				return;
-			Enumeration<BlockAccessIndex> elbn = this.elements();
-			int numGot = 0;
-			BlockAccessIndex[] found = new BlockAccessIndex[minBufferSize];// our candidates
-			while (elbn.hasMoreElements()) {
-				BlockAccessIndex ebaii = (elbn.nextElement());
-				if( DEBUG ) {
-					System.out.println("MappedBlockBuffer.checkBufferFlush Block buffer "+ebaii);
-					if( ebaii.getAccesses() > 1 )
-						System.out.println("****COMMIT BUFFER access "+ebaii.getAccesses()+" for buffer "+ebaii);
-				}
+			int pinned = 0;
+			BlockAccessIndex dirtyVictim = null;
+			int limit = clockRing.length * (KEYPAGEWEIGHT + 1);
+			for(int i = 0; i < limit; i++) {
+				BlockAccessIndex ebaii = clockRing[clockHand];
+				clockHand = (clockHand + 1) % clockRing.length;
+				// on the free list
+				if( get(ebaii.getBlockNum()) != ebaii )
+					continue;
 				assert(!(ebaii.getBlk().isIncore() && ebaii.getBlk().isInlog())) : "****COMMIT BUFFER block in core and log simultaneously! "+ebaii;
-				if (Lbn != ebaii.getBlockNum() && ebaii.getAccesses() <= 1) {
-					if(ebaii.getBlk().isIncore()) {
-						continue; // cant throw out this one
-						//ioManager.getUlog(tablespace).writeLog(ebaii); // will set incore, inlog, and push to raw store via applyChange of Loggable
-						//throw new IOException("Accesses 0 but incore true " + ebaii);
-					}
-					// Try not to toss page blocks
-					if( ebaii.getBlk().isKeypage() )
-						continue;
-					found[numGot] = ebaii;
-					if( ++numGot == minBufferSize ) {
-						break;
-					}
-				} else {
-					if( DEBUG )
-						if( ebaii.getAccesses() > 1 ) System.out.println("FLUSH:"+ebaii);
-					++latched;
-				}
-			}
-			//
-			// We found none this way, proceed to look for accessed blocks
-			int latched2 = 0;
-			if( numGot == 0 ) {
-				elbn = this.elements();
-				while (elbn.hasMoreElements()) {
-					BlockAccessIndex ebaii = (elbn.nextElement());
+				// Dont toss block at 0,0. its our BTree root and we will most likely need it soon
+				if( Lbn == ebaii.getBlockNum() || ebaii.getBlockNum() == 0L || ebaii.getAccesses() > 1 ) {
 					if( DEBUG )
-						System.out.println("MappedBlockBuffer.checkBufferFlush PHASE II Block buffer "+ebaii+" "+this);
-					if(Lbn != ebaii.getBlockNum() && ebaii.getAccesses() == 1) {
-						if(ebaii.getBlk().isIncore() && !ebaii.getBlk().isInlog()) {
-							if( DEBUG )
-								System.out.println("MappedBlockBuffer.checkBufferFlush set to write pool entry to log "+ebaii);
-							ioManager.getUlog(tablespace).writeLog(ebaii); // will set incore, inlog, and push to raw store via applyChange of Loggable
-							//throw new IOException("Accesses 0 but incore true " + ebaii);
-						}
-						
-						// Dont toss block at 0,0. its our BTree root and we will most likely need it soon
-						// other key pages may have to go
-						if( ebaii.getBlockNum() == 0L )
-							continue;
-						found[numGot] = ebaii;
-						if( ++numGot == minBufferSize ) {
-							break;
-						}
-					} else {
-						++latched2;
-					}
+						System.out.println("MappedBlockBuffer.checkBufferFlush pinned "+ebaii);
+					++pinned;
+					continue;
 				}
-				if( numGot == 0 ) {
-					if( DEBUG ) {
-						Enumeration elems = this.elements();
-						while(elems.hasMoreElements())
-							System.out.println(elems.nextElement());
+				if( ebaii.sweep() > 0 )
+					continue;
+				if( ebaii.getBlk().isIncore() && !ebaii.getBlk().isInlog() ) {
+					if( deferredVictims.size() < minBufferSize ) {
+						if( DEBUG )
+							System.out.println("MappedBlockBuffer.checkBufferFlush handing pool entry to write back "+ebaii);
+						if( !deferredVictims.contains(ebaii) )
+							deferredVictims.add(ebaii);
+						if( dirtyVictim == null )
+							dirtyVictim = ebaii;
+						scheduleWriteBack();
+						continue;
 					}
-					throw new IOException("INCREASE BUFFER POOL SIZE. Unable to free up blocks with "+latched+" singley and "+latched2+" MULTIPLY latched.");
+					writeVictim(ebaii);
 				}
+				evict(ebaii);
+				return;
 			}
-			
-			for(int i = 0; i < numGot; i++) {
-				if( found[i] != null ) {				
-					this.remove(found[i].getBlockNum());
-					// reset all to zero before re-freechain
-					found[i].resetBlock(true); // clear access latch true
-					freeBL.add(found[i]);
-				}
+			// nothing clean to take, write the first dirty victim ourselves if it is still there to take
+			if( dirtyVictim != null && get(dirtyVictim.getBlockNum()) == dirtyVictim && dirtyVictim.getAccesses() <= 1 ) {
+				if( dirtyVictim.getBlk().isIncore() && !dirtyVictim.getBlk().isInlog() )
+					writeVictim(dirtyVictim);
+				evict(dirtyVictim);
+				return;
 			}
-
+			if( DEBUG ) {
+				Enumeration<BlockAccessIndex> elems = this.elements();
+				while(elems.hasMoreElements())
+					System.out.println(elems.nextElement());
+			}
+			throw new IOException("INCREASE BUFFER POOL SIZE. Unable to free up blocks with "+pinned+" pinned in "+clockRing.length+" passes.");
+	}
+	/**
+	 * Write a dirty victim to the log on the thread making room, the write back having fallen behind.
+	 * @param ebaii
+	 * @throws IOException If the log write fails
+	 */
+	private void writeVictim(BlockAccessIndex ebaii) throws IOException {
+		if( DEBUG )
+			System.out.println("MappedBlockBuffer.checkBufferFlush set to write pool entry to log "+ebaii);
+		ioManager.getUlog(tablespace).writeLog(ebaii); // will set incore, inlog, and push to raw store via applyChange of Loggable
+		++syncWriteBacks;
+		scheduleWriteBack();
+	}
+	/**
+	 * Take a clean victim out of the pool and put it back on the free list.
+	 * @param ebaii
+	 */
+	private void evict(BlockAccessIndex ebaii) {
+		if( DEBUG )
+			System.out.println("MappedBlockBuffer.checkBufferFlush evicting "+ebaii);
+		this.remove(ebaii.getBlockNum());
+		deferredVictims.remove(ebaii);
+		// reset all to zero before re-freechain
+		ebaii.resetBlock(true); // clear access latch true
+		ebaii.clearUsage();
+		freeBL.add(ebaii);
+	}
+	/**
+	 * Queue a write back to our worker thread unless one is already waiting.
+	 */
+	private void scheduleWriteBack() {
+		if( writeBackPending )
+			return;
+		writeBackPending = true;
+		if( !requestQueue.offer(new WriteBackRequest(this)) )
+			writeBackPending = false;
+	}
+	/**
+	 * Write the dirty blocks the hand will reach next to the log, so they can be replaced without a log write
+	 * when it gets there. Called on our worker thread by a WriteBackRequest; the log manager and block stream are
+	 * obtained by the caller before we take the pool monitor.
+	 * We first clean the dirty victims the sweep handed us, then look at the next minBufferSize blocks ahead
+	 * of the hand and clean those that are unpinned and dirty, which are the ones the next sweeps will reach.<p>
+	 * We run beside the transaction, which holds our monitor for each write to a block but not for the whole
+	 * of a page or object it is writing. The block it is in the middle of is the one the block stream of the
+	 * tablespace is positioned on, and we pass over it so as not to log an image that is half written.
+	 * The other dirty blocks are whole until the writer comes back to them, which it does through us.
+	 * @param rlm The recovery log manager for our tablespace
+	 * @param bks The block stream of our tablespace
+	 * @return The number of blocks written
+	 * @throws IOException If the log write fails
+	 */
+	public synchronized int writeBack(RecoveryLogManager rlm, BlockStream bks) throws IOException {
+		writeBackPending = false;
+		int written = 0;
+		int slot = clockHand;
+		BlockAccessIndex current = bks.getBlockAccessIndex();
+		for(BlockAccessIndex ebaii : deferredVictims) {
+			if( get(ebaii.getBlockNum()) != ebaii || ebaii.getAccesses() > 1 || ebaii == current )
+				continue;
+			if( ebaii.getBlk().isIncore() && !ebaii.getBlk().isInlog() ) {
+				rlm.writeLog(ebaii);
+				++written;
+			}
+		}
+		deferredVictims.clear();
+		for(int i = 0; i < minBufferSize && i < clockRing.length; i++) {
+			BlockAccessIndex ebaii = clockRing[slot];
+			slot = (slot + 1) % clockRing.length;
+			if( get(ebaii.getBlockNum()) != ebaii || ebaii.getBlockNum() == 0L || ebaii.getAccesses() > 1 || ebaii == current )
+				continue;
+			if( ebaii.getBlk().isIncore() && !ebaii.getBlk().isInlog() ) {
+				rlm.writeLog(ebaii);
+				++written;
+			}
+		}
+		if( DEBUG )
+			System.out.println("MappedBlockBuffer.writeBack wrote "+written+" "+this);
+		return written;
+	}
+	/**
+	 * @return The number of dirty victims the replacement sweep had to write to the log itself
+	 */
+	public synchronized long getSyncWriteBacks() {
+		return syncWriteBacks;
 	}
 	/**
 	 * Commit all outstanding blocks in the buffer.
-	 * @throws IOException
+	 * The dirty blocks are written through the log and unlatched, and every block stays in the pool, so the
+	 * pages of one transaction, the key pages above all, are still there for the next one and the clock
+	 * replaces them as it would any other. The commit that follows ends the transaction in the log, so no block is left marked as in it.
+	 * The hit and miss counts likewise carry on across transactions.
+	 * The room left in each data block written is recorded in the free space map, and the blocks the
+	 * transaction freed that are still free are reclaimed by it.
+	 * @throws IOException If a block is latched by someone else or the log write fails
 	 */
 	public synchronized void commitBufferFlush(RecoveryLogManager rlm) throws IOException {
+		FreeBlockAllocator alloc = ioManager.getFreeBlockAllocator();
 		Enumeration<BlockAccessIndex> elbn = this.elements();
 		while (elbn.hasMoreElements()) {
 				BlockAccessIndex ebaii = (elbn.nextElement());
@@ -351,25 +509,22 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 					throw new IOException("****COMMIT BUFFER access "+ebaii.getAccesses()+" for buffer "+ebaii);
 				if(ebaii.getBlk().isIncore() && ebaii.getBlk().isInlog())
 					throw new IOException("****COMMIT BUFFER block in core and log simultaneously! "+ebaii);
-				if (ebaii.getAccesses() < 2) {
-					if(ebaii.getBlk().isIncore() && !ebaii.getBlk().isInlog()) {
-						//ioManager.getUlog(tablespace).writeLog(ebaii); 
-						// will set incore, inlog, and push to raw store via applyChange of Loggable
-						if( DEBUG )
-							System.out.println("MappedBlockBuffer.commitBufferFlush of block "+ebaii);
-						rlm.writeLog(ebaii);
-					}
-					ebaii.decrementAccesses();
-					ebaii.getBlk().resetBlock();
-					try {
-						freeBL.put(ebaii);
-					} catch (InterruptedException e) {}
+				if(ebaii.getBlk().isIncore() && !ebaii.getBlk().isInlog()) {
+					// will set incore, inlog, and push to raw store via applyChange of Loggable
+					if( DEBUG )
+						System.out.println("MappedBlockBuffer.commitBufferFlush of block "+ebaii);
+					if( !ebaii.getBlk().isKeypage() && !FreeBlockAllocator.isFree(ebaii.getBlk()) )
+						alloc.setRoom(ebaii.getBlockNum(), DBPhysicalConstants.DATASIZE - ebaii.getBlk().getBytesused());
+					rlm.writeLog(ebaii);
 				}
+				ebaii.getBlk().setInlog(false);
+				ebaii.decrementAccesses();
 		}
-		clear();
-		cacheHit = 0;
-		cacheMiss = 0;
-	
+		ArrayList<Long> freed = new ArrayList<Long>();
+		for(Long vblock : alloc.getPendingFree(tablespace))
+			if( isFreeBlock(vblock) )
+				freed.add(vblock);
+		alloc.commit(tablespace, freed.toArray(new Long[freed.size()]));
 	}
 	/**
 	 * Commit all outstanding blocks in the buffer, bypassing the log subsystem. Should be used with forethought
@@ -436,6 +591,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		// ups access, set blockindex 0
 		bai.setBlockNumber(Lbn);
 		ioManager.FseekAndRead(Lbn, bai.getBlk());
+		bai.touch(bai.getBlk().isKeypage() ? KEYPAGEWEIGHT : DATAWEIGHT);
 		put(Lbn, bai);
 		if( DEBUG ) {
 				System.out.println("MappedBlockBuffer.addBlockAccess "+GlobalDBIO.valueOf(Lbn)+" returning after freeBL take "+bai+" "+this);
@@ -452,14 +608,22 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		if( DEBUG ) {
 			System.out.println("MappedBlockBuffer.addBlockAccessNoRead "+GlobalDBIO.valueOf(Lbn)+" "+this);
 		}
+		// a reclaimed block may still be in the pool from its last use, take over its entry rather than orphan it
+		BlockAccessIndex bai = get(Lbn);
+		if( bai != null ) {
+			// ups the access latch, fails if someone else has it latched
+			bai.setBlockNumber(Lbn);
+			bai.touch(DATAWEIGHT);
+			return bai;
+		}
 		// make sure we have open slots
 		checkBufferFlush(Lbn);
-		BlockAccessIndex bai = null;
 		try {
 			bai = freeBL.take();
 		} catch (InterruptedException e) {}
 		// ups the access latch, set byteindex to 0
 		bai.setBlockNumber(Lbn);
+		bai.touch(DATAWEIGHT);
 		put(Lbn, bai);
 		if( DEBUG ) {
 			System.out.println("MappedBlockBuffer.addBlockAccessNoRead "+GlobalDBIO.valueOf(Lbn)+" returning after freeBL take "+bai+" "+this);
@@ -482,6 +646,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		} else {
 			++cacheHit;
 			bai.setByteindex((short) 0);
+			bai.touch(bai.getBlk().isKeypage() ? KEYPAGEWEIGHT : DATAWEIGHT);
 		}
 		return bai;
 
@@ -524,7 +689,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		int i = offs, runcount = numbyte, blkbytes;
 		// see if we need the next block to start
 		// and flag our position
-		if (lbai.getByteindex() >= lbai.getBlk().getBytesused()-1)
+		if (lbai.getByteindex() >= lbai.getBlk().getBytesused())
 			if((tblk=getnextblk(lbai)) != null) {
 				lbai=tblk;
 			} else {
@@ -576,7 +741,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		int i = 0, runcount = numbyte, blkbytes;
 		// see if we need the next block to start
 		// and flag our position
-		if (lbai.getByteindex() >= lbai.getBlk().getBytesused()-1)
+		if (lbai.getByteindex() >= lbai.getBlk().getBytesused())
 			if((tblk=getnextblk(lbai)) != null) {
 				lbai=tblk;
 			} else {
@@ -614,7 +779,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		BlockAccessIndex tblk;
 		// see if we need the next block to start
 		// and flag our position
-		if (lbai.getByteindex() >= lbai.getBlk().getBytesused()-1) {
+		if (lbai.getByteindex() >= lbai.getBlk().getBytesused()) {
 			if((tblk=getnextblk(lbai)) == null) {
 				return -1;
 			}
@@ -677,9 +842,9 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 				tblk.setByteindex((short) (tblk.getByteindex() + runcount));
 				i += runcount;
 				if (tblk.getByteindex() > tblk.getBlk().getBytesused()) {
-					//update control info
+					//update control info, the bytes appended are in use as well as those not deleted before them
+					tblk.getBlk().setBytesinuse((short)(tblk.getBlk().getBytesinuse() + tblk.getByteindex() - tblk.getBlk().getBytesused()));
 					tblk.getBlk().setBytesused(tblk.getByteindex());
-					tblk.getBlk().setBytesinuse(tblk.getBlk().getBytesused());
 				}
 				tblk.getBlk().setIncore(true);
 				tblk.getBlk().setInlog(false);
@@ -733,9 +898,9 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 				tblk.setByteindex((short) (tblk.getByteindex() + runcount));
 				i += runcount;
 				if (tblk.getByteindex() >= tblk.getBlk().getBytesused()) {
-					//update control info
+					//update control info, the bytes appended are in use as well as those not deleted before them
+					tblk.getBlk().setBytesinuse((short)(tblk.getBlk().getBytesinuse() + tblk.getByteindex() - tblk.getBlk().getBytesused()));
 					tblk.getBlk().setBytesused(tblk.getByteindex());
-					tblk.getBlk().setBytesinuse(tblk.getBlk().getBytesused());
 				}
 				tblk.getBlk().setIncore(true);
 				tblk.getBlk().setInlog(false);
@@ -770,8 +935,8 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 		tblk.setByteindex((short) (tblk.getByteindex() + 1));
 		if (tblk.getByteindex() > tblk.getBlk().getBytesused()) {
 			//update control info
+			tblk.getBlk().setBytesinuse((short)(tblk.getBlk().getBytesinuse() + tblk.getByteindex() - tblk.getBlk().getBytesused()));
 			tblk.getBlk().setBytesused( tblk.getByteindex()) ;
-			tblk.getBlk().setBytesinuse(tblk.getBlk().getBytesused());
 		}
 	}
 
@@ -800,6 +965,7 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 				throw new IOException(this.toString() + " "+lbai+" negative bytesinuse from runcount:"+runcount+" delete size:"+osize);
 			lbai.getBlk().setIncore(true);
 			lbai.getBlk().setInlog(false);
+			reclaim(lbai);
 			return;
 		}
 		//
@@ -842,11 +1008,14 @@ public class MappedBlockBuffer extends ConcurrentHashMap<Long, BlockAccessIndex>
 				if(tblk == null)
 					throw new IOException(
 						"Attempted delete past end of block chain for "+ osize + " bytes total, with remaining runcount "+runcount+" in "+ lbai);
-				// we have to unlink this from the next block
+				// we have to unlink this from the next block, and the next block from this
 				lbai.getBlk().setNextblk(-1L);
+				reclaim(lbai);
+				tblk.getBlk().setPrevblk(-1L);
 				lbai = tblk;
 				lbai.setByteindex((short) 0);// start at the beginning of the next block to continue delete, or whatever
-			}
+			} else
+				reclaim(lbai);
 		} while( runcount > 0); // while we still have more to delete
 	}
 	
@@ -1,13 +1,14 @@
 package com.neocoretechs.bigsack.io.pooled;
 
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
+import java.io.InputStream;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
 import com.neocoretechs.bigsack.io.Optr;
-//import com.neocoretechs.bigsack.io.stream.CObjectInputStream;
-import com.neocoretechs.bigsack.io.stream.CObjectInputStream;
+import com.neocoretechs.bigsack.io.stream.CompactSerializer;
+import com.neocoretechs.bigsack.io.stream.ObjectSerializer;
 import com.neocoretechs.bigsack.session.SessionManager;
 /**
 * Create the block IO and up through the chain to global IO. After constructing, create an IO manager of the proper
@@ -39,6 +40,8 @@ public final class ObjectDBIO extends GlobalDBIO {
 	// Are we using custom class loader for serialized versions?
 	private boolean isCustomClassLoader;
 	private ClassLoader customClassLoader;
+	// converts keys and values to and from block bytes, the CompactSerializer unless one is set
+	private ObjectSerializer serializer = null;
 	/**
 	* delete_object and potentially reclaim space
 	* @param loc Location of object
@@ -50,6 +53,27 @@ public final class ObjectDBIO extends GlobalDBIO {
 		ioManager.objseek(loc);
 		ioManager.deleten(loc, osize);
 	}
+	/**
+	* Delete a key or value stored by serializeObject. The object is read back with the serializer and
+	* the bytes it consumed are the ones freed, so we free what was stored whether it was written in the compact form
+	* or, in a database from before it, with Java serialization, whatever the serializer would make of the object now.
+	* @param loc Location of object
+	* @exception IOException if the block cannot be sought, read or written
+	*/
+	public synchronized void delete_object(Optr loc) throws IOException {
+		int tblsp = ioManager.objseek(loc);
+		CountingInputStream cis = new CountingInputStream(ioManager.getBlockStream(tblsp).getDBInput());
+		try {
+			getSerializer().deserialize(cis);
+		} catch (IOException ioe) {
+			throw new IOException(
+				"delete_object: "
+					+ ioe.toString()
+					+ ": Class Unreadable, size of object to free unknown "
+					+ loc+" in "+getDBName());
+		}
+		delete_object(loc, (int) cis.getCount());
+	}
 	
 	/**
 	 * Add an object, which in this case is a load of bytes.
@@ -96,26 +120,10 @@ public final class ObjectDBIO extends GlobalDBIO {
 					+GlobalDBIO.valueOf(iloc)+" current block "+ioManager.getBlockStream(tblsp));
 		Object Od = null;
 		try {
-
-			ObjectInput s;
 			ioManager.objseek(iloc);
-			if (isCustomClassLoader())
-				s =	new CObjectInputStream(
-						ioManager.getBlockStream(tblsp).getDBInput(),
-						getCustomClassLoader());
-			else
-				s = new ObjectInputStream(ioManager.getBlockStream(tblsp).getDBInput());
-			Od = s.readObject();
-			s.close();		
-			/*
-			int tblsp = GlobalDBIO.getTablespace(iloc);
-			DBSeekableByteChannel dbByteChannel = getDBByteChannel(tblsp);
-			dbByteChannel.setBlockNumber(iloc);
-			if(DEBUG)
-				System.out.print(" Deserialize "+GlobalDBIO.valueOf(iloc)+" current block "+getBlockIndex()+" DUMP:"+getBlockIndex().getBlk().blockdump());
-			Od = GlobalDBIO.deserializeObject(dbByteChannel);
-			*/
-		} catch (IOException | ClassNotFoundException ioe) {
+			DataInputStream dis = ioManager.getBlockStream(tblsp).getDBInput();
+			Od = getSerializer().deserialize(dis);
+		} catch (IOException ioe) {
 			throw new IOException(
 				"deserializeObject from long: "
 					+ ioe.toString()
@@ -140,20 +148,10 @@ public final class ObjectDBIO extends GlobalDBIO {
 			System.out.print(" Deserialize "
 					+iloc+" current block "+ioManager.getBlockStream(tblsp));
 		try {
-			ObjectInput s;
 			ioManager.objseek(iloc);
-			if (isCustomClassLoader())
-				s =	new CObjectInputStream(ioManager.getBlockStream(tblsp).getDBInput(), getCustomClassLoader());
-			else
-				s = new ObjectInputStream(ioManager.getBlockStream(tblsp).getDBInput());
-			Od = s.readObject();
-			s.close();	
-			/*
-			DBSeekableByteChannel dbByteChannel = getDBByteChannel(tblsp);
-			dbByteChannel.setBlockNumber(iloc.getBlock());
-			Od = GlobalDBIO.deserializeObject(dbByteChannel);
-			*/
-		} catch (IOException | ClassNotFoundException ioe) {
+			DataInputStream dis = ioManager.getBlockStream(tblsp).getDBInput();
+			Od = getSerializer().deserialize(dis);
+		} catch (IOException ioe) {
 			throw new IOException(
 				"deserializeObject from pointer: "
 					+ ioe.toString()
@@ -170,6 +168,7 @@ public final class ObjectDBIO extends GlobalDBIO {
 
 	public synchronized void setCustomClassLoader(boolean isCustomClassLoader) {
 		this.isCustomClassLoader = isCustomClassLoader;
+		resetDefaultSerializer();
 	}
 
 	public synchronized ClassLoader getCustomClassLoader() {
@@ -178,6 +177,78 @@ public final class ObjectDBIO extends GlobalDBIO {
 
 	public synchronized void setCustomClassLoader(ClassLoader customClassLoader) {
 		this.customClassLoader = customClassLoader;
+		resetDefaultSerializer();
+	}
+	/**
+	 * The default serializer picks up the class loader settings the next time it is needed.
+	 */
+	private void resetDefaultSerializer() {
+		if( serializer != null && serializer.getClass() == CompactSerializer.class )
+			serializer = null;
+	}
+	/**
+	 * @return The serializer for the keys and values of this database, by default a CompactSerializer
+	 * using our custom class loader if we have one
+	 */
+	public synchronized ObjectSerializer getSerializer() {
+		if( serializer == null )
+			serializer = new CompactSerializer(isCustomClassLoader ? customClassLoader : null);
+		return serializer;
+	}
+	/**
+	 * Replace the serializer for the keys and values of this database. It must read anything already stored.
+	 * @param serializer The new serializer, null to revert to the default
+	 */
+	public synchronized void setSerializer(ObjectSerializer serializer) {
+		this.serializer = serializer;
+	}
+	/**
+	 * Convert a key or value to the bytes we store for it using the serializer of this database.
+	 * Nothing goes ahead of the encoding, the stored bytes are the encoding as they always were.
+	 * @param o The key or value
+	 * @return The encoding
+	 * @throws IOException
+	 */
+	public synchronized byte[] serializeObject(Object o) throws IOException {
+		return getSerializer().serialize(o);
+	}
+	/**
+	 * Counts the bytes a deserializer takes from the block stream, which is the size of the stored object
+	 * as the encodings are self delimiting.
+	 */
+	private static final class CountingInputStream extends FilterInputStream {
+		private long count = 0L;
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if( b != -1 )
+				++count;
+			return b;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if( n > 0 )
+				count += n;
+			return n;
+		}
+		@Override
+		public long skip(long n) throws IOException {
+			long s = in.skip(n);
+			if( s > 0 )
+				count += s;
+			return s;
+		}
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+		long getCount() {
+			return count;
+		}
 	}
 	
 }
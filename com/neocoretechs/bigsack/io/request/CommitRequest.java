@@ -44,15 +44,20 @@ public final class CommitRequest implements IoRequestInterface {
 		if( DEBUG  )
 			System.out.println("CommitRequest.process "+blockManager+" "+barrierSynch+" "+barrierCount);
 		blockManager.commitBufferFlush(recoveryLog);
+		// the blocks a bulk load wrote around the log must be on disk before the commit record says they are there
+		if( blockManager.getIoManager().getFreeBlockAllocator().isUnlogged(tablespace) )
+			ioManager.Fforce();
+		int arrival = 0;
 		try {
 			if( DEBUG  )
 				System.out.println("CommitRequest.process "+blockManager+" awaiting barrier "+barrierSynch);
-			barrierSynch.await();
+			arrival = barrierSynch.await();
 		} catch (InterruptedException |  BrokenBarrierException e) {
 			// executor requests shutdown
 		}
-		// all buffers flushed, call commit
-		recoveryLog.commit();
+		// all buffers flushed, call commit. A shared log is committed once, by the last tablespace to arrive
+		if( !recoveryLog.isShared() || arrival == 0 )
+			recoveryLog.commit();
 		// if we have local io manager that has file ops, call the close
 		//if( ioManager != null ) {
 		//	ioManager.Fclose();
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 
 import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.PositionalIoInterface;
 import com.neocoretechs.bigsack.io.pooled.Datablock;
 
 public final class FSeekAndReadFullyRequest implements IoRequestInterface {
@@ -38,6 +39,10 @@ public final class FSeekAndReadFullyRequest implements IoRequestInterface {
 							+ String.valueOf(toffset)
 							+ " "
 							+ tblk);
+		if( ioUnit instanceof PositionalIoInterface ) {
+			tblk.read((PositionalIoInterface)ioUnit, offset);
+			return;
+		}
 		synchronized(ioUnit) {
 		ioUnit.Fseek(offset);
 		tblk.read(ioUnit);
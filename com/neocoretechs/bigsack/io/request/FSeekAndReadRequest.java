@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 
 import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.PositionalIoInterface;
 import com.neocoretechs.bigsack.io.pooled.Datablock;
 
 
@@ -36,8 +37,12 @@ public final class FSeekAndReadRequest implements IoRequestInterface {
 		if( DEBUG ) 
 			System.out.println("FseekAndRead in "+this.toString()+" ENTER");
 		
-		ioUnit.Fseek(offset);
-		dblk.readUsed(ioUnit);
+		if( ioUnit instanceof PositionalIoInterface ) {
+			dblk.read((PositionalIoInterface)ioUnit, offset);
+		} else {
+			ioUnit.Fseek(offset);
+			dblk.readUsed(ioUnit);
+		}
 			
 		//assert(dblk.getBytesused() > 0 ) : "FseekAndReadRequest block read bad for "+this+" "+dblk.blockdump();
 			
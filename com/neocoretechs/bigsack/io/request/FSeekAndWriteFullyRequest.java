@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 
 import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.PositionalIoInterface;
 import com.neocoretechs.bigsack.io.pooled.Datablock;
 /**
  * Request to seek a block within a tablespace and write the contents of a block buffer
@@ -32,8 +33,12 @@ public final class FSeekAndWriteFullyRequest implements IoRequestInterface {
 	 */
 	private void FseekAndWriteFully() throws IOException {
 		synchronized(ioUnit) {
-			ioUnit.Fseek(offset);
-			dblk.write(ioUnit);
+			if( ioUnit instanceof PositionalIoInterface ) {
+				dblk.write((PositionalIoInterface)ioUnit, offset);
+			} else {
+				ioUnit.Fseek(offset);
+				dblk.write(ioUnit);
+			}
 			ioUnit.Fforce();
 			dblk.setIncore(false);
 		}
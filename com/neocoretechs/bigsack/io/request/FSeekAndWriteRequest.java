@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 
 import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.PositionalIoInterface;
 import com.neocoretechs.bigsack.io.pooled.Datablock;
 import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
 /**
@@ -36,8 +37,12 @@ public final class FSeekAndWriteRequest implements IoRequestInterface {
 	 */
 	private void FseekAndWrite() throws IOException {
 		synchronized(ioUnit) {
-			ioUnit.Fseek(offset);
-			dblk.writeUsed(ioUnit);
+			if( ioUnit instanceof PositionalIoInterface ) {
+				dblk.writeUsed((PositionalIoInterface)ioUnit, offset);
+			} else {
+				ioUnit.Fseek(offset);
+				dblk.writeUsed(ioUnit);
+			}
 			ioUnit.Fforce();
 			dblk.setIncore(false);
 		}
@@ -0,0 +1,99 @@
+package com.neocoretechs.bigsack.io.request;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.io.FreeBlockAllocator;
+import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.pooled.Datablock;
+/**
+ * Rebuild part of the free space map of a tablespace by a forward scan of the block headers in a range of blocks.
+ * Queued a range at a time by the FreeSpaceScanner after an open that found no clean header, so requests for
+ * the tablespace are served between ranges while the map is rebuilt. The countdown latch releases the scanner.
+ * Copyright (C) NeoCoreTechs 2021
+ * @author jg
+ *
+ */
+public final class GetFreeSpaceRequest implements IoRequestInterface {
+	private final static boolean DEBUG = false;
+	private IoInterface ioUnit;
+	private Datablock d = new Datablock(DBPhysicalConstants.DATASIZE);
+	private int tablespace;
+	private CountDownLatch barrierCount;
+	private FreeBlockAllocator alloc;
+	private long startBlock;
+	private long endBlock;
+	private int scanned = 0;
+	/**
+	 * @param barrierCount The latch counted down when the scan is done
+	 * @param alloc The allocator whose map is filled in
+	 * @param startBlock The first block to scan, relative to the tablespace
+	 * @param endBlock The last block to scan, relative to the tablespace
+	 */
+	public GetFreeSpaceRequest(CountDownLatch barrierCount, FreeBlockAllocator alloc, long startBlock, long endBlock) {
+		this.barrierCount = barrierCount;
+		this.alloc = alloc;
+		this.startBlock = startBlock;
+		this.endBlock = endBlock;
+	}
+	@Override
+	public void process() throws IOException {
+		long stime = System.currentTimeMillis();
+		try {
+			getFreeSpace();
+		} finally {
+			barrierCount.countDown();
+		}
+		if( DEBUG )
+			System.out.println("GetFreeSpaceRequest "+this+" end in "+(System.currentTimeMillis()-stime)+" ms.");
+	}
+	/**
+	 * Read each block header in the range that lies within the file and hand it to the allocator.
+	 * The root node at block 0 of tablespace 0 is skipped.
+	 * @throws IOException If a seek or read fails
+	 */
+	private void getFreeSpace() throws IOException {
+		synchronized(ioUnit) {
+			long end = Math.min(endBlock + DBPhysicalConstants.DBLOCKSIZ, ioUnit.Fsize());
+			long start = (tablespace == 0 && startBlock == 0L ? DBPhysicalConstants.DBLOCKSIZ : startBlock);
+			for(long blk = start; blk < end; blk += DBPhysicalConstants.DBLOCKSIZ) {
+				ioUnit.Fseek(blk);
+				d.read(ioUnit);
+				alloc.scanned(tablespace, blk, d);
+				++scanned;
+			}
+		}
+	}
+	/**
+	 * @return The number of blocks scanned
+	 */
+	@Override
+	public long getLongReturn() {
+		return scanned;
+	}
+
+	@Override
+	public Object getObjectReturn() {
+		return Long.valueOf(scanned);
+	}
+	/**
+	 * This method is called by queueRequest to set the proper tablespace from IOManager
+	 * It is the default way to set the active IO unit
+	 */
+	@Override
+	public void setIoInterface(IoInterface ioi) {
+		this.ioUnit = ioi;
+	}
+	/**
+	 * This method also set by queueRequest
+	 */
+	@Override
+	public void setTablespace(int tablespace) {
+		this.tablespace = tablespace;
+	}
+	public String toString() {
+		return "GetFreeSpaceRequest for tablespace "+tablespace+" blocks "+startBlock+" to "+endBlock+" scanned "+scanned;
+	}
+
+}
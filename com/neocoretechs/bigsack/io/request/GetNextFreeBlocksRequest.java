@@ -6,6 +6,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.io.FreeBlockAllocator;
 import com.neocoretechs.bigsack.io.IoInterface;
 import com.neocoretechs.bigsack.io.pooled.Datablock;
 import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
@@ -60,7 +61,7 @@ public final class GetNextFreeBlocksRequest implements IoRequestInterface {
 			while (endBl > endBlock) {
 				ioUnit.Fseek(endBl - (long) DBPhysicalConstants.DBLOCKSIZ);
 				d.read(ioUnit);
-				if (d.getPrevblk() == -1L && d.getNextblk() == -1L && d.getBytesinuse() == 0) {
+				if (FreeBlockAllocator.isFree(d)) {
 					endBl -= (long) DBPhysicalConstants.DBLOCKSIZ;
 				} else {
 					nextFreeBlock = endBl - DBPhysicalConstants.DBLOCKSIZ;
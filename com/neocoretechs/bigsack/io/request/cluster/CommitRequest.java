@@ -59,15 +59,17 @@ public final class CommitRequest extends AbstractClusterWork implements Completi
 		if( DEBUG  )
 			System.out.println("CommitRequest.process "+blockManager+" "+barrierSynch+" "+barrierCount);
 		blockManager.commitBufferFlush(recoveryLog);
+		int arrival = 0;
 		try {
 			if( DEBUG  )
 				System.out.println("CommitRequest.process "+blockManager+" awaiting barrier "+barrierSynch);
-			barrierSynch.await();
+			arrival = barrierSynch.await();
 		} catch (InterruptedException |  BrokenBarrierException e) {
 			// executor requests shutdown
 		}
-		// all buffers flushed, call commit
-		recoveryLog.commit();
+		// all buffers flushed, call commit. A shared log is committed once, by the last tablespace to arrive
+		if( !recoveryLog.isShared() || arrival == 0 )
+			recoveryLog.commit();
 		// if we have local io manager that has file ops, call the close
 		//if( ioManager != null )
 		//	ioManager.Fclose();
@@ -0,0 +1,82 @@
+package com.neocoretechs.bigsack.io.request.iomanager;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+import com.neocoretechs.bigsack.io.IoInterface;
+import com.neocoretechs.bigsack.io.RecoveryLogManager;
+import com.neocoretechs.bigsack.io.pooled.BlockStream;
+import com.neocoretechs.bigsack.io.pooled.MappedBlockBuffer;
+import com.neocoretechs.bigsack.io.request.cluster.CompletionLatchInterface;
+/**
+ * Queued by the MappedBlockBuffer to itself when its replacement sweep has had to write a dirty victim to the log.
+ * Processed on the block pool worker thread, it writes the dirty blocks just ahead of the clock hand so the
+ * sweeps that follow find clean ones. Nobody waits on it, so there is no latch, and a failure is reported
+ * rather than thrown so the worker thread keeps running; the blocks stay dirty and the sweep writes them itself.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public final class WriteBackRequest implements CompletionLatchInterface {
+	private static boolean DEBUG = false;
+	private int tablespace;
+	private MappedBlockBuffer blockBuffer;
+	public WriteBackRequest(MappedBlockBuffer blockBuffer) {
+		this.blockBuffer = blockBuffer;
+	}
+	@Override
+	public void process() throws IOException {
+		// get the log manager and block stream before we take the pool monitor
+		RecoveryLogManager rlm = blockBuffer.getIoManager().getUlog(tablespace);
+		BlockStream bks = blockBuffer.getIoManager().getBlockStream(tablespace);
+		try {
+			int written = blockBuffer.writeBack(rlm, bks);
+			if( DEBUG )
+				System.out.println("WriteBackRequest.process wrote "+written+" for tablespace "+tablespace);
+		} catch(IOException ioe) {
+			System.out.println("WriteBackRequest failed for tablespace "+tablespace+" "+ioe);
+		}
+	}
+
+	@Override
+	public long getLongReturn() {
+		return 0L;
+	}
+
+	@Override
+	public Object getObjectReturn() {
+		return null;
+	}
+	/**
+	 * This interface implemented method is called by IoWorker before processing
+	 */
+	@Override
+	public void setIoInterface(IoInterface ioi) {}
+	@Override
+	public void setTablespace(int tablespace) {
+		this.tablespace = tablespace;
+	}
+	
+	public String toString() {
+		return "WriteBackRequest for tablespace "+tablespace;
+	}
+	@Override
+	public CountDownLatch getCountDownLatch() {
+		return null;
+	}
+	@Override
+	public void setCountDownLatch(CountDownLatch cdl) {}
+	@Override
+	public void setLongReturn(long val) {	
+	}
+	@Override
+	public void setObjectReturn(Object o) {	
+	}
+	@Override
+	public CyclicBarrier getCyclicBarrier() {
+		return null;
+	}
+	@Override
+	public void setCyclicBarrier(CyclicBarrier cb) {}
+
+}
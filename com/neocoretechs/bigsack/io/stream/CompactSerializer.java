@@ -0,0 +1,217 @@
+package com.neocoretechs.bigsack.io.stream;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+/**
+ * The default ObjectSerializer. Boxed primitives, String, byte[] and UUID are written as a one byte type tag
+ * followed by their value, lengths as variable length unsigned ints, so a Long value takes 9 bytes rather than the
+ * 80 odd of an ObjectOutputStream with its header and class descriptor, and no stream is constructed for them.
+ * Anything else is written with Java serialization exactly as before.<p>
+ * A Java serialization stream always starts with the magic 0xACED, which none of our tags collide with, so on read
+ * that first byte tells us which we have and databases written before the compact form existed read as they always did.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public class CompactSerializer implements ObjectSerializer {
+	private static final byte NULL = 1;
+	private static final byte LONG = 2;
+	private static final byte INTEGER = 3;
+	private static final byte SHORT = 4;
+	private static final byte BYTE = 5;
+	private static final byte CHARACTER = 6;
+	private static final byte BOOLEAN = 7;
+	private static final byte DOUBLE = 8;
+	private static final byte FLOAT = 9;
+	private static final byte STRING = 10;
+	private static final byte BYTES = 11;
+	private static final byte UUIDOBJ = 12;
+	// first byte of ObjectStreamConstants.STREAM_MAGIC
+	private static final int JAVAMAGIC = 0xAC;
+	private ClassLoader customClassLoader = null;
+
+	public CompactSerializer() {}
+	/**
+	 * @param customClassLoader The loader used to resolve classes of Java serialized objects, null for the default
+	 */
+	public CompactSerializer(ClassLoader customClassLoader) {
+		this.customClassLoader = customClassLoader;
+	}
+
+	@Override
+	public byte[] serialize(Object o) throws IOException {
+		if( o == null )
+			return new byte[]{NULL};
+		Class<?> c = o.getClass();
+		ByteBuffer bb;
+		if( c == Long.class ) {
+			bb = ByteBuffer.allocate(9);
+			bb.put(LONG).putLong((Long)o);
+		} else if( c == String.class ) {
+			byte[] b = ((String)o).getBytes(StandardCharsets.UTF_8);
+			bb = ByteBuffer.allocate(1 + varIntSize(b.length) + b.length);
+			bb.put(STRING);
+			putVarInt(bb, b.length);
+			bb.put(b);
+		} else if( c == Integer.class ) {
+			bb = ByteBuffer.allocate(5);
+			bb.put(INTEGER).putInt((Integer)o);
+		} else if( c == byte[].class ) {
+			byte[] b = (byte[])o;
+			bb = ByteBuffer.allocate(1 + varIntSize(b.length) + b.length);
+			bb.put(BYTES);
+			putVarInt(bb, b.length);
+			bb.put(b);
+		} else if( c == UUID.class ) {
+			bb = ByteBuffer.allocate(17);
+			bb.put(UUIDOBJ).putLong(((UUID)o).getMostSignificantBits()).putLong(((UUID)o).getLeastSignificantBits());
+		} else if( c == Double.class ) {
+			bb = ByteBuffer.allocate(9);
+			bb.put(DOUBLE).putDouble((Double)o);
+		} else if( c == Float.class ) {
+			bb = ByteBuffer.allocate(5);
+			bb.put(FLOAT).putFloat((Float)o);
+		} else if( c == Short.class ) {
+			bb = ByteBuffer.allocate(3);
+			bb.put(SHORT).putShort((Short)o);
+		} else if( c == Character.class ) {
+			bb = ByteBuffer.allocate(3);
+			bb.put(CHARACTER).putChar((Character)o);
+		} else if( c == Byte.class ) {
+			bb = ByteBuffer.allocate(2);
+			bb.put(BYTE).put((Byte)o);
+		} else if( c == Boolean.class ) {
+			bb = ByteBuffer.allocate(2);
+			bb.put(BOOLEAN).put((byte) (((Boolean)o) ? 1 : 0));
+		} else
+			return serializeJava(o);
+		return bb.array();
+	}
+
+	@Override
+	public Object deserialize(InputStream is) throws IOException {
+		int tag = is.read();
+		if( tag == -1 )
+			throw new EOFException("CompactSerializer.deserialize end of stream reading tag");
+		if( tag == JAVAMAGIC ) {
+			PushbackInputStream pis = new PushbackInputStream(is, 1);
+			pis.unread(tag);
+			return deserializeJava(pis);
+		}
+		DataInputStream dis = new DataInputStream(is);
+		switch((byte)tag) {
+			case NULL:
+				return null;
+			case LONG:
+				return dis.readLong();
+			case STRING:
+				byte[] s = new byte[readVarInt(dis)];
+				dis.readFully(s);
+				return new String(s, StandardCharsets.UTF_8);
+			case INTEGER:
+				return dis.readInt();
+			case BYTES:
+				byte[] b = new byte[readVarInt(dis)];
+				dis.readFully(b);
+				return b;
+			case UUIDOBJ:
+				return new UUID(dis.readLong(), dis.readLong());
+			case DOUBLE:
+				return dis.readDouble();
+			case FLOAT:
+				return dis.readFloat();
+			case SHORT:
+				return dis.readShort();
+			case CHARACTER:
+				return dis.readChar();
+			case BYTE:
+				return dis.readByte();
+			case BOOLEAN:
+				return dis.readByte() != 0;
+			default:
+				throw new IOException("CompactSerializer.deserialize unknown type tag "+tag);
+		}
+	}
+	/**
+	 * Java serialization of the object, trimmed to the length written.
+	 * @param o
+	 * @return The serialized bytes
+	 * @throws IOException
+	 */
+	protected byte[] serializeJava(Object o) throws IOException {
+		DirectByteArrayOutputStream baos = new DirectByteArrayOutputStream();
+		ObjectOutputStream s = new ObjectOutputStream(baos);
+		s.writeObject(o);
+		s.close();
+		return baos.toByteArray();
+	}
+	/**
+	 * Read a Java serialized object using the custom class loader if we have one.
+	 * @param is
+	 * @return The object
+	 * @throws IOException
+	 */
+	protected Object deserializeJava(InputStream is) throws IOException {
+		ObjectInputStream s;
+		if( customClassLoader != null )
+			s = new CObjectInputStream(is, customClassLoader);
+		else
+			s = new ObjectInputStream(is);
+		try {
+			return s.readObject();
+		} catch (ClassNotFoundException cnf) {
+			throw new IOException(cnf.toString()+":Class Not found, may have been modified beyond version compatibility");
+		} finally {
+			s.close();
+		}
+	}
+
+	/**
+	 * @param v
+	 * @return The bytes v takes as a variable length unsigned int
+	 */
+	private static int varIntSize(int v) {
+		int size = 1;
+		while( (v & ~0x7F) != 0 ) {
+			v >>>= 7;
+			++size;
+		}
+		return size;
+	}
+
+	/**
+	 * Put v as a variable length unsigned int, 7 bits to a byte, low bits first, the high bit set on all but the last.
+	 * @param bb
+	 * @param v
+	 */
+	private static void putVarInt(ByteBuffer bb, int v) {
+		while( (v & ~0x7F) != 0 ) {
+			bb.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		bb.put((byte) v);
+	}
+
+	/**
+	 * @param dis
+	 * @return The variable length unsigned int read
+	 * @throws IOException If the stream ends or the int runs past 32 bits
+	 */
+	private static int readVarInt(DataInputStream dis) throws IOException {
+		int v = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			int b = dis.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			if( (b & 0x80) == 0 )
+				return v;
+		}
+		throw new IOException("CompactSerializer.readVarInt malformed length");
+	}
+}
@@ -0,0 +1,32 @@
+package com.neocoretechs.bigsack.io.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+/**
+ * Converts the keys and values of a tree to and from the bytes stored in its blocks.
+ * One serializer is in effect per database, held by its ObjectDBIO, and it may be replaced
+ * through BigSackSession.setSerializer or for the typed trees through BigSackAdapter.setSerializer.
+ * The default is the CompactSerializer, which writes the common types in a compact tagged form and falls back to
+ * Java serialization for everything else.<p>
+ * A serializer must be able to read back everything already written to the database, so a replacement should be
+ * put in place before the first store, or should hand anything it does not recognize to a CompactSerializer.
+ * The stream handed to deserialize is positioned at the start of the object and is not bounded by its length,
+ * so the encoding must be self delimiting, and deserialize must take no more of the stream than the encoding,
+ * as the bytes it consumes are the ones freed when the key or value is deleted.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public interface ObjectSerializer {
+	/**
+	 * @param o The key or value to store
+	 * @return The bytes to store, exactly as long as the encoding
+	 * @throws IOException If the object cannot be encoded
+	 */
+	public byte[] serialize(Object o) throws IOException;
+	/**
+	 * @param is The stream positioned at the start of the stored bytes
+	 * @return The reconstituted key or value
+	 * @throws IOException If the bytes cannot be decoded
+	 */
+	public Object deserialize(InputStream is) throws IOException;
+}
@@ -3,6 +3,7 @@ package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
 import java.util.Iterator;
 
+import com.neocoretechs.bigsack.btree.BTreeCursor;
 import com.neocoretechs.bigsack.btree.BTreeMain;
 /**
  * Provides the superclass for out iterators and drop-in compatibility for java.util.Iterator<> contracts
@@ -11,8 +12,10 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
  */
 public abstract class AbstractIterator implements Iterator<Object> {
 	BTreeMain bTree;
+	BTreeCursor cursor; // our own position in the tree, independent of the BTreeMain current position
 	public AbstractIterator(BTreeMain bTree) throws IOException {
 		this.bTree = bTree;
+		this.cursor = new BTreeCursor(bTree);
 	}
 	public abstract boolean hasNext();
 	public abstract Object next();
@@ -1,6 +1,5 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
@@ -33,40 +32,43 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
  *
  */
 public class EntrySetIterator extends AbstractIterator {
-	Object retElem, nextElem;
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
-	Comparable retKey, nextKey;
+	Comparable nextKey, retKey;
+	Object nextElem, retElem;
 	public EntrySetIterator(BTreeMain bTree) throws IOException {
 		super(bTree);
 		synchronized (bTree) {
-			bTree.rewind();
-			bTree.setCurrent();
-			nextElem = bTree.getCurrentObject();
-			nextKey = bTree.getCurrentKey();
+			cursor.first();
+			nextKey = cursor.getKey();
+			nextElem = (nextKey == null ? null : cursor.getObject());
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("EntrySetIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	public Object next() {
 		synchronized (bTree) {
 			try {
-				// move nextelem to retelem, search nextelem, get nextelem
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in EntrySetIterator");
-				// save for return
 				retKey = nextKey;
 				retElem = nextElem;
-				if ( !bTree.search(nextKey).atKey)
-					throw new ConcurrentModificationException("Next EntrySetIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
-					nextElem = bTree.getCurrentObject();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
+					nextElem = (nextKey == null ? null : cursor.getObject());
 				} else {
-					nextElem = null;
 					nextKey = null;
-					bTree.clearStack();
+					nextElem = null;
 				}
 				bTree.getIO().deallocOutstanding();
 				return retElem;
@@ -75,9 +77,7 @@ public class EntrySetIterator extends AbstractIterator {
 			}
 		}
 	}
-	
 	public void remove() {
 		throw new UnsupportedOperationException("No provision to remove from Iterator");
 	}
-
 }
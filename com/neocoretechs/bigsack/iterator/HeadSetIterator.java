@@ -1,6 +1,5 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
@@ -32,45 +31,49 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
 * @author Groff
 */
 public class HeadSetIterator extends AbstractIterator {
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
 	Comparable toKey, nextKey, retKey;
-	@SuppressWarnings("unchecked")
-	public HeadSetIterator(@SuppressWarnings("rawtypes") Comparable toKey, BTreeMain bTree) throws IOException {
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public HeadSetIterator(Comparable toKey, BTreeMain bTree) throws IOException {
 		super(bTree);
 		this.toKey = toKey;
 		synchronized (bTree) {
-			bTree.rewind();
-			bTree.setCurrentKey();
-			nextKey = bTree.getCurrentKey();
-			if (nextKey == null || nextKey.compareTo(toKey) >= 0) {
-				nextKey = null;
-				bTree.clearStack();
+			cursor.first();
+			nextKey = cursor.getKey();
+			if (nextKey != null && nextKey.compareTo(toKey) >= 0) {
+				nextKey = null; //exclusive
+				cursor.clear();
 			}
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("HeadSetIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	@SuppressWarnings("unchecked")
 	public Object next() {
 		synchronized (bTree) {
 			try {
-				// move nextelem to retelem, search nextelem, get nextelem
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in HeadSetIterator");
 				retKey = nextKey;
-				if ( !bTree.seekKey(nextKey).atKey )
-					throw new ConcurrentModificationException("Next HeadSetIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
 					if (nextKey.compareTo(toKey) >= 0) {
-						nextKey = null;
-						bTree.clearStack();
+						nextKey = null; //exclusive
+						cursor.clear();
 					}
 				} else {
 					nextKey = null;
-					bTree.clearStack();
 				}
 				bTree.getIO().deallocOutstanding();
 				return retKey;
@@ -1,6 +1,5 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
@@ -32,52 +31,54 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
 * @author Jonathan Groff (C) NeoCoreTechs 1997,2003,2020,2021
 */
 public class HeadSetKVIterator extends AbstractIterator {
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
 	Comparable toKey, nextKey, retKey;
 	Object nextElem, retElem;
-	@SuppressWarnings("unchecked")
-	public HeadSetKVIterator(@SuppressWarnings("rawtypes") Comparable toKey, BTreeMain bTree) throws IOException {
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public HeadSetKVIterator(Comparable toKey, BTreeMain bTree) throws IOException {
 		super(bTree);
 		this.toKey = toKey;
 		synchronized (bTree) {
-			bTree.rewind();
-			bTree.setCurrent();
-			nextKey = bTree.getCurrentKey();
-			nextElem = bTree.getCurrentObject();
-			if (nextKey == null || nextKey.compareTo(toKey) >= 0) {
-				nextElem = null; //exclusive
-				nextKey = null;
-				bTree.clearStack();
+			cursor.first();
+			nextKey = cursor.getKey();
+			if (nextKey != null && nextKey.compareTo(toKey) >= 0) {
+				nextKey = null; //exclusive
+				cursor.clear();
 			}
+			nextElem = (nextKey == null ? null : cursor.getObject());
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("HeadSetKVIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	@SuppressWarnings("unchecked")
 	public Object next() {
 		synchronized (bTree) {
 			try {
-				// move nextelem to retelem, search nextelem, get nextelem
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in HeadSetKVIterator");
 				retKey = nextKey;
 				retElem = nextElem;
-				if ( !bTree.seekKey(nextKey).atKey )
-					throw new ConcurrentModificationException("Next HeadSetKVIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
-					nextElem = bTree.getCurrentObject();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
 					if (nextKey.compareTo(toKey) >= 0) {
-						nextElem = null; //exclusive
-						nextKey = null;
-						bTree.clearStack();
+						nextKey = null; //exclusive
+						cursor.clear();
 					}
+					nextElem = (nextKey == null ? null : cursor.getObject());
 				} else {
-					nextElem = null;
 					nextKey = null;
-					bTree.clearStack();
+					nextElem = null;
 				}
 				bTree.getIO().deallocOutstanding();
 				return new KeyValuePair(retKey, retElem);
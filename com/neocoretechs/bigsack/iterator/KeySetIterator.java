@@ -1,6 +1,5 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
@@ -31,36 +30,39 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
  * keySet iterator for persistent collection
  * @author Groff
  */
-public class KeySetIterator extends AbstractIterator  {
+public class KeySetIterator extends AbstractIterator {
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
-	Comparable retKey, nextKey;
+	Comparable nextKey, retKey;
 	public KeySetIterator(BTreeMain bTree) throws IOException {
 		super(bTree);
 		synchronized (bTree) {
-			bTree.rewind();
-			bTree.setCurrentKey();
-			nextKey = bTree.getCurrentKey();
+			cursor.first();
+			nextKey = cursor.getKey();
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("KeySetIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	public Object next() {
 		synchronized (bTree) {
 			try {
-				// move nextelem to retelem, search nextelem, get nextelem
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
-					throw new NoSuchElementException("No next element in EntrySetIterator");
-				// save for return
+					throw new NoSuchElementException("No next element in KeySetIterator");
 				retKey = nextKey;
-				if ( !bTree.seekKey(nextKey).atKey )
-					throw new ConcurrentModificationException("Next EntrySetIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
 				} else {
 					nextKey = null;
-					bTree.clearStack();
 				}
 				bTree.getIO().deallocOutstanding();
 				return retKey;
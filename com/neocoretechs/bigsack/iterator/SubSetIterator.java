@@ -1,10 +1,8 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
-import com.neocoretechs.bigsack.btree.TreeSearchResult;
 /*
 * Copyright (c) 2003, NeoCoreTechs
 * All rights reserved.
@@ -41,71 +39,50 @@ public class SubSetIterator extends AbstractIterator {
 		super(bTree);
 		this.fromKey = fromKey;
 		this.toKey = toKey;
-		if( DEBUG )
-			System.out.println("SubSetIterator fromKey:"+fromKey+" toKey:"+toKey+" nextKey:"+nextKey+" bTree:"+bTree);
 		synchronized (bTree) {
-			TreeSearchResult tsr = bTree.seekKey(fromKey);
-			bTree.setCurrent(tsr);
-			nextKey = bTree.getCurrentKey();
-			if( DEBUG )
-				System.out.println("SubSetIterator.init nextKey:"+nextKey);
-			if (nextKey == null || nextKey.compareTo(toKey) >= 0 || nextKey.compareTo(fromKey) < 0) {
-			//if (nextKey == null || toKey.compareTo(nextKey) < 0 || fromKey.compareTo(nextKey) > 0) {
-				if( DEBUG ) {
-					if( nextKey != null)
-						System.out.println("SubSetIterator init nextKey non-null toKey:"+nextKey.compareTo(toKey)+" fromKey:"+nextKey.compareTo(fromKey));
-					else
-						System.out.println("SubSetIterator init nextKey null toKey:"+toKey+" fromKey:"+fromKey);
-				}
+			cursor.seek(fromKey);
+			nextKey = cursor.getKey();
+			if (nextKey != null && nextKey.compareTo(toKey) >= 0) {
 				nextKey = null; //exclusive
-				bTree.clearStack();	
+				cursor.clear();
 			}
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("SubSetIterator init nextKey:"+nextKey);
 		}
 	}
-	/**
-	 * Standard iterator hasNext method. Checks nextKey for null and returns boolean result.
-	 */
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
 	/**
-	 * Standard Iterator next method. To make it resistant to deletes and insertions, we re-traverse
-	 * the key on each iteration. A somewhat inefficient yet failsafe approach.
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
 	 */
 	@SuppressWarnings("unchecked")
 	public Object next() {
-		try {
-			// move nextelem to retelem, search nextelem, get nextelem
-			synchronized (bTree) {
+		synchronized (bTree) {
+			try {
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in SubSetIterator");
 				retKey = nextKey;
-				TreeSearchResult tsr = bTree.seekKey(nextKey);
-				if (!tsr.atKey)
-					throw new ConcurrentModificationException("Next SubSetIterator element rendered invalid");
-				bTree.setCurrent(tsr);
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
-					if ( DEBUG )
-						System.out.println("SubSetIterator.next nextKey returned:"+nextKey);
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
 					if (nextKey.compareTo(toKey) >= 0) {
-					//if (toKey.compareTo(nextKey) < 0) {
-						nextKey = null;
-						bTree.clearStack();
+						nextKey = null; //exclusive
+						cursor.clear();
 					}
 				} else {
 					nextKey = null;
-					bTree.clearStack();
 				}
 				bTree.getIO().deallocOutstanding();
 				return retKey;
+			} catch (IOException ioe) {
+				throw new RuntimeException(ioe.toString());
 			}
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe.toString());
 		}
 	}
-
 	public void remove() {
 		throw new UnsupportedOperationException("No provision to remove from Iterator");
 	}
@@ -1,10 +1,8 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
-import com.neocoretechs.bigsack.btree.TreeSearchResult;
 /*
 * Copyright (c) 2003, NeoCoreTechs
 * All rights reserved.
@@ -33,6 +31,7 @@ import com.neocoretechs.bigsack.btree.TreeSearchResult;
 * @author Groff
 */
 public class SubSetKVIterator extends AbstractIterator {
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
 	Comparable fromKey, toKey, nextKey, retKey;
 	Object nextElem, retElem;
@@ -42,51 +41,53 @@ public class SubSetKVIterator extends AbstractIterator {
 		this.fromKey = fromKey;
 		this.toKey = toKey;
 		synchronized (bTree) {
-			TreeSearchResult tsr = bTree.seekKey(fromKey);
-			nextKey = tsr.page.getKey(tsr.insertPoint);
-			nextElem = tsr.page.getData(tsr.insertPoint);
-			if (nextKey.compareTo(toKey) >= 0 || nextKey.compareTo(fromKey) < 0) {
-					nextElem = null; //exclusive
-					bTree.clearStack();
+			cursor.seek(fromKey);
+			nextKey = cursor.getKey();
+			if (nextKey != null && nextKey.compareTo(toKey) >= 0) {
+				nextKey = null; //exclusive
+				cursor.clear();
 			}
+			nextElem = (nextKey == null ? null : cursor.getObject());
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("SubSetKVIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
-		return (nextElem != null);
+		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	@SuppressWarnings("unchecked")
 	public Object next() {
-		try {
-			// move nextelem to retelem, search nextelem, get nextelem
-			synchronized (bTree) {
+		synchronized (bTree) {
+			try {
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in SubSetKVIterator");
 				retKey = nextKey;
 				retElem = nextElem;
-				if ( !bTree.seekKey(nextKey).atKey )
-					throw new ConcurrentModificationException("Next SubSetKVIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
-					nextElem = bTree.getCurrentObject();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
 					if (nextKey.compareTo(toKey) >= 0) {
-						nextKey = null;
-						nextElem = null; //exclusive
-						bTree.clearStack();
+						nextKey = null; //exclusive
+						cursor.clear();
 					}
+					nextElem = (nextKey == null ? null : cursor.getObject());
 				} else {
 					nextKey = null;
 					nextElem = null;
-					bTree.clearStack();
 				}
 				bTree.getIO().deallocOutstanding();
-				return new KeyValuePair(retKey,retElem);
+				return new KeyValuePair(retKey, retElem);
+			} catch (IOException ioe) {
+				throw new RuntimeException(ioe.toString());
 			}
-		} catch (IOException ioe) {
-			throw new RuntimeException(ioe.toString());
 		}
 	}
-
 	public void remove() {
 		throw new UnsupportedOperationException("No provision to remove from Iterator");
 	}
@@ -1,6 +1,5 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
@@ -31,43 +30,40 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
 * Provides a persistent collection iterator greater or equal to 'from' element
 */
 public class TailSetIterator extends AbstractIterator {
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
 	Comparable fromKey, nextKey, retKey;
-	private static boolean DEBUG = false;
-	public TailSetIterator(@SuppressWarnings("rawtypes") Comparable fromKey, BTreeMain bTree)
-		throws IOException {
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public TailSetIterator(Comparable fromKey, BTreeMain bTree) throws IOException {
 		super(bTree);
 		this.fromKey = fromKey;
 		synchronized (bTree) {
-			bTree.rewind();
-			bTree.search(fromKey);
-			nextKey = bTree.setCurrentKey();
-			if (nextKey == null || nextKey.compareTo(fromKey) < 0) {
-				nextKey = null;
-				bTree.clearStack();
-			}
+			cursor.seek(fromKey);
+			nextKey = cursor.getKey();
 			bTree.getIO().deallocOutstanding();
 			if( DEBUG )
-				System.out.println("TailSetIterator.Nextkey:"+nextKey);
+				System.out.println("TailSetIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	public Object next() {
 		synchronized (bTree) {
 			try {
-				// move nextelem to retelem, search nextelem, get nextelem
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in TailSetIterator");
 				retKey = nextKey;
-				if(!bTree.search(nextKey).atKey)
-					throw new ConcurrentModificationException("Next TailSetIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
 				} else {
 					nextKey = null;
-					bTree.clearStack();
 				}
 				bTree.getIO().deallocOutstanding();
 				return retKey;
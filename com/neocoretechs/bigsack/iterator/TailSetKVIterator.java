@@ -1,6 +1,5 @@
 package com.neocoretechs.bigsack.iterator;
 import java.io.IOException;
-import java.util.ConcurrentModificationException;
 import java.util.NoSuchElementException;
 
 import com.neocoretechs.bigsack.btree.BTreeMain;
@@ -31,50 +30,48 @@ import com.neocoretechs.bigsack.btree.BTreeMain;
 * Provides a persistent collection iterator greater or equal to 'from' element
 */
 public class TailSetKVIterator extends AbstractIterator {
+	private static boolean DEBUG = false;
 	@SuppressWarnings("rawtypes")
 	Comparable fromKey, nextKey, retKey;
-	Object retElem, nextElem;
-	public TailSetKVIterator(@SuppressWarnings("rawtypes") Comparable fromKey, BTreeMain bTree)
-		throws IOException {
+	Object nextElem, retElem;
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public TailSetKVIterator(Comparable fromKey, BTreeMain bTree) throws IOException {
 		super(bTree);
 		this.fromKey = fromKey;
 		synchronized (bTree) {
-			bTree.rewind();
-			bTree.search(fromKey);
-			bTree.setCurrent();
-			nextKey = bTree.getCurrentKey();
-			nextElem = bTree.getCurrentObject();
-			if (nextKey == null || nextKey.compareTo(fromKey) < 0) {
-				nextElem = null; //exclusive
-				nextKey = null;
-				bTree.clearStack();
-			}
+			cursor.seek(fromKey);
+			nextKey = cursor.getKey();
+			nextElem = (nextKey == null ? null : cursor.getObject());
 			bTree.getIO().deallocOutstanding();
+			if( DEBUG )
+				System.out.println("TailSetKVIterator init nextKey:"+nextKey);
 		}
 	}
 	public boolean hasNext() {
 		return (nextKey != null);
 	}
+	/**
+	 * Standard Iterator next method. The cursor holds our place in the tree, so we step
+	 * to the following key without descending from the root. If the tree was modified since
+	 * the last call the cursor re-seeks on its own.
+	 */
 	public Object next() {
 		synchronized (bTree) {
 			try {
-				// move nextelem to retelem, search nextelem, get nextelem
+				// move nextelem to retelem, advance cursor, get nextelem
 				if (nextKey == null)
 					throw new NoSuchElementException("No next element in TailSetKVIterator");
 				retKey = nextKey;
 				retElem = nextElem;
-				if (!bTree.search(nextKey).atKey)
-					throw new ConcurrentModificationException("Next TailSetKVIterator element rendered invalid");
-				if (bTree.gotoNextKey() == 0) {
-					nextKey = bTree.getCurrentKey();
-					nextElem = bTree.getCurrentObject();
+				if (cursor.next()) {
+					nextKey = cursor.getKey();
+					nextElem = (nextKey == null ? null : cursor.getObject());
 				} else {
 					nextKey = null;
 					nextElem = null;
-					bTree.clearStack();
 				}
 				bTree.getIO().deallocOutstanding();
-				return new KeyValuePair(retKey,retElem);
+				return new KeyValuePair(retKey, retElem);
 			} catch (IOException ioe) {
 				throw new RuntimeException(ioe.toString());
 			}
@@ -1,10 +1,12 @@
 package com.neocoretechs.bigsack.session;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.neocoretechs.bigsack.Props;
+import com.neocoretechs.bigsack.io.stream.ObjectSerializer;
 
 /**
  * This class enforces a strong typing for the BigSack using the database naming convention linked to the
@@ -24,6 +26,8 @@ import com.neocoretechs.bigsack.Props;
  * This can affect different OS configs for cluster testing and heterogeneous clusters.
  * The class name is translated into the appropriate file name via a simple translation table to give us a
  * database/class/tablespace identifier for each file used.
+ * A serializer for the keys and values of a class may be registered with setSerializer, in which case it is
+ * applied to the map or set for that class when it is opened, and to any already open.
  * @author jg Copyright (C) NeoCoreTechs 2014,2015
  *
  */
@@ -38,6 +42,7 @@ public class BigSackAdapter {
 	private static ConcurrentHashMap<String, TransactionalTreeMap> classToIsoXTreemap = new ConcurrentHashMap<String,TransactionalTreeMap>();
 	private static ConcurrentHashMap<String, BufferedTreeSet> classToIsoTreeSet = new ConcurrentHashMap<String,BufferedTreeSet>();
 	private static ConcurrentHashMap<String, BufferedTreeMap> classToIsoTreemap = new ConcurrentHashMap<String,BufferedTreeMap>();
+	private static ConcurrentHashMap<String, ObjectSerializer> classToSerializer = new ConcurrentHashMap<String,ObjectSerializer>();
 	
 	public static String getTableSpaceDir() {
 		return tableSpaceDir;
@@ -75,6 +80,7 @@ public class BigSackAdapter {
 			System.out.println("BigSackAdapter.getBigSackSet About to return designator: "+tableSpaceDir+xClass+" formed from "+clazz.getClass().getName());
 		if( ret == null ) {
 			ret =  new BufferedTreeSet(tableSpaceDir+xClass, (remoteDir != null ? remoteDir+xClass : null), Props.toInt("L1CacheSize"));
+			applySerializer(xClass, ret.session);
 			classToIsoTreeSet.put(xClass, ret);
 		}
 		return ret;
@@ -103,10 +109,24 @@ public class BigSackAdapter {
 			System.out.println("BigSackAdapter.getBigSackMap About to return designator: "+tableSpaceDir+xClass+" formed from "+clazz.getClass().getName());
 		if( ret == null ) {
 			ret =  new BufferedTreeMap(tableSpaceDir+xClass, (remoteDir != null ? remoteDir+xClass : null), Props.toInt("L1CacheSize"));
+			applySerializer(xClass, ret.session);
 			classToIsoTreemap.put(xClass, ret);
 		}
 		return ret;
 	}
+	/**
+	 * Bulk load the TreeMap of the Java Class type in one transaction. An empty map is built bottom up from the entries.
+	 * @param clazz The Java Class of the intended database
+	 * @param entries The Map.Entry key/value pairs
+	 * @param sorted true if the entries come in ascending key order, false to sort them first
+	 * @return The number of keys in the map after the load
+	 * @throws IllegalAccessException
+	 * @throws IOException If a key is out of order in sorted entries, or the load fails
+	 */
+	public static long bulkLoadMap(Class clazz, Iterator<? extends Map.Entry> entries, boolean sorted) throws IllegalAccessException, IOException {
+		BufferedTreeMap ret = getBigSackMap(clazz);
+		return (sorted ? ret.bulkLoad(entries) : ret.bulkLoadUnsorted(entries));
+	}
 	/**
 	 * Get a TransactionalTreeSet via Comparable instance.
 	 * @param clazz The Comparable object that the java class name is extracted from
@@ -131,6 +151,7 @@ public class BigSackAdapter {
 			System.out.println("BigSackAdapter.getBigSackSetTransaction About to return designator: "+tableSpaceDir+xClass+" formed from "+clazz.getClass().getName());
 		if( ret == null ) {
 			ret =  new TransactionalTreeSet(tableSpaceDir+xClass, (remoteDir != null ? remoteDir+xClass : null), Props.toInt("L1CacheSize"));
+			applySerializer(xClass, ret.session);
 			classToIsoXTreeset.put(xClass, ret);
 		}
 		return ret;
@@ -159,6 +180,7 @@ public class BigSackAdapter {
 			System.out.println("BigSackAdapter.getBigSackMapTransaction About to return designator: "+tableSpaceDir+xClass+" formed from "+clazz.getClass().getName());
 		if( ret == null ) {
 			ret =  new TransactionalTreeMap(tableSpaceDir+xClass, (remoteDir != null ? remoteDir+xClass : null), Props.toInt("L1CacheSize"));
+			applySerializer(xClass, ret.session);
 			classToIsoXTreemap.put(xClass, ret);
 		}
 		return ret;
@@ -252,6 +274,41 @@ public class BigSackAdapter {
 	public static void checkpointSetTransactions(TransactionalTreeSet ret) throws IllegalAccessException, IOException {
 		ret.checkpoint();
 	}
+	/**
+	 * Register the serializer for the keys and values of the database of the given class.
+	 * It is applied to the map or set of that class when opened, and to any that are open now.
+	 * The serializer has to read what is already stored, see ObjectSerializer.
+	 * @param clazz The Java Class of the database
+	 * @param serializer The serializer, null to revert to the default CompactSerializer
+	 */
+	public static void setSerializer(Class<?> clazz, ObjectSerializer serializer) {
+		String xClass = translateClass(clazz.getName());
+		if( serializer == null )
+			classToSerializer.remove(xClass);
+		else
+			classToSerializer.put(xClass, serializer);
+		if( classToIsoTreeSet.containsKey(xClass) )
+			classToIsoTreeSet.get(xClass).session.setSerializer(serializer);
+		if( classToIsoTreemap.containsKey(xClass) )
+			classToIsoTreemap.get(xClass).session.setSerializer(serializer);
+		if( classToIsoXTreeset.containsKey(xClass) )
+			classToIsoXTreeset.get(xClass).session.setSerializer(serializer);
+		if( classToIsoXTreemap.containsKey(xClass) )
+			classToIsoXTreemap.get(xClass).session.setSerializer(serializer);
+	}
+	/**
+	 * @param clazz The Java Class of the database
+	 * @return The serializer registered for the class, or null if the default is in effect
+	 */
+	public static ObjectSerializer getSerializer(Class<?> clazz) {
+		return classToSerializer.get(translateClass(clazz.getName()));
+	}
+	
+	private static void applySerializer(String xClass, BigSackSession session) {
+		ObjectSerializer serializer = classToSerializer.get(xClass);
+		if( serializer != null )
+			session.setSerializer(serializer);
+	}
 	/**
 	 * Translate a class name into a legitimate file name with some aesthetics.
 	 * @param clazz
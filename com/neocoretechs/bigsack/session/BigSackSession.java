@@ -1,14 +1,24 @@
 package com.neocoretechs.bigsack.session;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.stream.Stream;
 
 import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.Props;
+import com.neocoretechs.bigsack.btree.BTreeCursor;
 import com.neocoretechs.bigsack.btree.BTreeMain;
 import com.neocoretechs.bigsack.btree.TreeSearchResult;
+import com.neocoretechs.bigsack.io.FreeBlockAllocator;
 import com.neocoretechs.bigsack.io.ThreadPoolManager;
 import com.neocoretechs.bigsack.io.pooled.Datablock;
 import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+import com.neocoretechs.bigsack.io.stream.ObjectSerializer;
 import com.neocoretechs.bigsack.iterator.EntrySetIterator;
 import com.neocoretechs.bigsack.iterator.HeadSetIterator;
 import com.neocoretechs.bigsack.iterator.HeadSetKVIterator;
@@ -64,6 +74,16 @@ public final class BigSackSession {
 	private int uid;
 	private int gid;
 	private BTreeMain bTree;
+	// deserialized values by key, sized by the maps that consult it
+	private ObjectCache objectCache = new ObjectCache(0);
+	private Compactor compactor = null;
+	// lookups run outside the session mutex, latching their way down the tree
+	private boolean latchCoupling = false;
+	// before images of the keys changed since the oldest open snapshot
+	private VersionStore versions = new VersionStore();
+	private long commitSequence = 0L; // advanced by each commit that changed anything
+	private boolean changed = false; // true while the transaction in flight has changes
+	private Thread changer = null; // the thread that made the first of them
 	/**
 	* Create a new session
 	* @param bTree The BTreeMain object than handles the BTree key pages indexing the objects in the deep store.
@@ -75,6 +95,9 @@ public final class BigSackSession {
 		this.bTree = bTree;
 		this.uid = uid;
 		this.gid = gid;
+		try {
+			latchCoupling = Props.toBoolean("LatchCoupling");
+		} catch(IllegalArgumentException iae) {}
 		if( DEBUG )
 			System.out.println("BigSackSession constructed with db:"+getDBPath()+" using remote DB:"+getRemoteDBName());
 	}
@@ -104,25 +127,203 @@ public final class BigSackSession {
 	public Object getMutexObject() {
 		return bTree;
 	}
+	/**
+	 * @return true if the transaction in flight has changes not yet committed or rolled back
+	 */
+	boolean isChanged() {
+		synchronized (bTree) {
+			return changed;
+		}
+	}
+	/**
+	 * @return true if get, containsKey and getAll of the maps on this session run without the session mutex,
+	 * alongside each other and the writer
+	 */
+	public boolean isLatchCoupling() {
+		return latchCoupling;
+	}
 
 	@SuppressWarnings("rawtypes")
 	public boolean put(Comparable o) throws IOException {
-		return (bTree.add(o) == 0 ? false : true);
+		recordVersion(o);
+		objectCache.remove(o);
+		boolean ret = (bTree.add(o) == 0 ? false : true);
+		objectCache.remove(o); // and again for a latched lookup that read it in between
+		return ret;
 	}
 
 	@SuppressWarnings("rawtypes")
 	public boolean put(Comparable key, Object o) throws IOException {
-		return (bTree.add(key, o) == 0 ? false : true);
+		recordVersion(key);
+		objectCache.remove(key);
+		boolean ret = (bTree.add(key, o) == 0 ? false : true);
+		objectCache.put(key, o);
+		return ret;
+	}
+
+	/**
+	 * Apply the puts and removes of the batch in key order. Nothing is committed here, the caller commits
+	 * the batch with the rest of its transaction.
+	 * Each operation still goes through the tree on its own, the key order keeps the pages it needs in the pool.
+	 * If an operation fails, the keys the batch reached are put back as they were before it, so the
+	 * transaction is left as the batch found it, and the failure is thrown.
+	 * @param batch
+	 * @throws IOException If an operation fails, with the failure to put the keys back, if any, suppressed in it
+	 */
+	@SuppressWarnings("rawtypes")
+	public void write(WriteBatch batch) throws IOException {
+		// the keys of the batch as they are now, in one walk of the tree
+		Map<Comparable, Object> before = getAll(batch.keys());
+		ArrayList<Comparable> reached = new ArrayList<Comparable>();
+		try {
+			for(Map.Entry<Comparable, Object> op : batch.operations()) {
+				reached.add(op.getKey());
+				if( WriteBatch.isRemove(op.getValue()) )
+					remove(op.getKey());
+				else
+					if( op.getValue() == null )
+						put(op.getKey());
+					else
+						put(op.getKey(), op.getValue());
+			}
+		} catch(IOException | RuntimeException e) {
+			try {
+				for(int i = reached.size()-1; i >= 0; i--) {
+					Comparable key = reached.get(i);
+					if( before.containsKey(key) ) {
+						if( before.get(key) == null )
+							put(key);
+						else
+							put(key, before.get(key));
+					} else
+						if( contains(key) )
+							remove(key);
+				}
+			} catch(IOException | RuntimeException ue) {
+				e.addSuppressed(ue);
+			}
+			throw e;
+		}
+	}
+	/**
+	 * Load entries in ascending key order and commit them as one transaction. Into an empty tree the pages are
+	 * built bottom up, and those taken from the end of the tablespaces are written without before images, since
+	 * there was nothing in them to restore. The commit forces those blocks to the tablespaces before it logs
+	 * the commit record, and the load is checkpointed once at the end.
+	 * Into a tree with keys the entries are added one at a time in the same transaction.
+	 * @param entries The Map.Entry key/value pairs in ascending key order
+	 * @return The number of keys in the tree after the load
+	 * @throws IOException If the entries are out of order or the load fails, in which case it is rolled back
+	 */
+	@SuppressWarnings("rawtypes")
+	public long bulkLoad(Iterator<? extends Map.Entry> entries) throws IOException {
+		objectCache.clear();
+		FreeBlockAllocator alloc = bTree.getIO().getIOManager().getFreeBlockAllocator();
+		alloc.beginUnlogged();
+		try {
+			changed = true;
+			changer = Thread.currentThread();
+			long count = bTree.bulkLoad(versions.isRecording() ? new VersionedEntries(entries) : entries);
+			Commit(); // forces the blocks written around the log before the commit record
+			Checkpoint();
+			return count;
+		} catch(IOException | RuntimeException e) {
+			Rollback();
+			throw e;
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		} finally {
+			alloc.endUnlogged();
+		}
+	}
+
+	/**
+	 * Open a read only view of the maps of this session as of the last commit. If a transaction is in flight
+	 * with changes made before any snapshot was open, we wait for it to commit or roll back, since there are no
+	 * before images of those changes to read past. Close the snapshot when done with it.
+	 * @return The snapshot
+	 * @throws IOException If interrupted while waiting for the transaction in flight
+	 * @throws IllegalStateException If the transaction we would wait for was begun by the calling thread, which would wait forever
+	 */
+	public Snapshot openSnapshot() throws IOException {
+		synchronized (bTree) {
+			if( changed && !versions.isRecording() && changer == Thread.currentThread() )
+				throw new IllegalStateException("Snapshot opened with uncommitted changes of the calling thread, commit or roll back first");
+			while( changed && !versions.isRecording() ) {
+				try {
+					bTree.wait();
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted waiting for the transaction in flight to end", e);
+				}
+			}
+			versions.open(commitSequence);
+			return new Snapshot(this, versions, commitSequence);
+		}
+	}
+	/**
+	 * Note the transaction in flight has a change, and while snapshots are open record the state of the key
+	 * before it. This comes ahead of the change to the tree, so a snapshot that reads the key from the tree
+	 * and then finds no change recorded knows the tree had not changed under it.
+	 * @param key The key about to change
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	private void recordVersion(Comparable key) throws IOException {
+		if( !changed )
+			changer = Thread.currentThread();
+		changed = true;
+		if( versions.isRecording() ) {
+			TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+			boolean present = bTree.lookup(key, found);
+			versions.record(key, commitSequence+1, present, found.get(key));
+		}
+	}
+	/**
+	 * Records the state of each key of a bulk load before it is loaded, while snapshots are open.
+	 */
+	@SuppressWarnings("rawtypes")
+	private final class VersionedEntries implements Iterator<Map.Entry> {
+		private Iterator<? extends Map.Entry> entries;
+		VersionedEntries(Iterator<? extends Map.Entry> entries) {
+			this.entries = entries;
+		}
+		public boolean hasNext() {
+			return entries.hasNext();
+		}
+		public Map.Entry next() {
+			Map.Entry e = entries.next();
+			try {
+				if( e.getKey() != null )
+					recordVersion((Comparable) e.getKey());
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+			return e;
+		}
 	}
 
 	@SuppressWarnings("rawtypes")
 	public Object get(Comparable o) throws IOException {
-		TreeSearchResult tsr = bTree.seekKey(o);
-		if(tsr.atKey)
-			return bTree.getCurrentObject();
+		TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+		if( bTree.lookup(o, found) )
+			return found.get(o);
 		return null;
 	}
 	
+	/**
+	 * Look up the keys in one walk of the tree, in ascending key order.
+	 * @param keys The keys, in any order
+	 * @return The keys found with their values, in key order. Keys not found are absent.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	public Map<Comparable, Object> getAll(Collection<? extends Comparable> keys) throws IOException {
+		TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+		TreeSet<Comparable> sorted = new TreeSet<Comparable>(keys);
+		bTree.getAll(sorted.toArray(new Comparable[sorted.size()]), found);
+		return found;
+	}
+	
 	@SuppressWarnings("rawtypes")
 	public Object getValue(Object o) throws IOException {
 		return bTree.seekObject(o);
@@ -279,10 +480,7 @@ public final class BigSackSession {
 	 */
 	@SuppressWarnings("rawtypes")
 	public boolean contains(Comparable o) throws IOException {
-		// return TreeSearchResult
-		TreeSearchResult tsr = bTree.seekKey(o);
-		bTree.getIO().deallocOutstanding();
-		return tsr.atKey;
+		return bTree.lookup(o, new TreeMap<Comparable, Object>());
 	}
 	
 	/**
@@ -290,51 +488,102 @@ public final class BigSackSession {
 	*/
 	@SuppressWarnings("rawtypes")
 	public Object remove(Comparable o) throws IOException {
+		recordVersion(o);
+		objectCache.remove(o);
 		bTree.delete(o);
+		objectCache.remove(o); // and again for a latched lookup that read it in between
 		return o; //fluent interface style
 	}
 	
 	public Object first() throws IOException {
-		bTree.rewind();
-		Object retVal = bTree.getCurrentObject();
+		BTreeCursor cursor = new BTreeCursor(bTree);
+		Object retVal = (cursor.first() ? cursor.getObject() : null);
 		bTree.getIO().deallocOutstanding();
-		bTree.clearStack();
 		return retVal;
 	}
 	
 	@SuppressWarnings("rawtypes")
 	public Comparable firstKey() throws IOException {
-		bTree.rewind();
-		Comparable retVal = bTree.getCurrentKey();
+		BTreeCursor cursor = new BTreeCursor(bTree);
+		Comparable retVal = (cursor.first() ? cursor.getKey() : null);
 		bTree.getIO().deallocOutstanding();
-		bTree.clearStack();
 		return retVal;
 	}
 	
 	public Object last() throws IOException {
-		bTree.toEnd();
-		Object retVal = bTree.getCurrentObject();
+		BTreeCursor cursor = new BTreeCursor(bTree);
+		Object retVal = (cursor.last() ? cursor.getObject() : null);
 		bTree.getIO().deallocOutstanding();
-		bTree.clearStack();
 		return retVal;
 	}
 	
 	@SuppressWarnings("rawtypes")
 	public Comparable lastKey() throws IOException {
-		bTree.toEnd();
-		Comparable retVal = bTree.getCurrentKey();
+		BTreeCursor cursor = new BTreeCursor(bTree);
+		Comparable retVal = (cursor.last() ? cursor.getKey() : null);
 		bTree.getIO().deallocOutstanding();
-		bTree.clearStack();
 		return retVal;
 	}
 	
 	public long size() throws IOException {
 		return bTree.count();
 	}
+	/**
+	 * Scan the tree to count the keys, correcting the stored count if it disagrees.
+	 * @return The number of keys found by the scan
+	 * @throws IOException
+	 */
+	public long verifyCount() throws IOException {
+		return bTree.verifyCount();
+	}
 
 	public boolean isEmpty() throws IOException {
 		return bTree.isEmpty();
 	}
+	/**
+	 * Replace the serializer for the keys and values of this database. It has to read anything already stored,
+	 * so set it before the first store or have it defer to a CompactSerializer for what it does not recognize.
+	 * @param serializer The serializer, null to revert to the default CompactSerializer
+	 */
+	public void setSerializer(ObjectSerializer serializer) {
+		bTree.getIO().setSerializer(serializer);
+	}
+
+	public ObjectSerializer getSerializer() {
+		return bTree.getIO().getSerializer();
+	}
+	/**
+	 * The cache of deserialized values by key the maps consult before the tree. The session keeps it coherent
+	 * on put, remove and rollback; its capacity is raised by the maps to the largest they ask for.
+	 * @return The ObjectCache for this session
+	 */
+	public ObjectCache getObjectCache() {
+		return objectCache;
+	}
+
+	/**
+	 * Start compacting the tablespaces in the background, moving the entries out of sparsely used blocks so they
+	 * are reclaimed. Foreground operations are held up for one slice of the compaction at most.
+	 * @param budget The blocks per second the compactor may read or write, 0 for the CompactionBudget property or its default
+	 * @return The Compactor, already running if one was
+	 */
+	public synchronized Compactor startCompaction(int budget) {
+		if( compactor == null ) {
+			compactor = new Compactor(this, budget);
+			ThreadPoolManager.init(new String[]{"COMPACTOR"}, false);
+			ThreadPoolManager.getInstance().spin(compactor, "COMPACTOR");
+		}
+		return compactor;
+	}
+	/**
+	 * Stop the background compaction if it is running. It stops after the slice in progress.
+	 */
+	public synchronized void stopCompaction() {
+		if( compactor != null ) {
+			compactor.stop();
+			compactor = null;
+		}
+	}
 
 	/**
 	* Close this session.
@@ -369,8 +618,12 @@ public final class BigSackSession {
 	 * @throws IllegalAccessException 
 	 */
 	void Checkpoint() throws IllegalAccessException, IOException {
-		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
 				bTree.getIO().getIOManager().getUlog(i).checkpoint();
+				// a shared log serves all the tablespaces
+				if( bTree.getIO().getIOManager().getUlog(i).isShared() )
+					break;
+		}
 	}
 	/**
 	* Generic session roll up.  Data is committed based on rollback param.
@@ -382,13 +635,27 @@ public final class BigSackSession {
 	*/
 	private void rollupSession(boolean rollback) throws IOException {
 		if (rollback) {
+			objectCache.clear();
 			bTree.getIO().deallocOutstandingRollback();
+			bTree.reloadRoot();
 		} else {
 			// calls commitbufferflush
 			bTree.getIO().deallocOutstandingCommit();
 		}
-		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+		synchronized (bTree) {
+			// the before images of a rolled back transaction stay, the next one under the same sequence reuses them
+			if( changed && !rollback )
+				++commitSequence;
+			changed = false;
+			changer = null;
+			versions.prune();
+			bTree.notifyAll();
+		}
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++) {
 			bTree.getIO().getIOManager().getUlog(i).getLogToFile().deleteOnlineArchivedLogFiles();
+			if( bTree.getIO().getIOManager().getUlog(i).isShared() )
+				break;
+		}
 		SessionManager.releaseSession(this);
 	}
 	
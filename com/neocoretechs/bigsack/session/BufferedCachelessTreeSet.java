@@ -97,6 +97,14 @@ public class BufferedCachelessTreeSet {
 			return session.size();
 	}
 	/**
+	* Scan the backing store to count the elements, for consistency checks.
+	* @return A long value of number of elements found by the scan
+	* @exception IOException If backing store retrieval failure
+	*/
+	public synchronized long verifyCount() throws IOException {
+			return session.verifyCount();
+	}
+	/**
 	* Return the last element.
 	* @return The last element
 	* @exception IOException If backing store retrieval failure
@@ -1,6 +1,9 @@
 package com.neocoretechs.bigsack.session;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.stream.Stream;
 
@@ -38,8 +41,6 @@ import com.neocoretechs.bigsack.btree.TreeSearchResult;
 * @author Groff (C) NeoCoreTechs 2003, 2017
 */
 public class BufferedTreeMap {
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	protected TreeMap<Comparable<?>, Object> table = new TreeMap();
 	protected BigSackSession session;
 	protected int objectCacheSize;
 	/**
@@ -55,16 +56,18 @@ public class BufferedTreeMap {
 		throws IOException, IllegalAccessException {
 		session = SessionManager.Connect(tdbname, null, true);
 		objectCacheSize = tobjectCacheSize;
+		session.getObjectCache().ensureCapacity(objectCacheSize);
 	}
 	
 	public BufferedTreeMap(String tdbname, String tremotename, int tobjectCacheSize)
 			throws IOException, IllegalAccessException {
 			session = SessionManager.Connect(tdbname, tremotename, true);
 			objectCacheSize = tobjectCacheSize;
+			session.getObjectCache().ensureCapacity(objectCacheSize);
 	}
 	/**
-	* Put a  key/value pair to main cache and pool.  We may
-	* toss out an old one when cache size surpasses objectCacheSize
+	* Put a  key/value pair to main cache and pool. The session updates the cache, which
+	* evicts by CLOCK when it is full
 	* @param tkey The key for the pair
 	* @param tvalue The value for the pair
 	* @exception IOException if put to backing store fails
@@ -72,20 +75,85 @@ public class BufferedTreeMap {
 	@SuppressWarnings("rawtypes")
 	public void put(Comparable tkey, Object tvalue) throws IOException {
 		synchronized (session.getMutexObject()) {
-				if (table.size() >= objectCacheSize) {
-					// throw one out
-					Iterator et = table.keySet().iterator();
-					//Object remo = 
-					et.next();
-					et.remove();
-				}
-				// now put new
 				session.put(tkey, tvalue);
 				session.Commit();
-				table.put(tkey, tvalue);
 		}
 	}
-	
+	/**
+	* Apply the puts and removes of a batch in key order and commit them together, with one
+	* log record per page touched and one log flush for the batch.
+	* @param batch The WriteBatch
+	* If an operation fails the keys are put back and committed as they were, and only if that fails
+	* too is the transaction rolled back.
+	* @exception IOException if the batch fails, none of it is applied in that case
+	*/
+	public void write(WriteBatch batch) throws IOException {
+		synchronized (session.getMutexObject()) {
+			try {
+				session.write(batch);
+			} catch(IOException | RuntimeException e) {
+				// the batch is the whole transaction, so with its keys put back it ends where the last commit left it
+				if( e.getSuppressed().length == 0 )
+					session.Commit();
+				else
+					session.Rollback();
+				throw e;
+			}
+			session.Commit();
+		}
+	}
+	/**
+	* Put all of the key/value pairs of the map in one batch.
+	* @param m The map of pairs
+	* @exception IOException if the put fails, none of the pairs are put in that case
+	*/
+	@SuppressWarnings("rawtypes")
+	public void putAll(Map<? extends Comparable, ?> m) throws IOException {
+		WriteBatch batch = new WriteBatch();
+		for(Map.Entry<? extends Comparable, ?> e : m.entrySet())
+			batch.put(e.getKey(), e.getValue());
+		write(batch);
+	}
+	/**
+	* Load key/value pairs in ascending key order in one transaction. An empty map is built from the bottom up,
+	* each page written once, otherwise the pairs are put one at a time. Of equal keys the last value is kept.
+	* @param entries The Map.Entry pairs in ascending key order
+	* @return The number of keys in the map after the load
+	* @exception IOException if a key is out of order or the load fails, nothing is loaded in that case
+	*/
+	@SuppressWarnings("rawtypes")
+	public long bulkLoad(Iterator<? extends Map.Entry> entries) throws IOException {
+		synchronized (session.getMutexObject()) {
+				return session.bulkLoad(entries);
+		}
+	}
+	/**
+	* Load a Stream of key/value pairs in ascending key order in one transaction.
+	* @param entries The Map.Entry pairs in ascending key order
+	* @return The number of keys in the map after the load
+	* @exception IOException if a key is out of order or the load fails
+	*/
+	@SuppressWarnings("rawtypes")
+	public long bulkLoad(Stream<? extends Map.Entry> entries) throws IOException {
+		return bulkLoad(entries.iterator());
+	}
+	/**
+	* Load key/value pairs in any order in one transaction. They are sorted first in runs spilled to
+	* temporary files, so the keys and values must be Serializable.
+	* @param entries The Map.Entry pairs in any order
+	* @return The number of keys in the map after the load
+	* @exception IOException if the sort or the load fails
+	*/
+	@SuppressWarnings("rawtypes")
+	public long bulkLoadUnsorted(Iterator<? extends Map.Entry> entries) throws IOException {
+		ExternalSort sorted = new ExternalSort(entries, null);
+		try {
+			return bulkLoad(sorted);
+		} finally {
+			sorted.close();
+		}
+	}
+
 	@SuppressWarnings("rawtypes")
 	public synchronized TreeSearchResult locate(Comparable tvalue) throws IOException {
 		return session.locate(tvalue);
@@ -100,12 +168,86 @@ public class BufferedTreeMap {
 	*/
 	@SuppressWarnings("rawtypes")
 	public Object get(Comparable tkey) throws IOException {
-		Object c = null;
+		// latched lookups read outside the mutex, and cache what they read only if no put or remove got there first
+		if( session.isLatchCoupling() ) {
+			Object c = session.getObjectCache().get(tkey);
+			if (c != null)
+				return c;
+			long stamp = session.getObjectCache().stamp();
+			c = session.get(tkey);
+			session.getObjectCache().putIfCurrent(tkey, c, stamp);
+			return c;
+		}
 		synchronized (session.getMutexObject()) {
+				Object c = session.getObjectCache().get(tkey);
+				if (c != null)
+					return c;
 				c = session.get(tkey);
 				session.Commit();
+				session.getObjectCache().put(tkey, c);
+				return c;
+		}
+	}
+	
+	/**
+	* Open a read only view of the map as of the last commit. Reads of the snapshot do not take the
+	* mutex of the map, and puts and removes carry on while it is open. Close it when done.
+	* @return The snapshot
+	* @exception IOException if interrupted waiting for the transaction in flight to end
+	*/
+	public Snapshot snapshot() throws IOException {
+		return session.openSnapshot();
+	}
+	
+	/**
+	* Get the values for a number of keys, those in the cache from there and the rest in one walk of
+	* the tree in key order.
+	* @param keys The keys for the values
+	* @return The keys found with their values, in key order. Keys not found are absent.
+	* @exception IOException if get from backing store fails
+	*/
+	@SuppressWarnings("rawtypes")
+	public Map<Comparable, Object> getAll(Collection<? extends Comparable> keys) throws IOException {
+		if( session.isLatchCoupling() ) {
+			TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+			ArrayList<Comparable> unCached = new ArrayList<Comparable>();
+			for(Comparable tkey : keys) {
+				Object c = session.getObjectCache().get(tkey);
+				if (c != null)
+					found.put(tkey, c);
+				else
+					unCached.add(tkey);
+			}
+			if( unCached.isEmpty() )
+				return found;
+			long stamp = session.getObjectCache().stamp();
+			Map<Comparable, Object> read = session.getAll(unCached);
+			for(Map.Entry<Comparable, Object> e : read.entrySet()) {
+				session.getObjectCache().putIfCurrent(e.getKey(), e.getValue(), stamp);
+				found.put(e.getKey(), e.getValue());
+			}
+			return found;
+		}
+		synchronized (session.getMutexObject()) {
+				TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+				ArrayList<Comparable> unCached = new ArrayList<Comparable>();
+				for(Comparable tkey : keys) {
+					Object c = session.getObjectCache().get(tkey);
+					if (c != null)
+						found.put(tkey, c);
+					else
+						unCached.add(tkey);
+				}
+				if( unCached.isEmpty() )
+					return found;
+				Map<Comparable, Object> read = session.getAll(unCached);
+				session.Commit();
+				for(Map.Entry<Comparable, Object> e : read.entrySet()) {
+					session.getObjectCache().put(e.getKey(), e.getValue());
+					found.put(e.getKey(), e.getValue());
+				}
+				return found;
 		}
-		return c;
 	}
 	
 	/**
@@ -118,10 +260,11 @@ public class BufferedTreeMap {
 	@SuppressWarnings("rawtypes")
 	public Object getValue(Object tkey) throws IOException {
 		synchronized (session.getMutexObject()) {
-				Object kvp = session.getValue(tkey);
+				Object kvp = session.getObjectCache().getValue(tkey);
+				if (kvp != null)
+					return kvp;
+				kvp = session.getValue(tkey);
 				session.Commit();
-				if (kvp == null)
-					return null;
 				return kvp;
 		}
 	}
@@ -137,6 +280,19 @@ public class BufferedTreeMap {
 				return siz;
 		}
 	}
+	/**
+	* Scan the backing store to count the elements, for consistency checks.
+	* The stored count is corrected if the scan disagrees with it.
+	* @return A long value of number of elements found by the scan
+	* @exception IOException If backing store retrieval failure
+	*/
+	public long verifyCount() throws IOException {
+		synchronized (session.getMutexObject()) {
+				long siz = session.verifyCount();
+				session.Commit();
+				return siz;
+		}
+	}
 
 	/**
 	* Obtain iterator over the entrySet. Retrieve from backing store if not in cache.
@@ -178,10 +334,14 @@ public class BufferedTreeMap {
 	*/
 	@SuppressWarnings("rawtypes")
 	public boolean containsKey(Comparable tkey) throws IOException {
+		if( session.isLatchCoupling() )
+			return session.getObjectCache().get(tkey) != null || session.contains(tkey);
 		synchronized (session.getMutexObject()) {
-			boolean ret = session.contains(tkey);
-			session.Commit();
-			return ret;
+				if (session.getObjectCache().get(tkey) != null)
+					return true;
+				boolean ret = session.contains(tkey);
+				session.Commit();
+				return ret;
 		}
 	}
 	/**
@@ -372,8 +532,33 @@ public class BufferedTreeMap {
 				return ret;
 		}
 	}
-
 	
+	/**
+	* @return The number of get, getValue and containsKey calls answered from the object cache
+	*/
+	public long getCacheHits() {
+		return session.getObjectCache().getHits();
+	}
+	/**
+	* @return The number of get, getValue and containsKey calls that had to go to the tree
+	*/
+	public long getCacheMisses() {
+		return session.getObjectCache().getMisses();
+	}
+
+	/**
+	* Start compacting the backing store in the background, reclaiming the blocks left sparse by removes and overwrites.
+	* @param budget The blocks per second the compactor may read or write, 0 for the CompactionBudget property or its default
+	* @return The Compactor, with its counts of the work done
+	*/
+	public Compactor startCompaction(int budget) {
+		return session.startCompaction(budget);
+	}
+
+	public void stopCompaction() {
+		session.stopCompaction();
+	}
+
 	public String getDBName() {
 		return session.getDBname();
 	}
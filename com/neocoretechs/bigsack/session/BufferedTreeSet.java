@@ -139,6 +139,19 @@ public class BufferedTreeSet {
 		}
 	}
 	/**
+	* Scan the backing store to count the elements, for consistency checks.
+	* The stored count is corrected if the scan disagrees with it.
+	* @return A long value of number of elements found by the scan
+	* @exception IOException If backing store retrieval failure
+	*/
+	public long verifyCount() throws IOException {
+		synchronized (session.getMutexObject()) {
+				long siz = session.verifyCount();
+				session.Commit();
+				return siz;
+		}
+	}
+	/**
 	* Return the last element, we have to bypass cache for this because
 	* of our random throwouts
 	* @return A long value of number of elements
@@ -0,0 +1,246 @@
+package com.neocoretechs.bigsack.session;
+
+import java.io.IOException;
+
+import com.neocoretechs.bigsack.DBPhysicalConstants;
+import com.neocoretechs.bigsack.Props;
+import com.neocoretechs.bigsack.btree.BTreeCursor;
+import com.neocoretechs.bigsack.btree.BTreeKeyPage;
+import com.neocoretechs.bigsack.btree.TreeSearchResult;
+import com.neocoretechs.bigsack.io.FreeBlockAllocator;
+import com.neocoretechs.bigsack.io.IoManagerInterface;
+import com.neocoretechs.bigsack.io.pooled.BlockAccessIndex;
+import com.neocoretechs.bigsack.io.pooled.Datablock;
+import com.neocoretechs.bigsack.io.pooled.GlobalDBIO;
+/**
+ * Online compaction of the tablespaces of a session, run in the background while the session is in use.<p>
+ * Deletes and overwrites leave data blocks with far fewer bytes in use than were ever written to them, and as
+ * entries are only appended to a block that space is not used again until the block empties. Each pass surveys the
+ * block headers up to the next free block of each tablespace, as analyze does, and a data block with less than
+ * the threshold percentage of its data area in use, and some of its data area dead, is marked for evacuation with
+ * the FreeBlockAllocator. The keys are then walked in order and every serialized key and value found in a marked
+ * block is moved out of it, the key page holding its Optr being put with the new position, so the marked blocks empty
+ * and are reclaimed by the free space map as each slice commits. The pass ends by trimming the reclaimed blocks
+ * off the end of each tablespace.<p>
+ * The walk is done a slice of SLICEKEYS keys at a time holding the session mutex, each slice its own transaction
+ * under the log, and the cursor is positioned again from the last key at the start of each slice, so foreground
+ * operations are held up for one slice at most and are free to change the tree between slices.
+ * A slice is only begun with no transaction in flight, as its commit would commit the changes of the caller
+ * with it; while a caller has changes open the walk ends, and the next pass takes it up.
+ * An I/O budget in blocks per second, the property CompactionBudget, paces the survey and the slices.
+ * The threshold percentage is the property CompactionThreshold.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public final class Compactor implements Runnable {
+	private static boolean DEBUG = false;
+	private static final int SLICEKEYS = 64; // keys visited per slice
+	private static final long IDLEWAIT = 60000L; // ms between passes
+	private BigSackSession session;
+	private IoManagerInterface ioManager;
+	private int budget = 1000; // blocks per second
+	private int threshold = 50; // percent of the data area in use below which a block is evacuated
+	private long debt = 0L; // blocks done and not yet paid for by sleeping
+	private volatile boolean shouldRun = true;
+	private volatile long passes = 0L;
+	private volatile long evacuated = 0L;
+	private volatile long relocated = 0L;
+	private volatile long trimmed = 0L;
+
+	/**
+	 * @param session The session whose tablespaces we compact
+	 * @param budget The blocks per second we may read or write, 0 or less for the CompactionBudget property or its default
+	 */
+	public Compactor(BigSackSession session, int budget) {
+		this.session = session;
+		this.ioManager = session.getBTree().getIO().getIOManager();
+		try {
+			this.budget = Props.toInt("CompactionBudget");
+		} catch(IllegalArgumentException iae) {}
+		try {
+			this.threshold = Props.toInt("CompactionThreshold");
+		} catch(IllegalArgumentException iae) {}
+		if( budget > 0 )
+			this.budget = budget;
+	}
+
+	@Override
+	public void run() {
+		while( shouldRun ) {
+			try {
+				compact();
+			} catch (IOException e) {
+				System.out.println("Compactor pass failed for "+session.getDBname()+":"+e);
+			} finally {
+				ioManager.getFreeBlockAllocator().endEvacuation();
+			}
+			synchronized(this) {
+				try {
+					if( shouldRun )
+						wait(IDLEWAIT);
+				} catch (InterruptedException e) {
+					shouldRun = false;
+				}
+			}
+		}
+	}
+	/**
+	 * Stop after the current block or slice.
+	 */
+	public synchronized void stop() {
+		shouldRun = false;
+		notifyAll();
+	}
+	/**
+	 * One pass, survey the tablespaces, move the entries out of the sparse blocks and trim the tails.
+	 * @return The number of blocks marked for evacuation
+	 * @throws IOException
+	 */
+	public int compact() throws IOException {
+		long stime = System.currentTimeMillis();
+		int marked = survey();
+		if( marked > 0 ) {
+			walk();
+			ioManager.getFreeBlockAllocator().endEvacuation();
+			synchronized(session.getMutexObject()) {
+				for(int i = 0; i < DBPhysicalConstants.DTABLESPACES; i++)
+					trimmed += ioManager.getFreeBlockAllocator().trimTail(i);
+			}
+		}
+		++passes;
+		evacuated += marked;
+		if( DEBUG )
+			System.out.println("Compactor "+this+" pass evacuated "+marked+" blocks in "+(System.currentTimeMillis()-stime)+" ms.");
+		return marked;
+	}
+	/**
+	 * Read the headers of the blocks in use, the copy in the pool if there is one, and mark the sparse data blocks.
+	 * @return The number of blocks marked
+	 * @throws IOException
+	 */
+	private int survey() throws IOException {
+		FreeBlockAllocator alloc = ioManager.getFreeBlockAllocator();
+		Datablock d = new Datablock(DBPhysicalConstants.DATASIZE);
+		int marked = 0;
+		for(int i = 0; i < DBPhysicalConstants.DTABLESPACES && shouldRun; i++) {
+			long next = alloc.getNextFree(i);
+			if( next == -1L )
+				continue;
+			long end = GlobalDBIO.getBlock(next);
+			for(long blk = 0L; blk <= end && shouldRun; blk += DBPhysicalConstants.DBLOCKSIZ) {
+				long vblock = GlobalDBIO.makeVblock(i, blk);
+				if( vblock == 0L )
+					continue;
+				BlockAccessIndex bai = ioManager.getBlockBuffer(i).get(vblock);
+				Datablock h = d;
+				if( bai != null )
+					h = bai.getBlk();
+				else {
+					ioManager.FseekAndRead(vblock, d);
+					pay(1);
+				}
+				if( isSparse(h) ) {
+					alloc.evacuate(vblock);
+					++marked;
+				}
+			}
+		}
+		return marked;
+	}
+	/**
+	 * @param d
+	 * @return true for a data block standing alone, with dead space, and less than the threshold of its data area in use
+	 */
+	private boolean isSparse(Datablock d) {
+		return !d.isKeypage() && d.getPrevblk() == -1L && d.getNextblk() == -1L && d.getBytesinuse() > 0 &&
+				d.getBytesinuse() < d.getBytesused() && d.getBytesinuse() * 100 < DBPhysicalConstants.DATASIZE * threshold;
+	}
+	/**
+	 * Walk the keys a slice at a time, moving the entries out of the blocks marked, committing each slice.
+	 * @throws IOException
+	 */
+	@SuppressWarnings("rawtypes")
+	private void walk() throws IOException {
+		BTreeCursor cursor = new BTreeCursor(session.getBTree());
+		Comparable resume = null;
+		boolean more = true;
+		while( more && shouldRun ) {
+			int moved = 0;
+			synchronized(session.getMutexObject()) {
+				// committing the slice would commit the changes of a transaction the caller has open, leave the rest for the next pass
+				if( session.isChanged() ) {
+					if( DEBUG )
+						System.out.println("Compactor "+this+" walk ends at "+resume+" with a transaction in flight");
+					break;
+				}
+				boolean positioned;
+				if( resume == null )
+					positioned = cursor.first();
+				else {
+					TreeSearchResult tsr = cursor.seek(resume);
+					// the key we stopped at was done, if it is gone we are already at its successor
+					positioned = (tsr.atKey ? cursor.next() : tsr.page != null);
+				}
+				int keys = 0;
+				while( positioned && keys++ < SLICEKEYS ) {
+					if( cursor.relocate() )
+						++moved;
+					resume = cursor.getKey();
+					positioned = cursor.next();
+				}
+				more = positioned;
+				cursor.clear();
+				session.Commit();
+			}
+			relocated += moved;
+			// a page read for each page of keys visited, and each entry moved touches its old block, its new one and its key page
+			pay(SLICEKEYS / BTreeKeyPage.MAXKEYS + 1 + moved * 3);
+		}
+	}
+	/**
+	 * Account for blocks read or written, sleeping once the work done is worth a millisecond or more of the budget.
+	 * @param blocks
+	 */
+	private void pay(int blocks) {
+		debt += blocks;
+		long ms = debt * 1000L / budget;
+		if( ms == 0L )
+			return;
+		debt -= ms * budget / 1000L;
+		synchronized(this) {
+			try {
+				if( shouldRun )
+					wait(ms);
+			} catch (InterruptedException e) {
+				shouldRun = false;
+			}
+		}
+	}
+
+	public long getPasses() {
+		return passes;
+	}
+	/**
+	 * @return The number of blocks marked for evacuation by all passes
+	 */
+	public long getEvacuated() {
+		return evacuated;
+	}
+	/**
+	 * @return The number of key page entries moved out of sparse blocks
+	 */
+	public long getRelocated() {
+		return relocated;
+	}
+	/**
+	 * @return The number of blocks trimmed from the tablespace tails
+	 */
+	public long getTrimmed() {
+		return trimmed;
+	}
+
+	public String toString() {
+		return "Compactor for "+session.getDBname()+" budget "+budget+" blocks/s threshold "+threshold+"% passes "+passes+
+				" evacuated "+evacuated+" relocated "+relocated+" trimmed "+trimmed;
+	}
+}
@@ -0,0 +1,178 @@
+package com.neocoretechs.bigsack.session;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import com.neocoretechs.bigsack.Props;
+/**
+ * Sorts key/value entries too many to hold in memory into ascending key order for a bulk load.
+ * The entries are read in runs of BulkLoadRunSize, each run sorted and written to a temporary file,
+ * and the runs are then merged as they are read back. The sort is stable, so of entries with equal keys the
+ * one that came last in the input comes last out of the sort, and it is the one the bulk load keeps.
+ * Keys and values must be Serializable. The temporary files are removed when the merge is exhausted or closed.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+final class ExternalSort implements Iterator<Map.Entry<?,?>> {
+	private static boolean DEBUG = false;
+	private static final int RESETINTERVAL = 1024; // objects written before the stream forgets its back references
+	private ArrayList<File> files = new ArrayList<File>();
+	private PriorityQueue<Run> merge;
+	private int runSize = 100000;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static final Comparator<Map.Entry> byKey = (e1, e2) -> ((Comparable)e1.getKey()).compareTo(e2.getKey());
+	/**
+	 * Read all of the entries and write the sorted runs, then ready the merge.
+	 * @param entries The entries in any order
+	 * @param tempDir The directory for the runs, null for the system default
+	 * @throws IOException If a run cannot be written
+	 */
+	@SuppressWarnings("rawtypes")
+	ExternalSort(Iterator<? extends Map.Entry> entries, File tempDir) throws IOException {
+		try {
+			runSize = Props.toInt("BulkLoadRunSize");
+		} catch(IllegalArgumentException iae) {}
+		ArrayList<Map.Entry> run = new ArrayList<Map.Entry>(runSize);
+		try {
+			while( entries.hasNext() ) {
+				Map.Entry e = entries.next();
+				if( e.getKey() == null )
+					throw new IOException("ExternalSort null key");
+				run.add(e);
+				if( run.size() == runSize ) {
+					writeRun(run, tempDir);
+					run.clear();
+				}
+			}
+			writeRun(run, tempDir);
+			merge = new PriorityQueue<Run>(Math.max(1, files.size()));
+			for(int i = 0; i < files.size(); i++) {
+				Run r = new Run(files.get(i), i);
+				if( r.advance() )
+					merge.add(r);
+			}
+		} catch(IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+		if( DEBUG )
+			System.out.println("ExternalSort merging "+files.size()+" runs of "+runSize);
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void writeRun(ArrayList<Map.Entry> run, File tempDir) throws IOException {
+		if( run.isEmpty() )
+			return;
+		Collections.sort(run, byKey); // stable
+		File f = File.createTempFile("BigSackSort", ".run", tempDir);
+		f.deleteOnExit();
+		files.add(f);
+		try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+			int written = 0;
+			for(Map.Entry e : run) {
+				oos.writeObject(e.getKey());
+				oos.writeObject(e.getValue());
+				if( ++written % RESETINTERVAL == 0 )
+					oos.reset();
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if( merge.isEmpty() ) {
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Map.Entry<?,?> next() {
+		Run r = merge.poll();
+		if( r == null )
+			throw new NoSuchElementException();
+		Map.Entry<?,?> e = r.current;
+		try {
+			if( r.advance() )
+				merge.add(r);
+		} catch (IOException ioe) {
+			close();
+			throw new UncheckedIOException(ioe);
+		}
+		return e;
+	}
+	/**
+	 * Close the runs and remove their files.
+	 */
+	void close() {
+		if( merge != null ) {
+			for(Run r : merge)
+				r.close();
+			merge.clear();
+		}
+		for(File f : files)
+			f.delete();
+		files.clear();
+	}
+	/**
+	 * One sorted run being read back. Runs order by their current key, then by their place in the input,
+	 * so the merge is stable too.
+	 */
+	private static final class Run implements Comparable<Run> {
+		private ObjectInputStream ois;
+		private int index;
+		private Map.Entry<?,?> current;
+
+		Run(File f, int index) throws IOException {
+			this.ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(f)));
+			this.index = index;
+		}
+		/**
+		 * @return true if there is another entry, otherwise the run is closed
+		 */
+		boolean advance() throws IOException {
+			try {
+				Object key = ois.readObject();
+				current = new AbstractMap.SimpleImmutableEntry<Object,Object>(key, ois.readObject());
+				return true;
+			} catch(EOFException eof) {
+				close();
+				return false;
+			} catch (ClassNotFoundException e) {
+				close();
+				throw new IOException(e);
+			}
+		}
+
+		void close() {
+			try {
+				ois.close();
+			} catch (IOException e) {}
+			current = null;
+		}
+
+		@Override
+		public int compareTo(Run o) {
+			int cmp = byKey.compare(current, o.current);
+			return cmp != 0 ? cmp : Integer.compare(index, o.index);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.neocoretechs.bigsack.session;
+
+import java.util.TreeMap;
+/**
+ * Cache of deserialized values by key for a BigSackSession, consulted by the maps before they descend the tree.
+ * Eviction is generalized CLOCK: each slot carries a small weight that a hit raises up to MAXWEIGHT and that the
+ * clock hand lowers as it sweeps, and the first slot found at zero is the victim. Entries touched repeatedly
+ * survive several sweeps while a one time scan washes through after a single one, at the cost of a byte per slot
+ * and no list manipulation on a hit.<p>
+ * The index is a TreeMap, so keys are matched by compareTo as they are in the tree itself.
+ * Null values are not cached, so a lookup returning null is always a miss. The session keeps the cache
+ * coherent by updating it on put, dropping entries on remove and clearing it on rollback.
+ * Lookups that read the tree outside the session mutex take a stamp before they read and cache what they read
+ * with putIfCurrent, which drops it if the cache has changed since, so a value read before a put or remove that
+ * finished first is never cached over it.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+public final class ObjectCache {
+	private static boolean DEBUG = false;
+	private static final byte MAXWEIGHT = 3;
+	private TreeMap<Comparable<?>, Integer> index = new TreeMap<Comparable<?>, Integer>();
+	private Comparable<?>[] keys;
+	private Object[] values;
+	private byte[] weights;
+	private int[] freeSlots;
+	private int freeCount;
+	private int hand = 0;
+	private long hits = 0L;
+	private long misses = 0L;
+	private long generation = 0L; // advanced by every change to the cache
+
+	public ObjectCache(int capacity) {
+		allocate(capacity);
+	}
+	/**
+	 * Grow the cache to hold at least capacity entries, which empties it if it has to grow.
+	 * @param capacity
+	 */
+	public synchronized void ensureCapacity(int capacity) {
+		if( capacity > keys.length )
+			allocate(capacity);
+	}
+
+	public synchronized int getCapacity() {
+		return keys.length;
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+	/**
+	 * @param key
+	 * @return The cached value, or null on a miss
+	 */
+	public synchronized Object get(Comparable<?> key) {
+		Integer slot = index.get(key);
+		if( slot == null ) {
+			++misses;
+			return null;
+		}
+		++hits;
+		if( weights[slot] < MAXWEIGHT )
+			++weights[slot];
+		return values[slot];
+	}
+	/**
+	 * Find a cached value equal to the given one. This is a scan of the cache, which is
+	 * still far cheaper than the scan of the tree it saves on a hit.
+	 * @param value
+	 * @return The cached value or null on a miss
+	 */
+	public synchronized Object getValue(Object value) {
+		if( value != null ) {
+			for(Integer slot : index.values()) {
+				if( value.equals(values[slot]) ) {
+					++hits;
+					if( weights[slot] < MAXWEIGHT )
+						++weights[slot];
+					return values[slot];
+				}
+			}
+		}
+		++misses;
+		return null;
+	}
+	/**
+	 * Cache the value for the key, replacing any we had and evicting if full.
+	 * A null value removes the key.
+	 * @param key
+	 * @param value
+	 */
+	public synchronized void put(Comparable<?> key, Object value) {
+		++generation;
+		store(key, value);
+	}
+	/**
+	 * Drop the key from the cache if present.
+	 * @param key
+	 */
+	public synchronized void remove(Comparable<?> key) {
+		++generation;
+		drop(key);
+	}
+	/**
+	 * @return The stamp to hand to putIfCurrent for a value about to be read
+	 */
+	public synchronized long stamp() {
+		return generation;
+	}
+	/**
+	 * Cache the value for the key if nothing in the cache has changed since the stamp was taken.
+	 * Values cached this way leave the stamp current, so a batch read under one stamp caches all of it.
+	 * @param key
+	 * @param value
+	 * @param stamp The stamp taken before the value was read
+	 * @return true if the value was cached
+	 */
+	public synchronized boolean putIfCurrent(Comparable<?> key, Object value, long stamp) {
+		if( stamp != generation )
+			return false;
+		store(key, value);
+		return true;
+	}
+	private void store(Comparable<?> key, Object value) {
+		if( keys.length == 0 )
+			return;
+		if( value == null ) {
+			drop(key);
+			return;
+		}
+		Integer slot = index.get(key);
+		if( slot != null ) {
+			values[slot] = value;
+			return;
+		}
+		int s = (freeCount > 0 ? freeSlots[--freeCount] : evict());
+		keys[s] = key;
+		values[s] = value;
+		weights[s] = 1;
+		index.put(key, s);
+	}
+	private void drop(Comparable<?> key) {
+		Integer slot = index.remove(key);
+		if( slot != null ) {
+			release(slot);
+			freeSlots[freeCount++] = slot;
+		}
+	}
+	/**
+	 * Empty the cache, the hit and miss counters are kept.
+	 */
+	public synchronized void clear() {
+		allocate(keys.length);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized void resetCounters() {
+		hits = 0L;
+		misses = 0L;
+	}
+	/**
+	 * Sweep the hand until we find a slot with no weight left, lowering the others as we pass.
+	 * @return The slot vacated
+	 */
+	private int evict() {
+		while( weights[hand] > 0 ) {
+			--weights[hand];
+			hand = (hand + 1) % keys.length;
+		}
+		int victim = hand;
+		hand = (hand + 1) % keys.length;
+		if( DEBUG )
+			System.out.println("ObjectCache.evict "+keys[victim]);
+		index.remove(keys[victim]);
+		release(victim);
+		return victim;
+	}
+
+	private void release(int slot) {
+		keys[slot] = null;
+		values[slot] = null;
+		weights[slot] = 0;
+	}
+
+	private void allocate(int capacity) {
+		if( capacity < 0 )
+			capacity = 0;
+		++generation;
+		index.clear();
+		keys = new Comparable<?>[capacity];
+		values = new Object[capacity];
+		weights = new byte[capacity];
+		freeSlots = new int[capacity];
+		// hand out the low slots first
+		for(int i = 0; i < capacity; i++)
+			freeSlots[i] = capacity - 1 - i;
+		freeCount = capacity;
+		hand = 0;
+	}
+}
@@ -0,0 +1,256 @@
+package com.neocoretechs.bigsack.session;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import com.neocoretechs.bigsack.btree.BTreeCursor;
+import com.neocoretechs.bigsack.btree.BTreeMain;
+import com.neocoretechs.bigsack.iterator.KeyValuePair;
+/**
+ * A read only view of a map as of the last commit before the snapshot was opened. Puts, removes and commits
+ * made after that go on as usual and are not seen here.<p>
+ * Lookups descend the tree with page latches, outside the session mutex, and scans hold the mutex only
+ * for each step, so neither holds up the writer. A key changed since the snapshot is read from the
+ * before image kept for it in the VersionStore of the session, and a key not changed is read from the tree.
+ * The changes are recorded before the tree is touched, so a key read from the tree and then found unchanged
+ * was unchanged when it was read.<p>
+ * Before images are kept for as long as the oldest snapshot is open, so close a snapshot when done with it.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+@SuppressWarnings("rawtypes")
+public final class Snapshot {
+	private static boolean DEBUG = false;
+	private BigSackSession session;
+	private VersionStore versions;
+	private long sequence;
+	private boolean closed = false;
+	// what the scans return
+	private static final int KEYS = 0;
+	private static final int VALUES = 1;
+	private static final int PAIRS = 2;
+
+	Snapshot(BigSackSession session, VersionStore versions, long sequence) {
+		this.session = session;
+		this.versions = versions;
+		this.sequence = sequence;
+		if( DEBUG )
+			System.out.println("Snapshot opened at "+sequence);
+	}
+	/**
+	 * @return The commit sequence the snapshot sees
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+	/**
+	 * @param key
+	 * @return The value of the key as of the snapshot, null if absent or a set
+	 * @throws IOException
+	 */
+	public Object get(Comparable key) throws IOException {
+		checkOpen();
+		TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+		session.getBTree().lookup(key, found);
+		VersionStore.Version v = versions.asOf(key, sequence);
+		if( v != null )
+			return (v.present ? v.value : null);
+		return found.get(key);
+	}
+	/**
+	 * @param key
+	 * @return true if the key was present as of the snapshot
+	 * @throws IOException
+	 */
+	public boolean containsKey(Comparable key) throws IOException {
+		checkOpen();
+		boolean present = session.getBTree().lookup(key, new TreeMap<Comparable, Object>());
+		VersionStore.Version v = versions.asOf(key, sequence);
+		if( v != null )
+			return v.present;
+		return present;
+	}
+	/**
+	 * @param keys The keys, in any order
+	 * @return The keys present as of the snapshot with their values, in key order
+	 * @throws IOException
+	 */
+	public Map<Comparable, Object> getAll(Collection<? extends Comparable> keys) throws IOException {
+		checkOpen();
+		Map<Comparable, Object> found = session.getAll(keys);
+		for(Comparable key : keys) {
+			VersionStore.Version v = versions.asOf(key, sequence);
+			if( v != null ) {
+				if( v.present )
+					found.put(key, v.value);
+				else
+					found.remove(key);
+			}
+		}
+		return found;
+	}
+	/**
+	 * @return The keys as of the snapshot in ascending order
+	 * @throws IOException
+	 */
+	public Iterator<?> keySet() throws IOException {
+		return new SnapshotIterator(null, null, KEYS);
+	}
+	/**
+	 * @return The values as of the snapshot in ascending key order, as entrySet of the maps returns
+	 * @throws IOException
+	 */
+	public Iterator<?> entrySet() throws IOException {
+		return new SnapshotIterator(null, null, VALUES);
+	}
+	/**
+	 * @param fkey The lowest key, inclusive
+	 * @param tkey The highest key, exclusive
+	 * @return The keys of the range as of the snapshot in ascending order
+	 * @throws IOException
+	 */
+	public Iterator<?> subMap(Comparable fkey, Comparable tkey) throws IOException {
+		return new SnapshotIterator(fkey, tkey, KEYS);
+	}
+	/**
+	 * @param fkey The lowest key, inclusive
+	 * @param tkey The highest key, exclusive
+	 * @return The key/value pairs of the range as of the snapshot in ascending key order
+	 * @throws IOException
+	 */
+	public Iterator<?> subMapKV(Comparable fkey, Comparable tkey) throws IOException {
+		return new SnapshotIterator(fkey, tkey, PAIRS);
+	}
+	/**
+	 * Release the before images held for this snapshot. They are dropped at the next commit.
+	 */
+	public synchronized void close() {
+		if( !closed ) {
+			closed = true;
+			versions.close(sequence);
+		}
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	private synchronized void checkOpen() throws IOException {
+		if( closed )
+			throw new IOException("Snapshot at "+sequence+" is closed");
+	}
+
+	@Override
+	public String toString() {
+		return "Snapshot at "+sequence+(closed ? " closed" : "")+" with "+versions.getRetained()+" before images retained";
+	}
+	/**
+	 * Merges the keys of the tree with the keys changed since the snapshot, in order. A key from the tree that has
+	 * a change recorded takes its state from the before image, as does a key removed from the tree since.
+	 * The tree value is read in the same step as its key, under the session mutex, since the cursor position may
+	 * not describe the tree by the following step.
+	 */
+	private final class SnapshotIterator implements Iterator<Object> {
+		private BTreeCursor cursor;
+		private int returns;
+		private Comparable toKey;
+		private Comparable treeKey = null; // next key of the tree not yet merged, null at the end
+		private Object treeValue = null;
+		private Comparable lastKey = null; // last key merged
+		private Object nextElem = null;
+		private boolean more = false; // a value of a set is null, so we cant go by nextElem
+
+		@SuppressWarnings("unchecked")
+		SnapshotIterator(Comparable fromKey, Comparable toKey, int returns) throws IOException {
+			checkOpen();
+			this.returns = returns;
+			this.toKey = toKey;
+			BTreeMain bTree = session.getBTree();
+			cursor = new BTreeCursor(bTree);
+			synchronized (bTree) {
+				boolean positioned = (fromKey == null ? cursor.first() : cursor.seek(fromKey).page != null);
+				readTree(positioned);
+				Comparable changedKey = versions.higherKey(fromKey, true, sequence);
+				advance(changedKey);
+				bTree.getIO().deallocOutstanding();
+			}
+		}
+
+		public boolean hasNext() {
+			return more;
+		}
+
+		public Object next() {
+			if( !more )
+				throw new NoSuchElementException("No next element in Snapshot");
+			Object retElem = nextElem;
+			BTreeMain bTree = session.getBTree();
+			synchronized (bTree) {
+				try {
+					advance(versions.higherKey(lastKey, false, sequence));
+					bTree.getIO().deallocOutstanding();
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}
+			return retElem;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("No provision to remove from Iterator");
+		}
+
+		private void readTree(boolean positioned) throws IOException {
+			treeKey = (positioned ? cursor.getKey() : null);
+			treeValue = (positioned && returns != KEYS ? cursor.getObject() : null);
+		}
+		/**
+		 * Find the next key present as of the snapshot below the upper bound, taking the lower of the next
+		 * tree key and the next changed key at each turn.
+		 * @param changedKey The lowest changed key after the last one merged
+		 * @throws IOException
+		 */
+		@SuppressWarnings("unchecked")
+		private void advance(Comparable changedKey) throws IOException {
+			nextElem = null;
+			more = false;
+			while( true ) {
+				Comparable key;
+				Object value = null;
+				boolean fromTree = false;
+				if( treeKey != null && (changedKey == null || treeKey.compareTo(changedKey) <= 0) ) {
+					key = treeKey;
+					value = treeValue;
+					fromTree = true;
+				} else
+					key = changedKey;
+				if( key == null || (toKey != null && key.compareTo(toKey) >= 0) ) {
+					cursor.clear();
+					return;
+				}
+				if( fromTree )
+					readTree(cursor.next());
+				if( changedKey != null && key.compareTo(changedKey) == 0 )
+					changedKey = null;
+				lastKey = key;
+				VersionStore.Version v = versions.asOf(key, sequence);
+				if( v != null ) {
+					value = v.value;
+					if( !v.present ) {
+						if( changedKey == null )
+							changedKey = versions.higherKey(lastKey, false, sequence);
+						continue;
+					}
+				}
+				more = true;
+				nextElem = (returns == PAIRS ? new KeyValuePair(key, value) : (returns == VALUES ? value : key));
+				return;
+			}
+		}
+	}
+}
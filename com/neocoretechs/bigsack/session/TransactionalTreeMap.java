@@ -1,6 +1,9 @@
 package com.neocoretechs.bigsack.session;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.stream.Stream;
 
@@ -35,8 +38,6 @@ import com.neocoretechs.bigsack.btree.TreeSearchResult;
 * @author Groff (C) NeoCoreTechs 2003,2014,2017
 */
 public class TransactionalTreeMap {
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	protected TreeMap<Comparable<?>, Object> table = new TreeMap();
 	protected BigSackSession session;
 	protected int objectCacheSize;
 	/**
@@ -52,16 +53,18 @@ public class TransactionalTreeMap {
 		throws IOException, IllegalAccessException {
 		session = SessionManager.Connect(tdbname, null, true);
 		objectCacheSize = tobjectCacheSize;
+		session.getObjectCache().ensureCapacity(objectCacheSize);
 	}
 	
 	public TransactionalTreeMap(String tdbname, String tremotedbname, int tobjectCacheSize)
 			throws IOException, IllegalAccessException {
 			session = SessionManager.Connect(tdbname, tremotedbname, true);
 			objectCacheSize = tobjectCacheSize;
+			session.getObjectCache().ensureCapacity(objectCacheSize);
 		}
 	/**
-	* Put a  key/value pair to main cache and pool.  We may
-	* toss out an old one when cache size surpasses objectCacheSize
+	* Put a  key/value pair to main cache and pool. The session updates the cache, which
+	* evicts by CLOCK when it is full
 	* @param tkey The key for the pair
 	* @param tvalue The value for the pair
 	* @exception IOException if put to backing store fails
@@ -69,17 +72,19 @@ public class TransactionalTreeMap {
 	@SuppressWarnings("rawtypes")
 	public void put(Comparable tkey, Object tvalue) throws IOException {
 		synchronized (session.getMutexObject()) {
-				if (table.size() >= objectCacheSize) {
-					// throw one out
-					Iterator et = table.keySet().iterator();
-					//Object remo = 
-					et.next();
-					et.remove();
-				}
-				// now put new
 				session.put(tkey, tvalue);
 				// commit later
-				table.put(tkey, tvalue);
+		}
+	}
+	/**
+	* Apply the puts and removes of a batch in key order, to be committed with the rest of the transaction.
+	* @param batch The WriteBatch
+	* @exception IOException if put to backing store fails
+	*/
+	public void write(WriteBatch batch) throws IOException {
+		synchronized (session.getMutexObject()) {
+				session.write(batch);
+				// commit later
 		}
 	}
 	
@@ -96,8 +101,84 @@ public class TransactionalTreeMap {
 	*/
 	@SuppressWarnings("rawtypes")
 	public Object get(Comparable tkey) throws IOException {
+		// latched lookups read outside the mutex, and cache what they read only if no put or remove got there first
+		if( session.isLatchCoupling() ) {
+			Object c = session.getObjectCache().get(tkey);
+			if (c != null)
+				return c;
+			long stamp = session.getObjectCache().stamp();
+			c = session.get(tkey);
+			session.getObjectCache().putIfCurrent(tkey, c, stamp);
+			return c;
+		}
 		synchronized (session.getMutexObject()) {
-			return session.get(tkey);
+			Object c = session.getObjectCache().get(tkey);
+			if (c != null)
+				return c;
+			c = session.get(tkey);
+			session.getObjectCache().put(tkey, c);
+			return c;
+		}
+	}
+	
+	/**
+	* Open a read only view of the map as of the last commit. Reads of the snapshot do not take the
+	* mutex of the map, and puts and removes carry on while it is open. Close it when done.
+	* @return The snapshot
+	* @exception IOException if interrupted waiting for the transaction in flight to end
+	* @exception IllegalStateException if this thread has uncommitted changes made before any snapshot was open
+	*/
+	public Snapshot snapshot() throws IOException {
+		return session.openSnapshot();
+	}
+	
+	/**
+	* Get the values for a number of keys, those in the cache from there and the rest in one walk of
+	* the tree in key order.
+	* @param keys The keys for the values
+	* @return The keys found with their values, in key order. Keys not found are absent.
+	* @exception IOException if get from backing store fails
+	*/
+	@SuppressWarnings("rawtypes")
+	public Map<Comparable, Object> getAll(Collection<? extends Comparable> keys) throws IOException {
+		if( session.isLatchCoupling() ) {
+			TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+			ArrayList<Comparable> unCached = new ArrayList<Comparable>();
+			for(Comparable tkey : keys) {
+				Object c = session.getObjectCache().get(tkey);
+				if (c != null)
+					found.put(tkey, c);
+				else
+					unCached.add(tkey);
+			}
+			if( unCached.isEmpty() )
+				return found;
+			long stamp = session.getObjectCache().stamp();
+			Map<Comparable, Object> read = session.getAll(unCached);
+			for(Map.Entry<Comparable, Object> e : read.entrySet()) {
+				session.getObjectCache().putIfCurrent(e.getKey(), e.getValue(), stamp);
+				found.put(e.getKey(), e.getValue());
+			}
+			return found;
+		}
+		synchronized (session.getMutexObject()) {
+				TreeMap<Comparable, Object> found = new TreeMap<Comparable, Object>();
+				ArrayList<Comparable> unCached = new ArrayList<Comparable>();
+				for(Comparable tkey : keys) {
+					Object c = session.getObjectCache().get(tkey);
+					if (c != null)
+						found.put(tkey, c);
+					else
+						unCached.add(tkey);
+				}
+				if( unCached.isEmpty() )
+					return found;
+				Map<Comparable, Object> read = session.getAll(unCached);
+				for(Map.Entry<Comparable, Object> e : read.entrySet()) {
+					session.getObjectCache().put(e.getKey(), e.getValue());
+					found.put(e.getKey(), e.getValue());
+				}
+				return found;
 		}
 	}
 	
@@ -111,7 +192,11 @@ public class TransactionalTreeMap {
 	@SuppressWarnings("rawtypes")
 	public Object getValue(Object tkey) throws IOException {
 		synchronized (session.getMutexObject()) {
-				return session.getValue(tkey);
+				Object kvp = session.getObjectCache().getValue(tkey);
+				if (kvp != null)
+					return kvp;
+				kvp = session.getValue(tkey);
+				return kvp;
 		}
 	}	
 
@@ -125,6 +210,17 @@ public class TransactionalTreeMap {
 				return session.size();
 		}
 	}
+	/**
+	* Scan the backing store to count the elements, for consistency checks.
+	* The stored count is corrected if the scan disagrees with it, and goes out with the next commit.
+	* @return A long value of number of elements found by the scan
+	* @exception IOException If backing store retrieval failure
+	*/
+	public long verifyCount() throws IOException {
+		synchronized (session.getMutexObject()) {
+				return session.verifyCount();
+		}
+	}
 
 	/**
 	* Obtain iterator over the entrySet. Retrieve from backing store if not in cache.
@@ -166,8 +262,13 @@ public class TransactionalTreeMap {
 	*/
 	@SuppressWarnings("rawtypes")
 	public boolean containsKey(Comparable tkey) throws IOException {
+		if( session.isLatchCoupling() )
+			return session.getObjectCache().get(tkey) != null || session.contains(tkey);
 		synchronized (session.getMutexObject()) {
-			return  session.contains(tkey);
+			if (session.getObjectCache().get(tkey) != null)
+				return true;
+			boolean ret = session.contains(tkey);
+			return ret;
 		}
 	}
 	/**
@@ -381,6 +482,19 @@ public class TransactionalTreeMap {
 	void rollback() throws IOException {
 		session.Rollback();
 	}
+	/**
+	* @return The number of get, getValue and containsKey calls answered from the object cache
+	*/
+	public long getCacheHits() {
+		return session.getObjectCache().getHits();
+	}
+	/**
+	* @return The number of get, getValue and containsKey calls that had to go to the tree
+	*/
+	public long getCacheMisses() {
+		return session.getObjectCache().getMisses();
+	}
+
 	public String getDBName() {
 		return session.getDBname();
 	}
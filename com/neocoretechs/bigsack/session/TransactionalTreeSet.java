@@ -138,6 +138,17 @@ public class TransactionalTreeSet {
 		}
 	}
 	/**
+	* Scan the backing store to count the elements, for consistency checks.
+	* The stored count is corrected if the scan disagrees with it, and goes out with the next commit.
+	* @return A long value of number of elements found by the scan
+	* @exception IOException If backing store retrieval failure
+	*/
+	public long verifyCount() throws IOException {
+		synchronized (session.getMutexObject()) {
+				return session.verifyCount();
+		}
+	}
+	/**
 	* Return the last element, we have to bypass cache for this because
 	* of our random throwouts
 	* @return A long value of number of elements
@@ -0,0 +1,161 @@
+package com.neocoretechs.bigsack.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+/**
+ * The before images of keys changed since the oldest open Snapshot, from which a snapshot reconstructs the map
+ * as it stood when it was taken.<p>
+ * Each commit of a session that changed anything advances its commit sequence. A snapshot pins the sequence of the last
+ * commit, and every change made after that is tagged with the sequence of the commit it will belong to. The first
+ * change to a key under each sequence records the value the key had before it, or that it was absent. The value of a
+ * key as of a snapshot is then the before image of its earliest change tagged later than the snapshot, or the current
+ * value in the tree if there is no such change.<p>
+ * Before images are only recorded while snapshots are open, and are dropped at each commit once no open snapshot
+ * precedes them, so a session without snapshots pays nothing for them.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+@SuppressWarnings("rawtypes")
+final class VersionStore {
+	private static boolean DEBUG = false;
+	/**
+	 * The state of a key before a change
+	 */
+	static final class Version {
+		final long sequence; // the commit the change belongs to
+		final boolean present;
+		final Object value;
+		Version(long sequence, boolean present, Object value) {
+			this.sequence = sequence;
+			this.present = present;
+			this.value = value;
+		}
+	}
+	private TreeMap<Comparable, ArrayList<Version>> versions = new TreeMap<Comparable, ArrayList<Version>>();
+	private TreeMap<Long, ArrayList<Comparable>> changed = new TreeMap<Long, ArrayList<Comparable>>(); // keys recorded by sequence
+	private TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>(); // open snapshots by sequence, with a count
+	private boolean recording = false;
+	private long retained = 0L;
+
+	/**
+	 * @return true if changes must record their before images
+	 */
+	synchronized boolean isRecording() {
+		return recording;
+	}
+	/**
+	 * Register a snapshot of the given sequence and start recording.
+	 * @param sequence The sequence of the last commit
+	 */
+	synchronized void open(long sequence) {
+		Integer n = snapshots.get(sequence);
+		snapshots.put(sequence, (n == null ? 1 : n+1));
+		recording = true;
+	}
+	/**
+	 * Release a snapshot. Its before images go at the next commit unless another snapshot needs them.
+	 * @param sequence
+	 */
+	synchronized void close(long sequence) {
+		Integer n = snapshots.get(sequence);
+		if( n == null )
+			return;
+		if( n == 1 )
+			snapshots.remove(sequence);
+		else
+			snapshots.put(sequence, n-1);
+	}
+	/**
+	 * Record the state of a key before its first change in the given commit. Later changes in the same commit
+	 * are not recorded, since no snapshot can see between them.
+	 * @param key
+	 * @param sequence The sequence of the commit in flight
+	 * @param present true if the key is in the tree
+	 * @param value Its value if present
+	 */
+	synchronized void record(Comparable key, long sequence, boolean present, Object value) {
+		ArrayList<Version> chain = versions.get(key);
+		if( chain == null ) {
+			chain = new ArrayList<Version>(2);
+			versions.put(key, chain);
+		} else
+			if( chain.get(chain.size()-1).sequence == sequence )
+				return;
+		chain.add(new Version(sequence, present, value));
+		ArrayList<Comparable> keys = changed.get(sequence);
+		if( keys == null ) {
+			keys = new ArrayList<Comparable>();
+			changed.put(sequence, keys);
+		}
+		keys.add(key);
+		++retained;
+	}
+	/**
+	 * @param key
+	 * @param sequence The sequence of the snapshot
+	 * @return The state of the key as of the snapshot, or null if it has not changed since
+	 */
+	synchronized Version asOf(Comparable key, long sequence) {
+		ArrayList<Version> chain = versions.get(key);
+		if( chain == null )
+			return null;
+		for(Version v : chain) {
+			if( v.sequence > sequence )
+				return v;
+		}
+		return null;
+	}
+	/**
+	 * Find the lowest key after the given one that has changed since the snapshot.
+	 * @param key The key to start from, null for the lowest key
+	 * @param inclusive true to consider the key itself
+	 * @param sequence The sequence of the snapshot
+	 * @return The key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	synchronized Comparable higherKey(Comparable key, boolean inclusive, long sequence) {
+		Map<Comparable, ArrayList<Version>> tail = (key == null ? versions : versions.tailMap(key, inclusive));
+		for(Map.Entry<Comparable, ArrayList<Version>> e : tail.entrySet()) {
+			ArrayList<Version> chain = e.getValue();
+			if( chain.get(chain.size()-1).sequence > sequence )
+				return e.getKey();
+		}
+		return null;
+	}
+	/**
+	 * Drop the before images no open snapshot can see, and stop recording if no snapshots are open.
+	 * Called as each transaction ends.
+	 */
+	synchronized void prune() {
+		if( snapshots.isEmpty() ) {
+			versions.clear();
+			changed.clear();
+			retained = 0L;
+			recording = false;
+			return;
+		}
+		long oldest = snapshots.firstKey();
+		// only the commits up to the oldest snapshot are visited, the chains hold their oldest change first
+		Iterator<ArrayList<Comparable>> it = changed.headMap(oldest, true).values().iterator();
+		while( it.hasNext() ) {
+			for(Comparable key : it.next()) {
+				ArrayList<Version> chain = versions.get(key);
+				chain.remove(0);
+				--retained;
+				if( chain.isEmpty() )
+					versions.remove(key);
+			}
+			it.remove();
+		}
+		if( DEBUG )
+			System.out.println("VersionStore.prune retained "+retained+" before images for "+snapshots.size()+" snapshots from "+oldest);
+	}
+	/**
+	 * @return The number of before images held
+	 */
+	synchronized long getRetained() {
+		return retained;
+	}
+}
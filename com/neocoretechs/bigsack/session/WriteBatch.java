@@ -0,0 +1,75 @@
+package com.neocoretechs.bigsack.session;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+/**
+ * A batch of puts and removes applied to a map together, in one transaction with one commit.
+ * The operations are held in key order, so they reach the tree sorted, and the consecutive keys that fall on
+ * the same leaf find it resident in the pool. Each operation still descends the tree on its own, the batch does not
+ * group the keys of a page into one change. Each page the batch touches is logged once when the
+ * batch commits, and the log is flushed once for the whole batch, rather than once per key.
+ * If an operation fails the keys the batch changed are put back as they were.<p>
+ * A later operation on a key replaces an earlier one in the same batch. A batch may be reused after clear.
+ * @author Groff Copyright (C) NeoCoreTechs 2021
+ *
+ */
+@SuppressWarnings("rawtypes")
+public final class WriteBatch {
+	// stands in for the value of a removed key
+	private static final Object REMOVE = new Object();
+	private TreeMap<Comparable, Object> ops = new TreeMap<Comparable, Object>();
+	/**
+	 * Put the key and value when the batch is written
+	 * @param key
+	 * @param value The value, null for a set
+	 * @return this batch
+	 */
+	public WriteBatch put(Comparable key, Object value) {
+		ops.put(key, value);
+		return this;
+	}
+	/**
+	 * Remove the key when the batch is written
+	 * @param key
+	 * @return this batch
+	 */
+	public WriteBatch remove(Comparable key) {
+		ops.put(key, REMOVE);
+		return this;
+	}
+
+	public int size() {
+		return ops.size();
+	}
+
+	public boolean isEmpty() {
+		return ops.isEmpty();
+	}
+
+	public void clear() {
+		ops.clear();
+	}
+	/**
+	 * @return The operations in ascending key order, a value for which isRemove is true is a remove
+	 */
+	Set<Map.Entry<Comparable, Object>> operations() {
+		return ops.entrySet();
+	}
+
+	/**
+	 * @return The keys of the batch in ascending order
+	 */
+	Set<Comparable> keys() {
+		return ops.keySet();
+	}
+
+	static boolean isRemove(Object value) {
+		return value == REMOVE;
+	}
+
+	@Override
+	public String toString() {
+		return "WriteBatch of "+ops.size()+" operations";
+	}
+}
@@ -3,16 +3,18 @@ package com.neocoretechs.bigsack.test;
 import java.util.Iterator;
 
 import com.neocoretechs.bigsack.iterator.KeyValuePair;
+import com.neocoretechs.bigsack.session.BigSackAdapter;
 import com.neocoretechs.bigsack.session.BigSackSession;
 import com.neocoretechs.bigsack.session.BufferedTreeMap;
 import com.neocoretechs.bigsack.session.SessionManager;
+import com.neocoretechs.bigsack.session.TransactionalTreeMap;
 /**
  * This simple test battery tests the BufferedTreeMap and uses small to medium string K/V pairs
  * with insertion, deletion and retrieval.
  * Parameters: Set the database name as the first argument "/users/you/TestDB1" where
  * the directory  "/users/you" must exist and a series of tablespaces and a log directory
  * are created under that. The database files will be named "TestDB1" under "/users/you/log and 
- * /users/you/tablespace0" to "/users/you/tablespace7".
+ * /users/you/tablespace0" to "/users/you/tablespace7", and the rollback test of battery1A2 creates "TestDB1Rollback" beside it.
  * Set the name of the properties file in the VM -DBigSack.properties="/users/you/Relatrix/BigSack.properties"
  * The static constant fields in the class control the key generation for the tests
  * In general, the keys and values are formatted according to uniqKeyFmt to produce
@@ -44,8 +46,10 @@ public class BatteryBigSack2 {
 		battery1(session, argv);
 		battery1A(session, argv);
 		battery1A1(session, argv);
+		battery1A2(session, argv);
 		battery1B(session, argv);
 		battery1C(session, argv);
+		battery1C1(session, argv);
 		battery1D(session, argv);
 		battery1D1(session, argv);
 		battery1E(session, argv);
@@ -108,6 +112,55 @@ public class BatteryBigSack2 {
 			}
 		 System.out.println("BATTERY1A1 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
 	}
+	/**
+	 * The size comes from the stored count, make sure a full scan agrees with it.
+	 * Then in a transactional map of its own, database argv[0]+"Rollback", commit some keys, put and remove more,
+	 * roll back, and make sure the size, the scan and the values are those of the commit.
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery1A2(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		long o = session.verifyCount();
+		if( o != session.size() ) {
+			System.out.println("BATTERY1A2 FAIL scanned count "+o+" but size is "+session.size());
+			throw new Exception("BATTERY1A2 FAIL scanned count "+o+" but size is "+session.size());
+		}
+		TransactionalTreeMap tsession = new TransactionalTreeMap(argv[0]+"Rollback",l3CacheSize);
+		for(int i = min; i < max; i++) {
+			tsession.put(key + String.format(uniqKeyFmt, i), val+String.format(uniqKeyFmt, i));
+		}
+		BigSackAdapter.commitMap(tsession);
+		for(int i = max; i < max+max/2; i++) {
+			tsession.put(key + String.format(uniqKeyFmt, i), val+String.format(uniqKeyFmt, i));
+		}
+		for(int i = min; i < max; i += 3) {
+			tsession.put(key + String.format(uniqKeyFmt, i), "Update"+String.format(uniqKeyFmt, i));
+		}
+		for(int i = min+1; i < max; i += 7) {
+			tsession.remove(key + String.format(uniqKeyFmt, i));
+		}
+		BigSackAdapter.rollbackMap(tsession);
+		o = tsession.size();
+		if( o != max-min ) {
+			System.out.println("BATTERY1A2 FAIL size after rollback "+o+" should be "+(max-min));
+			throw new Exception("BATTERY1A2 FAIL size after rollback "+o+" should be "+(max-min));
+		}
+		o = tsession.verifyCount();
+		if( o != max-min ) {
+			System.out.println("BATTERY1A2 FAIL scanned count after rollback "+o+" should be "+(max-min));
+			throw new Exception("BATTERY1A2 FAIL scanned count after rollback "+o+" should be "+(max-min));
+		}
+		for(int i = min; i < max; i++) {
+			Object v = tsession.get(key + String.format(uniqKeyFmt, i));
+			if( !(val+String.format(uniqKeyFmt, i)).equals(v) ) {
+				System.out.println("BATTERY1A2 FAIL value after rollback "+v+" for key "+i);
+				throw new Exception("BATTERY1A2 FAIL value after rollback "+v+" for key "+i);
+			}
+		}
+		 System.out.println("BATTERY1A2 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
 	/**
 	 * See if first/last key/val works
 	 * @param session
@@ -169,6 +222,66 @@ public class BatteryBigSack2 {
 		}
 		 System.out.println("BATTERY1C SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
 	}
+	/**
+	 * Iterators hold a cursor on the tree, make sure an insert in the middle of a scan
+	 * causes a re-seek that carries on in order and picks up the new key at the end, and that replacing
+	 * the value of a key ahead of an entry scan gives the scan the new value. The extra key is removed
+	 * and the value put back, so the batteries after find the keys and values of battery1.
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery1C1(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		Iterator<?> itk = session.keySet();
+		int ctr = 0;
+		String akey = key + String.format(uniqKeyFmt, max);
+		while(itk.hasNext()) {
+			Object f = itk.next();
+			String nkey = key + String.format(uniqKeyFmt, ctr);
+			if( !f.equals(nkey) ) {
+				 System.out.println("BATTERY1C1 FAIL "+f+" -- "+nkey+" "+ctr);
+				throw new Exception("B1C1 Fail on get with "+f+" -- "+nkey+" "+ctr);
+			}
+			if( ctr == max/2 )
+				session.put(akey, val + String.format(uniqKeyFmt, max));
+			++ctr;
+		}
+		if( ctr != max+1 ) {
+			 System.out.println("BATTERY1C1 FAIL counter reached "+ctr+" not "+(max+1));
+			throw new Exception("B1C1 FAIL counter reached "+ctr+" not "+(max+1));
+		}
+		if( session.size() != max+1 ) {
+			 System.out.println("BATTERY1C1 FAIL size "+session.size()+" not "+(max+1));
+			throw new Exception("B1C1 FAIL size "+session.size()+" not "+(max+1));
+		}
+		session.remove(akey);
+		if( session.size() != max ) {
+			 System.out.println("BATTERY1C1 FAIL size "+session.size()+" not "+max+" after remove");
+			throw new Exception("B1C1 FAIL size "+session.size()+" not "+max+" after remove");
+		}
+		// the scan has read the value of the key after the one it returned, so replace the one after that
+		Iterator<?> ite = session.entrySet();
+		String ukey = key + String.format(uniqKeyFmt, max/2+2);
+		ctr = 0;
+		while(ite.hasNext()) {
+			Object l = ite.next();
+			String nval = (ctr == max/2+2 ? "Update" : val) + String.format(uniqKeyFmt, ctr);
+			if( !l.equals(nval) ) {
+				 System.out.println("BATTERY1C1 FAIL "+l+" -- "+nval+" "+ctr);
+				throw new Exception("B1C1 Fail on entry with "+l+" -- "+nval+" "+ctr);
+			}
+			if( ctr == max/2 )
+				session.put(ukey, "Update" + String.format(uniqKeyFmt, max/2+2));
+			++ctr;
+		}
+		if( ctr != max ) {
+			 System.out.println("BATTERY1C1 FAIL counter reached "+ctr+" not "+max);
+			throw new Exception("B1C1 FAIL counter reached "+ctr+" not "+max);
+		}
+		session.put(ukey, val + String.format(uniqKeyFmt, max/2+2));
+		 System.out.println("BATTERY1C1 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
 	/**
 	 * headset returns values strictly less than 'to' element
 	 * @param session
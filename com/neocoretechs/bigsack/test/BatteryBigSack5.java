@@ -0,0 +1,676 @@
+package com.neocoretechs.bigsack.test;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.LongStream;
+
+import com.neocoretechs.bigsack.session.BufferedTreeMap;
+import com.neocoretechs.bigsack.session.Compactor;
+import com.neocoretechs.bigsack.session.Snapshot;
+import com.neocoretechs.bigsack.session.WriteBatch;
+/**
+ * This test battery tests the BufferedTreeMap with small fixed size keys, Long, UUID and short Strings,
+ * which are stored inline in the key pages rather than serialized to blocks of their own, with values
+ * of the types the CompactSerializer encodes along with a Java serialized fallback, the object cache in front of the tree,
+ * a background compaction pass over blocks left sparse by overwrites, bulk loads of sorted and unsorted entries,
+ * batches of puts and removes committed together and put back when one of them fails, lookups of many keys at once, and lookups from several threads
+ * while keys are put, which run alongside the puts when LatchCoupling is set, as BatteryBigSack6 does, and several
+ * scans open on one map at once, and a snapshot that goes on seeing the map as it was while it changes.
+ * Parameters: Set the database name as the first argument "/users/you/TestDB1" where
+ * the directory  "/users/you" must exist and a series of tablespaces and a log directory
+ * are created under that. Five databases are created, "TestDB1", "TestDB1UUID", "TestDB1Str", "TestDB1Bulk" and "TestDB1BulkU".
+ * Set the name of the properties file in the VM -DBigSack.properties="/users/you/Relatrix/BigSack.properties"
+ * @author Groff (C) NeoCoreTechs 2021
+ *
+ */
+public class BatteryBigSack5 {
+	static String val = "Of a BigSack K/V pair!"; // holds base value string
+	static String uniqKeyFmt = "k%05d"; // short keys in canonical order
+	static int min = 0; // controls range of testing
+	static int max = 1000;
+	static int l3CacheSize = 100; // size of object cache
+	static int bulkMax = 50000; // enough keys for a bulk load to build several levels
+	/**
+	* Analysis test fixture
+	*/
+	public static void main(String[] argv) throws Exception {
+		if (argv.length == 0 || argv[0].length() == 0) {
+			 System.out.println("usage: java BatteryBigSack5 <database>");
+			System.exit(1);
+		}
+		BufferedTreeMap session = new BufferedTreeMap(argv[0],l3CacheSize);
+		 System.out.println("Begin Battery Fire!");
+		battery1(session, argv);
+		battery1A(session, argv);
+		BufferedTreeMap usession = new BufferedTreeMap(argv[0]+"UUID",l3CacheSize);
+		battery2(usession, argv);
+		BufferedTreeMap ssession = new BufferedTreeMap(argv[0]+"Str",l3CacheSize);
+		battery3(ssession, argv);
+		battery4(session, argv);
+		battery5(session, argv);
+		battery6(session, argv);
+		BufferedTreeMap bsession = new BufferedTreeMap(argv[0]+"Bulk",l3CacheSize);
+		battery7(bsession, argv);
+		BufferedTreeMap busession = new BufferedTreeMap(argv[0]+"BulkU",l3CacheSize);
+		battery7A(busession, argv);
+		battery8(session, argv);
+		battery8A(session, argv);
+		battery9(session, argv);
+		battery10(session, argv);
+		battery11(session, argv);
+		battery12(session, argv);
+		 System.out.println("TEST BATTERY 5 COMPLETE.");
+	}
+	/**
+	 * Loads up Long keys in reverse order then gets them back
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery1(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		for(int i = max-1; i >= min; i--) {
+			session.put(Long.valueOf(i), val+i);
+		}
+		for(int i = min; i < max; i++) {
+			Object o = session.get(Long.valueOf(i));
+			if( !(val+i).equals(o) ) {
+				 System.out.println("BATTERY1 FAIL "+o+" for "+i);
+				throw new Exception("B1 Fail on get with "+o+" for "+i);
+			}
+		}
+		 System.out.println("BATTERY1 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Iterate the Long keys, they should come back in order and as Longs
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery1A(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		Iterator<?> it = session.keySet();
+		long ctr = min;
+		while(it.hasNext()) {
+			Object f = it.next();
+			if( !Long.valueOf(ctr).equals(f) ) {
+				 System.out.println("BATTERY1A FAIL "+f+" -- "+ctr);
+				throw new Exception("B1A Fail on keySet with "+f+" -- "+ctr);
+			}
+			++ctr;
+		}
+		if( ctr != max || session.size() != max-min ) {
+			 System.out.println("BATTERY1A FAIL counter reached "+ctr+" size "+session.size());
+			throw new Exception("B1A FAIL counter reached "+ctr+" size "+session.size());
+		}
+		 System.out.println("BATTERY1A SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * UUID keys, put, get and make sure iteration order matches UUID ordering
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery2(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		UUID[] uuids = new UUID[max-min];
+		for(int i = 0; i < uuids.length; i++) {
+			uuids[i] = UUID.randomUUID();
+			session.put(uuids[i], val+i);
+		}
+		for(int i = 0; i < uuids.length; i++) {
+			Object o = session.get(uuids[i]);
+			if( !(val+i).equals(o) ) {
+				 System.out.println("BATTERY2 FAIL "+o+" for "+uuids[i]);
+				throw new Exception("B2 Fail on get with "+o+" for "+uuids[i]);
+			}
+		}
+		java.util.Arrays.sort(uuids);
+		Iterator<?> it = session.keySet();
+		int ctr = 0;
+		while(it.hasNext()) {
+			Object f = it.next();
+			if( !uuids[ctr].equals(f) ) {
+				 System.out.println("BATTERY2 FAIL "+f+" -- "+uuids[ctr]);
+				throw new Exception("B2 Fail on keySet with "+f+" -- "+uuids[ctr]);
+			}
+			++ctr;
+		}
+		if( ctr != uuids.length ) {
+			 System.out.println("BATTERY2 FAIL counter reached "+ctr+" not "+uuids.length);
+			throw new Exception("B2 FAIL counter reached "+ctr+" not "+uuids.length);
+		}
+		 System.out.println("BATTERY2 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Short String keys, with a subset range over them
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery3(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		for(int i = min; i < max; i++) {
+			session.put(String.format(uniqKeyFmt, i), val+i);
+		}
+		int from = max/4;
+		int to = max/2;
+		Iterator<?> it = session.subMapKV(String.format(uniqKeyFmt, from), String.format(uniqKeyFmt, to));
+		int ctr = from;
+		while(it.hasNext()) {
+			@SuppressWarnings("rawtypes")
+			java.util.Map.Entry f = (java.util.Map.Entry) it.next();
+			if( !String.format(uniqKeyFmt, ctr).equals(f.getKey()) || !(val+ctr).equals(f.getValue()) ) {
+				 System.out.println("BATTERY3 FAIL "+f.getKey()+"="+f.getValue()+" -- "+ctr);
+				throw new Exception("B3 Fail on subMap with "+f.getKey()+"="+f.getValue()+" -- "+ctr);
+			}
+			++ctr;
+		}
+		if( ctr != to ) {
+			 System.out.println("BATTERY3 FAIL counter reached "+ctr+" not "+to);
+			throw new Exception("B3 FAIL counter reached "+ctr+" not "+to);
+		}
+		 System.out.println("BATTERY3 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Values of each compact type and one that falls back to Java serialization, replacing the values of battery1
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery4(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		ArrayList<String> list = new ArrayList<String>();
+		list.add(val);
+		Object[] vals = new Object[]{ Long.valueOf(Long.MIN_VALUE), Integer.valueOf(-1), Short.valueOf((short)7), Byte.valueOf((byte)-3),
+				Character.valueOf('\u00e9'), Boolean.TRUE, Double.valueOf(Math.PI), Float.valueOf(1.5f), UUID.randomUUID(),
+				val+"\u00e9\u4e2d", new byte[]{1,2,3,(byte)0xAC,(byte)0xED}, list };
+		for(int i = min; i < max; i++) {
+			session.put(Long.valueOf(i), vals[i % vals.length]);
+		}
+		for(int i = min; i < max; i++) {
+			Object o = session.get(Long.valueOf(i));
+			Object v = vals[i % vals.length];
+			boolean same = (v instanceof byte[]) ? (o instanceof byte[] && Arrays.equals((byte[])v, (byte[])o)) : v.equals(o);
+			if( !same ) {
+				 System.out.println("BATTERY4 FAIL "+o+" for "+i+" expected "+v);
+				throw new Exception("B4 Fail on get with "+o+" for "+i+" expected "+v);
+			}
+		}
+		 System.out.println("BATTERY4 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Repeated gets of a working set smaller than the cache are hits, and a put replaces what the cache returns
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery5(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		int working = l3CacheSize/2;
+		for(int i = min; i < min+working; i++) {
+			session.put(Long.valueOf(i), val+i);
+		}
+		long hits = session.getCacheHits();
+		for(int j = 0; j < 10; j++) {
+			for(int i = min; i < min+working; i++) {
+				Object o = session.get(Long.valueOf(i));
+				if( !(val+i).equals(o) || !session.containsKey(Long.valueOf(i)) ) {
+					 System.out.println("BATTERY5 FAIL "+o+" for "+i);
+					throw new Exception("B5 Fail on get with "+o+" for "+i);
+				}
+			}
+		}
+		if( session.getCacheHits() - hits != 20 * working ) {
+			 System.out.println("BATTERY5 FAIL cache hits "+(session.getCacheHits() - hits)+" misses "+session.getCacheMisses());
+			throw new Exception("B5 Fail cache hits "+(session.getCacheHits() - hits)+" misses "+session.getCacheMisses());
+		}
+		session.put(Long.valueOf(min), val);
+		if( !val.equals(session.get(Long.valueOf(min))) ) {
+			 System.out.println("BATTERY5 FAIL stale cache value "+session.get(Long.valueOf(min)));
+			throw new Exception("B5 Fail stale cache value "+session.get(Long.valueOf(min)));
+		}
+		 System.out.println("BATTERY5 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms. hits "+session.getCacheHits()+" misses "+session.getCacheMisses());
+	}
+	/**
+	 * Overwrite every third value so the blocks holding the old ones are left sparse, run a compaction pass
+	 * in the background and make sure every value and the key order survive the entries being moved
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery6(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		for(int i = min; i < max; i++) {
+			session.put(Long.valueOf(i), val+i);
+		}
+		for(int i = min; i < max; i += 3) {
+			session.put(Long.valueOf(i), "Y"+i);
+		}
+		Compactor compactor = session.startCompaction(100000);
+		while( compactor.getPasses() == 0 )
+			Thread.sleep(10);
+		session.stopCompaction();
+		Iterator<?> it = session.keySet();
+		long ctr = min;
+		while(it.hasNext()) {
+			Object f = it.next();
+			if( !Long.valueOf(ctr).equals(f) ) {
+				 System.out.println("BATTERY6 FAIL "+f+" -- "+ctr);
+				throw new Exception("B6 Fail on keySet with "+f+" -- "+ctr);
+			}
+			++ctr;
+		}
+		for(int i = min; i < max; i++) {
+			Object o = session.get(Long.valueOf(i));
+			String v = (i % 3 == 0) ? "Y"+i : val+i;
+			if( !v.equals(o) ) {
+				 System.out.println("BATTERY6 FAIL "+o+" for "+i+" expected "+v);
+				throw new Exception("B6 Fail on get with "+o+" for "+i+" expected "+v);
+			}
+		}
+		 System.out.println("BATTERY6 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms. "+compactor);
+	}
+	/**
+	 * Bulk load a stream of even Long keys in order into an empty map, make sure every key comes back in order
+	 * with its value, then put the odd keys between them so the packed pages split like any others
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery7(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		long count = session.bulkLoad(LongStream.range(0, bulkMax).mapToObj(i -> new AbstractMap.SimpleEntry<Long,String>(i*2, val+(i*2))));
+		if( count != bulkMax || session.size() != bulkMax ) {
+			 System.out.println("BATTERY7 FAIL loaded "+count+" size "+session.size());
+			throw new Exception("B7 Fail loaded "+count+" size "+session.size());
+		}
+		long loaded = System.currentTimeMillis()-tims;
+		Iterator<?> it = session.tailMapKV(Long.valueOf(0));
+		long ctr = 0;
+		while(it.hasNext()) {
+			@SuppressWarnings("rawtypes")
+			Map.Entry f = (Map.Entry) it.next();
+			if( !Long.valueOf(ctr).equals(f.getKey()) || !(val+ctr).equals(f.getValue()) ) {
+				 System.out.println("BATTERY7 FAIL "+f.getKey()+"="+f.getValue()+" -- "+ctr);
+				throw new Exception("B7 Fail on tailMapKV with "+f.getKey()+"="+f.getValue()+" -- "+ctr);
+			}
+			ctr += 2;
+		}
+		if( ctr != bulkMax*2 ) {
+			 System.out.println("BATTERY7 FAIL counter reached "+ctr+" not "+(bulkMax*2));
+			throw new Exception("B7 FAIL counter reached "+ctr+" not "+(bulkMax*2));
+		}
+		for(int i = 0; i < bulkMax*2; i += 14) {
+			Object o = session.get(Long.valueOf(i));
+			if( !(val+i).equals(o) ) {
+				 System.out.println("BATTERY7 FAIL "+o+" for "+i);
+				throw new Exception("B7 Fail on get with "+o+" for "+i);
+			}
+		}
+		for(int i = 1; i < max*2; i += 2)
+			session.put(Long.valueOf(i), val+i);
+		it = session.keySet();
+		ctr = 0;
+		while(it.hasNext()) {
+			Object f = it.next();
+			if( !Long.valueOf(ctr).equals(f) ) {
+				 System.out.println("BATTERY7 FAIL "+f+" -- "+ctr);
+				throw new Exception("B7 Fail on keySet after put with "+f+" -- "+ctr);
+			}
+			ctr += (ctr < max*2 ? 1 : 2);
+		}
+		if( ctr != bulkMax*2 || session.size() != bulkMax+max ) {
+			 System.out.println("BATTERY7 FAIL counter reached "+ctr+" size "+session.size());
+			throw new Exception("B7 FAIL counter reached "+ctr+" size "+session.size());
+		}
+		 System.out.println("BATTERY7 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms. loaded "+bulkMax+" in "+loaded+" ms.");
+	}
+	/**
+	 * Bulk load String keys in random order with each key twice, sorted through temporary files, the later value
+	 * for a key is the one kept
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery7A(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		ArrayList<Map.Entry<String,String>> entries = new ArrayList<Map.Entry<String,String>>();
+		for(int i = min; i < max; i++)
+			entries.add(new AbstractMap.SimpleEntry<String,String>(String.format(uniqKeyFmt, i), "X"+i));
+		Collections.shuffle(entries);
+		for(int i = min; i < max; i++)
+			entries.add(new AbstractMap.SimpleEntry<String,String>(String.format(uniqKeyFmt, i), val+i));
+		long count = session.bulkLoadUnsorted(entries.iterator());
+		if( count != max-min ) {
+			 System.out.println("BATTERY7A FAIL loaded "+count);
+			throw new Exception("B7A Fail loaded "+count);
+		}
+		Iterator<?> it = session.tailMapKV(String.format(uniqKeyFmt, min));
+		int ctr = min;
+		while(it.hasNext()) {
+			@SuppressWarnings("rawtypes")
+			Map.Entry f = (Map.Entry) it.next();
+			if( !String.format(uniqKeyFmt, ctr).equals(f.getKey()) || !(val+ctr).equals(f.getValue()) ) {
+				 System.out.println("BATTERY7A FAIL "+f.getKey()+"="+f.getValue()+" -- "+ctr);
+				throw new Exception("B7A Fail on tailMapKV with "+f.getKey()+"="+f.getValue()+" -- "+ctr);
+			}
+			++ctr;
+		}
+		if( ctr != max ) {
+			 System.out.println("BATTERY7A FAIL counter reached "+ctr+" not "+max);
+			throw new Exception("B7A FAIL counter reached "+ctr+" not "+max);
+		}
+		 System.out.println("BATTERY7A SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Write a batch of puts, given out of order, and removes of the first keys of battery1 in one commit,
+	 * then make sure the puts are there and the removed keys are not
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery8(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		WriteBatch batch = new WriteBatch();
+		for(int i = max*3-1; i >= max; i--)
+			batch.put(Long.valueOf(i), val+i);
+		for(int i = min; i < min+10; i++)
+			batch.remove(Long.valueOf(i));
+		batch.put(Long.valueOf(max), "Z"); // the later operation on a key wins
+		session.write(batch);
+		for(int i = max; i < max*3; i++) {
+			Object o = session.get(Long.valueOf(i));
+			String v = (i == max) ? "Z" : val+i;
+			if( !v.equals(o) ) {
+				 System.out.println("BATTERY8 FAIL "+o+" for "+i+" expected "+v);
+				throw new Exception("B8 Fail on get with "+o+" for "+i+" expected "+v);
+			}
+		}
+		for(int i = min; i < min+10; i++) {
+			if( session.containsKey(Long.valueOf(i)) || session.get(Long.valueOf(i)) != null ) {
+				 System.out.println("BATTERY8 FAIL found "+i+" after batch remove");
+				throw new Exception("B8 Fail found "+i+" after batch remove");
+			}
+		}
+		if( session.size() != max*3-10 ) {
+			 System.out.println("BATTERY8 FAIL size "+session.size()+" not "+(max*3-10));
+			throw new Exception("B8 Fail size "+session.size()+" not "+(max*3-10));
+		}
+		 System.out.println("BATTERY8 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms. "+batch);
+	}
+	/**
+	 * Write a batch that replaces a value, removes a key and puts a new one ahead of a value that cannot be
+	 * serialized, and make sure the batch fails and leaves the keys of battery8 as they were
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	public static void battery8A(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		long size = session.size();
+		WriteBatch batch = new WriteBatch();
+		batch.put(Long.valueOf(max+1), "Z");
+		batch.remove(Long.valueOf(max+2));
+		batch.put(Long.valueOf(max*3), val);
+		batch.put(Long.valueOf(max*3+1), new Object());
+		try {
+			session.write(batch);
+			 System.out.println("BATTERY8A FAIL batch with a value that cannot be serialized was written");
+			throw new Exception("B8A Fail batch with a value that cannot be serialized was written");
+		} catch(IOException e) {}
+		for(int i = max+1; i <= max+2; i++) {
+			Object o = session.get(Long.valueOf(i));
+			if( !(val+i).equals(o) ) {
+				 System.out.println("BATTERY8A FAIL "+o+" for "+i+" expected "+val+i);
+				throw new Exception("B8A Fail on get with "+o+" for "+i+" expected "+val+i);
+			}
+		}
+		for(int i = max*3; i <= max*3+1; i++) {
+			if( session.containsKey(Long.valueOf(i)) ) {
+				 System.out.println("BATTERY8A FAIL found "+i+" after failed batch");
+				throw new Exception("B8A Fail found "+i+" after failed batch");
+			}
+		}
+		if( session.size() != size ) {
+			 System.out.println("BATTERY8A FAIL size "+session.size()+" not "+size);
+			throw new Exception("B8A Fail size "+session.size()+" not "+size);
+		}
+		 System.out.println("BATTERY8A SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Get a shuffled collection of keys, with repeats, some of which were removed or never put by the
+	 * batteries before, in one call and make sure exactly those present come back with their values
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void battery9(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		ArrayList<Long> keys = new ArrayList<Long>();
+		for(int i = min-50; i < max*3+50; i += 3) {
+			keys.add(Long.valueOf(i));
+			if( i % 7 == 0 )
+				keys.add(Long.valueOf(i));
+		}
+		Collections.shuffle(keys, new Random(max));
+		Map<Comparable, Object> found = session.getAll(keys);
+		int expected = 0;
+		for(int i = min-50; i < max*3+50; i += 3) {
+			Object o = found.get(Long.valueOf(i));
+			if( i < min+10 || i >= max*3 ) {
+				if( found.containsKey(Long.valueOf(i)) ) {
+					 System.out.println("BATTERY9 FAIL found "+o+" for absent key "+i);
+					throw new Exception("B9 Fail found "+o+" for absent key "+i);
+				}
+				continue;
+			}
+			++expected;
+			String v = (i == max) ? "Z" : val+i;
+			if( !v.equals(o) ) {
+				 System.out.println("BATTERY9 FAIL "+o+" for "+i+" expected "+v);
+				throw new Exception("B9 Fail on getAll with "+o+" for "+i+" expected "+v);
+			}
+		}
+		if( found.size() != expected ) {
+			 System.out.println("BATTERY9 FAIL found "+found.size()+" keys, expected "+expected);
+			throw new Exception("B9 Fail found "+found.size()+" keys, expected "+expected);
+		}
+		 System.out.println("BATTERY9 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms. found "+found.size()+" of "+keys.size());
+	}
+	/**
+	 * Look up the keys of battery8 from several threads, singly and in batches, while the main thread puts
+	 * new keys above them, splitting the pages the lookups pass through, then make sure the new keys are there
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void battery10(final BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] readers = new Thread[4];
+		for(int t = 0; t < readers.length; t++) {
+			final Random r = new Random(t);
+			readers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while( !done.get() && failure.get() == null ) {
+							int i = max+1+r.nextInt(max*2-1);
+							Object o = session.get(Long.valueOf(i));
+							if( !(val+i).equals(o) ) {
+								failure.set(o+" for "+i);
+								return;
+							}
+							ArrayList<Long> keys = new ArrayList<Long>();
+							for(int j = 0; j < 20; j++)
+								keys.add(Long.valueOf(max+1+r.nextInt(max*2-1)));
+							Map<Comparable, Object> found = session.getAll(keys);
+							for(Long key : keys) {
+								if( !(val+key).equals(found.get(key)) ) {
+									failure.set(found.get(key)+" for "+key+" in batch");
+									return;
+								}
+							}
+						}
+					} catch(Exception e) {
+						failure.set(e.toString());
+					}
+				}
+			});
+			readers[t].start();
+		}
+		for(int i = max*3; i < max*4; i++)
+			session.put(Long.valueOf(i), val+i);
+		done.set(true);
+		for(Thread reader : readers)
+			reader.join();
+		if( failure.get() != null ) {
+			 System.out.println("BATTERY10 FAIL "+failure.get());
+			throw new Exception("B10 Fail on concurrent get with "+failure.get());
+		}
+		for(int i = max*3; i < max*4; i++) {
+			Object o = session.get(Long.valueOf(i));
+			if( !(val+i).equals(o) ) {
+				 System.out.println("BATTERY10 FAIL "+o+" for "+i);
+				throw new Exception("B10 Fail on get with "+o+" for "+i);
+			}
+		}
+		 System.out.println("BATTERY10 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Step a scan of the whole map and a scan of a sub range in turns, putting keys past the end and asking
+	 * for the first and last keys along the way, and make sure neither scan loses its place
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void battery11(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		// take what the map holds from the map itself, so the batteries before may leave it as they like
+		long first = ((Long)session.firstKey()).longValue();
+		long base = Math.max(((Long)session.lastKey()).longValue()+1, max*4);
+		long size = session.size();
+		ArrayList<Long> subKeys = new ArrayList<Long>();
+		Iterator<?> expect = session.subMap(Long.valueOf(max), Long.valueOf(max*2));
+		while( expect.hasNext() )
+			subKeys.add((Long)expect.next());
+		Iterator<?> all = session.keySet();
+		Iterator<?> sub = session.subMap(Long.valueOf(max), Long.valueOf(max*2));
+		long prev = Long.MIN_VALUE;
+		int ctr = 0, subCtr = 0, added = 0;
+		while( all.hasNext() ) {
+			long key = ((Long)all.next()).longValue();
+			if( key <= prev ) {
+				 System.out.println("BATTERY11 FAIL key "+key+" after "+prev);
+				throw new Exception("B11 Fail key "+key+" after "+prev);
+			}
+			prev = key;
+			++ctr;
+			if( sub.hasNext() ) {
+				Long subKey = (Long)sub.next();
+				if( subCtr >= subKeys.size() || !subKey.equals(subKeys.get(subCtr)) ) {
+					 System.out.println("BATTERY11 FAIL sub range key "+subKey+" at "+subCtr);
+					throw new Exception("B11 Fail sub range key "+subKey+" at "+subCtr);
+				}
+				++subCtr;
+			}
+			if( ctr % 100 == 0 && added < 10 ) {
+				session.put(Long.valueOf(base+added), val+(base+added));
+				++added;
+				if( ((Long)session.firstKey()).longValue() != first || ((Long)session.lastKey()).longValue() != base+added-1 ) {
+					 System.out.println("BATTERY11 FAIL first "+session.firstKey()+" last "+session.lastKey());
+					throw new Exception("B11 Fail first "+session.firstKey()+" last "+session.lastKey());
+				}
+			}
+		}
+		if( ctr != size+added || subCtr != subKeys.size() ) {
+			 System.out.println("BATTERY11 FAIL counted "+ctr+" and "+subCtr);
+			throw new Exception("B11 Fail counted "+ctr+" and "+subCtr);
+		}
+		 System.out.println("BATTERY11 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms.");
+	}
+	/**
+	 * Open a snapshot and scan it while values are replaced, keys ahead of the scan removed and new keys put,
+	 * each committed as it goes, and make sure the snapshot sees only the map as it was and the map only the changes
+	 * @param session
+	 * @param argv
+	 * @throws Exception
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void battery12(BufferedTreeMap session, String[] argv) throws Exception {
+		long tims = System.currentTimeMillis();
+		int lo = min+10, hi = max*4+10; // the keys left by the batteries before
+		ArrayList<Object> before = new ArrayList<Object>();
+		Iterator<?> it = session.entrySet();
+		while( it.hasNext() )
+			before.add(it.next());
+		Snapshot snap = session.snapshot();
+		it = snap.subMapKV(Long.valueOf(lo), Long.valueOf(hi));
+		int ctr = 0, changes = 0;
+		while( it.hasNext() ) {
+			Map.Entry e = (Map.Entry) it.next();
+			int i = ((Long)e.getKey()).intValue();
+			Object v = (ctr < before.size() ? before.get(ctr) : null);
+			if( i != lo+ctr || !e.getValue().equals(v) ) {
+				 System.out.println("BATTERY12 FAIL snapshot scan "+e.getKey()+"="+e.getValue()+" expected "+(lo+ctr)+"="+v);
+				throw new Exception("B12 Fail snapshot scan "+e.getKey()+"="+e.getValue()+" expected "+(lo+ctr)+"="+v);
+			}
+			++ctr;
+			if( ctr % 50 == 0 && i+725 < hi ) {
+				session.put(Long.valueOf(i+500), "new"+(i+500));
+				session.remove(Long.valueOf(i+725));
+				session.put(Long.valueOf(max*5+changes), "new");
+				++changes;
+			}
+		}
+		if( ctr != hi-lo ) {
+			 System.out.println("BATTERY12 FAIL snapshot scan counted "+ctr+" not "+(hi-lo));
+			throw new Exception("B12 Fail snapshot scan counted "+ctr+" not "+(hi-lo));
+		}
+		for(int j = 0; j < changes; j++) {
+			int i = lo+50*(j+1)-1;
+			if( !before.get(i+500-lo).equals(snap.get(Long.valueOf(i+500))) || !("new"+(i+500)).equals(session.get(Long.valueOf(i+500))) ||
+				!snap.containsKey(Long.valueOf(i+725)) || session.containsKey(Long.valueOf(i+725)) ||
+				snap.containsKey(Long.valueOf(max*5+j)) || !session.containsKey(Long.valueOf(max*5+j)) ) {
+				 System.out.println("BATTERY12 FAIL snapshot and map disagree at change "+j+" key "+i);
+				throw new Exception("B12 Fail snapshot and map disagree at change "+j+" key "+i);
+			}
+		}
+		ArrayList<Long> keys = new ArrayList<Long>();
+		for(int j = 0; j < changes; j++)
+			keys.add(Long.valueOf(max*5+j));
+		if( !snap.getAll(keys).isEmpty() || session.getAll(keys).size() != changes ) {
+			 System.out.println("BATTERY12 FAIL getAll of new keys "+snap.getAll(keys).size()+" "+session.getAll(keys).size());
+			throw new Exception("B12 Fail getAll of new keys "+snap.getAll(keys).size()+" "+session.getAll(keys).size());
+		}
+		it = snap.entrySet();
+		for(int j = 0; j < before.size(); j++) {
+			Object o = it.next();
+			if( !before.get(j).equals(o) ) {
+				 System.out.println("BATTERY12 FAIL snapshot value "+o+" expected "+before.get(j));
+				throw new Exception("B12 Fail snapshot value "+o+" expected "+before.get(j));
+			}
+		}
+		if( it.hasNext() ) {
+			 System.out.println("BATTERY12 FAIL snapshot has more values than the map had");
+			throw new Exception("B12 Fail snapshot has more values than the map had");
+		}
+		String held = snap.toString();
+		snap.close();
+		 System.out.println("BATTERY12 SUCCESS in "+(System.currentTimeMillis()-tims)+" ms. "+held+" over "+changes+" changes");
+	}
+}
@@ -0,0 +1,58 @@
+package com.neocoretechs.bigsack.test;
+
+import com.neocoretechs.bigsack.Props;
+import com.neocoretechs.bigsack.session.BufferedTreeMap;
+/**
+ * This test battery runs the batteries of BatteryBigSack5 with LatchCoupling set, whatever the properties file says,
+ * so the gets and containsKey of the maps descend the tree latch coupled outside the session mutex, getAll takes
+ * its keys the same way, the lookups from several threads run alongside the puts that split the pages they pass
+ * through, and the compaction pass relocates values under the page latches.
+ * Parameters: Set the database name as the first argument "/users/you/TestDB1" where
+ * the directory  "/users/you" must exist and a series of tablespaces and a log directory
+ * are created under that. Five databases are created, "TestDB1", "TestDB1UUID", "TestDB1Str", "TestDB1Bulk" and "TestDB1BulkU",
+ * so use a directory other than that of BatteryBigSack5.
+ * Set the name of the properties file in the VM -DBigSack.properties="/users/you/Relatrix/BigSack.properties"
+ * @author Groff (C) NeoCoreTechs 2021
+ *
+ */
+public class BatteryBigSack6 {
+	/**
+	* Analysis test fixture
+	*/
+	public static void main(String[] argv) throws Exception {
+		if (argv.length == 0 || argv[0].length() == 0) {
+			 System.out.println("usage: java BatteryBigSack6 <database>");
+			System.exit(1);
+		}
+		// the properties file is loaded into the system properties once, the first time Props is used, so load it
+		// before setting ours over it, the sessions read it as they open
+		Props.getPropFile();
+		System.setProperty("LatchCoupling", "true");
+		if( !Props.toBoolean("LatchCoupling") ) {
+			System.out.println("BATTERY6 FAIL LatchCoupling not set");
+			System.exit(1);
+		}
+		BufferedTreeMap session = new BufferedTreeMap(argv[0],BatteryBigSack5.l3CacheSize);
+		 System.out.println("Begin Battery Fire! LatchCoupling set");
+		BatteryBigSack5.battery1(session, argv);
+		BatteryBigSack5.battery1A(session, argv);
+		BufferedTreeMap usession = new BufferedTreeMap(argv[0]+"UUID",BatteryBigSack5.l3CacheSize);
+		BatteryBigSack5.battery2(usession, argv);
+		BufferedTreeMap ssession = new BufferedTreeMap(argv[0]+"Str",BatteryBigSack5.l3CacheSize);
+		BatteryBigSack5.battery3(ssession, argv);
+		BatteryBigSack5.battery4(session, argv);
+		BatteryBigSack5.battery5(session, argv);
+		BatteryBigSack5.battery6(session, argv);
+		BufferedTreeMap bsession = new BufferedTreeMap(argv[0]+"Bulk",BatteryBigSack5.l3CacheSize);
+		BatteryBigSack5.battery7(bsession, argv);
+		BufferedTreeMap busession = new BufferedTreeMap(argv[0]+"BulkU",BatteryBigSack5.l3CacheSize);
+		BatteryBigSack5.battery7A(busession, argv);
+		BatteryBigSack5.battery8(session, argv);
+		BatteryBigSack5.battery8A(session, argv);
+		BatteryBigSack5.battery9(session, argv);
+		BatteryBigSack5.battery10(session, argv);
+		BatteryBigSack5.battery11(session, argv);
+		BatteryBigSack5.battery12(session, argv);
+		 System.out.println("TEST BATTERY 6 COMPLETE.");
+	}
+}